@@ -0,0 +1,390 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Evaluates a {@link PolicyNetwork} on a whole batch of observations at
+ * once, for rollouts that step many environments together.
+ * <p>
+ * Each layer is a matrix multiply done in cache-sized blocks: a panel of
+ * BLOCK_IN x BLOCK_OUT weights is packed into scratch arrays that stay
+ * cached while the batch streams past them, TILE_ROWS observations at a
+ * time so each weight loaded serves all of them. The inner loops are plain
+ * unit-stride float loops indexed from 0, which the JIT (and ART)
+ * auto-vectorize; with offsets into shared arrays C2 leaves them scalar.
+ * <p>
+ * Weights can be kept as bfloat16, halving their footprint and memory
+ * traffic; they are widened to float32 when packed, so the arithmetic and
+ * accumulation stay float32. All buffers are allocated up front for
+ * {@code maxBatch}; an instance is not thread-safe, use one per thread.
+ */
+final class BatchedPolicy {
+    /*
+     * Weight storage
+     */
+    static final int PRECISION_FLOAT32 = 0;
+    static final int PRECISION_BF16 = 1;
+
+    /*
+     * Panel shape: 64 x 256 floats is 64 KB, well inside L2
+     */
+    private static final int BLOCK_IN = 64;
+    private static final int BLOCK_OUT = 256;
+
+    /**
+     * Batch rows multiplied together by {@link #tile}.
+     */
+    private static final int TILE_ROWS = 4;
+
+    /**
+     * The network whose weights are evaluated.
+     */
+    private final PolicyNetwork mNetwork;
+
+    /**
+     * Most observations per call.
+     */
+    private final int mMaxBatch;
+
+    /**
+     * Layer widths, input first.
+     */
+    private final int[] mSizes;
+
+    /**
+     * Activation per layer.
+     */
+    private final int[] mActivations;
+
+    /**
+     * Float32 weights per layer as [in][out], or null when bf16.
+     */
+    private final float[][] mWeights;
+
+    /**
+     * Bfloat16 weights per layer as [in][out], or null when float32.
+     */
+    private final short[][] mWeights16;
+
+    /**
+     * Biases per layer.
+     */
+    private final float[][] mBiases;
+
+    /**
+     * The weight block being multiplied, one array per input so every
+     * inner loop indexes from 0.
+     */
+    private final float[][] mPanel = new float[BLOCK_IN][BLOCK_OUT];
+
+    /*
+     * The outputs of the batch rows being multiplied, copied out of and
+     * back into the layer's output for the same reason
+     */
+    private final float[] mRowA = new float[BLOCK_OUT];
+    private final float[] mRowB = new float[BLOCK_OUT];
+    private final float[] mRowC = new float[BLOCK_OUT];
+    private final float[] mRowD = new float[BLOCK_OUT];
+
+    /**
+     * Hidden activations, [maxBatch][widest layer], alternating by layer.
+     */
+    private final float[] mPing;
+    private final float[] mPong;
+
+    /**
+     * @param maxBatch  most observations per call
+     * @param precision one of the PRECISION_* constants
+     */
+    BatchedPolicy(PolicyNetwork network, int maxBatch, int precision) {
+        if (precision != PRECISION_FLOAT32 && precision != PRECISION_BF16) {
+            throw new IllegalArgumentException("Unknown precision " + precision);
+        }
+        mNetwork = network;
+        mMaxBatch = maxBatch;
+        mSizes = network.getSizes();
+        mActivations = network.getActivations();
+        int layers = mActivations.length;
+        mBiases = new float[layers][];
+        mWeights = precision == PRECISION_FLOAT32 ? new float[layers][] : null;
+        mWeights16 = precision == PRECISION_BF16 ? new short[layers][] : null;
+        for (int l = 0; l < layers; l++) {
+            mBiases[l] = network.getBiases(l);
+            float[] w = network.getWeights(l);
+            if (mWeights != null) {
+                mWeights[l] = w;
+            } else {
+                short[] w16 = new short[w.length];
+                for (int i = 0; i < w.length; i++) w16[i] = toBf16(w[i]);
+                mWeights16[l] = w16;
+            }
+        }
+        int widest = 0;
+        for (int size : mSizes) widest = Math.max(widest, size);
+        mPing = new float[maxBatch * widest];
+        mPong = new float[maxBatch * widest];
+    }
+
+    PolicyNetwork getNetwork() {
+        return mNetwork;
+    }
+
+    /**
+     * Runs the network on {@code batch} observations.
+     *
+     * @param input  observations, row-major [batch][inputs]
+     * @param output filled with the outputs, row-major [batch][outputs]
+     */
+    void forward(float[] input, int batch, float[] output) {
+        if (batch > mMaxBatch) throw new IllegalArgumentException("Batch over " + mMaxBatch);
+        float[] in = input;
+        for (int l = 0; l < mActivations.length; l++) {
+            boolean last = l == mActivations.length - 1;
+            float[] out = last ? output : in == mPing ? mPong : mPing;
+            layer(l, in, batch, out);
+            in = out;
+        }
+    }
+
+    /**
+     * Picks the greedy action index for each of {@code batch} observations.
+     *
+     * @param q scratch of at least batch x outputs floats, left holding the
+     *          outputs
+     */
+    void greedy(float[] input, int batch, float[] q, int[] actions) {
+        forward(input, batch, q);
+        int n = mSizes[mSizes.length - 1];
+        for (int b = 0, row = 0; b < batch; b++, row += n) {
+            int best = 0;
+            for (int a = 1; a < n; a++) {
+                if (q[row + a] > q[row + best]) best = a;
+            }
+            actions[b] = best;
+        }
+    }
+
+    private void layer(int l, float[] x, int batch, float[] y) {
+        int in = mSizes[l];
+        int out = mSizes[l + 1];
+        float[] bias = mBiases[l];
+        for (int b = 0; b < batch; b++) System.arraycopy(bias, 0, y, b * out, out);
+
+        for (int j0 = 0; j0 < out; j0 += BLOCK_OUT) {
+            int jn = Math.min(BLOCK_OUT, out - j0);
+            for (int i0 = 0; i0 < in; i0 += BLOCK_IN) {
+                int in0 = Math.min(BLOCK_IN, in - i0);
+                pack(l, out, i0, in0, j0, jn);
+                int b = 0;
+                for (; b + TILE_ROWS <= batch; b += TILE_ROWS) tile(x, in, b, i0, in0, y, out, j0, jn);
+                for (; b < batch; b++) kernel(x, in, b, i0, in0, y, out, j0, jn);
+            }
+        }
+        activate(mActivations[l], y, batch * out);
+    }
+
+    /**
+     * Copies weights [i0, i0 + in0) x [j0, j0 + jn) into the first jn
+     * columns of mPanel's first in0 rows, widening bf16 weights on the way.
+     */
+    private void pack(int l, int out, int i0, int in0, int j0, int jn) {
+        if (mWeights != null) {
+            float[] w = mWeights[l];
+            for (int i = 0; i < in0; i++) System.arraycopy(w, (i0 + i) * out + j0, mPanel[i], 0, jn);
+        } else {
+            short[] w = mWeights16[l];
+            for (int i = 0; i < in0; i++) {
+                float[] row = mPanel[i];
+                int src = (i0 + i) * out + j0;
+                for (int j = 0; j < jn; j++) row[j] = Float.intBitsToFloat(w[src + j] << 16);
+            }
+        }
+    }
+
+    /**
+     * y[b..b+4)[j0..j0+jn) += x[b..b+4)[i0..i0+in0) * panel. Each panel row
+     * is loaded once for all four batch rows, a vector of it at a time
+     * multiplied into a vector of each row's outputs. Taking more inputs
+     * per pass as well makes the loop too large for the JIT to vectorize.
+     */
+    private void tile(float[] x, int in, int b, int i0, int in0, float[] y, int out, int j0, int jn) {
+        float[][] panel = mPanel;
+        float[] ra = mRowA;
+        float[] rb = mRowB;
+        float[] rc = mRowC;
+        float[] rd = mRowD;
+        int xa = b * in + i0;
+        int xb = xa + in;
+        int xc = xb + in;
+        int xd = xc + in;
+        int ya = b * out + j0;
+        System.arraycopy(y, ya, ra, 0, jn);
+        System.arraycopy(y, ya + out, rb, 0, jn);
+        System.arraycopy(y, ya + 2 * out, rc, 0, jn);
+        System.arraycopy(y, ya + 3 * out, rd, 0, jn);
+        for (int i = 0; i < in0; i++) {
+            float a = x[xa + i];
+            float bb = x[xb + i];
+            float c = x[xc + i];
+            float d = x[xd + i];
+            if (a == 0 && bb == 0 && c == 0 && d == 0) continue;
+            float[] w = panel[i];
+            for (int j = 0; j < jn; j++) {
+                float wj = w[j];
+                ra[j] += a * wj;
+                rb[j] += bb * wj;
+                rc[j] += c * wj;
+                rd[j] += d * wj;
+            }
+        }
+        System.arraycopy(ra, 0, y, ya, jn);
+        System.arraycopy(rb, 0, y, ya + out, jn);
+        System.arraycopy(rc, 0, y, ya + 2 * out, jn);
+        System.arraycopy(rd, 0, y, ya + 3 * out, jn);
+    }
+
+    /**
+     * y[b][j0..j0+jn) += x[b][i0..i0+in0) * panel for the rows left over
+     * after the tiles, four inputs per pass so each output is loaded and
+     * stored once for four multiply-adds.
+     */
+    private void kernel(float[] x, int in, int b, int i0, int in0, float[] y, int out, int j0, int jn) {
+        float[][] panel = mPanel;
+        float[] r = mRowA;
+        int x0 = b * in + i0;
+        int y0 = b * out + j0;
+        System.arraycopy(y, y0, r, 0, jn);
+        int i = 0;
+        for (; i + 4 <= in0; i += 4) {
+            float a0 = x[x0 + i];
+            float a1 = x[x0 + i + 1];
+            float a2 = x[x0 + i + 2];
+            float a3 = x[x0 + i + 3];
+            if (a0 == 0 && a1 == 0 && a2 == 0 && a3 == 0) continue;
+            float[] w0 = panel[i];
+            float[] w1 = panel[i + 1];
+            float[] w2 = panel[i + 2];
+            float[] w3 = panel[i + 3];
+            for (int j = 0; j < jn; j++) r[j] += a0 * w0[j] + a1 * w1[j] + a2 * w2[j] + a3 * w3[j];
+        }
+        for (; i < in0; i++) {
+            float a0 = x[x0 + i];
+            if (a0 == 0) continue;
+            float[] w0 = panel[i];
+            for (int j = 0; j < jn; j++) r[j] += a0 * w0[j];
+        }
+        System.arraycopy(r, 0, y, y0, jn);
+    }
+
+    /**
+     * Like {@link PolicyNetwork#activate} but with tanh from a [7/6] rational
+     * approximation, saturated past 4.97, which is within 1e-4 of
+     * {@link Math#tanh} and more than ten times faster.
+     */
+    static void activate(int activation, float[] v, int n) {
+        if (activation == PolicyNetwork.ACTIVATION_TANH) {
+            for (int j = 0; j < n; j++) {
+                float x = Math.max(-4.97f, Math.min(4.97f, v[j]));
+                float x2 = x * x;
+                v[j] = x * (135135f + x2 * (17325f + x2 * (378f + x2)))
+                        / (135135f + x2 * (62370f + x2 * (3150f + 28f * x2)));
+            }
+        } else {
+            PolicyNetwork.activate(activation, v, n);
+        }
+    }
+
+    /**
+     * @return {@code f} rounded to the nearest bfloat16, ties to even
+     */
+    static short toBf16(float f) {
+        int bits = Float.floatToRawIntBits(f);
+        if ((bits & 0x7fffffff) > 0x7f800000) return (short) ((bits >>> 16) | 0x40); // keep NaN a NaN
+        return (short) ((bits + 0x7fff + ((bits >>> 16) & 1)) >>> 16);
+    }
+
+    /**
+     * Measures the DQN's throughput at several batch sizes against the
+     * per-sample path and the simulator: {@code [precision]} where precision
+     * is "f32" (default) or "bf16".
+     */
+    public static void main(String[] args) {
+        int precision = args.length > 0 && args[0].equals("bf16") ? PRECISION_BF16 : PRECISION_FLOAT32;
+        Random random = new Random(42);
+        PolicyNetwork network = PolicyNetwork.random(PolicyNetwork.DQN_SIZES,
+                PolicyNetwork.DQN_ACTIVATIONS, 0.1, random);
+        int inputs = network.getInputSize();
+        int outputs = network.getOutputSize();
+
+        float[][] scratch = network.newScratch();
+        double[] obs = new double[inputs];
+        for (int i = 0; i < inputs; i++) obs[i] = random.nextGaussian();
+        long start = System.nanoTime();
+        int samples = 0;
+        while (System.nanoTime() - start < 1e9) {
+            network.greedy(obs, scratch);
+            samples++;
+        }
+        double single = samples / ((System.nanoTime() - start) / 1e9);
+
+        LunarSimulator simulator = new LunarSimulator(random);
+        LunarState state = new LunarState();
+        state.mCanvasWidth = LunarSimulator.DEFAULT_CANVAS_WIDTH;
+        state.mCanvasHeight = LunarSimulator.DEFAULT_CANVAS_HEIGHT;
+        state.mLanderWidth = LunarSimulator.DEFAULT_LANDER_WIDTH;
+        state.mLanderHeight = LunarSimulator.DEFAULT_LANDER_HEIGHT;
+        state.mDifficulty = LunarView.LunarThread.DIFFICULTY_MEDIUM;
+        simulator.start(state);
+        start = System.nanoTime();
+        long steps = 0;
+        while (System.nanoTime() - start < 1e9) {
+            for (int i = 0; i < 1000; i++) {
+                if (simulator.step(state, LunarSimulator.ACTION_FIRE) != LunarSimulator.LANDING_NONE
+                        || state.mMode != LunarView.LunarThread.STATE_RUNNING) {
+                    simulator.start(state);
+                }
+            }
+            steps += 1000;
+        }
+        double simulated = steps / ((System.nanoTime() - start) / 1e9);
+
+        System.out.println(String.format(Locale.US,
+                "%s: simulator %.0f steps/s, per-sample network %.0f/s", BatchedPolicy.class.getSimpleName(),
+                simulated, single));
+        for (int batch : new int[]{1, 4, 16, 64, 256, 1024}) {
+            BatchedPolicy policy = new BatchedPolicy(network, batch, precision);
+            float[] input = new float[batch * inputs];
+            for (int i = 0; i < input.length; i++) input[i] = (float) random.nextGaussian();
+            float[] q = new float[batch * outputs];
+            int[] actions = new int[batch];
+            start = System.nanoTime();
+            samples = 0;
+            while (System.nanoTime() - start < 1e9) {
+                policy.greedy(input, batch, q, actions);
+                samples += batch;
+            }
+            double rate = samples / ((System.nanoTime() - start) / 1e9);
+            System.out.println(String.format(Locale.US,
+                    "  batch %4d %s: %.0f observations/s (%.1fx per-sample, %.3f%% of simulator)",
+                    batch, precision == PRECISION_BF16 ? "bf16" : "f32", rate, rate / single,
+                    100 * rate / simulated));
+        }
+    }
+}
@@ -0,0 +1,413 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+/**
+ * Training state kept in one memory-mapped file, so that a restarted run
+ * picks up where it stopped by mapping the file instead of reading it.
+ * <p>
+ * The file holds named, fixed-size columns (Q-tables, weights, replay
+ * buffer fields) and a small array of longs for scalars (counters, schedule
+ * position, RNG seeds). Columns are mapped read-write and can be used as the
+ * live storage, or copied into before each checkpoint. A checkpoint forces
+ * the dirty column pages to disk, which only writes what changed since the
+ * last one, and then commits the scalars into the older of two checksummed
+ * slots with a higher generation. Opening picks the newest valid slot.
+ * <p>
+ * Only the scalars are crash-safe. Each column exists once in the file, and
+ * the kernel may write its dirty pages back at any time, not only in a
+ * checkpoint. After a crash, a resumed store therefore has the scalars of
+ * the last commit, but its columns can hold any mix of pages from that
+ * commit, later writes and a half-finished force. Nothing detects this on
+ * resume. Keep only data that tolerates it in columns, such as Q-values or
+ * replay entries that are overwritten anyway, and never state that has to
+ * agree with the scalars, such as a count of valid entries. That belongs in
+ * a scalar. Double-buffering the columns would fix this, but it would double
+ * the size of a multi-gigabyte replay buffer and rule out using the columns
+ * as live storage.
+ * <p>
+ * Layout, little-endian: "LCKP" magic, format version, column count, scalar
+ * count; per column a 32-byte name, type, element count and file offset;
+ * then the two scalar slots (generation, CRC, scalars). Columns start on
+ * page boundaries.
+ */
+final class CheckpointStore implements Closeable {
+    private static final String TAG = CheckpointStore.class.getSimpleName();
+
+    private static final int MAGIC = 0x4C434B50; // "LCKP"
+    private static final int FORMAT_VERSION = 1;
+    private static final int PAGE = 4096;
+    private static final int NAME_BYTES = 32;
+    private static final int COLUMN_BYTES = NAME_BYTES + 4 + 4 + 8 + 8;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    /*
+     * Column types, by element size
+     */
+    static final int TYPE_BYTE = 1;
+    static final int TYPE_FLOAT = 4;
+    static final int TYPE_DOUBLE = 8;
+    static final int TYPE_LONG = 9;
+
+    /**
+     * What a store holds. Opening an existing file with a different schema
+     * starts it over.
+     */
+    static final class Schema {
+        final List<String> mNames = new ArrayList<>();
+        final List<Integer> mTypes = new ArrayList<>();
+        final List<Long> mCounts = new ArrayList<>();
+        int mScalars;
+
+        /**
+         * @param count number of elements, at most 2 GB worth
+         */
+        Schema column(String name, int type, long count) {
+            if (name.length() > NAME_BYTES) throw new IllegalArgumentException("Name too long: " + name);
+            if (count * elementSize(type) > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Column too large: " + name);
+            }
+            mNames.add(name);
+            mTypes.add(type);
+            mCounts.add(count);
+            return this;
+        }
+
+        Schema scalars(int count) {
+            mScalars = count;
+            return this;
+        }
+    }
+
+    private final File mFile;
+    private final RandomAccessFile mRaf;
+    private final Schema mSchema;
+    private final MappedByteBuffer mHeader;
+    private final MappedByteBuffer[] mColumns;
+    private final int mSlotOffset;
+    private final int mSlotBytes;
+
+    /**
+     * Scalars of the next commit; the owner's to set.
+     */
+    private final long[] mScalars;
+
+    /**
+     * Generation of the newest commit.
+     */
+    private long mGeneration;
+
+    private final boolean mResumed;
+    private final ExecutorService mWriter;
+    private Future<?> mPending;
+
+    private CheckpointStore(File file, Schema schema) throws IOException {
+        mFile = file;
+        mSchema = schema;
+        int columns = schema.mNames.size();
+        mSlotOffset = 16 + columns * COLUMN_BYTES;
+        mSlotBytes = 16 + 8 * schema.mScalars;
+        int headerBytes = roundUp(mSlotOffset + 2 * mSlotBytes);
+        long[] offsets = new long[columns];
+        long length = headerBytes;
+        for (int c = 0; c < columns; c++) {
+            offsets[c] = length;
+            length += roundUp(schema.mCounts.get(c) * elementSize(schema.mTypes.get(c)));
+        }
+
+        boolean existed = file.length() == length;
+        mRaf = new RandomAccessFile(file, "rw");
+        FileChannel channel = mRaf.getChannel();
+        mHeader = channel.map(FileChannel.MapMode.READ_WRITE, 0, headerBytes);
+        mHeader.order(ByteOrder.LITTLE_ENDIAN);
+        mScalars = new long[schema.mScalars];
+        boolean resumed = existed && headerMatches(offsets) && readNewestSlot();
+        if (!resumed) {
+            mRaf.setLength(0);
+            mRaf.setLength(length);
+            writeHeader(offsets);
+            mGeneration = 0;
+        }
+        mResumed = resumed;
+
+        mColumns = new MappedByteBuffer[columns];
+        for (int c = 0; c < columns; c++) {
+            long bytes = schema.mCounts.get(c) * elementSize(schema.mTypes.get(c));
+            mColumns[c] = channel.map(FileChannel.MapMode.READ_WRITE, offsets[c], bytes);
+            mColumns[c].order(ByteOrder.LITTLE_ENDIAN);
+        }
+        mWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, TAG + "-writer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Maps {@code file}, resuming from its last commit if it holds a store
+     * with the same schema, and otherwise creating it (zero-filled) anew.
+     */
+    static CheckpointStore open(File file, Schema schema) throws IOException {
+        return new CheckpointStore(file, schema);
+    }
+
+    /**
+     * @return whether the store was resumed from an earlier commit
+     */
+    boolean isResumed() {
+        return mResumed;
+    }
+
+    /**
+     * @return the generation of the newest commit, 0 for a new store
+     */
+    long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * @return the mapped column, positioned at 0 and little-endian; a new
+     * view on every call
+     */
+    ByteBuffer column(String name) {
+        int c = mSchema.mNames.indexOf(name);
+        if (c < 0) throw new IllegalArgumentException("No column " + name);
+        return mColumns[c].duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    long getScalar(int i) {
+        return mScalars[i];
+    }
+
+    void setScalar(int i, long value) {
+        mScalars[i] = value;
+    }
+
+    /**
+     * Starts a checkpoint of the columns as they are now and the scalars as
+     * set so far, on a background thread. Waits for the previous one first,
+     * so at most one is ever in flight.
+     */
+    void checkpointAsync() throws IOException {
+        awaitPending();
+        final long[] scalars = mScalars.clone();
+        final long generation = ++mGeneration;
+        mPending = mWriter.submit(new Runnable() {
+            @Override
+            public void run() {
+                commit(scalars, generation);
+            }
+        });
+    }
+
+    /**
+     * Checkpoints and waits until it is on disk.
+     */
+    void checkpoint() throws IOException {
+        checkpointAsync();
+        awaitPending();
+    }
+
+    /**
+     * Waits for a checkpoint in flight, if any.
+     */
+    void awaitPending() throws IOException {
+        Future<?> pending = mPending;
+        mPending = null;
+        if (pending == null) return;
+        try {
+            pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while checkpointing " + mFile);
+        } catch (ExecutionException e) {
+            throw new IOException("Checkpoint of " + mFile + " failed", e.getCause());
+        }
+    }
+
+    private void commit(long[] scalars, long generation) {
+        for (MappedByteBuffer column : mColumns) column.force();
+        ByteBuffer slot = ByteBuffer.allocate(mSlotBytes).order(ByteOrder.LITTLE_ENDIAN);
+        slot.putLong(generation).putLong(0);
+        for (long s : scalars) slot.putLong(s);
+        slot.putLong(8, crc(slot.array(), generation));
+        synchronized (mHeader) {
+            ByteBuffer header = mHeader.duplicate();
+            header.position(mSlotOffset + (int) (generation & 1) * mSlotBytes);
+            header.put(slot.array());
+            mHeader.force();
+        }
+    }
+
+    /**
+     * Waits for a checkpoint in flight and stops the writer. Does not
+     * checkpoint by itself.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            awaitPending();
+        } finally {
+            mWriter.shutdown();
+            mRaf.close();
+        }
+    }
+
+    private void writeHeader(long[] offsets) {
+        ByteBuffer header = mHeader.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(offsets.length).putInt(mSchema.mScalars);
+        for (int c = 0; c < offsets.length; c++) {
+            header.put(Arrays.copyOf(mSchema.mNames.get(c).getBytes(ASCII), NAME_BYTES));
+            header.putInt(mSchema.mTypes.get(c)).putInt(0);
+            header.putLong(mSchema.mCounts.get(c)).putLong(offsets[c]);
+        }
+        mHeader.force();
+    }
+
+    private boolean headerMatches(long[] offsets) {
+        ByteBuffer header = mHeader.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        if (header.getInt() != MAGIC || header.getInt() != FORMAT_VERSION
+                || header.getInt() != offsets.length || header.getInt() != mSchema.mScalars) {
+            return false;
+        }
+        byte[] name = new byte[NAME_BYTES];
+        for (int c = 0; c < offsets.length; c++) {
+            header.get(name);
+            if (!Arrays.equals(name, Arrays.copyOf(mSchema.mNames.get(c).getBytes(ASCII), NAME_BYTES))
+                    || header.getInt() != mSchema.mTypes.get(c)) {
+                return false;
+            }
+            header.getInt();
+            if (header.getLong() != mSchema.mCounts.get(c) || header.getLong() != offsets[c]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Loads the scalars of the newest slot with a valid checksum.
+     *
+     * @return false if neither slot is valid
+     */
+    private boolean readNewestSlot() {
+        long best = -1;
+        byte[] slot = new byte[mSlotBytes];
+        byte[] chosen = null;
+        for (int i = 0; i < 2; i++) {
+            ByteBuffer header = mHeader.duplicate();
+            header.position(mSlotOffset + i * mSlotBytes);
+            header.get(slot);
+            ByteBuffer b = ByteBuffer.wrap(slot).order(ByteOrder.LITTLE_ENDIAN);
+            long generation = b.getLong(0);
+            long crc = b.getLong(8);
+            b.putLong(8, 0);
+            if (generation > best && generation > 0 && crc == crc(slot, generation)) {
+                best = generation;
+                chosen = slot.clone();
+            }
+        }
+        if (chosen == null) return false;
+        ByteBuffer b = ByteBuffer.wrap(chosen).order(ByteOrder.LITTLE_ENDIAN);
+        b.position(16);
+        for (int i = 0; i < mScalars.length; i++) mScalars[i] = b.getLong();
+        mGeneration = best;
+        return true;
+    }
+
+    /**
+     * CRC of a slot whose checksum field is zero.
+     */
+    private static long crc(byte[] slot, long generation) {
+        CRC32 crc = new CRC32();
+        crc.update(slot, 0, slot.length);
+        return crc.getValue() ^ generation;
+    }
+
+    private static int elementSize(int type) {
+        return type == TYPE_LONG ? 8 : type;
+    }
+
+    private static long roundUp(long bytes) {
+        return (bytes + PAGE - 1) / PAGE * PAGE;
+    }
+
+    private static int roundUp(int bytes) {
+        return (int) roundUp((long) bytes);
+    }
+
+    /**
+     * Creates, fills and checkpoints a replay-buffer-shaped store, then
+     * times resuming it: {@code [file] [transitions, default 64M]}.
+     */
+    public static void main(String[] args) throws IOException {
+        File file = new File(args.length > 0 ? args[0] : "replay.ckpt");
+        long transitions = args.length > 1 ? Long.parseLong(args[1]) : 64L << 20;
+        int obs = RewardShaper.OBSERVATION_SIZE;
+        // the observation column is split in two to stay under 2 GB each
+        Schema schema = new Schema()
+                .column("obs0", TYPE_FLOAT, transitions * obs / 2)
+                .column("obs1", TYPE_FLOAT, transitions * obs - transitions * obs / 2)
+                .column("action", TYPE_BYTE, transitions)
+                .column("reward", TYPE_FLOAT, transitions)
+                .column("done", TYPE_BYTE, transitions)
+                .scalars(4);
+
+        long start = System.nanoTime();
+        CheckpointStore store = open(file, schema);
+        for (String name : new String[]{"obs0", "obs1", "reward"}) {
+            ByteBuffer column = store.column(name);
+            for (int i = 0; column.remaining() >= 4; i++) column.putFloat(i);
+        }
+        store.setScalar(0, transitions);
+        store.checkpoint();
+        store.close();
+        double written = (System.nanoTime() - start) / 1e9;
+
+        start = System.nanoTime();
+        store = open(file, schema);
+        double resumed = (System.nanoTime() - start) / 1e9;
+        float last = store.column("obs1").getFloat(store.column("obs1").capacity() - 4);
+        store.close();
+
+        System.out.println(String.format(Locale.US,
+                "%s: %.2f GB written and forced in %.2f s, resumed=%b (generation %d) in %.1f ms, "
+                        + "last obs %.0f", TAG, file.length() / 1e9, written, store.mResumed,
+                store.mGeneration, 1000 * resumed, last));
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+/**
+ * Something that plays the game by itself on the device, driven by the
+ * LunarThread one physics tick at a time: {@link #startEpisode} after each
+ * restart, then {@link #act} before and {@link #observe} after every tick.
+ * All calls but {@link #close} come from the physics thread with the
+ * surface lock held, so they should not block for long.
+ */
+interface DeviceAgent {
+    /**
+     * Begins a new episode from the freshly started state {@code s}.
+     */
+    void startEpisode(LunarState s) throws InterruptedException;
+
+    /**
+     * @return the key code of the action to hold during the next tick
+     */
+    int act() throws InterruptedException;
+
+    /**
+     * Takes in the tick from the last {@link #act} that led to {@code s}.
+     *
+     * @return whether the episode has ended; the caller restarts the game
+     * and calls {@link #startEpisode}
+     */
+    boolean observe(LunarState s) throws InterruptedException;
+
+    /**
+     * Releases the agent once it no longer plays.
+     */
+    void close();
+}
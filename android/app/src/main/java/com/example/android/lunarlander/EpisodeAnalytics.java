@@ -0,0 +1,350 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.Deflater;
+
+import static com.example.android.lunarlander.LunarSimulator.PHYS_FUEL_INIT;
+
+/**
+ * Streaming view of how episodes end, shared by any number of environments
+ * and updated without locks once per finished episode, never per step.
+ * <p>
+ * Kept are totals by outcome, the best win streak (mWinsInARow), the outcomes
+ * of the last {@link #EPISODE_WINDOW} episodes, per-second buckets of the
+ * last {@link #TIME_WINDOW_SECONDS} seconds, and for touchdowns (a win, off
+ * pad, bad angle or too fast landing; hyperspace wins and collisions never
+ * reach the ground) fixed-bin 2-D histograms of the offset from the pad
+ * centre and the heading against the touchdown speed, plus one of the fuel
+ * left. Offsets are in half pad widths and speeds in multiples of the pad's
+ * speed limit, so every difficulty and screen shares the same bins; values
+ * outside a histogram's range land in its edge bins.
+ * <p>
+ * Every write is a single atomic increment or compare-and-set. A time bucket
+ * is recycled by whichever writer first sees it is stale, so an episode
+ * recorded by another thread in that instant may be lost from the window,
+ * never from the totals. Snapshots read without stopping the writers and are
+ * therefore consistent per counter, not across counters.
+ * <p>
+ * Snapshot format, little-endian, then zlib-deflated: int magic "LANA", long
+ * milliseconds since start, int outcomes o, long totals [o], long steps, long
+ * best streak, int episode window, long window counts [o], int time window
+ * seconds, long time window counts [o], long time window steps, then each
+ * histogram as int x bins, int y bins, float x low, float x high, float y
+ * low, float y high, long counts [x bins * y bins] row by row of x: offset
+ * against speed, heading against speed, then fuel left (one y bin).
+ */
+final class EpisodeAnalytics {
+    private static final String TAG = EpisodeAnalytics.class.getSimpleName();
+
+    static final int MAGIC = 0x4C414E41;
+
+    /*
+     * Outcomes: the LunarSimulator.LANDING_* results, a LunarWorld collision,
+     * then the EpisodeLimits truncations
+     */
+    static final int OUTCOME_COLLISION = LunarWorld.LANDING_COLLISION;
+    static final int OUTCOME_TIME_LIMIT = OUTCOME_COLLISION + EpisodeLimits.TRUNCATE_TIME_LIMIT;
+    static final int OUTCOME_OUT_OF_BOUNDS = OUTCOME_COLLISION + EpisodeLimits.TRUNCATE_OUT_OF_BOUNDS;
+    static final int OUTCOMES = OUTCOME_OUT_OF_BOUNDS + 1;
+    static final String[] OUTCOME_NAMES = {"none", "win", "hyperspace", "off_pad", "bad_angle",
+            "too_fast", "collision", "time_limit", "out_of_bounds"};
+
+    /**
+     * Episodes the episode window covers.
+     */
+    static final int EPISODE_WINDOW = 1024;
+
+    /**
+     * Seconds the time window covers.
+     */
+    static final int TIME_WINDOW_SECONDS = 60;
+
+    /*
+     * Histogram layouts
+     */
+    static final int OFFSET_BINS = 32;
+    static final double OFFSET_RANGE = 8;
+    static final int HEADING_BINS = 36;
+    static final int SPEED_BINS = 32;
+    static final double SPEED_RANGE = 4;
+    static final int FUEL_BINS = 30;
+    static final double FUEL_RANGE = 1.5;
+
+    /*
+     * Each time bucket: the second it holds, then counts by outcome, then
+     * steps
+     */
+    static final int BUCKETS = TIME_WINDOW_SECONDS + 4;
+    private static final int BUCKET_COUNTS = 1;
+    private static final int BUCKET_STEPS = BUCKET_COUNTS + OUTCOMES;
+    private static final int BUCKET_STRIDE = BUCKET_STEPS + 1;
+
+    private final long mStartNanos = System.nanoTime();
+
+    private final AtomicLongArray mTotals = new AtomicLongArray(OUTCOMES);
+    private final AtomicLong mSteps = new AtomicLong();
+    private final AtomicLong mBestStreak = new AtomicLong();
+
+    /**
+     * Outcomes of the last episodes plus one, 0 for none yet, at their
+     * sequence number modulo the window.
+     */
+    private final AtomicIntegerArray mRecent = new AtomicIntegerArray(EPISODE_WINDOW);
+    private final AtomicLong mSequence = new AtomicLong();
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS * BUCKET_STRIDE);
+
+    private final AtomicLongArray mOffsetSpeed = new AtomicLongArray(OFFSET_BINS * SPEED_BINS);
+    private final AtomicLongArray mHeadingSpeed = new AtomicLongArray(HEADING_BINS * SPEED_BINS);
+    private final AtomicLongArray mFuel = new AtomicLongArray(FUEL_BINS);
+
+    EpisodeAnalytics() {
+        // bucket seconds start out as none rather than second 0
+        for (int b = 0; b < BUCKETS; b++) mBuckets.set(b * BUCKET_STRIDE, -1);
+    }
+
+    /**
+     * Records an episode that has just ended, from any thread.
+     *
+     * @param s          the state it ended in, before any restart
+     * @param landing    LunarSimulator.LANDING_* result of the last step, or
+     *                   LunarWorld.LANDING_COLLISION
+     * @param truncation EpisodeLimits.TRUNCATE_* reason if it did not land
+     * @param steps      steps the episode took, 0 for a hyperspace win
+     *                   after which it goes on
+     */
+    void record(LunarState s, int landing, int truncation, int steps) {
+        record(s, landing, truncation, steps, System.nanoTime());
+    }
+
+    /**
+     * {@link #record(LunarState, int, int, int)} at {@code nanos} on the
+     * System.nanoTime() clock.
+     */
+    void record(LunarState s, int landing, int truncation, int steps, long nanos) {
+        int outcome = landing != LunarSimulator.LANDING_NONE ? landing
+                : truncation != EpisodeLimits.TRUNCATE_NONE ? OUTCOME_COLLISION + truncation
+                : LunarSimulator.LANDING_NONE;
+        mTotals.incrementAndGet(outcome);
+        mSteps.addAndGet(steps);
+        long streak = s.mWinsInARow;
+        for (long best = mBestStreak.get(); streak > best; best = mBestStreak.get()) {
+            if (mBestStreak.compareAndSet(best, streak)) break;
+        }
+
+        mRecent.lazySet((int) (mSequence.getAndIncrement() % EPISODE_WINDOW), outcome + 1);
+
+        long second = (nanos - mStartNanos) / 1000000000L;
+        int base = (int) (second % BUCKETS) * BUCKET_STRIDE;
+        long held = mBuckets.get(base);
+        if (held < second && mBuckets.compareAndSet(base, held, second)) {
+            for (int i = BUCKET_COUNTS; i < BUCKET_STRIDE; i++) mBuckets.set(base + i, 0);
+        }
+        mBuckets.incrementAndGet(base + BUCKET_COUNTS + outcome);
+        mBuckets.addAndGet(base + BUCKET_STEPS, steps);
+
+        if (isTouchdown(outcome)) {
+            double speed = Math.sqrt(s.mDX * s.mDX + s.mDY * s.mDY) / Math.max(1, s.mGoalSpeed);
+            double offset = (s.mX - (s.mGoalX + s.mGoalWidth / 2.0)) / Math.max(1, s.mGoalWidth / 2.0);
+            double heading = s.mHeading > 180 ? s.mHeading - 360 : s.mHeading;
+            int speedBin = bin(speed, 0, SPEED_RANGE, SPEED_BINS);
+            mOffsetSpeed.incrementAndGet(
+                    bin(offset, -OFFSET_RANGE / 2, OFFSET_RANGE / 2, OFFSET_BINS) * SPEED_BINS + speedBin);
+            mHeadingSpeed.incrementAndGet(bin(heading, -180, 180, HEADING_BINS) * SPEED_BINS + speedBin);
+            mFuel.incrementAndGet(bin(s.mFuel / PHYS_FUEL_INIT, 0, FUEL_RANGE, FUEL_BINS));
+        }
+    }
+
+    /**
+     * @return whether the episode ended with the lander on the ground, as
+     * opposed to a hyperspace win, a collision or a truncation
+     */
+    static boolean isTouchdown(int outcome) {
+        return outcome == LunarSimulator.LANDING_WIN || outcome == LunarSimulator.LANDING_OFF_PAD
+                || outcome == LunarSimulator.LANDING_BAD_ANGLE || outcome == LunarSimulator.LANDING_TOO_FAST;
+    }
+
+    private static int bin(double x, double low, double high, int bins) {
+        int b = (int) Math.floor((x - low) / (high - low) * bins);
+        return b < 0 ? 0 : b >= bins ? bins - 1 : b;
+    }
+
+    long total(int outcome) {
+        return mTotals.get(outcome);
+    }
+
+    long bestStreak() {
+        return mBestStreak.get();
+    }
+
+    /**
+     * @return episodes by outcome among the last {@link #EPISODE_WINDOW}
+     */
+    long[] episodeWindow() {
+        long[] counts = new long[OUTCOMES];
+        for (int i = 0; i < EPISODE_WINDOW; i++) {
+            int recent = mRecent.get(i);
+            if (recent > 0) counts[recent - 1]++;
+        }
+        return counts;
+    }
+
+    /**
+     * @return episodes by outcome in the last {@link #TIME_WINDOW_SECONDS}
+     * whole seconds, plus their steps at index OUTCOMES
+     */
+    long[] timeWindow() {
+        return timeWindow(System.nanoTime());
+    }
+
+    /**
+     * {@link #timeWindow()} as of {@code nanos} on the System.nanoTime()
+     * clock.
+     */
+    long[] timeWindow(long nanos) {
+        long[] counts = new long[OUTCOMES + 1];
+        long[] bucket = new long[OUTCOMES + 1];
+        long now = (nanos - mStartNanos) / 1000000000L;
+        for (int b = 0; b < BUCKETS; b++) {
+            int base = b * BUCKET_STRIDE;
+            long second = mBuckets.get(base);
+            if (second < 0 || second < now - TIME_WINDOW_SECONDS || second >= now) continue;
+            for (int i = 0; i <= OUTCOMES; i++) bucket[i] = mBuckets.get(base + BUCKET_COUNTS + i);
+            // recycled while being read: the counts belong to a newer second
+            if (mBuckets.get(base) != second) continue;
+            for (int i = 0; i <= OUTCOMES; i++) counts[i] += bucket[i];
+        }
+        return counts;
+    }
+
+    /**
+     * @return everything, encoded and compressed, in a new array of exactly
+     * the snapshot size
+     */
+    byte[] snapshot(Deflater deflater) {
+        int histogramBytes = 3 * 20 + 8 * (mOffsetSpeed.length() + mHeadingSpeed.length() + mFuel.length());
+        ByteBuffer out = ByteBuffer.allocate(64 + 8 * (3 * OUTCOMES + 1) + histogramBytes)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(MAGIC).putLong((System.nanoTime() - mStartNanos) / 1000000).putInt(OUTCOMES);
+        for (int i = 0; i < OUTCOMES; i++) out.putLong(mTotals.get(i));
+        out.putLong(mSteps.get()).putLong(mBestStreak.get());
+        out.putInt(EPISODE_WINDOW);
+        for (long count : episodeWindow()) out.putLong(count);
+        out.putInt(TIME_WINDOW_SECONDS);
+        for (long count : timeWindow()) out.putLong(count);
+        putHistogram(out, mOffsetSpeed, OFFSET_BINS, SPEED_BINS, -OFFSET_RANGE / 2, OFFSET_RANGE / 2,
+                0, SPEED_RANGE);
+        putHistogram(out, mHeadingSpeed, HEADING_BINS, SPEED_BINS, -180, 180, 0, SPEED_RANGE);
+        putHistogram(out, mFuel, FUEL_BINS, 1, 0, FUEL_RANGE, 0, 1);
+
+        deflater.reset();
+        deflater.setInput(out.array(), 0, out.position());
+        deflater.finish();
+        byte[] compressed = new byte[out.position() / 4 + 64];
+        int total = 0;
+        while (!deflater.finished()) {
+            if (total == compressed.length) compressed = Arrays.copyOf(compressed, total * 2);
+            total += deflater.deflate(compressed, total, compressed.length - total);
+        }
+        return Arrays.copyOf(compressed, total);
+    }
+
+    private static void putHistogram(ByteBuffer out, AtomicLongArray counts, int xBins, int yBins,
+                                     double xLow, double xHigh, double yLow, double yHigh) {
+        out.putInt(xBins).putInt(yBins).putFloat((float) xLow).putFloat((float) xHigh)
+                .putFloat((float) yLow).putFloat((float) yHigh);
+        for (int i = 0; i < xBins * yBins; i++) out.putLong(counts.get(i));
+    }
+
+    @Override
+    public String toString() {
+        long[] recent = episodeWindow();
+        long[] minute = timeWindow();
+        long episodes = 0;
+        long windowEpisodes = 0;
+        long minuteEpisodes = 0;
+        for (int i = 0; i < OUTCOMES; i++) {
+            episodes += mTotals.get(i);
+            windowEpisodes += recent[i];
+            minuteEpisodes += minute[i];
+        }
+        StringBuilder outcomes = new StringBuilder();
+        for (int i = 1; i < OUTCOMES; i++) {
+            if (recent[i] > 0) outcomes.append(String.format(Locale.US, ", %s %.1f%%",
+                    OUTCOME_NAMES[i], 100.0 * recent[i] / windowEpisodes));
+        }
+        return String.format(Locale.US, "%s: %d episodes, best streak %d; last %d episodes%s; "
+                        + "%d episodes and %d steps in the last %d s",
+                TAG, episodes, mBestStreak.get(), windowEpisodes, outcomes, minuteEpisodes,
+                minute[OUTCOMES], TIME_WINDOW_SECONDS);
+    }
+
+    /**
+     * Plays random episodes on several threads into one instance and reports
+     * the step rate with and without recording: {@code [threads] [seconds]}.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        final int threads = args.length > 0 ? Integer.parseInt(args[0])
+                : Runtime.getRuntime().availableProcessors();
+        final long nanos = (long) ((args.length > 1 ? Double.parseDouble(args[1]) : 2) * 1e9);
+        final EpisodeAnalytics analytics = new EpisodeAnalytics();
+        for (int pass = 0; pass < 2; pass++) {
+            final boolean recording = pass == 1;
+            final long[] steps = new long[threads];
+            Thread[] workers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                final int id = t;
+                workers[t] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Random random = new Random(id);
+                        LunarEnvironment env = new LunarEnvironment(new Random(id))
+                                .setLimits(new EpisodeLimits(500, 0.5)).setAutoReset(true);
+                        if (recording) env.setAnalytics(analytics);
+                        env.reset();
+                        long end = System.nanoTime() + nanos;
+                        long n = 0;
+                        while ((n & 1023) != 0 || System.nanoTime() < end) {
+                            env.step(LunarSimulator.ACTIONS[random.nextInt(LunarSimulator.ACTIONS.length)]);
+                            n++;
+                        }
+                        steps[id] = n;
+                    }
+                });
+                workers[t].start();
+            }
+            long total = 0;
+            for (int t = 0; t < threads; t++) {
+                workers[t].join();
+                total += steps[t];
+            }
+            System.out.println(String.format(Locale.US, "%s: %.2f M steps/s on %d threads %s",
+                    TAG, total / (nanos / 1e9) / 1e6, threads, recording ? "recording" : "without"));
+        }
+        System.out.println(analytics);
+        System.out.println(TAG + ": snapshot " + analytics.snapshot(new Deflater()).length + " bytes");
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import static com.example.android.lunarlander.LunarView.LunarThread.STATE_RUNNING;
+
+/**
+ * Ends episodes the game itself would let run on: ones that take too many
+ * steps, e.g. hovering until the tank is dry, and ones where the lander has
+ * left the screen sideways or upwards, from where it rarely comes back.
+ * <p>
+ * Such an episode is truncated, not lost: the game never reached an outcome,
+ * so a learner should still bootstrap from the last state rather than treat
+ * it as terminal. That is why truncation is reported apart from the done
+ * flag, which stays reserved for touchdowns.
+ */
+final class EpisodeLimits {
+    /*
+     * Reasons for truncation
+     */
+    static final int TRUNCATE_NONE = 0;
+    static final int TRUNCATE_TIME_LIMIT = 1;
+    static final int TRUNCATE_OUT_OF_BOUNDS = 2;
+
+    /**
+     * The reasons by TRUNCATE_* value, as sent to the trainer.
+     */
+    static final String[] TRUNCATION_NAMES = {"none", "time_limit", "out_of_bounds"};
+
+    private final int mMaxSteps;
+    private final double mMargin;
+
+    /**
+     * @param maxSteps most steps per episode, 0 or less for no limit
+     * @param margin   how far past the left, right and top edges the lander
+     *                 may fly, as a fraction of the screen size; negative for
+     *                 no bounds
+     */
+    EpisodeLimits(int maxSteps, double margin) {
+        mMaxSteps = maxSteps;
+        mMargin = margin;
+    }
+
+    int getMaxSteps() {
+        return mMaxSteps;
+    }
+
+    double getMargin() {
+        return mMargin;
+    }
+
+    /**
+     * @param steps steps taken in the episode so far
+     * @return why the episode in {@code s} should be cut short, one of the
+     * TRUNCATE_* constants; always TRUNCATE_NONE once it is over
+     */
+    int check(LunarState s, int steps) {
+        if (s.mMode != STATE_RUNNING) return TRUNCATE_NONE;
+        if (mMargin >= 0) {
+            double dx = s.mCanvasWidth * mMargin;
+            if (s.mX < -dx || s.mX > s.mCanvasWidth + dx
+                    || s.mY > s.mCanvasHeight * (1 + mMargin)) {
+                return TRUNCATE_OUT_OF_BOUNDS;
+            }
+        }
+        if (mMaxSteps > 0 && steps >= mMaxSteps) return TRUNCATE_TIME_LIMIT;
+        return TRUNCATE_NONE;
+    }
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.example.android.lunarlander.LunarView.LunarThread.DIFFICULTY_EASY;
+import static com.example.android.lunarlander.LunarView.LunarThread.DIFFICULTY_HARD;
+import static com.example.android.lunarlander.LunarView.LunarThread.DIFFICULTY_MEDIUM;
+
+/**
+ * Runs a {@link LunarPolicy} over a large number of seeded, headless episodes
+ * on every core and reports how it does at each difficulty.
+ * <p>
+ * Episode {@code i} of difficulty {@code d} always starts from the same random
+ * conditions for a given seed, no matter how many threads are used, so two
+ * policies can be compared on exactly the same set of starts.
+ */
+final class EvaluationHarness {
+    private static final String TAG = EvaluationHarness.class.getSimpleName();
+
+    /**
+     * Difficulties evaluated, in report order.
+     */
+    static final int[] DIFFICULTIES = {DIFFICULTY_EASY, DIFFICULTY_MEDIUM, DIFFICULTY_HARD};
+
+    /**
+     * Number of episodes handed to a worker at a time.
+     */
+    private static final int EPISODES_PER_TASK = 4096;
+
+    /**
+     * z value of a two-sided 95% confidence interval.
+     */
+    private static final double Z_95 = 1.959963984540054;
+
+    private final LunarPolicy mPolicy;
+    private final int mThreads;
+    private int mCanvasWidth = LunarSimulator.DEFAULT_CANVAS_WIDTH;
+    private int mCanvasHeight = LunarSimulator.DEFAULT_CANVAS_HEIGHT;
+    private int mLanderWidth = LunarSimulator.DEFAULT_LANDER_WIDTH;
+    private int mLanderHeight = LunarSimulator.DEFAULT_LANDER_HEIGHT;
+
+    /**
+     * Episodes still flying after this many ticks are cut off and counted as
+     * timeouts, so a policy that hovers forever cannot stall the run.
+     */
+    private int mMaxSteps = 10000;
+
+    private int mIntegrator = LunarSimulator.INTEGRATOR_FIXED;
+    private double mTickSeconds = LunarSimulator.TICK_SECONDS;
+
+    EvaluationHarness(LunarPolicy policy, int threads) {
+        mPolicy = policy;
+        mThreads = threads;
+    }
+
+    /**
+     * Sets the size of the playing field and lander the episodes use.
+     */
+    EvaluationHarness setGeometry(int canvasWidth, int canvasHeight,
+                                  int landerWidth, int landerHeight) {
+        mCanvasWidth = canvasWidth;
+        mCanvasHeight = canvasHeight;
+        mLanderWidth = landerWidth;
+        mLanderHeight = landerHeight;
+        return this;
+    }
+
+    EvaluationHarness setMaxSteps(int maxSteps) {
+        mMaxSteps = maxSteps;
+        return this;
+    }
+
+    /**
+     * @see LunarSimulator#setIntegrator
+     */
+    EvaluationHarness setIntegrator(int integrator, double tickSeconds) {
+        mIntegrator = integrator;
+        mTickSeconds = tickSeconds;
+        return this;
+    }
+
+    /**
+     * Evaluates the policy on {@code episodes} episodes of every difficulty.
+     *
+     * @return one report per entry of {@link #DIFFICULTIES}
+     */
+    Report[] evaluate(long episodes, long seed) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(mThreads);
+        try {
+            List<List<Future<Report>>> futures = new ArrayList<>();
+            for (int difficulty : DIFFICULTIES) {
+                List<Future<Report>> parts = new ArrayList<>();
+                for (long from = 0; from < episodes; from += EPISODES_PER_TASK) {
+                    long to = Math.min(episodes, from + EPISODES_PER_TASK);
+                    parts.add(executor.submit(new Worker(difficulty, from, to, seed)));
+                }
+                futures.add(parts);
+            }
+
+            Report[] reports = new Report[DIFFICULTIES.length];
+            for (int i = 0; i < DIFFICULTIES.length; i++) {
+                reports[i] = new Report(DIFFICULTIES[i]);
+                for (Future<Report> part : futures.get(i)) {
+                    reports[i].merge(part.get());
+                }
+            }
+            return reports;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Evaluation failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Seed of one episode, a SplitMix64 hash of the run seed, the difficulty
+     * and the episode index.
+     */
+    static long episodeSeed(long seed, int difficulty, long episode) {
+        long z = seed + 0x9E3779B97F4A7C15L * (episode * 4 + difficulty + 1);
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Plays a contiguous range of episodes of one difficulty.
+     */
+    private final class Worker implements Callable<Report> {
+        private final int mDifficulty;
+        private final long mFrom;
+        private final long mTo;
+        private final long mSeed;
+
+        Worker(int difficulty, long from, long to, long seed) {
+            mDifficulty = difficulty;
+            mFrom = from;
+            mTo = to;
+            mSeed = seed;
+        }
+
+        @Override
+        public Report call() {
+            Random random = new Random();
+            LunarSimulator simulator = new LunarSimulator(random)
+                    .setIntegrator(mIntegrator, mTickSeconds);
+            LunarState state = new LunarState();
+            Report report = new Report(mDifficulty);
+
+            for (long episode = mFrom; episode < mTo; episode++) {
+                random.setSeed(episodeSeed(mSeed, mDifficulty, episode));
+                state.mDifficulty = mDifficulty;
+                state.mCanvasWidth = mCanvasWidth;
+                state.mCanvasHeight = mCanvasHeight;
+                state.mLanderWidth = mLanderWidth;
+                state.mLanderHeight = mLanderHeight;
+                simulator.start(state);
+                double fuelStart = state.mFuel;
+
+                int landing = LunarSimulator.LANDING_NONE;
+                int steps = 0;
+                while (landing == LunarSimulator.LANDING_NONE && steps < mMaxSteps) {
+                    landing = simulator.step(state, mPolicy.act(state, random));
+                    steps++;
+                }
+                report.add(landing, fuelStart - state.mFuel, steps);
+            }
+            return report;
+        }
+    }
+
+    /**
+     * Outcome counts and running sums for one difficulty. Mergeable, so each
+     * worker keeps its own and they are combined at the end.
+     */
+    static final class Report {
+        final int mDifficulty;
+        long mEpisodes;
+        /**
+         * Episodes per LunarSimulator.LANDING_* result; LANDING_NONE counts
+         * timeouts.
+         */
+        final long[] mLandings = new long[LunarSimulator.LANDING_TOO_FAST + 1];
+        double mFuelSum;
+        double mFuelSumSq;
+        double mStepsSum;
+        double mStepsSumSq;
+
+        Report(int difficulty) {
+            mDifficulty = difficulty;
+        }
+
+        void add(int landing, double fuelUsed, int steps) {
+            mEpisodes++;
+            mLandings[landing]++;
+            mFuelSum += fuelUsed;
+            mFuelSumSq += fuelUsed * fuelUsed;
+            mStepsSum += steps;
+            mStepsSumSq += (double) steps * steps;
+        }
+
+        void merge(Report other) {
+            mEpisodes += other.mEpisodes;
+            for (int i = 0; i < mLandings.length; i++) mLandings[i] += other.mLandings[i];
+            mFuelSum += other.mFuelSum;
+            mFuelSumSq += other.mFuelSumSq;
+            mStepsSum += other.mStepsSum;
+            mStepsSumSq += other.mStepsSumSq;
+        }
+
+        long wins() {
+            return mLandings[LunarSimulator.LANDING_WIN] + mLandings[LunarSimulator.LANDING_HYPERSPACE];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(difficultyName(mDifficulty)).append(" (").append(mEpisodes).append(" episodes)\n");
+            appendRate(sb, "win", wins());
+            appendRate(sb, "  hyperspace", mLandings[LunarSimulator.LANDING_HYPERSPACE]);
+            appendRate(sb, "off pad", mLandings[LunarSimulator.LANDING_OFF_PAD]);
+            appendRate(sb, "bad angle", mLandings[LunarSimulator.LANDING_BAD_ANGLE]);
+            appendRate(sb, "too fast", mLandings[LunarSimulator.LANDING_TOO_FAST]);
+            appendRate(sb, "timeout", mLandings[LunarSimulator.LANDING_NONE]);
+            appendMean(sb, "fuel used", mFuelSum, mFuelSumSq);
+            appendMean(sb, "steps", mStepsSum, mStepsSumSq);
+            return sb.toString();
+        }
+
+        /**
+         * Appends a proportion with its 95% Wilson score interval.
+         */
+        private void appendRate(StringBuilder sb, String name, long count) {
+            if (mEpisodes == 0) {
+                appendEmpty(sb, name);
+                return;
+            }
+            double n = mEpisodes;
+            double p = count / n;
+            double z2 = Z_95 * Z_95;
+            double center = (p + z2 / (2 * n)) / (1 + z2 / n);
+            double half = Z_95 * Math.sqrt(p * (1 - p) / n + z2 / (4 * n * n)) / (1 + z2 / n);
+            sb.append(String.format(Locale.US, "  %-12s %7.3f%%  [%.3f%%, %.3f%%]%n", name,
+                    100 * p, 100 * Math.max(0, center - half), 100 * Math.min(1, center + half)));
+        }
+
+        /**
+         * Appends a mean with its 95% normal-approximation interval.
+         */
+        private void appendMean(StringBuilder sb, String name, double sum, double sumSq) {
+            if (mEpisodes == 0) {
+                appendEmpty(sb, name);
+                return;
+            }
+            double n = mEpisodes;
+            double mean = sum / n;
+            double variance = n > 1 ? Math.max(0, (sumSq - sum * mean) / (n - 1)) : 0;
+            double half = Z_95 * Math.sqrt(variance / n);
+            sb.append(String.format(Locale.US, "  %-12s %9.3f  [%.3f, %.3f]%n", name,
+                    mean, mean - half, mean + half));
+        }
+
+        /**
+         * Appends a row with no value, for a report that has no episodes.
+         */
+        private void appendEmpty(StringBuilder sb, String name) {
+            sb.append(String.format(Locale.US, "  %-12s %9s%n", name, "n/a"));
+        }
+    }
+
+    static String difficultyName(int difficulty) {
+        switch (difficulty) {
+            case DIFFICULTY_EASY:
+                return "EASY";
+            case DIFFICULTY_HARD:
+                return "HARD";
+            default:
+                return "MEDIUM";
+        }
+    }
+
+    /**
+     * Evaluates the random policy the Python client explores with (fire 95%
+     * of the time). Arguments: [episodes per difficulty] [seed] [threads].
+     */
+    public static void main(String[] args) throws InterruptedException {
+        long episodes = args.length > 0 ? Long.parseLong(args[0]) : 1000000;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 42;
+        int threads = args.length > 2 ? Integer.parseInt(args[2])
+                : Runtime.getRuntime().availableProcessors();
+
+        LunarPolicy policy = new LunarPolicy() {
+            @Override
+            public int act(LunarState state, Random random) {
+                return random.nextDouble() < 0.95 ? LunarSimulator.ACTION_FIRE
+                        : LunarSimulator.ACTION_NONE;
+            }
+        };
+
+        long start = System.nanoTime();
+        Report[] reports = new EvaluationHarness(policy, threads).evaluate(episodes, seed);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        for (Report report : reports) System.out.print(report);
+        System.out.println(String.format(Locale.US, "%s: %d episodes in %.2f s on %d threads",
+                TAG, episodes * reports.length, seconds, threads));
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Paces the drawing thread in interactive play: frames start at a fixed
+ * target rate, and while the game is idle (paused, ready, won or lost) the
+ * thread draws that state once and then parks until {@link #wake} is called
+ * for input, a state change or a remote command. Nothing changes on screen
+ * while idle, so an idle game costs no CPU.
+ * <p>
+ * Also keeps the achieved frame interval and the per-frame work time, in
+ * milliseconds, for diagnostics. Gaps spent parked are not counted as frames.
+ */
+final class FrameScheduler {
+    /**
+     * Histogram range for the frame-time statistics, in milliseconds.
+     */
+    private static final double STATS_MAX_MILLIS = 500;
+    private static final int STATS_BINS = 1000;
+
+    private volatile Thread mThread;
+    private volatile boolean mWoken;
+    private long mFrameNanos;
+    private long mFrameStart;
+    private boolean mIdleFrameDrawn;
+    private boolean mResumed = true;
+
+    private final RunningStats mIntervals = new RunningStats(0, STATS_MAX_MILLIS, STATS_BINS);
+    private final RunningStats mWork = new RunningStats(0, STATS_MAX_MILLIS, STATS_BINS);
+
+    /**
+     * @param framesPerSecond target rate, see {@link #setTargetRate}
+     */
+    FrameScheduler(double framesPerSecond) {
+        setTargetRate(framesPerSecond);
+    }
+
+    /**
+     * @param framesPerSecond frames to start per second; 0 or less draws as
+     *                        fast as possible
+     */
+    synchronized void setTargetRate(double framesPerSecond) {
+        mFrameNanos = framesPerSecond > 0 ? (long) (1e9 / framesPerSecond) : 0;
+    }
+
+    /**
+     * Blocks the calling (drawing) thread until its next frame is due.
+     *
+     * @param idle whether the game is in a state that does not change on its
+     *             own; after one frame in such a state the thread parks
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    void awaitFrame(boolean idle) throws InterruptedException {
+        mThread = Thread.currentThread();
+        if (idle && mIdleFrameDrawn) {
+            while (!mWoken) {
+                LockSupport.park(this);
+                if (Thread.interrupted()) throw new InterruptedException();
+            }
+            mResumed = true;
+        }
+        mIdleFrameDrawn = idle;
+        mWoken = false;
+
+        long frameNanos;
+        synchronized (this) {
+            frameNanos = mFrameNanos;
+        }
+        long remaining;
+        while (!mResumed && (remaining = mFrameStart + frameNanos - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(this, remaining);
+            if (Thread.interrupted()) throw new InterruptedException();
+        }
+
+        long now = System.nanoTime();
+        if (!mResumed) {
+            synchronized (this) {
+                mIntervals.add((now - mFrameStart) / 1e6);
+            }
+        }
+        mResumed = false;
+        mFrameStart = now;
+    }
+
+    /**
+     * Marks the end of the frame begun by the last {@link #awaitFrame}.
+     */
+    void frameDone() {
+        double work = (System.nanoTime() - mFrameStart) / 1e6;
+        synchronized (this) {
+            mWork.add(work);
+        }
+    }
+
+    /**
+     * Frames started by frames arriving from elsewhere, such as the trainer's
+     * lockstep handshake, are not paced; call this so the next paced frame
+     * is not counted as one long interval.
+     */
+    void skipPacing() {
+        mResumed = true;
+        mIdleFrameDrawn = false;
+    }
+
+    /**
+     * Lets a parked drawing thread draw its next frame. Safe to call from
+     * any thread at any time.
+     */
+    void wake() {
+        mWoken = true;
+        Thread thread = mThread;
+        if (thread != null) LockSupport.unpark(thread);
+    }
+
+    /**
+     * @return a copy of the achieved frame intervals, in milliseconds
+     */
+    synchronized RunningStats getFrameIntervals() {
+        RunningStats copy = new RunningStats(0, STATS_MAX_MILLIS, STATS_BINS);
+        copy.merge(mIntervals);
+        return copy;
+    }
+
+    /**
+     * @return a copy of the time spent on each frame, in milliseconds
+     */
+    synchronized RunningStats getFrameWork() {
+        RunningStats copy = new RunningStats(0, STATS_MAX_MILLIS, STATS_BINS);
+        copy.merge(mWork);
+        return copy;
+    }
+
+    synchronized void resetStats() {
+        mIntervals.reset();
+        mWork.reset();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US,
+                "%d frames, interval mean %.2f ms p50 %.2f p99 %.2f, work mean %.2f ms p99 %.2f",
+                mIntervals.count(), mIntervals.mean(), mIntervals.quantile(0.5),
+                mIntervals.quantile(0.99), mWork.mean(), mWork.quantile(0.99));
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The last few rasterized frames of one environment, for agents that need to
+ * see motion. Frames are kept in a ring inside one array; {@link #copyTo}
+ * writes them out oldest first, as [depth][height][width] bytes. Nothing is
+ * allocated after construction.
+ */
+final class FrameStack {
+    private final LunarRasterizer mRasterizer;
+    private final int mDepth;
+    private final int mFrameSize;
+    private final byte[] mFrames;
+
+    /**
+     * Slot the next frame goes into.
+     */
+    private int mNext;
+
+    /**
+     * @param rasterizer renderer, owned by the same thread as this stack
+     * @param depth      number of frames kept, e.g. 4
+     */
+    FrameStack(LunarRasterizer rasterizer, int depth) {
+        mRasterizer = rasterizer;
+        mDepth = depth;
+        mFrameSize = rasterizer.getFrameSize();
+        mFrames = new byte[depth * mFrameSize];
+    }
+
+    /**
+     * Renders the first state of an episode into every slot, so the stack
+     * never mixes frames of two episodes.
+     */
+    void reset(LunarState s) {
+        mRasterizer.render(s, mFrames, 0);
+        for (int i = 1; i < mDepth; i++) {
+            System.arraycopy(mFrames, 0, mFrames, i * mFrameSize, mFrameSize);
+        }
+        mNext = 1 % mDepth;
+    }
+
+    /**
+     * Renders a new frame over the oldest one.
+     */
+    void push(LunarState s) {
+        mRasterizer.render(s, mFrames, mNext * mFrameSize);
+        mNext = (mNext + 1) % mDepth;
+    }
+
+    /**
+     * Copies the stack, oldest frame first, into {@code out} at {@code offset}.
+     */
+    void copyTo(byte[] out, int offset) {
+        int tail = (mDepth - mNext) * mFrameSize;
+        System.arraycopy(mFrames, mNext * mFrameSize, out, offset, tail);
+        System.arraycopy(mFrames, 0, out, offset + tail, mNext * mFrameSize);
+    }
+
+    /**
+     * Copies the stack, oldest frame first, at the buffer's position.
+     */
+    void copyTo(ByteBuffer out) {
+        out.put(mFrames, mNext * mFrameSize, (mDepth - mNext) * mFrameSize);
+        out.put(mFrames, 0, mNext * mFrameSize);
+    }
+
+    /**
+     * @return bytes written by copyTo
+     */
+    int size() {
+        return mFrames.length;
+    }
+}
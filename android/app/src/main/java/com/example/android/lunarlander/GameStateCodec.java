@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import static com.example.android.lunarlander.LunarView.LunarThread.KEY_DX;
+import static com.example.android.lunarlander.LunarView.LunarThread.KEY_DY;
+import static com.example.android.lunarlander.LunarView.LunarThread.KEY_HEADING;
+import static com.example.android.lunarlander.LunarView.LunarThread.KEY_ON_GOAL;
+import static com.example.android.lunarlander.LunarView.LunarThread.KEY_X;
+import static com.example.android.lunarlander.LunarView.LunarThread.KEY_Y;
+
+/**
+ * Builds the JSON messages the MqttThread sends to the trainer: the state
+ * after every command and the running statistics on request. Kept apart from
+ * the view so the loop benchmark publishes exactly the same bytes.
+ */
+final class GameStateCodec {
+    /**
+     * Observation and reward shaping, shared with the headless transports.
+     */
+    private final RewardShaper mShaper = new RewardShaper();
+    private final double[] mObservation = new double[RewardShaper.OBSERVATION_SIZE];
+    private double mReward;
+    private boolean mDone;
+
+    /**
+     * Distribution of everything published so far, for normalization.
+     */
+    private final ObservationStats mObservationStats = new ObservationStats();
+
+    /**
+     * Forgets the previous state; call at the start of every episode.
+     */
+    void reset() {
+        mShaper.reset();
+    }
+
+    /**
+     * Encodes the state, reward and done flag reached in {@code state}.
+     *
+     * @param modelVersion version of the policy weights the device holds, -1
+     *                     for none
+     * @param normalize    also include the observation and reward
+     *                     standardized by the running statistics
+     */
+    JSONObject encodeState(LunarState state, int screenWidth, int screenHeight, int modelVersion,
+                           boolean normalize) throws JSONException {
+        double[] obs = mObservation;
+        double reward = mShaper.update(state, screenWidth, screenHeight, obs);
+        boolean done = RewardShaper.isDone(state);
+        mReward = reward;
+        mDone = done;
+
+        JSONObject lunarState = new JSONObject()
+                .put(KEY_X, obs[RewardShaper.OBS_X])
+                .put(KEY_Y, obs[RewardShaper.OBS_Y])
+                .put(KEY_DX, obs[RewardShaper.OBS_DX])
+                .put(KEY_DY, obs[RewardShaper.OBS_DY])
+                .put(KEY_HEADING, obs[RewardShaper.OBS_HEADING])
+                .put(KEY_ON_GOAL, state.mOnGoal);
+
+        mObservationStats.add(obs[RewardShaper.OBS_X], obs[RewardShaper.OBS_Y],
+                obs[RewardShaper.OBS_DX], obs[RewardShaper.OBS_DY],
+                obs[RewardShaper.OBS_HEADING], reward);
+        JSONObject jsonMsg = new JSONObject()
+                .put("done", done)
+                .put("reward", reward)
+                .put("state", lunarState)
+                .put("model_version", modelVersion);
+        if (normalize) {
+            ObservationStats stats = mObservationStats;
+            jsonMsg.put("normalized", new JSONObject()
+                    .put(KEY_X, stats.normalize(ObservationStats.FIELD_X, obs[RewardShaper.OBS_X]))
+                    .put(KEY_Y, stats.normalize(ObservationStats.FIELD_Y, obs[RewardShaper.OBS_Y]))
+                    .put(KEY_DX, stats.normalize(ObservationStats.FIELD_DX, obs[RewardShaper.OBS_DX]))
+                    .put(KEY_DY, stats.normalize(ObservationStats.FIELD_DY, obs[RewardShaper.OBS_DY]))
+                    .put(KEY_HEADING, stats.normalize(ObservationStats.FIELD_HEADING, obs[RewardShaper.OBS_HEADING]))
+                    .put("reward", stats.normalize(ObservationStats.FIELD_REWARD, reward)));
+        }
+        return jsonMsg;
+    }
+
+    /**
+     * @return the observation of the last encoded state, overwritten by the
+     * next call to {@link #encodeState}
+     */
+    double[] getObservation() {
+        return mObservation;
+    }
+
+    double getReward() {
+        return mReward;
+    }
+
+    boolean isDone() {
+        return mDone;
+    }
+
+    /**
+     * Encodes the running observation and reward statistics.
+     *
+     * @param reset start collecting from scratch afterwards
+     */
+    JSONObject encodeStats(boolean reset) throws JSONException {
+        JSONObject jsonMsg = mObservationStats.toJson().put("type", "stats");
+        if (reset) mObservationStats.reset();
+        return jsonMsg;
+    }
+}
@@ -0,0 +1,373 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Minimal MQTT 3.1.1 broker on loopback, enough for the MqttThread and a
+ * trainer to talk through it in benchmarks and tests without a Mosquitto
+ * install.
+ * <p>
+ * Supports CONNECT, SUBSCRIBE/UNSUBSCRIBE with + and # wildcards, PUBLISH at
+ * QoS 0, 1 and 2 in both directions and PINGREQ. Messages are forwarded as
+ * soon as they arrive and delivered at the lower of the publish and
+ * subscription QoS. There are no retained messages, wills, persistent
+ * sessions or redelivery: every session is treated as clean, which is what
+ * the app asks for.
+ */
+final class LocalMqttBroker implements Closeable {
+    private static final String TAG = LocalMqttBroker.class.getSimpleName();
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /*
+     * Control packet types
+     */
+    private static final int CONNECT = 1;
+    private static final int CONNACK = 2;
+    private static final int PUBLISH = 3;
+    private static final int PUBACK = 4;
+    private static final int PUBREC = 5;
+    private static final int PUBREL = 6;
+    private static final int PUBCOMP = 7;
+    private static final int SUBSCRIBE = 8;
+    private static final int SUBACK = 9;
+    private static final int UNSUBSCRIBE = 10;
+    private static final int UNSUBACK = 11;
+    private static final int PINGREQ = 12;
+    private static final int PINGRESP = 13;
+    private static final int DISCONNECT = 14;
+
+    private final ServerSocket mServerSocket;
+    private final CopyOnWriteArrayList<Client> mClients = new CopyOnWriteArrayList<>();
+    private volatile boolean mRunning = true;
+
+    /**
+     * @param port port to listen on, 0 for any free port
+     */
+    LocalMqttBroker(int port) throws IOException {
+        mServerSocket = new ServerSocket(port, 64, InetAddress.getLoopbackAddress());
+    }
+
+    int getPort() {
+        return mServerSocket.getLocalPort();
+    }
+
+    /**
+     * @return the tcp:// URI clients should connect to
+     */
+    String getUri() {
+        return "tcp://" + mServerSocket.getInetAddress().getHostAddress() + ":" + getPort();
+    }
+
+    /**
+     * Starts accepting connections on a background thread.
+     */
+    void start() {
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (mRunning) {
+                    try {
+                        Socket socket = mServerSocket.accept();
+                        socket.setTcpNoDelay(true);
+                        Client client = new Client(socket);
+                        Thread thread = new Thread(client, TAG + "-client");
+                        thread.setDaemon(true);
+                        thread.start();
+                    } catch (IOException e) {
+                        if (!mRunning) return;
+                        System.out.println(TAG + ": accept failed: " + e);
+                        try {
+                            Thread.sleep(100);
+                        } catch (InterruptedException ie) {
+                            return;
+                        }
+                    }
+                }
+            }
+        }, TAG + "-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mRunning = false;
+        mServerSocket.close();
+        for (Client client : mClients) {
+            client.close();
+        }
+    }
+
+    /**
+     * Hands {@code payload} to every client with a matching subscription.
+     */
+    private void route(String topic, byte[] payload, int qos) {
+        for (Client client : mClients) {
+            int granted = -1;
+            for (Subscription subscription : client.mSubscriptions) {
+                if (matches(subscription.mFilter, topic)) {
+                    granted = Math.max(granted, subscription.mQos);
+                }
+            }
+            if (granted >= 0) {
+                client.deliver(topic, payload, Math.min(qos, granted));
+            }
+        }
+    }
+
+    /**
+     * @return whether {@code topic} matches the filter, honouring the single
+     * level + and multi level # wildcards
+     */
+    static boolean matches(String filter, String topic) {
+        int f = 0;
+        int t = 0;
+        while (f < filter.length()) {
+            char c = filter.charAt(f);
+            if (c == '#') return true;
+            if (c == '+') {
+                while (t < topic.length() && topic.charAt(t) != '/') t++;
+                f++;
+                continue;
+            }
+            if (t >= topic.length() || topic.charAt(t) != c) {
+                // "a/#" also matches the parent level "a"
+                return t == topic.length() && filter.startsWith("/#", f);
+            }
+            f++;
+            t++;
+        }
+        return t == topic.length();
+    }
+
+    private static final class Subscription {
+        final String mFilter;
+        final int mQos;
+
+        Subscription(String filter, int qos) {
+            mFilter = filter;
+            mQos = qos;
+        }
+    }
+
+    /**
+     * One connection: reads its packets on its own thread; other clients'
+     * threads write deliveries to it.
+     */
+    private final class Client implements Runnable {
+        private final Socket mSocket;
+        private final OutputStream mOut;
+        private final CopyOnWriteArrayList<Subscription> mSubscriptions = new CopyOnWriteArrayList<>();
+        private int mNextPacketId;
+
+        Client(Socket socket) throws IOException {
+            mSocket = socket;
+            mOut = new BufferedOutputStream(socket.getOutputStream(), 8 * 1024);
+        }
+
+        @Override
+        public void run() {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(mSocket.getInputStream()));
+                byte[] body = new byte[256];
+                while (true) {
+                    int header = in.read();
+                    if (header < 0) return;
+                    int length = readRemainingLength(in);
+                    if (body.length < length) body = new byte[Math.max(length, body.length * 2)];
+                    in.readFully(body, 0, length);
+                    if (!handle(header >>> 4, header & 0x0f, body, length)) return;
+                }
+            } catch (EOFException e) {
+                // client went away
+            } catch (IOException e) {
+                if (mRunning) System.out.println(TAG + ": client failed: " + e);
+            } finally {
+                close();
+            }
+        }
+
+        /**
+         * @return false once the client has disconnected
+         */
+        private boolean handle(int type, int flags, byte[] body, int length) throws IOException {
+            switch (type) {
+                case CONNECT:
+                    mClients.add(this);
+                    // session present 0, accepted
+                    write(CONNACK, 0, 0, 2);
+                    return true;
+                case PUBLISH: {
+                    int qos = (flags >> 1) & 3;
+                    int topicLength = readShort(body, 0);
+                    String topic = new String(body, 2, topicLength, UTF_8);
+                    int offset = 2 + topicLength;
+                    int packetId = 0;
+                    if (qos > 0) {
+                        packetId = readShort(body, offset);
+                        offset += 2;
+                    }
+                    byte[] payload = new byte[length - offset];
+                    System.arraycopy(body, offset, payload, 0, payload.length);
+                    if (qos == 1) write(PUBACK, 0, packetId, 2);
+                    if (qos == 2) write(PUBREC, 0, packetId, 2);
+                    route(topic, payload, qos);
+                    return true;
+                }
+                case PUBREC:
+                    // our QoS 2 delivery arrived; release it
+                    write(PUBREL, 2, readShort(body, 0), 2);
+                    return true;
+                case PUBREL:
+                    write(PUBCOMP, 0, readShort(body, 0), 2);
+                    return true;
+                case PUBACK:
+                case PUBCOMP:
+                    return true;
+                case SUBSCRIBE: {
+                    int packetId = readShort(body, 0);
+                    byte[] granted = new byte[length];
+                    int count = 0;
+                    for (int offset = 2; offset < length; ) {
+                        int filterLength = readShort(body, offset);
+                        String filter = new String(body, offset + 2, filterLength, UTF_8);
+                        int qos = Math.min(body[offset + 2 + filterLength] & 3, 2);
+                        offset += 3 + filterLength;
+                        unsubscribe(filter);
+                        mSubscriptions.add(new Subscription(filter, qos));
+                        granted[count++] = (byte) qos;
+                    }
+                    synchronized (mOut) {
+                        mOut.write(SUBACK << 4);
+                        writeRemainingLength(2 + count);
+                        mOut.write(packetId >> 8);
+                        mOut.write(packetId);
+                        mOut.write(granted, 0, count);
+                        mOut.flush();
+                    }
+                    return true;
+                }
+                case UNSUBSCRIBE: {
+                    for (int offset = 2; offset < length; ) {
+                        int filterLength = readShort(body, offset);
+                        unsubscribe(new String(body, offset + 2, filterLength, UTF_8));
+                        offset += 2 + filterLength;
+                    }
+                    write(UNSUBACK, 0, readShort(body, 0), 2);
+                    return true;
+                }
+                case PINGREQ:
+                    write(PINGRESP, 0, 0, 0);
+                    return true;
+                case DISCONNECT:
+                    return false;
+                default:
+                    throw new IOException("Unsupported packet type " + type);
+            }
+        }
+
+        private void unsubscribe(String filter) {
+            for (Subscription subscription : mSubscriptions) {
+                if (subscription.mFilter.equals(filter)) mSubscriptions.remove(subscription);
+            }
+        }
+
+        /**
+         * Writes a packet whose variable header is at most one short.
+         */
+        private void write(int type, int flags, int value, int length) throws IOException {
+            synchronized (mOut) {
+                mOut.write(type << 4 | flags);
+                writeRemainingLength(length);
+                if (length == 2) {
+                    mOut.write(value >> 8);
+                    mOut.write(value);
+                }
+                mOut.flush();
+            }
+        }
+
+        private void deliver(String topic, byte[] payload, int qos) {
+            byte[] topicBytes = topic.getBytes(UTF_8);
+            try {
+                synchronized (mOut) {
+                    mOut.write(PUBLISH << 4 | qos << 1);
+                    writeRemainingLength(2 + topicBytes.length + (qos > 0 ? 2 : 0) + payload.length);
+                    mOut.write(topicBytes.length >> 8);
+                    mOut.write(topicBytes.length);
+                    mOut.write(topicBytes);
+                    if (qos > 0) {
+                        // packet ids run 1..65535
+                        mNextPacketId = mNextPacketId % 0xffff + 1;
+                        mOut.write(mNextPacketId >> 8);
+                        mOut.write(mNextPacketId);
+                    }
+                    mOut.write(payload);
+                    mOut.flush();
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        /**
+         * Call with mOut held.
+         */
+        private void writeRemainingLength(int length) throws IOException {
+            do {
+                int digit = length & 0x7f;
+                length >>>= 7;
+                mOut.write(length > 0 ? digit | 0x80 : digit);
+            } while (length > 0);
+        }
+
+        void close() {
+            mClients.remove(this);
+            try {
+                mSocket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private static int readRemainingLength(DataInputStream in) throws IOException {
+        int length = 0;
+        for (int shift = 0; shift < 28; shift += 7) {
+            int digit = in.readUnsignedByte();
+            length |= (digit & 0x7f) << shift;
+            if ((digit & 0x80) == 0) return length;
+        }
+        throw new IOException("Malformed remaining length");
+    }
+
+    private static int readShort(byte[] b, int offset) {
+        return (b[offset] & 0xff) << 8 | (b[offset + 1] & 0xff);
+    }
+}
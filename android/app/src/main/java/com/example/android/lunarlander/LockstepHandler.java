@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.json.JSONObject;
+
+import java.util.zip.Deflater;
+
+/**
+ * Answers the trainer's lockstep commands for the MqttThread: "reset",
+ * "step", "stats" and "analytics", with the truncation, auto-reset and
+ * n-step stages a reset can set up. Kept apart from the view so the loop
+ * benchmark runs exactly the same handling against a headless game.
+ * <p>
+ * Not thread-safe; call from the MQTT callback only.
+ */
+final class LockstepHandler {
+    /**
+     * Where the trainer sends commands.
+     */
+    static final String COMMAND_TOPIC = "DATA_FROM_AI";
+
+    /**
+     * Where states and statistics go.
+     */
+    static final String STATE_TOPIC = "DATA_FROM_ANDROID";
+
+    /**
+     * Where lockstep n-step batches go when the trainer asks for them.
+     */
+    static final String N_STEP_TOPIC = "N_STEP_FROM_ANDROID";
+
+    /**
+     * Where EpisodeAnalytics snapshots go when the trainer asks for them.
+     */
+    static final String ANALYTICS_TOPIC = "ANALYTICS_FROM_ANDROID";
+
+    /**
+     * The game the commands are played on.
+     */
+    interface Game {
+        /**
+         * Starts a new episode.
+         */
+        void start();
+
+        /**
+         * Plays one tick with the key for {@code action} held down and
+         * returns once its state can be read.
+         *
+         * @param action one of the LunarSimulator.ACTION_* key codes
+         */
+        void step(int action) throws Exception;
+
+        /**
+         * Copies the state the trainer is to see into {@code out}.
+         */
+        void readState(LunarState out);
+
+        /**
+         * @return where touchdowns are recorded, and truncations are to be
+         */
+        EpisodeAnalytics getAnalytics();
+
+        /**
+         * @return the version of the policy weights held, -1 for none
+         */
+        int getModelVersion();
+    }
+
+    private final MqttAsyncClient mClient;
+    private final Game mGame;
+    private final int mScreenWidth;
+    private final int mScreenHeight;
+    private int mQos = 2;
+
+    /**
+     * Consistent copy of the game state, refreshed before publishing.
+     */
+    private final LunarState mState = new LunarState();
+
+    /**
+     * Builds the state and statistics messages.
+     */
+    private final GameStateCodec mCodec = new GameStateCodec();
+
+    /*
+     * The n-step stage, set up by a "reset" with an "n_step" field, and the
+     * batch it fills
+     */
+    private NStepReturns mReturns;
+    private NStepBatch mBatch;
+    private final Deflater mDeflater = new Deflater(Deflater.BEST_SPEED);
+    private long mEpisode = -1;
+
+    /*
+     * Episode lifecycle set up by a "reset": when to truncate, whether to
+     * start the next episode in the reply that ends one, the steps taken
+     * in this one and whether its end is already in the analytics
+     */
+    private EpisodeLimits mLimits;
+    private boolean mAutoReset;
+    private int mSteps;
+    private boolean mEndRecorded;
+
+    /**
+     * @param screenWidth  width the observation is normalized by
+     * @param screenHeight height the observation is normalized by
+     */
+    LockstepHandler(MqttAsyncClient client, Game game, int screenWidth, int screenHeight) {
+        mClient = client;
+        mGame = game;
+        mScreenWidth = screenWidth;
+        mScreenHeight = screenHeight;
+    }
+
+    /**
+     * @param qos QoS of the state and statistics messages, 2 unless set
+     */
+    LockstepHandler setQos(int qos) {
+        mQos = qos;
+        return this;
+    }
+
+    /**
+     * Runs one command from {@link #COMMAND_TOPIC} and publishes the answer.
+     * Unknown types are answered with the current state.
+     */
+    void handle(JSONObject json) throws Exception {
+        // what led to the state published below, for the n-step stage
+        int actionIndex = -2;
+        switch (json.optString("type")) {
+            case "reset":
+                mCodec.reset();
+                configureNStep(json);
+                configureLifecycle(json);
+                mGame.start();
+                actionIndex = -1;
+                break;
+            case "step":
+                int action = json.optInt("action");
+                actionIndex = Math.max(0, LunarSimulator.actionIndex(action));
+                mGame.step(action);
+                break;
+            case "stats":
+                publishStats(json.optBoolean("clear"));
+                return;
+            case "analytics":
+                publishAnalytics();
+                return;
+        }
+        publishCurrentGameState(json.optBoolean("normalize"), actionIndex);
+    }
+
+    /**
+     * Publishes the latest state, reward and done flag to the trainer,
+     * with the truncated flag when limits are set. When the step ends or
+     * truncates the episode and auto-reset is on, the next episode is
+     * started and its first state goes along under "reset".
+     *
+     * @param normalize also include the observation and reward standardized
+     *                  by the running statistics
+     * @param action    index of the action that led to the state for the
+     *                  n-step stage, -1 after a reset and -2 for neither
+     */
+    private void publishCurrentGameState(boolean normalize, int action) throws Exception {
+        if (action == -1) {
+            mSteps = 0;
+            mEndRecorded = false;
+        } else if (action >= 0) {
+            mSteps++;
+        }
+        JSONObject jsonMsg = encodeCurrentGameState(normalize);
+        int truncation = mLimits == null || action < 0
+                ? EpisodeLimits.TRUNCATE_NONE : mLimits.check(mState, mSteps);
+        if (mLimits != null) {
+            jsonMsg.put("truncated", truncation != EpisodeLimits.TRUNCATE_NONE)
+                    .put("truncation", EpisodeLimits.TRUNCATION_NAMES[truncation]);
+        }
+        // without auto-reset a truncated episode is stepped on until the
+        // trainer resets it; count it once
+        if (truncation != EpisodeLimits.TRUNCATE_NONE && !mCodec.isDone() && !mEndRecorded) {
+            mGame.getAnalytics().record(mState, LunarSimulator.LANDING_NONE, truncation, mSteps);
+            mEndRecorded = true;
+        }
+        if (mReturns != null && action >= -1) accumulate(action);
+
+        if (mAutoReset && action >= 0
+                && (mCodec.isDone() || truncation != EpisodeLimits.TRUNCATE_NONE)) {
+            mCodec.reset();
+            mGame.start();
+            mSteps = 0;
+            mEndRecorded = false;
+            jsonMsg.put("reset", encodeCurrentGameState(normalize));
+            if (mReturns != null) accumulate(-1);
+        }
+
+        MqttMessage gameStateMessage = new MqttMessage(jsonMsg.toString().getBytes());
+        gameStateMessage.setQos(mQos);
+
+        mClient.publish(STATE_TOPIC, gameStateMessage);
+    }
+
+    private JSONObject encodeCurrentGameState(boolean normalize) throws Exception {
+        mGame.readState(mState);
+        return mCodec.encodeState(mState, mScreenWidth, mScreenHeight, mGame.getModelVersion(), normalize);
+    }
+
+    /**
+     * Sets up truncation from a reset's "max_steps" and "bounds_margin"
+     * (see {@link EpisodeLimits}), both off when missing, and auto-reset
+     * from "auto_reset".
+     */
+    private void configureLifecycle(JSONObject json) {
+        int maxSteps = json.optInt("max_steps");
+        double margin = json.optDouble("bounds_margin", -1);
+        mLimits = maxSteps > 0 || margin >= 0 ? new EpisodeLimits(maxSteps, margin) : null;
+        mAutoReset = json.optBoolean("auto_reset");
+    }
+
+    /**
+     * Turns the n-step stage on when a reset carries "n_step", with
+     * "gamma", "episode_returns" and "batch" for the transitions per
+     * message, and off when it does not. Unsent transitions of a previous
+     * setup are sent first.
+     */
+    private void configureNStep(JSONObject json) throws Exception {
+        int steps = json.optInt("n_step");
+        double gamma = json.optDouble("gamma", 0.99);
+        boolean episodeReturns = json.optBoolean("episode_returns");
+        int batch = Math.max(json.optInt("batch", 256), steps);
+        if (mReturns != null && mReturns.getSteps() == steps && mReturns.getGamma() == gamma
+                && mReturns.hasEpisodeReturns() == episodeReturns && mBatch.getCapacity() == batch) {
+            return;
+        }
+        if (mBatch != null && !mBatch.isEmpty()) publishBatch();
+        mReturns = steps > 0 ? new NStepReturns(steps, gamma, RewardShaper.OBSERVATION_SIZE,
+                episodeReturns) : null;
+        mBatch = steps > 0 ? new NStepBatch(batch, RewardShaper.OBSERVATION_SIZE) : null;
+        if (mBatch != null) mBatch.begin(0, mGame.getModelVersion(), steps, gamma);
+    }
+
+    /**
+     * Feeds the state just encoded to the n-step stage, publishing the
+     * batch once it is full. Steps after the episode ended with no reset
+     * since, as without auto-reset, belong to no episode and are left out.
+     */
+    private void accumulate(int action) throws Exception {
+        if (action < 0) {
+            // a reset: an unfinished episode bootstraps from where it stopped
+            mReturns.flush(mBatch);
+            mReturns.begin(++mEpisode, mCodec.getObservation());
+        } else if (mReturns.isStarted()) {
+            mReturns.add(action, mCodec.getReward(), mCodec.isDone(), mCodec.getObservation(),
+                    mBatch);
+        }
+        if (!mBatch.hasRoom(mReturns.getSteps())) publishBatch();
+    }
+
+    private void publishBatch() throws Exception {
+        mClient.publish(N_STEP_TOPIC, mBatch.encode(mDeflater), 1, false);
+        mBatch.begin(0, mGame.getModelVersion(), mReturns.getSteps(), mReturns.getGamma());
+    }
+
+    /**
+     * Publishes the running observation and reward statistics.
+     *
+     * @param reset start collecting from scratch afterwards
+     */
+    private void publishStats(boolean reset) throws Exception {
+        JSONObject jsonMsg = mCodec.encodeStats(reset);
+
+        MqttMessage statsMessage = new MqttMessage(jsonMsg.toString().getBytes());
+        statsMessage.setQos(mQos);
+        mClient.publish(STATE_TOPIC, statsMessage);
+    }
+
+    /**
+     * Publishes a compressed EpisodeAnalytics snapshot.
+     */
+    private void publishAnalytics() throws Exception {
+        mClient.publish(ANALYTICS_TOPIC, mGame.getAnalytics().snapshot(mDeflater), 1, false);
+    }
+}
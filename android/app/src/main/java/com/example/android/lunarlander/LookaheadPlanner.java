@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+
+/**
+ * Model-predictive controller: every tick it simulates many candidate
+ * action sequences a short horizon ahead from a copy of the current state,
+ * scores them with the {@link RewardShaper} rewards the trainer sees, and
+ * plays the first action of the best one.
+ * <p>
+ * Candidates are random sequences of actions held for REPEAT ticks each,
+ * plus the rest of the previous tick's best sequence, so a good plan is
+ * kept until something better turns up. Rollouts use the same
+ * {@link LunarSimulator} as the game and are split across persistent
+ * worker threads, each with its own preallocated state and shaper; the
+ * threads meet at a barrier, so nothing is allocated per tick. If planning
+ * takes longer than the budget, fewer candidates are tried next time, and
+ * more again when there is room.
+ */
+final class LookaheadPlanner implements DeviceAgent {
+    private static final String TAG = LookaheadPlanner.class.getSimpleName();
+
+    /**
+     * Ticks each random action is held for.
+     */
+    static final int REPEAT = 4;
+
+    /**
+     * Discount per tick of the rollout rewards.
+     */
+    static final double DISCOUNT = 0.99;
+
+    /**
+     * Fewest candidates the budget may cut down to.
+     */
+    private static final int MIN_CANDIDATES = 64;
+
+    private final int mMaxCandidates;
+    private final int mHorizon;
+    private final int mScreenWidth;
+    private final int mScreenHeight;
+
+    /**
+     * Shared by the workers; step() only reads its settings.
+     */
+    private final LunarSimulator mSimulator = new LunarSimulator(new Random());
+
+    /**
+     * Action indices of every candidate, [candidate][horizon].
+     */
+    private final byte[] mSequences;
+    private final double[] mReturns;
+
+    /**
+     * The best sequence of the last plan.
+     */
+    private final byte[] mBest;
+    private boolean mHaveBest;
+
+    /**
+     * State the next plan starts from.
+     */
+    private final LunarState mRoot = new LunarState();
+
+    /*
+     * One per slice; slice 0 is worked by the planning thread
+     */
+    private final LunarState[] mStates;
+    private final RewardShaper[] mShapers;
+    private final double[][] mObservations;
+    private final Random[] mRandoms;
+    private final Thread[] mWorkers;
+    private final CyclicBarrier mBarrier;
+
+    private volatile boolean mClosed;
+    private int mCandidates;
+    private long mBudgetNanos = 50000000;
+    private long mLastPlanNanos;
+
+    /**
+     * @param candidates   most sequences tried per tick
+     * @param horizon      ticks simulated per sequence
+     * @param threads      threads rolling out, the planning one included
+     * @param screenWidth  width the x coordinate is normalized by, as in the
+     *                     MqttThread
+     * @param screenHeight height the y coordinate is normalized by
+     */
+    LookaheadPlanner(int candidates, int horizon, int threads, int screenWidth, int screenHeight, long seed) {
+        mMaxCandidates = candidates;
+        mCandidates = candidates;
+        mHorizon = horizon;
+        mScreenWidth = screenWidth;
+        mScreenHeight = screenHeight;
+        mSequences = new byte[candidates * horizon];
+        mReturns = new double[candidates];
+        mBest = new byte[horizon];
+
+        mStates = new LunarState[threads];
+        mShapers = new RewardShaper[threads];
+        mObservations = new double[threads][RewardShaper.OBSERVATION_SIZE];
+        mRandoms = new Random[threads];
+        for (int t = 0; t < threads; t++) {
+            mStates[t] = new LunarState();
+            mShapers[t] = new RewardShaper();
+            mRandoms[t] = new Random(seed + t);
+        }
+        mBarrier = new CyclicBarrier(threads);
+        mWorkers = new Thread[threads - 1];
+        for (int t = 1; t < threads; t++) {
+            final int slice = t;
+            mWorkers[t - 1] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (true) {
+                            mBarrier.await();
+                            if (mClosed) return;
+                            rollouts(slice);
+                            mBarrier.await();
+                        }
+                    } catch (InterruptedException | BrokenBarrierException e) {
+                        // closed
+                    }
+                }
+            }, TAG + "-" + t);
+            mWorkers[t - 1].setDaemon(true);
+            mWorkers[t - 1].start();
+        }
+    }
+
+    /**
+     * @param budgetNanos planning time per tick to stay within
+     */
+    LookaheadPlanner setBudget(long budgetNanos) {
+        mBudgetNanos = budgetNanos;
+        return this;
+    }
+
+    int getCandidates() {
+        return mCandidates;
+    }
+
+    long getLastPlanNanos() {
+        return mLastPlanNanos;
+    }
+
+    /**
+     * @return the key code of the best first action from {@code s}
+     */
+    int plan(LunarState s) throws InterruptedException {
+        long start = System.nanoTime();
+        mRoot.set(s);
+        try {
+            mBarrier.await();
+            rollouts(0);
+            mBarrier.await();
+        } catch (BrokenBarrierException e) {
+            throw new IllegalStateException("Planner closed", e);
+        }
+
+        int best = 0;
+        for (int c = 1; c < mCandidates; c++) {
+            if (mReturns[c] > mReturns[best]) best = c;
+        }
+        // keep the rest of the winner as the next warm start
+        int o = best * mHorizon;
+        System.arraycopy(mSequences, o + 1, mBest, 0, mHorizon - 1);
+        mBest[mHorizon - 1] = mSequences[o + mHorizon - 1];
+        mHaveBest = true;
+
+        mLastPlanNanos = System.nanoTime() - start;
+        if (mLastPlanNanos > mBudgetNanos * 4 / 5) {
+            mCandidates = Math.max(MIN_CANDIDATES, mCandidates / 2);
+        } else if (mLastPlanNanos < mBudgetNanos * 2 / 5) {
+            mCandidates = Math.min(mMaxCandidates, mCandidates * 2);
+        }
+        return LunarSimulator.ACTIONS[mSequences[o]];
+    }
+
+    /**
+     * Generates and scores this slice's share of the candidates.
+     */
+    private void rollouts(int slice) {
+        int slices = mStates.length;
+        int from = mCandidates * slice / slices;
+        int to = mCandidates * (slice + 1) / slices;
+        LunarState state = mStates[slice];
+        RewardShaper shaper = mShapers[slice];
+        double[] obs = mObservations[slice];
+        Random random = mRandoms[slice];
+
+        for (int c = from; c < to; c++) {
+            int o = c * mHorizon;
+            if (c == 0 && mHaveBest) {
+                System.arraycopy(mBest, 0, mSequences, o, mHorizon);
+            } else {
+                for (int h = 0; h < mHorizon; h += REPEAT) {
+                    byte action = (byte) random.nextInt(LunarSimulator.ACTIONS.length);
+                    for (int k = h; k < Math.min(mHorizon, h + REPEAT); k++) mSequences[o + k] = action;
+                }
+            }
+
+            state.set(mRoot);
+            shaper.reset();
+            shaper.update(state, mScreenWidth, mScreenHeight, obs);
+            double total = 0;
+            double discount = 1;
+            for (int h = 0; h < mHorizon; h++) {
+                int landing = mSimulator.step(state, LunarSimulator.ACTIONS[mSequences[o + h]]);
+                if (landing == LunarSimulator.LANDING_HYPERSPACE) {
+                    total += discount * 100;
+                    break;
+                }
+                total += discount * shaper.update(state, mScreenWidth, mScreenHeight, obs);
+                if (RewardShaper.isDone(state)) break;
+                discount *= DISCOUNT;
+            }
+            mReturns[c] = total;
+        }
+    }
+
+    @Override
+    public void startEpisode(LunarState s) {
+        mRoot.set(s);
+        mHaveBest = false;
+    }
+
+    @Override
+    public int act() throws InterruptedException {
+        return plan(mRoot);
+    }
+
+    @Override
+    public boolean observe(LunarState s) {
+        mRoot.set(s);
+        return RewardShaper.isDone(s);
+    }
+
+    /**
+     * Stops the worker threads.
+     */
+    @Override
+    public void close() {
+        mClosed = true;
+        for (Thread worker : mWorkers) worker.interrupt();
+    }
+
+    /**
+     * Plays episodes on a headless environment and reports outcomes and
+     * planning time: {@code [episodes] [candidates] [horizon] [threads]}.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int episodes = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int candidates = args.length > 1 ? Integer.parseInt(args[1]) : 2048;
+        int horizon = args.length > 2 ? Integer.parseInt(args[2]) : 40;
+        int threads = args.length > 3 ? Integer.parseInt(args[3])
+                : Runtime.getRuntime().availableProcessors();
+
+        LunarEnvironment env = new LunarEnvironment(new Random(42));
+        LunarState geometry = env.state();
+        LookaheadPlanner planner = new LookaheadPlanner(candidates, horizon, threads,
+                geometry.mCanvasWidth, geometry.mCanvasHeight, 42)
+                .setBudget((long) (LunarSimulator.TICK_SECONDS * 1e9));
+        RunningStats planMillis = new RunningStats(0, 200, 2000);
+        RunningStats candidatesTried = new RunningStats(0, candidates, 64);
+        long[] landings = new long[LunarSimulator.LANDING_TOO_FAST + 1];
+        for (int e = 0; e < episodes; e++) {
+            env.reset();
+            planner.startEpisode(env.state());
+            while (!env.isDone() && env.steps() < 2000) {
+                int action = planner.act();
+                planMillis.add(planner.getLastPlanNanos() / 1e6);
+                candidatesTried.add(planner.getCandidates());
+                env.step(action);
+                planner.observe(env.state());
+                if (env.landing() == LunarSimulator.LANDING_HYPERSPACE) landings[env.landing()]++;
+            }
+            landings[env.landing()]++;
+        }
+        planner.close();
+
+        System.out.println(String.format(Locale.US,
+                "%s: %d episodes: %d wins, %d hyperspace, %d off pad, %d bad angle, %d too fast, "
+                        + "%d timeouts; plan %.1f ms mean, %.1f ms p99 with %.0f candidates x %d ticks "
+                        + "on %d threads", TAG, episodes, landings[LunarSimulator.LANDING_WIN],
+                landings[LunarSimulator.LANDING_HYPERSPACE], landings[LunarSimulator.LANDING_OFF_PAD],
+                landings[LunarSimulator.LANDING_BAD_ANGLE], landings[LunarSimulator.LANDING_TOO_FAST],
+                landings[LunarSimulator.LANDING_NONE], planMillis.mean(), planMillis.quantile(0.99),
+                candidatesTried.mean(), horizon, threads));
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.Deflater;
+
+/**
+ * Plays the game on the device with a local {@link PolicyNetwork} and
+ * epsilon-greedy exploration, recording the experience for a remote learner
+ * instead of waiting for it on every step (Ape-X style actor).
+ * <p>
+ * The physics thread calls {@link #startEpisode}, then {@link #act} before
+ * and {@link #observe} after each tick. Transitions go into a
+ * {@link TrajectoryBuffer}; a run is sent when the episode ends or the buffer
+ * fills, compressed and handed to the {@link Uploader} on a background
+ * thread so the tick never waits on the network. If the uploader falls
+ * {@link #SPARE_BUFFERS} runs behind, the tick blocks until one is free.
+ * <p>
+ * Observations and rewards come from the same {@link RewardShaper} as the
+ * remote path, so the learner sees identical numbers either way.
+ * <p>
+ * Given an {@link NStepReturns}, the actor uploads {@link NStepBatch}es of
+ * ready-to-train n-step transitions instead of raw runs, each sent once it
+ * is full.
+ */
+final class LunarActor implements DeviceAgent {
+    private static final String TAG = LunarActor.class.getSimpleName();
+
+    /**
+     * Runs that may be waiting for compression and upload at once.
+     */
+    static final int SPARE_BUFFERS = 4;
+
+    /**
+     * Receives each compressed run of transitions.
+     */
+    interface Uploader {
+        /**
+         * Called on the actor's upload thread; may block.
+         */
+        void upload(byte[] trajectory);
+    }
+
+    private final int mActorId;
+    private final Random mRandom;
+    private final Uploader mUploader;
+    private final int mScreenWidth;
+    private final int mScreenHeight;
+    private final RewardShaper mShaper = new RewardShaper();
+    private final double[] mObservation = new double[RewardShaper.OBSERVATION_SIZE];
+    private final BlockingQueue<TrajectoryBuffer> mFree;
+
+    /**
+     * Computes n-step transitions in place of raw runs, or null.
+     */
+    private final NStepReturns mReturns;
+    private final BlockingQueue<NStepBatch> mFreeBatches;
+    private final ExecutorService mUploads;
+    private final Deflater mDeflater = new Deflater(Deflater.BEST_SPEED);
+
+    private volatile PolicyNetwork mNetwork;
+    /**
+     * Network to switch to before the next action, see {@link #offerNetwork}.
+     */
+    private final AtomicReference<PolicyNetwork> mPendingNetwork = new AtomicReference<>();
+    private float[][] mScratch;
+    private volatile double mEpsilon;
+    private TrajectoryBuffer mRun;
+    private NStepBatch mBatch;
+    private long mEpisode = -1;
+    private int mStep;
+    private int mLastAction;
+
+    /**
+     * @param actorId      tells this device's experience apart at the learner
+     * @param batchSteps   most transitions per uploaded message
+     * @param returns      computes the n-step transitions to upload instead
+     *                     of raw runs, or null for raw runs
+     * @param screenWidth  width the x coordinate is normalized by, as in the
+     *                     MqttThread
+     * @param screenHeight height the y coordinate is normalized by
+     */
+    LunarActor(int actorId, PolicyNetwork network, double epsilon, int batchSteps,
+               NStepReturns returns, int screenWidth, int screenHeight, Random random,
+               Uploader uploader) {
+        if (network.getInputSize() != RewardShaper.OBSERVATION_SIZE
+                || network.getOutputSize() != LunarSimulator.ACTIONS.length) {
+            throw new IllegalArgumentException("Network does not fit the observation or actions");
+        }
+        mActorId = actorId;
+        mNetwork = network;
+        mScratch = network.newScratch();
+        mEpsilon = epsilon;
+        mScreenWidth = screenWidth;
+        mScreenHeight = screenHeight;
+        mRandom = random;
+        mUploader = uploader;
+        mReturns = returns;
+        mFree = new ArrayBlockingQueue<>(SPARE_BUFFERS + 1);
+        mFreeBatches = new ArrayBlockingQueue<>(SPARE_BUFFERS + 1);
+        for (int i = 0; i <= SPARE_BUFFERS; i++) {
+            if (returns == null) {
+                mFree.add(new TrajectoryBuffer(batchSteps, RewardShaper.OBSERVATION_SIZE));
+            } else {
+                mFreeBatches.add(new NStepBatch(Math.max(batchSteps, returns.getSteps()),
+                        RewardShaper.OBSERVATION_SIZE));
+            }
+        }
+        mUploads = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, TAG + "-upload");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    void setEpsilon(double epsilon) {
+        mEpsilon = epsilon;
+    }
+
+    /**
+     * @return the network currently choosing actions
+     */
+    PolicyNetwork getNetwork() {
+        return mNetwork;
+    }
+
+    /**
+     * Has the actor switch to {@code network} before its next action, that
+     * is between two physics ticks. Safe to call from any thread; if several
+     * networks are offered before then, the last one wins.
+     */
+    void offerNetwork(PolicyNetwork network) {
+        if (network.getInputSize() != RewardShaper.OBSERVATION_SIZE
+                || network.getOutputSize() != LunarSimulator.ACTIONS.length) {
+            throw new IllegalArgumentException("Network does not fit the observation or actions");
+        }
+        mPendingNetwork.set(network);
+    }
+
+    /**
+     * Begins recording a new episode from the freshly started state {@code s}.
+     * A run left over from an unfinished episode is sent as is; in n-step
+     * mode its pending transitions bootstrap from where it stopped.
+     */
+    @Override
+    public void startEpisode(LunarState s) throws InterruptedException {
+        if (mReturns != null) {
+            if (mBatch == null) beginBatch();
+            if (mStep > 0) {
+                mReturns.flush(mBatch);
+                if (!mBatch.hasRoom(mReturns.getSteps())) sendBatch();
+            }
+        } else {
+            flush();
+        }
+        mShaper.reset();
+        mShaper.update(s, mScreenWidth, mScreenHeight, mObservation);
+        mEpisode++;
+        mStep = 0;
+        if (mReturns != null) {
+            mReturns.begin(mEpisode, mObservation);
+        } else {
+            beginRun();
+        }
+    }
+
+    /**
+     * @return the key code of the action to hold during the next tick
+     */
+    @Override
+    public int act() throws InterruptedException {
+        PolicyNetwork pending = mPendingNetwork.getAndSet(null);
+        if (pending != null) swap(pending);
+
+        PolicyNetwork network = mNetwork;
+        if (mRandom.nextDouble() < mEpsilon) {
+            mLastAction = mRandom.nextInt(LunarSimulator.ACTIONS.length);
+        } else {
+            mLastAction = network.greedy(mObservation, mScratch);
+        }
+        return LunarSimulator.ACTIONS[mLastAction];
+    }
+
+    /**
+     * Records the tick from the last {@link #act} that led to {@code s}.
+     *
+     * @return whether the episode has ended; the caller restarts the game
+     * and calls {@link #startEpisode}
+     */
+    @Override
+    public boolean observe(LunarState s) throws InterruptedException {
+        double reward = mShaper.update(s, mScreenWidth, mScreenHeight, mObservation);
+        boolean done = RewardShaper.isDone(s);
+        if (mReturns != null) {
+            if (mBatch == null) beginBatch();
+            mReturns.add(mLastAction, reward, done, mObservation, mBatch);
+            mStep++;
+            if (done) mStep = 0;
+            if (!mBatch.hasRoom(mReturns.getSteps())) sendBatch();
+            return done;
+        }
+        mRun.add(mLastAction, reward, done, mObservation);
+        mStep++;
+        if (done) {
+            send();
+        } else if (mRun.isFull()) {
+            send();
+            beginRun();
+        }
+        return done;
+    }
+
+    /**
+     * Installs {@code network}. The run or batch in progress is sent first so
+     * that each is labeled with the model version that played it.
+     */
+    private void swap(PolicyNetwork network) throws InterruptedException {
+        if (!Arrays.equals(network.getSizes(), mNetwork.getSizes())) mScratch = network.newScratch();
+        mNetwork = network;
+        if (mReturns != null) {
+            if (mBatch != null && !mBatch.isEmpty()) sendBatch();
+            return;
+        }
+        flush();
+        beginRun();
+    }
+
+    private void beginBatch() throws InterruptedException {
+        mBatch = mFreeBatches.take();
+        mBatch.begin(mActorId, mNetwork.getVersion(), mReturns.getSteps(), mReturns.getGamma());
+    }
+
+    private void sendBatch() {
+        final NStepBatch batch = mBatch;
+        mBatch = null;
+        mUploads.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mUploader.upload(batch.encode(mDeflater));
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Upload failed: " + e);
+                } finally {
+                    mFreeBatches.add(batch);
+                }
+            }
+        });
+    }
+
+    private void beginRun() throws InterruptedException {
+        mRun = mFree.take();
+        mRun.begin(mActorId, mNetwork.getVersion(), mEpisode, mStep, mObservation);
+    }
+
+    private void flush() {
+        if (mRun == null) return;
+        if (mRun.size() > 0) {
+            send();
+        } else {
+            mFree.add(mRun);
+            mRun = null;
+        }
+    }
+
+    private void send() {
+        final TrajectoryBuffer run = mRun;
+        mRun = null;
+        mUploads.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mUploader.upload(run.encode(mDeflater));
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Upload failed: " + e);
+                } finally {
+                    mFree.add(run);
+                }
+            }
+        });
+    }
+
+    /**
+     * Sends what has been recorded so far and stops the upload thread once
+     * it is done.
+     */
+    @Override
+    public void close() {
+        if (mReturns != null && mBatch != null) {
+            if (mStep > 0) mReturns.flush(mBatch);
+            if (!mBatch.isEmpty()) {
+                sendBatch();
+            } else {
+                mFreeBatches.add(mBatch);
+                mBatch = null;
+            }
+        }
+        flush();
+        mUploads.shutdown();
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.util.Random;
+
+import static com.example.android.lunarlander.LunarView.LunarThread.DIFFICULTY_MEDIUM;
+
+/**
+ * Headless version of the reset/step loop the MqttThread offers a remote
+ * trainer: a {@link LunarSimulator} plus the {@link RewardShaper}, with no
+ * rendering, threads or network.
+ * <p>
+ * reset() is the MQTT "reset" command and step(action) the "step" command
+ * with the same key codes; after either, {@link #observation}, {@link #reward}
+ * and {@link #isDone} hold what the MqttThread would have published. With
+ * {@link EpisodeLimits} set, a step may also truncate the episode, and with
+ * auto-reset an episode that ends or is truncated is followed by the next
+ * one right away, the way the MqttThread answers with both at once. Not
+ * thread-safe; use one environment per thread. Nothing is allocated per step.
+ */
+final class LunarEnvironment {
+    private final LunarSimulator mSimulator;
+    private final LunarState mState = new LunarState();
+    private final RewardShaper mShaper = new RewardShaper();
+    private final double[] mObservation = new double[RewardShaper.OBSERVATION_SIZE];
+    private double mReward;
+    private boolean mDone;
+    private int mLanding;
+    private int mSteps;
+    private ResetPool mResetPool;
+    private EpisodeLimits mLimits;
+    private int mTruncation = EpisodeLimits.TRUNCATE_NONE;
+    private boolean mAutoReset;
+    private EpisodeAnalytics mAnalytics;
+
+    /**
+     * First observation of the episode auto-reset started, if the last step
+     * did.
+     */
+    private final double[] mResetObservation = new double[RewardShaper.OBSERVATION_SIZE];
+    private boolean mWasReset;
+
+    LunarEnvironment(Random random) {
+        mSimulator = new LunarSimulator(random);
+        mState.mDifficulty = DIFFICULTY_MEDIUM;
+        setGeometry(LunarSimulator.DEFAULT_CANVAS_WIDTH, LunarSimulator.DEFAULT_CANVAS_HEIGHT,
+                LunarSimulator.DEFAULT_LANDER_WIDTH, LunarSimulator.DEFAULT_LANDER_HEIGHT);
+    }
+
+    /**
+     * Sets the size of the playing field and the lander. The observation is
+     * normalized by the playing field, as the device normalizes by its screen.
+     */
+    LunarEnvironment setGeometry(int canvasWidth, int canvasHeight,
+                                 int landerWidth, int landerHeight) {
+        mState.mCanvasWidth = canvasWidth;
+        mState.mCanvasHeight = canvasHeight;
+        mState.mLanderWidth = landerWidth;
+        mState.mLanderHeight = landerHeight;
+        return this;
+    }
+
+    /**
+     * @param difficulty one of the LunarThread.DIFFICULTY_* constants, used
+     *                   from the next reset on
+     */
+    LunarEnvironment setDifficulty(int difficulty) {
+        mState.mDifficulty = difficulty;
+        return this;
+    }
+
+    /**
+     * @param pool where resets take their start states from, or null to draw
+     *             them
+     */
+    LunarEnvironment setResetPool(ResetPool pool) {
+        mResetPool = pool;
+        return this;
+    }
+
+    /**
+     * @param limits when episodes are truncated, or null for never
+     */
+    LunarEnvironment setLimits(EpisodeLimits limits) {
+        mLimits = limits;
+        return this;
+    }
+
+    /**
+     * @param autoReset start the next episode within the step that ends or
+     *                  truncates one; see {@link #wasReset}
+     */
+    LunarEnvironment setAutoReset(boolean autoReset) {
+        mAutoReset = autoReset;
+        return this;
+    }
+
+    /**
+     * @param analytics where every touchdown and truncation is recorded, or
+     *                  null; may be shared with other environments
+     */
+    LunarEnvironment setAnalytics(EpisodeAnalytics analytics) {
+        mAnalytics = analytics;
+        return this;
+    }
+
+    LunarSimulator getSimulator() {
+        return mSimulator;
+    }
+
+    /**
+     * Starts a new episode.
+     */
+    void reset() {
+        mShaper.reset();
+        start();
+        mLanding = LunarSimulator.LANDING_NONE;
+        mSteps = 0;
+        mTruncation = EpisodeLimits.TRUNCATE_NONE;
+        mWasReset = false;
+        publish();
+    }
+
+    /**
+     * Plays one tick with {@code action} held down.
+     *
+     * @param action one of the LunarSimulator.ACTION_* key codes
+     */
+    void step(int action) {
+        mLanding = mSimulator.step(mState, action);
+        mSteps++;
+        // the device puts a hyperspace win straight back at the top
+        if (mLanding == LunarSimulator.LANDING_HYPERSPACE) {
+            if (mAnalytics != null) mAnalytics.record(mState, mLanding, EpisodeLimits.TRUNCATE_NONE, 0);
+            start();
+        }
+        publish();
+
+        mTruncation = mLimits == null ? EpisodeLimits.TRUNCATE_NONE : mLimits.check(mState, mSteps);
+        if (mAnalytics != null && mLanding != LunarSimulator.LANDING_HYPERSPACE
+                && (mLanding != LunarSimulator.LANDING_NONE || mTruncation != EpisodeLimits.TRUNCATE_NONE)) {
+            mAnalytics.record(mState, mLanding, mTruncation, mSteps);
+        }
+        mWasReset = mAutoReset && (mDone || mTruncation != EpisodeLimits.TRUNCATE_NONE);
+        if (mWasReset) {
+            // the terminal observation, reward and flags stay readable
+            mShaper.reset();
+            start();
+            mSteps = 0;
+            mShaper.update(mState, mState.mCanvasWidth, mState.mCanvasHeight, mResetObservation);
+        }
+    }
+
+    private void start() {
+        if (mResetPool == null || !mResetPool.take(mState)) mSimulator.start(mState);
+    }
+
+    private void publish() {
+        mReward = mShaper.update(mState, mState.mCanvasWidth, mState.mCanvasHeight, mObservation);
+        mDone = RewardShaper.isDone(mState);
+    }
+
+    /**
+     * @return the observation after the last reset or step, laid out as the
+     * RewardShaper.OBS_* indices. Owned by this environment.
+     */
+    double[] observation() {
+        return mObservation;
+    }
+
+    double reward() {
+        return mReward;
+    }
+
+    boolean isDone() {
+        return mDone;
+    }
+
+    /**
+     * @return whether the last step cut the episode short, see
+     * {@link #truncation}
+     */
+    boolean isTruncated() {
+        return mTruncation != EpisodeLimits.TRUNCATE_NONE;
+    }
+
+    /**
+     * @return the EpisodeLimits.TRUNCATE_* reason of the last step
+     */
+    int truncation() {
+        return mTruncation;
+    }
+
+    /**
+     * @return whether the last step ended or truncated an episode and
+     * auto-reset started the next; {@link #state} and {@link #steps} are
+     * then already the new episode's
+     */
+    boolean wasReset() {
+        return mWasReset;
+    }
+
+    /**
+     * @return the first observation of the episode auto-reset started in the
+     * last step. Owned by this environment.
+     */
+    double[] resetObservation() {
+        return mResetObservation;
+    }
+
+    /**
+     * @return the LunarSimulator.LANDING_* result of the last step
+     */
+    int landing() {
+        return mLanding;
+    }
+
+    /**
+     * @return steps taken since the last reset
+     */
+    int steps() {
+        return mSteps;
+    }
+
+    /**
+     * @return the raw simulator state. Owned by this environment.
+     */
+    LunarState state() {
+        return mState;
+    }
+}
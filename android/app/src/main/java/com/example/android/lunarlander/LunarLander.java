@@ -18,7 +18,9 @@ package com.example.android.lunarlander;
 
 import android.annotation.SuppressLint;
 import android.app.Activity;
+import android.content.Intent;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -29,6 +31,8 @@ import android.widget.TextView;
 
 import com.example.android.lunarlander.LunarView.LunarThread;
 
+import java.io.File;
+
 /**
  * This is a simple LunarLander activity that houses a single LunarView. It
  * demonstrates...
@@ -53,6 +57,69 @@ public class LunarLander extends Activity {
 
     private static final int MENU_STOP = 7;
 
+    /**
+     * Boolean intent extra: run the game without drawing, for training, e.g.
+     * {@code adb shell am start -n ... --ez headless true}.
+     */
+    static final String EXTRA_HEADLESS = "headless";
+
+    /*
+     * Actor mode intent extras: path of the policy weights to play with
+     * (setting it turns actor mode on), float exploration rate, int
+     * transitions per uploaded message and int actor id, plus int n to
+     * upload n-step returns instead of raw runs and their float discount,
+     * e.g. {@code --ei actor_n_step 3 --ef actor_gamma 0.99}
+     */
+    static final String EXTRA_ACTOR_POLICY = "actor_policy";
+    static final String EXTRA_ACTOR_EPSILON = "actor_epsilon";
+    static final String EXTRA_ACTOR_BATCH = "actor_batch";
+    static final String EXTRA_ACTOR_ID = "actor_id";
+    static final String EXTRA_ACTOR_N_STEP = "actor_n_step";
+    static final String EXTRA_ACTOR_GAMMA = "actor_gamma";
+
+    /*
+     * On-device Q-learning intent extras: boolean to turn it on and int array
+     * of bucket counts for mX, mY, mDY and mHeading, e.g.
+     * {@code --ez q_learner true --eia q_buckets 3,6,8,4}, plus the path of
+     * a checkpoint file to resume from and save to. Headless, it learns as
+     * fast as the CPU allows.
+     */
+    static final String EXTRA_Q_LEARNER = "q_learner";
+    static final String EXTRA_Q_BUCKETS = "q_buckets";
+    static final String EXTRA_Q_CHECKPOINT = "q_checkpoint";
+
+    /*
+     * Lookahead planner intent extras: boolean to turn it on, and the most
+     * candidate sequences and the ticks each looks ahead, e.g.
+     * {@code --ez planner true --ei planner_candidates 2048}
+     */
+    static final String EXTRA_PLANNER = "planner";
+    static final String EXTRA_PLANNER_CANDIDATES = "planner_candidates";
+    static final String EXTRA_PLANNER_HORIZON = "planner_horizon";
+
+    /*
+     * Speculation intent extras: most ticks the game may run ahead of a slow
+     * trainer, e.g. {@code --ei speculate 8}, and optionally the path of a
+     * policy file that predicts its actions instead of repeating the last
+     */
+    static final String EXTRA_SPECULATE = "speculate";
+    static final String EXTRA_SPECULATE_POLICY = "speculate_policy";
+
+    /*
+     * Reset pool intent extras: boolean to have start states made in the
+     * background, or the path of a file of start states to cycle through
+     * (written by ResetPool.main)
+     */
+    static final String EXTRA_RESET_POOL = "reset_pool";
+    static final String EXTRA_RESET_POOL_FILE = "reset_pool_file";
+
+    /*
+     * Replay intent extras: path of a recording to play back instead of the
+     * game, and path to record the game to
+     */
+    static final String EXTRA_REPLAY = "replay";
+    static final String EXTRA_RECORD = "record";
+
     /**
      * A handle to the thread that's actually running the animation.
      */
@@ -140,6 +207,7 @@ public class LunarLander extends Activity {
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        final long createTime = SystemClock.elapsedRealtime();
 
         // tell system to use the layout defined in our XML file
         setContentView(R.layout.lunar_layout);
@@ -163,6 +231,57 @@ public class LunarLander extends Activity {
         // give the LunarView a handle to the TextView used for messages
         mLunarView.setTextView((TextView) findViewById(R.id.text));
 
+        Intent intent = getIntent();
+        mLunarView.setHeadless(intent.getBooleanExtra(EXTRA_HEADLESS, false));
+        String record = intent.getStringExtra(EXTRA_RECORD);
+        if (record != null) mLunarView.startRecording(new File(record));
+        String replay = intent.getStringExtra(EXTRA_REPLAY);
+        String policy = intent.getStringExtra(EXTRA_ACTOR_POLICY);
+        if (replay != null) {
+            mLunarView.startReplay(new File(replay));
+        } else if (policy != null) {
+            mLunarView.startActor(new File(policy), intent.getIntExtra(EXTRA_ACTOR_ID, 0),
+                    intent.getFloatExtra(EXTRA_ACTOR_EPSILON, 0.05f),
+                    intent.getIntExtra(EXTRA_ACTOR_BATCH, 256), intent.getIntExtra(EXTRA_ACTOR_N_STEP, 0),
+                    intent.getFloatExtra(EXTRA_ACTOR_GAMMA, 0.99f));
+        } else if (intent.getBooleanExtra(EXTRA_Q_LEARNER, false)) {
+            QConfig config = QConfig.defaults();
+            int[] buckets = intent.getIntArrayExtra(EXTRA_Q_BUCKETS);
+            if (buckets != null) {
+                config = new QConfig(buckets, config.mLearningRate, config.mDiscountFactor,
+                        config.mExploreRate);
+            }
+            String checkpoint = intent.getStringExtra(EXTRA_Q_CHECKPOINT);
+            mLunarView.startQLearner(config, checkpoint != null ? new File(checkpoint) : null);
+            if (intent.getBooleanExtra(EXTRA_HEADLESS, false)) mLunarThread.setFrameRate(0);
+        } else if (intent.getBooleanExtra(EXTRA_PLANNER, false)) {
+            mLunarView.startPlanner(intent.getIntExtra(EXTRA_PLANNER_CANDIDATES, 2048),
+                    intent.getIntExtra(EXTRA_PLANNER_HORIZON, 40));
+        }
+        String resetPool = intent.getStringExtra(EXTRA_RESET_POOL_FILE);
+        if (resetPool != null) {
+            mLunarView.startResetPool(new File(resetPool));
+        } else if (intent.getBooleanExtra(EXTRA_RESET_POOL, false)) {
+            mLunarView.startResetPool(null);
+        }
+        int speculate = intent.getIntExtra(EXTRA_SPECULATE, 0);
+        if (speculate > 0) {
+            String predictor = intent.getStringExtra(EXTRA_SPECULATE_POLICY);
+            mLunarView.startSpeculation(speculate, predictor != null ? new File(predictor) : null);
+        }
+        mLunarView.setConnectionListener(new LunarView.ConnectionListener() {
+            @Override
+            public void onConnected(long elapsedMillis) {
+                Log.i(LunarLander.class.getSimpleName(), "Ready for the trainer "
+                        + (SystemClock.elapsedRealtime() - createTime) + " ms after onCreate");
+            }
+
+            @Override
+            public void onConnectionFailed(Throwable cause) {
+                Log.w(LunarLander.class.getSimpleName(), "Trainer connection failed: " + cause);
+            }
+        });
+
         if (savedInstanceState == null) {
             // we were just launched: set up a new game
             mLunarThread.setState(LunarThread.STATE_READY);
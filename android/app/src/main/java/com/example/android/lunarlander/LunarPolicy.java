@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.util.Random;
+
+/**
+ * Something that picks the next action for a lander, e.g. a trained network
+ * or a scripted baseline. Implementations used by the headless tools are
+ * called from several threads at once, so they must not keep per-call state
+ * outside of the arguments they are given.
+ */
+interface LunarPolicy {
+
+    /**
+     * Picks the action for the given state.
+     *
+     * @param state  the state at the start of the tick
+     * @param random random source owned by the calling thread, for
+     *               exploration or stochastic policies
+     * @return one of the LunarSimulator.ACTION_* constants
+     */
+    int act(LunarState state, Random random);
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static com.example.android.lunarlander.LunarView.LunarThread.PHYS_FUEL_MAX;
+import static com.example.android.lunarlander.LunarView.LunarThread.PHYS_SPEED_MAX;
+import static com.example.android.lunarlander.LunarView.LunarThread.STATE_LOSE;
+import static com.example.android.lunarlander.LunarView.LunarThread.TARGET_PAD_HEIGHT;
+import static com.example.android.lunarlander.LunarView.LunarThread.UI_BAR;
+import static com.example.android.lunarlander.LunarView.LunarThread.UI_BAR_HEIGHT;
+
+/**
+ * Draws a {@link LunarState} into a small grayscale image without Android's
+ * Canvas, for agents that learn from pixels off-device.
+ * <p>
+ * The picture follows doDraw(): the lander as a rectangle the size of its
+ * sprite rotated by mHeading around its center, with a flame under it while
+ * the engine fires, the landing pad as a line, and optionally the fuel and
+ * speed gauges in the top-left corner. Pixels are one byte each, row-major,
+ * top row first. Rendering allocates nothing; one instance per thread.
+ */
+final class LunarRasterizer {
+    /*
+     * Gray levels of the things drawn
+     */
+    static final byte GRAY_BACKGROUND = 0;
+    static final byte GRAY_GAUGE = (byte) 96;
+    static final byte GRAY_CRASHED = (byte) 128;
+    static final byte GRAY_FLAME = (byte) 160;
+    static final byte GRAY_PAD = (byte) 200;
+    static final byte GRAY_LANDER = (byte) 255;
+
+    private final int mWidth;
+    private final int mHeight;
+    private boolean mDrawGauges;
+
+    /**
+     * Scratch frame used when rendering into a ByteBuffer.
+     */
+    private final byte[] mScratch;
+
+    /**
+     * Scratch polygon vertices, in pixels.
+     */
+    private final float[] mPolyX = new float[4];
+    private final float[] mPolyY = new float[4];
+
+    /**
+     * @param width  image width in pixels, e.g. 84
+     * @param height image height in pixels, e.g. 84
+     */
+    LunarRasterizer(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        mScratch = new byte[width * height];
+    }
+
+    /**
+     * Whether to draw the fuel and speed gauges. Off by default.
+     */
+    LunarRasterizer setDrawGauges(boolean drawGauges) {
+        mDrawGauges = drawGauges;
+        return this;
+    }
+
+    int getWidth() {
+        return mWidth;
+    }
+
+    int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return bytes in one frame
+     */
+    int getFrameSize() {
+        return mWidth * mHeight;
+    }
+
+    /**
+     * Renders at the buffer's current position and advances it by one frame.
+     */
+    void render(LunarState s, ByteBuffer out) {
+        render(s, mScratch, 0);
+        out.put(mScratch, 0, mScratch.length);
+    }
+
+    /**
+     * Renders into {@code out} starting at {@code offset}.
+     */
+    void render(LunarState s, byte[] out, int offset) {
+        Arrays.fill(out, offset, offset + mWidth * mHeight, GRAY_BACKGROUND);
+
+        float sx = (float) mWidth / s.mCanvasWidth;
+        float sy = (float) mHeight / s.mCanvasHeight;
+
+        if (mDrawGauges) {
+            int fuelWidth = (int) (UI_BAR * s.mFuel / PHYS_FUEL_MAX);
+            fillRect(out, offset, 4 * sx, 4 * sy, (4 + fuelWidth) * sx,
+                    (4 + UI_BAR_HEIGHT) * sy, GRAY_GAUGE);
+            double speed = Math.sqrt(s.mDX * s.mDX + s.mDY * s.mDY);
+            int speedWidth = (int) (UI_BAR * Math.min(speed, PHYS_SPEED_MAX) / PHYS_SPEED_MAX);
+            fillRect(out, offset, (4 + UI_BAR + 4) * sx, 4 * sy,
+                    (4 + UI_BAR + 4 + speedWidth) * sx, (4 + UI_BAR_HEIGHT) * sy, GRAY_GAUGE);
+        }
+
+        // the landing pad, at least one pixel thick
+        float padY = (1 + s.mCanvasHeight - TARGET_PAD_HEIGHT) * sy;
+        fillRect(out, offset, s.mGoalX * sx, padY - 0.5f,
+                (s.mGoalX + s.mGoalWidth) * sx, padY + 0.5f, GRAY_PAD);
+
+        // the lander, rotated around its center; screen y grows downwards
+        float cx = (float) s.mX * sx;
+        float cy = (float) (s.mCanvasHeight - s.mY) * sy;
+        double radians = Math.toRadians(s.mHeading);
+        float cos = (float) Math.cos(radians);
+        float sin = (float) Math.sin(radians);
+        float halfW = s.mLanderWidth / 2f;
+        float halfH = s.mLanderHeight / 2f;
+
+        setVertex(0, -halfW, -halfH, cx, cy, cos, sin, sx, sy);
+        setVertex(1, halfW, -halfH, cx, cy, cos, sin, sx, sy);
+        setVertex(2, halfW, halfH, cx, cy, cos, sin, sx, sy);
+        setVertex(3, -halfW, halfH, cx, cy, cos, sin, sx, sy);
+        fillConvex(out, offset, 4, s.mMode == STATE_LOSE ? GRAY_CRASHED : GRAY_LANDER);
+
+        if (s.mEngineFiring && s.mMode != STATE_LOSE) {
+            setVertex(0, -halfW / 2, halfH, cx, cy, cos, sin, sx, sy);
+            setVertex(1, halfW / 2, halfH, cx, cy, cos, sin, sx, sy);
+            setVertex(2, 0, halfH + halfH * 2 / 3, cx, cy, cos, sin, sx, sy);
+            fillConvex(out, offset, 3, GRAY_FLAME);
+        }
+    }
+
+    /**
+     * Sets polygon vertex i from lander-local coordinates (unrotated, pixels
+     * of the canvas, y down) to image pixels.
+     */
+    private void setVertex(int i, float lx, float ly, float cx, float cy,
+                           float cos, float sin, float sx, float sy) {
+        mPolyX[i] = cx + (lx * cos - ly * sin) * sx;
+        mPolyY[i] = cy + (lx * sin + ly * cos) * sy;
+    }
+
+    /**
+     * Fills the pixels whose centers fall in [left, right) x [top, bottom).
+     */
+    private void fillRect(byte[] out, int offset, float left, float top,
+                          float right, float bottom, byte gray) {
+        int x0 = Math.max(0, (int) Math.ceil(left - 0.5f));
+        int x1 = Math.min(mWidth, (int) Math.ceil(right - 0.5f));
+        int y0 = Math.max(0, (int) Math.ceil(top - 0.5f));
+        int y1 = Math.min(mHeight, (int) Math.ceil(bottom - 0.5f));
+        if (x1 <= x0 && x0 < mWidth && right > left) x1 = x0 + 1;
+        if (y1 <= y0 && y0 < mHeight && bottom > top) y1 = y0 + 1;
+        for (int y = y0; y < y1; y++) {
+            int row = offset + y * mWidth;
+            Arrays.fill(out, row + x0, row + Math.max(x0, x1), gray);
+        }
+    }
+
+    /**
+     * Scanline fill of the convex polygon in mPolyX/mPolyY: for every pixel
+     * row crossed, intersect the row center with each edge and fill between
+     * the leftmost and rightmost crossing.
+     */
+    private void fillConvex(byte[] out, int offset, int n, byte gray) {
+        float minY = Float.MAX_VALUE;
+        float maxY = -Float.MAX_VALUE;
+        for (int i = 0; i < n; i++) {
+            minY = Math.min(minY, mPolyY[i]);
+            maxY = Math.max(maxY, mPolyY[i]);
+        }
+        int y0 = Math.max(0, (int) Math.ceil(minY - 0.5f));
+        int y1 = Math.min(mHeight - 1, (int) Math.floor(maxY - 0.5f));
+
+        for (int y = y0; y <= y1; y++) {
+            float center = y + 0.5f;
+            float left = Float.MAX_VALUE;
+            float right = -Float.MAX_VALUE;
+            for (int i = 0, j = n - 1; i < n; j = i++) {
+                float ya = mPolyY[j];
+                float yb = mPolyY[i];
+                if ((ya <= center && center < yb) || (yb <= center && center < ya)) {
+                    float x = mPolyX[j] + (center - ya) * (mPolyX[i] - mPolyX[j]) / (yb - ya);
+                    left = Math.min(left, x);
+                    right = Math.max(right, x);
+                }
+            }
+            if (left > right) continue;
+            int x0 = Math.max(0, (int) Math.ceil(left - 0.5f));
+            int x1 = Math.min(mWidth - 1, (int) Math.floor(right - 0.5f));
+            if (x1 < x0) {
+                // thinner than a pixel: still mark the pixel it is in
+                int x = (int) ((left + right) / 2);
+                if (x < 0 || x >= mWidth) continue;
+                x0 = x1 = x;
+            }
+            int row = offset + y * mWidth;
+            Arrays.fill(out, row + x0, row + x1 + 1, gray);
+        }
+    }
+}
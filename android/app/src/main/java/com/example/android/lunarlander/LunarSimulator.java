@@ -0,0 +1,480 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import android.view.KeyEvent;
+
+import java.util.Random;
+
+import static com.example.android.lunarlander.LunarView.LunarThread.DIFFICULTY_EASY;
+import static com.example.android.lunarlander.LunarView.LunarThread.DIFFICULTY_HARD;
+import static com.example.android.lunarlander.LunarView.LunarThread.PHYS_DOWN_ACCEL_SEC;
+import static com.example.android.lunarlander.LunarView.LunarThread.PHYS_FIRE_ACCEL_SEC;
+import static com.example.android.lunarlander.LunarView.LunarThread.PHYS_FUEL_SEC;
+import static com.example.android.lunarlander.LunarView.LunarThread.PHYS_SLEW_SEC;
+import static com.example.android.lunarlander.LunarView.LunarThread.PHYS_SPEED_HYPERSPACE;
+import static com.example.android.lunarlander.LunarView.LunarThread.PHYS_SPEED_INIT;
+import static com.example.android.lunarlander.LunarView.LunarThread.STATE_LOSE;
+import static com.example.android.lunarlander.LunarView.LunarThread.STATE_RUNNING;
+import static com.example.android.lunarlander.LunarView.LunarThread.STATE_WIN;
+import static com.example.android.lunarlander.LunarView.LunarThread.TARGET_ANGLE;
+import static com.example.android.lunarlander.LunarView.LunarThread.TARGET_BOTTOM_PADDING;
+import static com.example.android.lunarlander.LunarView.LunarThread.TARGET_PAD_HEIGHT;
+import static com.example.android.lunarlander.LunarView.LunarThread.TARGET_SPEED;
+import static com.example.android.lunarlander.LunarView.LunarThread.TARGET_WIDTH;
+
+/**
+ * The lander physics and game rules, without any drawing or Android state.
+ * <p>
+ * LunarThread drives one of these from its render loop; the headless tools
+ * (evaluation, training) drive as many as they like from plain Java threads.
+ * All methods operate on a caller-owned {@link LunarState}, so one simulator
+ * can be shared by many states as long as they are stepped from one thread.
+ */
+final class LunarSimulator {
+    /*
+     * Actions, using the same key codes the remote agent sends over MQTT
+     */
+    public static final int ACTION_NONE = 0;
+    public static final int ACTION_FIRE = KeyEvent.KEYCODE_SPACE;
+    public static final int ACTION_LEFT = KeyEvent.KEYCODE_DPAD_LEFT;
+    public static final int ACTION_RIGHT = KeyEvent.KEYCODE_DPAD_RIGHT;
+
+    /**
+     * The actions by index, in the order of the DQN's outputs
+     * (KEY_EVENT_MAPPING in dqn_lunar_lander.py).
+     */
+    static final int[] ACTIONS = {ACTION_NONE, ACTION_FIRE, ACTION_LEFT, ACTION_RIGHT};
+
+    /**
+     * @return the index in ACTIONS of the key code {@code action}, or -1
+     */
+    static int actionIndex(int action) {
+        for (int i = 0; i < ACTIONS.length; i++) {
+            if (ACTIONS[i] == action) return i;
+        }
+        return -1;
+    }
+
+    /*
+     * Results of a physics step
+     */
+    public static final int LANDING_NONE = 0; // still flying
+    public static final int LANDING_WIN = 1;
+    public static final int LANDING_HYPERSPACE = 2; // upside-down fast win
+    public static final int LANDING_OFF_PAD = 3;
+    public static final int LANDING_BAD_ANGLE = 4;
+    public static final int LANDING_TOO_FAST = 5;
+
+    /**
+     * Length of one physics tick in seconds. The game runs at a fixed step
+     * so that remote agents see the same dynamics regardless of frame rate.
+     */
+    public static final double TICK_SECONDS = 0.1;
+
+    /**
+     * Fuel at the start of an episode.
+     */
+    public static final int PHYS_FUEL_INIT = 60;
+
+    /*
+     * Integrator modes
+     */
+    /**
+     * One trapezoidal step per tick, touchdown detected at the end of the
+     * tick and y clamped to the ground. This is what the game has always done.
+     */
+    public static final int INTEGRATOR_FIXED = 0;
+    /**
+     * Closed-form integration of each constant-thrust segment, with the
+     * touchdown time solved for exactly and the landing rules evaluated at
+     * that instant. Safe to use with ticks longer than TICK_SECONDS.
+     */
+    public static final int INTEGRATOR_EXACT = 1;
+
+    /*
+     * Defaults for headless use, sized like the lander_plain drawable on a
+     * 1080x1920 xxhdpi screen
+     */
+    public static final int DEFAULT_CANVAS_WIDTH = 1080;
+    public static final int DEFAULT_CANVAS_HEIGHT = 1920;
+    public static final int DEFAULT_LANDER_WIDTH = 225;
+    public static final int DEFAULT_LANDER_HEIGHT = 270;
+
+    /**
+     * Source of the random start conditions.
+     */
+    private final Random mRandom;
+
+    /**
+     * One of the INTEGRATOR_* constants.
+     */
+    private int mIntegrator = INTEGRATOR_FIXED;
+
+    /**
+     * Seconds simulated by one call to {@link #step}.
+     */
+    private double mTickSeconds = TICK_SECONDS;
+
+    public LunarSimulator(Random random) {
+        mRandom = random;
+    }
+
+    /**
+     * Selects the integrator and the tick length used by {@link #step}.
+     * Ticks longer than TICK_SECONDS only make sense with INTEGRATOR_EXACT,
+     * which keeps touchdown and steering as accurate as at the default tick.
+     *
+     * @param integrator  one of the INTEGRATOR_* constants
+     * @param tickSeconds seconds per step
+     * @return this
+     */
+    public LunarSimulator setIntegrator(int integrator, double tickSeconds) {
+        mIntegrator = integrator;
+        mTickSeconds = tickSeconds;
+        return this;
+    }
+
+    /**
+     * @return the random source used by {@link #start}
+     */
+    public Random getRandom() {
+        return mRandom;
+    }
+
+    /**
+     * Starts a new episode, setting parameters for the state's difficulty.
+     * mCanvasWidth/Height and mLanderWidth/Height must already be set.
+     */
+    public void start(LunarState s) {
+        int speedInit = prepare(s);
+
+        // start with a little random motion
+        s.mDY = mRandom.nextDouble() * -speedInit;
+        s.mDX = mRandom.nextDouble() * 2 * speedInit - speedInit;
+
+        // Figure initial spot for landing, not too near center
+        while (true) {
+            s.mGoalX = (int) (mRandom.nextDouble() * (s.mCanvasWidth - s.mGoalWidth));
+            if (Math.abs(s.mGoalX - (s.mX - s.mLanderWidth / 2)) > s.mCanvasHeight / 6)
+                break;
+        }
+
+        s.mMode = STATE_RUNNING;
+    }
+
+    /**
+     * Starts a new episode with the random parts given instead of drawn, as
+     * {@link #start(LunarState)} drew them for a state of the same geometry
+     * and difficulty, e.g. by a {@link ResetPool}.
+     */
+    public void start(LunarState s, double dx, double dy, int goalX) {
+        prepare(s);
+        s.mDX = dx;
+        s.mDY = dy;
+        s.mGoalX = goalX;
+        s.mMode = STATE_RUNNING;
+    }
+
+    /**
+     * Sets everything about a new episode but its random parts.
+     *
+     * @return the largest initial speed
+     */
+    private int prepare(LunarState s) {
+        // First set the game for Medium difficulty
+        s.mFuel = PHYS_FUEL_INIT;
+        s.mEngineFiring = false;
+        s.mRotating = 0;
+        s.mOnGoal = false;
+        s.mGoalWidth = (int) (s.mLanderWidth * TARGET_WIDTH);
+        s.mGoalSpeed = TARGET_SPEED;
+        s.mGoalAngle = TARGET_ANGLE;
+        int speedInit = PHYS_SPEED_INIT;
+
+        // Adjust difficulty params for EASY/HARD
+        if (s.mDifficulty == DIFFICULTY_EASY) {
+            s.mFuel = s.mFuel * 3 / 2;
+            s.mGoalWidth = s.mGoalWidth * 4 / 3;
+            s.mGoalSpeed = s.mGoalSpeed * 3 / 2;
+            s.mGoalAngle = s.mGoalAngle * 4 / 3;
+            speedInit = speedInit * 3 / 4;
+        } else if (s.mDifficulty == DIFFICULTY_HARD) {
+            s.mFuel = s.mFuel * 7 / 8;
+            s.mGoalWidth = s.mGoalWidth * 3 / 4;
+            s.mGoalSpeed = s.mGoalSpeed * 7 / 8;
+            speedInit = speedInit * 4 / 3;
+        }
+
+        // pick a convenient initial location for the lander sprite
+        s.mX = s.mCanvasWidth / 2;
+        s.mY = s.mCanvasHeight - s.mLanderHeight / 2;
+        s.mHeading = 0;
+        return speedInit;
+    }
+
+    /**
+     * Advances the state by one tick with {@code action} held down for the
+     * whole tick, the same way a remote "step" command presses and releases a
+     * key around one LunarThread tick.
+     *
+     * @param action one of the ACTION_* constants
+     * @return one of the LANDING_* constants
+     */
+    public int step(LunarState s, int action) {
+        s.mEngineFiring = action == ACTION_FIRE;
+        s.mRotating = action == ACTION_LEFT ? -1 : action == ACTION_RIGHT ? 1 : 0;
+        int result = update(s, mTickSeconds);
+        s.mEngineFiring = false;
+        s.mRotating = 0;
+        return result;
+    }
+
+    /**
+     * Figures the lander state (x, y, fuel, ...) after {@code elapsed}
+     * seconds with the current controls. Detects touchdown, in which case the
+     * mode is set to STATE_WIN or STATE_LOSE and mWinsInARow is updated. A
+     * hyperspace win leaves the mode alone; the caller is expected to restart.
+     *
+     * @return one of the LANDING_* constants
+     */
+    public int update(LunarState s, double elapsed) {
+        if (mIntegrator == INTEGRATOR_EXACT) return updateExact(s, elapsed);
+
+        s.mOnGoal = false;
+
+        // mRotating -- update heading
+        if (s.mRotating != 0) {
+            s.mHeading += s.mRotating * (PHYS_SLEW_SEC * elapsed);
+
+            // Bring things back into the range 0..360
+            if (s.mHeading < 0)
+                s.mHeading += 360;
+            else if (s.mHeading >= 360) s.mHeading -= 360;
+        }
+
+        // Base accelerations -- 0 for x, gravity for y
+        double ddx = 0.0;
+        double ddy = -PHYS_DOWN_ACCEL_SEC * elapsed;
+
+        if (s.mEngineFiring) {
+            // taking 0 as up, 90 as to the right
+            // cos(deg) is ddy component, sin(deg) is ddx component
+            double elapsedFiring = elapsed;
+            double fuelUsed = elapsedFiring * PHYS_FUEL_SEC;
+
+            // tricky case where we run out of fuel partway through the
+            // elapsed
+            if (fuelUsed > s.mFuel) {
+                elapsedFiring = s.mFuel / fuelUsed * elapsed;
+                fuelUsed = s.mFuel;
+
+                // Oddball case where we adjust the "control" from here
+                s.mEngineFiring = false;
+            }
+
+            s.mFuel -= fuelUsed;
+
+            // have this much acceleration from the engine
+            double accel = PHYS_FIRE_ACCEL_SEC * elapsedFiring;
+
+            double radians = 2 * Math.PI * s.mHeading / 360;
+            ddx = Math.sin(radians) * accel;
+            ddy += Math.cos(radians) * accel;
+        }
+
+        double dxOld = s.mDX;
+        double dyOld = s.mDY;
+
+        // figure speeds for the end of the period
+        s.mDX += ddx;
+        s.mDY += ddy;
+
+        // figure position based on average speed during the period
+        s.mX += elapsed * (s.mDX + dxOld) / 2;
+        s.mY += elapsed * (s.mDY + dyOld) / 2;
+
+        s.mTick++;
+
+        // Evaluate if we have landed ... stop the game
+        double yLowerBound = groundY(s);
+        if (s.mY <= yLowerBound) {
+            s.mY = yLowerBound;
+            return land(s);
+        }
+        return LANDING_NONE;
+    }
+
+    /**
+     * INTEGRATOR_EXACT version of {@link #update}.
+     * <p>
+     * Between control changes the acceleration is constant, so position is a
+     * quadratic in time and can be advanced in one go. The only places the
+     * acceleration changes inside a tick are when fuel runs out, and while
+     * steering with the engine on; the latter is split into TICK_SECONDS
+     * segments, rotating first just like the fixed integrator, so at the
+     * default tick the two integrators agree everywhere except touchdown.
+     * Far from the ground each segment is one closed-form step. Only when the
+     * segment's path reaches the ground is the contact time solved for, and
+     * the lander stopped there.
+     */
+    private int updateExact(LunarState s, double elapsed) {
+        s.mOnGoal = false;
+        s.mTick++;
+        double ground = groundY(s);
+
+        int segments = 1;
+        if (s.mRotating != 0 && s.mEngineFiring) {
+            segments = Math.max(1, (int) Math.ceil(elapsed / TICK_SECONDS - 1e-9));
+        }
+        double segment = elapsed / segments;
+
+        for (int i = 0; i < segments; i++) {
+            if (s.mRotating != 0) {
+                s.mHeading += s.mRotating * (PHYS_SLEW_SEC * segment);
+                s.mHeading %= 360;
+                if (s.mHeading < 0) s.mHeading += 360;
+            }
+
+            double coast = segment;
+            if (s.mEngineFiring) {
+                // tricky case where we run out of fuel partway through
+                double burn = Math.min(segment, s.mFuel / PHYS_FUEL_SEC);
+                if (advance(s, burn, true, ground)) return land(s);
+                coast = segment - burn;
+                if (burn < segment) {
+                    s.mFuel = 0;
+                    s.mEngineFiring = false;
+                }
+            }
+            if (coast > 0 && advance(s, coast, false, ground)) return land(s);
+        }
+        return LANDING_NONE;
+    }
+
+    /**
+     * Moves the lander for up to {@code duration} seconds under constant
+     * acceleration, stopping early at the exact moment it touches down.
+     *
+     * @return true if the lander touched down
+     */
+    private static boolean advance(LunarState s, double duration, boolean firing,
+                                   double ground) {
+        double ddx = 0.0;
+        double ddy = -PHYS_DOWN_ACCEL_SEC;
+        if (firing) {
+            double radians = 2 * Math.PI * s.mHeading / 360;
+            ddx = Math.sin(radians) * PHYS_FIRE_ACCEL_SEC;
+            ddy += Math.cos(radians) * PHYS_FIRE_ACCEL_SEC;
+        }
+
+        double t = contactTime(s.mY - ground, s.mDY, ddy, duration);
+        boolean contact = t >= 0;
+        if (!contact) t = duration;
+
+        s.mX += s.mDX * t + 0.5 * ddx * t * t;
+        s.mY += s.mDY * t + 0.5 * ddy * t * t;
+        s.mDX += ddx * t;
+        s.mDY += ddy * t;
+        if (firing) s.mFuel = Math.max(0, s.mFuel - t * PHYS_FUEL_SEC);
+
+        if (contact) s.mY = ground;
+        return contact;
+    }
+
+    /**
+     * Finds the first time in [0, duration] at which a height {@code h} above
+     * the ground, moving at {@code v} with acceleration {@code a}, reaches
+     * zero.
+     *
+     * @return the contact time, or -1 if the ground is not reached
+     */
+    static double contactTime(double h, double v, double a, double duration) {
+        if (h <= 0) return 0;
+
+        // quick rejection: above ground at the end and at the lowest point
+        boolean reaches = h + v * duration + 0.5 * a * duration * duration <= 0;
+        if (!reaches && a > 0) {
+            double tLow = -v / a;
+            reaches = tLow > 0 && tLow < duration && h + 0.5 * v * tLow <= 0;
+        }
+        if (!reaches) return -1;
+
+        // smallest positive root of 0.5 a t^2 + v t + h = 0, in the
+        // numerically stable form
+        double t;
+        if (Math.abs(a) < 1e-12) {
+            t = -h / v;
+        } else {
+            double disc = Math.max(0, v * v - 2 * a * h);
+            double q = -0.5 * (v + (v >= 0 ? 1 : -1) * Math.sqrt(disc));
+            double r1 = q / (0.5 * a);
+            double r2 = q != 0 ? h / q : r1;
+            t = Double.MAX_VALUE;
+            if (r1 >= 0) t = r1;
+            if (r2 >= 0 && r2 < t) t = r2;
+        }
+        return Math.max(0, Math.min(duration, t));
+    }
+
+    /**
+     * @return the lowest y the lander center can reach, i.e. touchdown height
+     */
+    static double groundY(LunarState s) {
+        return TARGET_PAD_HEIGHT + s.mLanderHeight / 2 - TARGET_BOTTOM_PADDING;
+    }
+
+    /**
+     * Applies the landing rules to a lander that has just touched down.
+     *
+     * @return one of the LANDING_* constants other than LANDING_NONE
+     */
+    static int land(LunarState s) {
+        double speed = Math.sqrt(s.mDX * s.mDX + s.mDY * s.mDY);
+        boolean onGoal = (s.mGoalX <= s.mX - s.mLanderWidth / 2 && s.mX
+                + s.mLanderWidth / 2 <= s.mGoalX + s.mGoalWidth);
+        s.mOnGoal = onGoal;
+
+        int result;
+        // "Hyperspace" win -- upside down, going fast,
+        // puts you back at the top.
+        if (onGoal && Math.abs(s.mHeading - 180) < s.mGoalAngle
+                && speed > PHYS_SPEED_HYPERSPACE) {
+            s.mWinsInARow++;
+            return LANDING_HYPERSPACE;
+        } else if (!onGoal) {
+            result = LANDING_OFF_PAD;
+        } else if (!(s.mHeading <= s.mGoalAngle || s.mHeading >= 360 - s.mGoalAngle)) {
+            result = LANDING_BAD_ANGLE;
+        } else if (speed > s.mGoalSpeed) {
+            result = LANDING_TOO_FAST;
+        } else {
+            result = LANDING_WIN;
+        }
+
+        if (result == LANDING_WIN) {
+            s.mMode = STATE_WIN;
+            s.mWinsInARow++;
+        } else {
+            s.mMode = STATE_LOSE;
+            s.mWinsInARow = 0;
+        }
+        s.mRotating = 0;
+        s.mEngineFiring = false;
+        return result;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+/**
+ * Plain copy of the lander state as seen at the end of one physics tick.
+ * <p>
+ * Instances are owned by a single thread and reused; use {@link #set} to copy
+ * one into another instead of allocating. Field names and units match the
+ * fields of {@link LunarView.LunarThread}: x/y are measured with (0,0) at the
+ * lower left, heading is in degrees with 0 up, 90 right.
+ */
+final class LunarState {
+    /**
+     * X and Y of lander center.
+     */
+    double mX;
+    double mY;
+
+    /**
+     * Velocity dx and dy.
+     */
+    double mDX;
+    double mDY;
+
+    /**
+     * Lander heading in degrees, kept in the range 0..360.
+     */
+    double mHeading;
+
+    /**
+     * Fuel remaining.
+     */
+    double mFuel;
+
+    /**
+     * The state of the game, one of the LunarThread.STATE_* constants.
+     */
+    int mMode;
+
+    /**
+     * Whether the last touchdown happened over the landing pad.
+     */
+    boolean mOnGoal;
+
+    /**
+     * Is the engine burning?
+     */
+    boolean mEngineFiring;
+
+    /**
+     * Currently rotating, -1 left, 0 none, 1 right.
+     */
+    int mRotating;
+
+    /**
+     * X and width of the landing pad.
+     */
+    int mGoalX;
+    int mGoalWidth;
+
+    /**
+     * Allowed touchdown speed and angle.
+     */
+    int mGoalSpeed;
+    int mGoalAngle;
+
+    /**
+     * Current difficulty, one of the LunarThread.DIFFICULTY_* constants.
+     */
+    int mDifficulty;
+
+    /**
+     * Pixel size of the lander sprite.
+     */
+    int mLanderWidth;
+    int mLanderHeight;
+
+    /**
+     * Size of the surface the game is played on.
+     */
+    int mCanvasWidth;
+    int mCanvasHeight;
+
+    /**
+     * Number of wins in a row.
+     */
+    int mWinsInARow;
+
+    /**
+     * Number of physics ticks since the thread was created.
+     */
+    long mTick;
+
+    /**
+     * Copies every field of {@code other} into this instance.
+     *
+     * @return this
+     */
+    LunarState set(LunarState other) {
+        mX = other.mX;
+        mY = other.mY;
+        mDX = other.mDX;
+        mDY = other.mDY;
+        mHeading = other.mHeading;
+        mFuel = other.mFuel;
+        mMode = other.mMode;
+        mOnGoal = other.mOnGoal;
+        mEngineFiring = other.mEngineFiring;
+        mRotating = other.mRotating;
+        mGoalX = other.mGoalX;
+        mGoalWidth = other.mGoalWidth;
+        mGoalSpeed = other.mGoalSpeed;
+        mGoalAngle = other.mGoalAngle;
+        mDifficulty = other.mDifficulty;
+        mLanderWidth = other.mLanderWidth;
+        mLanderHeight = other.mLanderHeight;
+        mCanvasWidth = other.mCanvasWidth;
+        mCanvasHeight = other.mCanvasHeight;
+        mWinsInARow = other.mWinsInARow;
+        mTick = other.mTick;
+        return this;
+    }
+}
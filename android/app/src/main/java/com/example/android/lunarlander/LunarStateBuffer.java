@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+/**
+ * Double-buffered, sequence-checked hand-off of {@link LunarState} from the
+ * physics thread to any number of readers.
+ * <p>
+ * The single writer (whoever holds the surface lock in LunarThread) fills the
+ * back slot and then bumps the sequence, which flips front and back. A reader
+ * copies the front slot and retries if the sequence moved while it was
+ * copying, so it never sees a half-written tick. Neither side locks or
+ * allocates, and the writer never waits for readers.
+ */
+final class LunarStateBuffer {
+
+    /**
+     * The two slots. Slot (sequence & 1) is the front one readers copy from.
+     */
+    private final Slot[] mSlots = {new Slot(), new Slot()};
+
+    /**
+     * Number of states published so far.
+     */
+    private volatile long mSequence;
+
+    /**
+     * Publishes a new state. Must only be called by one thread at a time.
+     *
+     * @param state the state to copy into the back slot
+     */
+    void publish(LunarState state) {
+        long next = mSequence + 1;
+        mSlots[(int) (next & 1)].write(state);
+        mSequence = next;
+    }
+
+    /**
+     * Copies the most recently published state into {@code out}.
+     *
+     * @param out the reader-owned state to fill
+     * @return the sequence number of the copied state, 0 if nothing has been
+     * published yet
+     */
+    long read(LunarState out) {
+        while (true) {
+            long sequence = mSequence;
+            mSlots[(int) (sequence & 1)].read(out);
+            if (mSequence == sequence) return sequence;
+        }
+    }
+
+    /**
+     * @return the sequence number of the latest published state
+     */
+    long getSequence() {
+        return mSequence;
+    }
+
+    /**
+     * One buffered copy. Fields are volatile so that the sequence check in
+     * {@link #read} is enough to detect a concurrent overwrite.
+     */
+    private static final class Slot {
+        private volatile double mX;
+        private volatile double mY;
+        private volatile double mDX;
+        private volatile double mDY;
+        private volatile double mHeading;
+        private volatile double mFuel;
+        private volatile int mMode;
+        private volatile boolean mOnGoal;
+        private volatile boolean mEngineFiring;
+        private volatile int mRotating;
+        private volatile int mGoalX;
+        private volatile int mGoalWidth;
+        private volatile int mGoalSpeed;
+        private volatile int mGoalAngle;
+        private volatile int mDifficulty;
+        private volatile int mLanderWidth;
+        private volatile int mLanderHeight;
+        private volatile int mCanvasWidth;
+        private volatile int mCanvasHeight;
+        private volatile int mWinsInARow;
+        private volatile long mTick;
+
+        void write(LunarState s) {
+            mX = s.mX;
+            mY = s.mY;
+            mDX = s.mDX;
+            mDY = s.mDY;
+            mHeading = s.mHeading;
+            mFuel = s.mFuel;
+            mMode = s.mMode;
+            mOnGoal = s.mOnGoal;
+            mEngineFiring = s.mEngineFiring;
+            mRotating = s.mRotating;
+            mGoalX = s.mGoalX;
+            mGoalWidth = s.mGoalWidth;
+            mGoalSpeed = s.mGoalSpeed;
+            mGoalAngle = s.mGoalAngle;
+            mDifficulty = s.mDifficulty;
+            mLanderWidth = s.mLanderWidth;
+            mLanderHeight = s.mLanderHeight;
+            mCanvasWidth = s.mCanvasWidth;
+            mCanvasHeight = s.mCanvasHeight;
+            mWinsInARow = s.mWinsInARow;
+            mTick = s.mTick;
+        }
+
+        void read(LunarState s) {
+            s.mX = mX;
+            s.mY = mY;
+            s.mDX = mDX;
+            s.mDY = mDY;
+            s.mHeading = mHeading;
+            s.mFuel = mFuel;
+            s.mMode = mMode;
+            s.mOnGoal = mOnGoal;
+            s.mEngineFiring = mEngineFiring;
+            s.mRotating = mRotating;
+            s.mGoalX = mGoalX;
+            s.mGoalWidth = mGoalWidth;
+            s.mGoalSpeed = mGoalSpeed;
+            s.mGoalAngle = mGoalAngle;
+            s.mDifficulty = mDifficulty;
+            s.mLanderWidth = mLanderWidth;
+            s.mLanderHeight = mLanderHeight;
+            s.mCanvasWidth = mCanvasWidth;
+            s.mCanvasHeight = mCanvasHeight;
+            s.mWinsInARow = mWinsInARow;
+            s.mTick = mTick;
+        }
+    }
+}
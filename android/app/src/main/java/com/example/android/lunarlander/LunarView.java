@@ -27,6 +27,7 @@ import android.graphics.drawable.Drawable;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.AttributeSet;
 import android.util.DisplayMetrics;
 import android.util.Log;
@@ -38,21 +39,24 @@ import android.view.View;
 import android.view.WindowManager;
 import android.widget.TextView;
 
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
 import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
 import org.eclipse.paho.client.mqttv3.MqttCallback;
-import org.eclipse.paho.client.mqttv3.MqttClient;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
-import org.eclipse.paho.client.mqttv3.MqttTopic;
 import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
 import java.util.concurrent.BrokenBarrierException;
 import java.util.concurrent.CyclicBarrier;
 
 import static com.example.android.lunarlander.LunarView.LunarThread.PHYS_SPEED_MAX;
-import static com.example.android.lunarlander.LunarView.LunarThread.TARGET_BOTTOM_PADDING;
 import static com.example.android.lunarlander.LunarView.LunarThread.TARGET_PAD_HEIGHT;
 
 
@@ -69,6 +73,11 @@ class LunarView extends SurfaceView implements SurfaceHolder.Callback {
 
     private static final String TAG = LunarView.class.getSimpleName();
     private static final String MQTT_HOST = "192.168.1.2";
+
+    /**
+     * Start states kept ready per difficulty by a generated reset pool.
+     */
+    private static final int RESET_POOL_CAPACITY = 256;
     /**
      * Handle to the application context, used to e.g. fetch Drawables.
      */
@@ -108,10 +117,12 @@ class LunarView extends SurfaceView implements SurfaceHolder.Callback {
             }
         });
 
-        mqttThread = new MqttThread();
-
         mqttBarrier = new CyclicBarrier(2);
         drawBarrier = new CyclicBarrier(2);
+
+        // connect in the background while the surface is being set up
+        mqttThread = new MqttThread();
+        mqttThread.start();
     }
 
     /**
@@ -140,6 +151,188 @@ class LunarView extends SurfaceView implements SurfaceHolder.Callback {
         if (!hasWindowFocus) lunarThread.pause();
     }
 
+    /**
+     * Ticks without drawing; see {@link LunarThread#setHeadless}.
+     */
+    public void setHeadless(boolean headless) {
+        lunarThread.setHeadless(headless);
+    }
+
+    /**
+     * Loads the policy in {@code policyFile} off the UI thread and then lets
+     * it play the game, publishing the experience for the trainer; see
+     * {@link LunarActor}.
+     *
+     * @param actorId    tells this device apart in the uploaded experience
+     * @param epsilon    probability of a random action
+     * @param batchSteps most transitions per uploaded message
+     * @param nStep      ticks each uploaded return covers, or 0 to upload
+     *                   raw runs instead
+     * @param gamma      discount of the n-step returns
+     */
+    public void startActor(final File policyFile, final int actorId, final double epsilon,
+                           final int batchSteps, final int nStep, final double gamma) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    PolicyNetwork network = PolicyNetwork.read(policyFile);
+                    Log.i(TAG, "Actor mode with model version " + network.getVersion()
+                            + (nStep > 0 ? ", " + nStep + "-step returns" : ""));
+                    // the learner logs the episode summaries
+                    NStepReturns returns = nStep > 0 ? new NStepReturns(nStep, gamma,
+                            RewardShaper.OBSERVATION_SIZE, true) : null;
+                    lunarThread.setActor(new LunarActor(actorId, network, epsilon, batchSteps, returns,
+                            screenWidth, screenHeight, new Random(), mqttThread));
+                } catch (IOException e) {
+                    Log.e(TAG, "Cannot load policy " + policyFile, e);
+                }
+            }
+        }, TAG + "-actor").start();
+    }
+
+    /**
+     * Opens the recording in {@code file} off the UI thread and plays it
+     * instead of the game; see {@link LunarThread#setReplay}.
+     */
+    public void startReplay(final File file) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ReplayLog log = ReplayLog.open(file);
+                    Log.i(TAG, "Replaying " + log.episodeCount() + " episodes, " + log.frameCount()
+                            + " frames");
+                    lunarThread.setReplay(new ReplayPlayer(log));
+                } catch (IOException e) {
+                    Log.e(TAG, "Cannot open replay " + file, e);
+                }
+            }
+        }, TAG + "-replay").start();
+    }
+
+    /**
+     * Records the game to {@code file}; see {@link LunarThread#setRecording}.
+     */
+    public void startRecording(File file) {
+        try {
+            lunarThread.setRecording(file);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot record to " + file, e);
+        }
+    }
+
+    /**
+     * Has the device learn to play by itself with tabular Q-learning, see
+     * {@link QAgent}, resuming from and saving to {@code checkpoint} unless
+     * it is null.
+     */
+    public void startQLearner(final QConfig config, final File checkpoint) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    lunarThread.setActor(new QAgent(config, screenWidth, screenHeight, new Random(),
+                            checkpoint));
+                } catch (IOException e) {
+                    Log.e(TAG, "Cannot open checkpoint " + checkpoint, e);
+                }
+            }
+        }, TAG + "-qlearner").start();
+    }
+
+    /**
+     * Has the device play by planning ahead each tick, see
+     * {@link LookaheadPlanner}, with up to {@code candidates} sequences of
+     * {@code horizon} ticks on every core, within half a tick.
+     */
+    public void startPlanner(int candidates, int horizon) {
+        lunarThread.setActor(new LookaheadPlanner(candidates, horizon,
+                Runtime.getRuntime().availableProcessors(), screenWidth, screenHeight,
+                System.nanoTime()).setBudget((long) (LunarSimulator.TICK_SECONDS * 1e9 / 2)));
+    }
+
+    /**
+     * Has resets take start states made ahead of time, see {@link ResetPool}:
+     * cycled through from {@code file}, loaded off the UI thread, or when it
+     * is null generated in the background.
+     */
+    public void startResetPool(final File file) {
+        if (file == null) {
+            lunarThread.setResetPool(new ResetPool(RESET_POOL_CAPACITY, new Random()));
+            return;
+        }
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    lunarThread.setResetPool(ResetPool.load(file));
+                } catch (IOException e) {
+                    Log.e(TAG, "Cannot load reset pool " + file, e);
+                }
+            }
+        }, TAG + "-resetpool").start();
+    }
+
+    /**
+     * Keeps the game moving while the trainer's actions are in flight; see
+     * {@link LunarThread#setSpeculation}. With a {@code policyFile} its
+     * network, loaded off the UI thread, predicts the trainer's actions;
+     * otherwise its last action is repeated.
+     */
+    public void startSpeculation(final int window, final File policyFile) {
+        if (policyFile == null) {
+            lunarThread.setSpeculation(window, null);
+            return;
+        }
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final PolicyNetwork network = PolicyNetwork.read(policyFile);
+                    lunarThread.setSpeculation(window, new LunarPolicy() {
+                        private final RewardShaper mShaper = new RewardShaper();
+                        private final double[] mObservation = new double[RewardShaper.OBSERVATION_SIZE];
+                        private final float[][] mScratch = network.newScratch();
+
+                        @Override
+                        public int act(LunarState state, Random random) {
+                            // only the observation is used, not the reward
+                            mShaper.update(state, screenWidth, screenHeight, mObservation);
+                            return LunarSimulator.ACTIONS[network.greedy(mObservation, mScratch)];
+                        }
+                    });
+                } catch (IOException e) {
+                    Log.e(TAG, "Cannot load policy " + policyFile, e);
+                    lunarThread.setSpeculation(window, null);
+                }
+            }
+        }, TAG + "-speculation").start();
+    }
+
+    /**
+     * Registers the listener told when the trainer connection is up or has
+     * failed. Called right away if that has already happened.
+     */
+    public void setConnectionListener(ConnectionListener listener) {
+        mqttThread.setConnectionListener(listener);
+    }
+
+    /**
+     * Notified, on an MQTT client thread, of the outcome of connecting to the
+     * trainer's broker.
+     */
+    interface ConnectionListener {
+        /**
+         * Subscribed and ready for commands.
+         *
+         * @param elapsedMillis time since the connection attempt started
+         */
+        void onConnected(long elapsedMillis);
+
+        void onConnectionFailed(Throwable cause);
+    }
+
     /**
      * Installs a pointer to the text view used for messages.
      */
@@ -162,8 +355,6 @@ class LunarView extends SurfaceView implements SurfaceHolder.Callback {
         // waiting for the surface to be created
         lunarThread.setRunning(true);
         lunarThread.start();
-
-        mqttThread.start();
     }
 
     /*
@@ -184,6 +375,8 @@ class LunarView extends SurfaceView implements SurfaceHolder.Callback {
             } catch (InterruptedException e) {
             }
         }
+        // nothing publishes any more; leave the broker rather than time out
+        mqttThread.disconnect();
     }
 
     enum LunarInputEvent {
@@ -215,7 +408,6 @@ class LunarView extends SurfaceView implements SurfaceHolder.Callback {
          */
         public static final int PHYS_DOWN_ACCEL_SEC = 35;
         public static final int PHYS_FIRE_ACCEL_SEC = 80;
-        public static final int PHYS_FUEL_INIT = 60;
         public static final int PHYS_FUEL_MAX = 100;
         public static final int PHYS_FUEL_SEC = 10;
         public static final int PHYS_SLEW_SEC = 120; // degrees/second rotate
@@ -245,189 +437,198 @@ class LunarView extends SurfaceView implements SurfaceHolder.Callback {
         public static final int UI_BAR = 100; // width of the bar(s)
         public static final int UI_BAR_HEIGHT = 10; // height of the bar(s)
         private static final String KEY_DIFFICULTY = "mDifficulty";
-        private static final String KEY_DX = "mDX";
+        static final String KEY_DX = "mDX";
 
-        private static final String KEY_DY = "mDY";
+        static final String KEY_DY = "mDY";
         private static final String KEY_FUEL = "mFuel";
         private static final String KEY_GOAL_ANGLE = "mGoalAngle";
         private static final String KEY_GOAL_SPEED = "mGoalSpeed";
         private static final String KEY_GOAL_WIDTH = "mGoalWidth";
 
         private static final String KEY_GOAL_X = "mGoalX";
-        private static final String KEY_HEADING = "mHeading";
+        static final String KEY_HEADING = "mHeading";
         private static final String KEY_ROTATING = "mRotating";
         private static final String KEY_LANDER_HEIGHT = "mLanderHeight";
         private static final String KEY_LANDER_WIDTH = "mLanderWidth";
         private static final String KEY_WINS = "mWinsInARow";
-        private static final String KEY_ON_GOAL = "mOnGoal";
+        static final String KEY_ON_GOAL = "mOnGoal";
 
-        private static final String KEY_X = "mX";
-        private static final String KEY_Y = "mY";
+        static final String KEY_X = "mX";
+        static final String KEY_Y = "mY";
 
         /*
          * Member (state) fields
          */
         /**
-         * The drawable to use as the background of the animation canvas
+         * The drawable to use as the background of the animation canvas.
+         * Decoded on first draw at the canvas size; null until then.
          */
         private Bitmap mBackgroundImage;
 
         /**
-         * Current height of the surface/canvas.
-         *
-         * @see #setSurfaceSize
+         * What to draw for the Lander when it has crashed. Loaded on first use.
          */
-        private int mCanvasHeight = 1;
+        private Drawable mCrashedImage;
 
         /**
-         * Current width of the surface/canvas.
-         *
-         * @see #setSurfaceSize
+         * What to draw for the Lander when the engine is firing. Loaded on
+         * first use.
          */
-        private int mCanvasWidth = 1;
+        private Drawable mFiringImage;
 
         /**
-         * What to draw for the Lander when it has crashed
+         * Message handler used by lunarThread to interact with TextView
          */
-        private Drawable mCrashedImage;
+        private Handler mHandler;
 
         /**
-         * Current difficulty -- amount of fuel, allowed angle, etc. Default is
-         * MEDIUM.
+         * What to draw for the Lander in its normal state. Loaded on first use.
          */
-        private int mDifficulty;
+        private Drawable mLanderImage;
 
         /**
-         * Velocity dx.
+         * Tick without locking or drawing the surface, e.g. while training
+         * with the screen off. No image is ever decoded in this mode.
          */
-        private double mDX;
+        private volatile boolean mHeadless = false;
 
         /**
-         * Velocity dy.
+         * Used to figure out elapsed time between frames
          */
-        private double mDY;
+        private long mLastTime;
 
         /**
-         * Is the engine burning?
+         * Paint to draw the lines on screen.
          */
-        private boolean mEngineFiring;
+        private Paint mLinePaint;
 
         /**
-         * What to draw for the Lander when the engine is firing
+         * "Bad" speed-too-high variant of the line color.
          */
-        private Drawable mFiringImage;
+        private Paint mLinePaintBad;
 
         /**
-         * Fuel remaining
-         */
-        private double mFuel;
-        public double getFuel(){
-            return mFuel;
-        }
-        /**
-         * Allowed angle.
+         * Indicate whether the surface has been created & is ready to draw
          */
-        private int mGoalAngle;
+        private boolean mRun = false;
 
         /**
-         * Allowed speed.
+         * Scratch rect object.
          */
-        private int mGoalSpeed;
+        private RectF mScratchRect;
 
         /**
-         * Width of the landing pad.
+         * Handle to the surface manager object we interact with
          */
-        private int mGoalWidth;
+        private SurfaceHolder mSurfaceHolder;
 
         /**
-         * X of the landing pad.
+         * The lander physics state: position, velocity, heading, fuel, landing
+         * pad, game mode, etc. Only touched with mSurfaceHolder held.
          */
-        private int mGoalX;
+        private final LunarState mState = new LunarState();
 
         /**
-         * Message handler used by lunarThread to interact with TextView
+         * The physics and game rules, shared with the headless tools.
          */
-        private Handler mHandler;
+        private final LunarSimulator mSimulator = new LunarSimulator(new Random());
+
+        private boolean alreadyDrawn = false;
 
         /**
-         * Lander heading in degrees, with 0 up, 90 right. Kept in the range
-         * 0..360.
+         * Paces interactive frames and parks the thread while the game is
+         * idle. Starts at the rate at which the fixed physics tick runs in
+         * real time.
          */
-        private double mHeading;
+        private final FrameScheduler mScheduler =
+                new FrameScheduler(1 / LunarSimulator.TICK_SECONDS);
 
         /**
-         * Pixel height of lander image.
+         * While a trainer is connected every frame is one step, released by
+         * the MqttThread through mqttBarrier/drawBarrier; otherwise frames
+         * are paced by mScheduler.
          */
-        private int mLanderHeight;
+        private volatile boolean mLockstep = false;
 
         /**
-         * What to draw for the Lander in its normal state
+         * When set, lockstep frames keep coming at the interactive pace with
+         * predicted actions while the trainer's are in flight, and are rolled
+         * back when a prediction was wrong; see {@link SpeculativeStepper}.
+         * Only used with mSurfaceHolder held.
          */
-        private Drawable mLanderImage;
+        private volatile SpeculativeStepper mSpeculation;
 
         /**
-         * Pixel width of lander image.
+         * When set, the device plays on its own: every frame the agent picks
+         * the action and takes in the outcome. Takes precedence over
+         * lockstep; frames are paced by mScheduler.
          */
-        private int mLanderWidth;
+        private volatile DeviceAgent mActor;
 
         /**
-         * Used to figure out elapsed time between frames
+         * Whether mActor has been told about the current episode. Only
+         * touched with mSurfaceHolder held.
          */
-        private long mLastTime;
+        private boolean mActorEpisode = false;
 
         /**
-         * Paint to draw the lines on screen.
+         * When set, frames come from a recording instead of the physics and
+         * the keys control playback. Takes precedence over actor mode and
+         * lockstep; frames are paced by mScheduler.
          */
-        private Paint mLinePaint;
+        private volatile ReplayPlayer mReplay;
 
         /**
-         * "Bad" speed-too-high variant of the line color.
+         * The frame being replayed, in the recorded geometry, so that the
+         * game in mState is left as it was. Only touched with mSurfaceHolder
+         * held.
          */
-        private Paint mLinePaintBad;
+        private final LunarState mReplayState = new LunarState();
 
         /**
-         * The state of the game. One of READY, RUNNING, PAUSE, LOSE, or WIN
+         * Where every published tick is recorded, or null. Only touched with
+         * mSurfaceHolder held.
          */
-        private int mMode;
+        private ReplayLog.Writer mRecorder;
 
         /**
-         * Currently rotating, -1 left, 0 none, 1 right.
+         * Whether the next recorded tick starts an episode.
          */
-        private int mRotating;
+        private boolean mRecordEpisodeStart = true;
 
         /**
-         * Indicate whether the surface has been created & is ready to draw
+         * The confirmed state, recorded instead of mState while speculating.
          */
-        private boolean mRun = false;
+        private final LunarState mRecordFrame = new LunarState();
 
         /**
-         * Scratch rect object.
+         * mState.mTick of the last recorded frame. A tick published more
+         * than once, such as by a mode change and then the physics, replaces
+         * that frame instead of adding one.
          */
-        private RectF mScratchRect;
+        private long mRecordedTick = -1;
 
         /**
-         * Handle to the surface manager object we interact with
+         * Start states made ahead of time, or null to draw each one in
+         * doStart(). Only touched with mSurfaceHolder held.
          */
-        private SurfaceHolder mSurfaceHolder;
+        private ResetPool mResetPool;
 
         /**
-         * Number of wins in a row.
+         * How episodes end, recorded at every touchdown and truncation.
          */
-        private int mWinsInARow;
+        private final EpisodeAnalytics mAnalytics = new EpisodeAnalytics();
 
         /**
-         * X of lander center.
+         * mState.mTick when the episode began, for its length.
          */
-        private double mX;
+        private long mEpisodeStartTick;
 
         /**
-         * Y of lander center.
+         * Lock-free hand-off of the per-tick state to readers such as the
+         * MqttThread, so they never have to take mSurfaceHolder.
          */
-        private double mY;
-
-        private boolean alreadyDrawn = false;
-
-        private boolean mOnGoal = false;
+        private final LunarStateBuffer mStateBuffer = new LunarStateBuffer();
 
         public LunarThread(SurfaceHolder surfaceHolder, Context context,
                            Handler handler) {
@@ -436,23 +637,19 @@ class LunarView extends SurfaceView implements SurfaceHolder.Callback {
             mHandler = handler;
             mContext = context;
 
-            Resources res = context.getResources();
-            // cache handles to our key sprites & other drawables
-            mLanderImage = context.getResources().getDrawable(
-                    R.drawable.lander_plain);
-            mFiringImage = context.getResources().getDrawable(
-                    R.drawable.lander_firing);
-            mCrashedImage = context.getResources().getDrawable(
-                    R.drawable.lander_crashed);
-
-            // load background image as a Bitmap instead of a Drawable b/c
-            // we don't need to transform it and it's faster to draw this way
-            mBackgroundImage = BitmapFactory.decodeResource(res,
-                    R.drawable.earthrise);
-
-            // Use the regular lander image as the model size for all sprites
-            mLanderWidth = mLanderImage.getIntrinsicWidth();
-            mLanderHeight = mLanderImage.getIntrinsicHeight();
+            // Use the regular lander image as the model size for all sprites.
+            // Only the header is read here; the sprites and the background
+            // are decoded on the drawing thread when first drawn, so
+            // construction on the UI thread stays cheap.
+            // The header gives the size in source pixels; scale it from the
+            // drawable's density to the screen's the way the drawable's
+            // intrinsic size is, so sprites keep their size in dips.
+            BitmapFactory.Options bounds = new BitmapFactory.Options();
+            bounds.inJustDecodeBounds = true;
+            bounds.inScaled = false;
+            BitmapFactory.decodeResource(context.getResources(), R.drawable.lander_plain, bounds);
+            mState.mLanderWidth = scaleFromDensity(bounds.outWidth, bounds);
+            mState.mLanderHeight = scaleFromDensity(bounds.outHeight, bounds);
 
             // Initialize paints for speedometer
             mLinePaint = new Paint();
@@ -465,17 +662,19 @@ class LunarView extends SurfaceView implements SurfaceHolder.Callback {
 
             mScratchRect = new RectF(0, 0, 0, 0);
 
-            mWinsInARow = 0;
-            mDifficulty = DIFFICULTY_MEDIUM;
+            mState.mCanvasWidth = 1;
+            mState.mCanvasHeight = 1;
+            mState.mWinsInARow = 0;
+            mState.mDifficulty = DIFFICULTY_MEDIUM;
 
             // initial show-up of lander (not yet playing)
-            mX = mLanderWidth;
-            mY = mLanderHeight * 2;
-            mFuel = PHYS_FUEL_INIT;
-            mDX = 0;
-            mDY = 0;
-            mHeading = 0;
-            mEngineFiring = true;
+            mState.mX = mState.mLanderWidth;
+            mState.mY = mState.mLanderHeight * 2;
+            mState.mFuel = LunarSimulator.PHYS_FUEL_INIT;
+            mState.mDX = 0;
+            mState.mDY = 0;
+            mState.mHeading = 0;
+            mState.mEngineFiring = true;
         }
 
         /**
@@ -483,46 +682,19 @@ class LunarView extends SurfaceView implements SurfaceHolder.Callback {
          */
         public void doStart() {
             synchronized (mSurfaceHolder) {
-                // First set the game for Medium difficulty
-                mFuel = PHYS_FUEL_INIT;
-                mEngineFiring = false;
-                mGoalWidth = (int) (mLanderWidth * TARGET_WIDTH);
-                mGoalSpeed = TARGET_SPEED;
-                mGoalAngle = TARGET_ANGLE;
-                int speedInit = PHYS_SPEED_INIT;
-
-                // Adjust difficulty params for EASY/HARD
-                if (mDifficulty == DIFFICULTY_EASY) {
-                    mFuel = mFuel * 3 / 2;
-                    mGoalWidth = mGoalWidth * 4 / 3;
-                    mGoalSpeed = mGoalSpeed * 3 / 2;
-                    mGoalAngle = mGoalAngle * 4 / 3;
-                    speedInit = speedInit * 3 / 4;
-                } else if (mDifficulty == DIFFICULTY_HARD) {
-                    mFuel = mFuel * 7 / 8;
-                    mGoalWidth = mGoalWidth * 3 / 4;
-                    mGoalSpeed = mGoalSpeed * 7 / 8;
-                    speedInit = speedInit * 4 / 3;
-                }
-
-                // pick a convenient initial location for the lander sprite
-                mX = mCanvasWidth / 2;
-                mY = mCanvasHeight - mLanderHeight / 2;
-
-                // start with a little random motion
-                mDY = Math.random() * -speedInit;
-                mDX = Math.random() * 2 * speedInit - speedInit;
-                mHeading = 0;
-
-                // Figure initial spot for landing, not too near center
-                while (true) {
-                    mGoalX = (int) (Math.random() * (mCanvasWidth - mGoalWidth));
-                    if (Math.abs(mGoalX - (mX - mLanderWidth / 2)) > mCanvasHeight / 6)
-                        break;
-                }
-
-                mLastTime = System.currentTimeMillis() + 100;
+                if (mResetPool == null || !mResetPool.take(mState)) mSimulator.start(mState);
+                // both timelines start the new episode together
+                if (mSpeculation != null) mSpeculation.reset(mState);
+                mRecordEpisodeStart = true;
+                mEpisodeStartTick = mState.mTick;
+
+                // a moment to take in the new game, unless nobody is watching
+                // or a trainer or actor is playing
+                boolean watched = !mHeadless && !mLockstep && mActor == null;
+                mLastTime = watched ? System.currentTimeMillis() + 100 : 0;
                 setState(STATE_RUNNING);
+                // readers such as a trainer's reset reply see the new episode
+                publishState();
             }
         }
 
@@ -531,7 +703,7 @@ class LunarView extends SurfaceView implements SurfaceHolder.Callback {
          */
         public void pause() {
             synchronized (mSurfaceHolder) {
-                if (mMode == STATE_RUNNING) setState(STATE_PAUSE);
+                if (mState.mMode == STATE_RUNNING) setState(STATE_PAUSE);
             }
         }
 
@@ -545,24 +717,25 @@ class LunarView extends SurfaceView implements SurfaceHolder.Callback {
         public synchronized void restoreState(Bundle savedState) {
             synchronized (mSurfaceHolder) {
                 setState(STATE_PAUSE);
-                mRotating = 0;
-                mEngineFiring = false;
-
-                mDifficulty = savedState.getInt(KEY_DIFFICULTY);
-                mX = savedState.getDouble(KEY_X);
-                mY = savedState.getDouble(KEY_Y);
-                mDX = savedState.getDouble(KEY_DX);
-                mDY = savedState.getDouble(KEY_DY);
-                mHeading = savedState.getDouble(KEY_HEADING);
-
-                mLanderWidth = savedState.getInt(KEY_LANDER_WIDTH);
-                mLanderHeight = savedState.getInt(KEY_LANDER_HEIGHT);
-                mGoalX = savedState.getInt(KEY_GOAL_X);
-                mGoalSpeed = savedState.getInt(KEY_GOAL_SPEED);
-                mGoalAngle = savedState.getInt(KEY_GOAL_ANGLE);
-                mGoalWidth = savedState.getInt(KEY_GOAL_WIDTH);
-                mWinsInARow = savedState.getInt(KEY_WINS);
-                mFuel = savedState.getDouble(KEY_FUEL);
+                mState.mRotating = 0;
+                mState.mEngineFiring = false;
+
+                mState.mDifficulty = savedState.getInt(KEY_DIFFICULTY);
+                mState.mX = savedState.getDouble(KEY_X);
+                mState.mY = savedState.getDouble(KEY_Y);
+                mState.mDX = savedState.getDouble(KEY_DX);
+                mState.mDY = savedState.getDouble(KEY_DY);
+                mState.mHeading = savedState.getDouble(KEY_HEADING);
+
+                mState.mLanderWidth = savedState.getInt(KEY_LANDER_WIDTH);
+                mState.mLanderHeight = savedState.getInt(KEY_LANDER_HEIGHT);
+                mState.mGoalX = savedState.getInt(KEY_GOAL_X);
+                mState.mGoalSpeed = savedState.getInt(KEY_GOAL_SPEED);
+                mState.mGoalAngle = savedState.getInt(KEY_GOAL_ANGLE);
+                mState.mGoalWidth = savedState.getInt(KEY_GOAL_WIDTH);
+                mState.mWinsInARow = savedState.getInt(KEY_WINS);
+                mState.mFuel = savedState.getDouble(KEY_FUEL);
+                publishState();
             }
         }
 
@@ -572,21 +745,49 @@ class LunarView extends SurfaceView implements SurfaceHolder.Callback {
                 Canvas c = null;
 
                 // make a synchronization between threads only if there is something on the screen
+                boolean handshake = false;
+                ReplayPlayer replay = mReplay;
+                DeviceAgent actor = mActor;
+                boolean speculative = mLockstep && isSpeculative();
                 try {
-                    if (alreadyDrawn) {
+                    if (replay != null || actor != null) {
+                        mScheduler.awaitFrame(replay == null && isPaused());
+                        if (!mRun) break;
+                    } else if (mLockstep && !speculative) {
+                        handshake = alreadyDrawn;
+                        mScheduler.skipPacing();
+                    } else {
+                        mScheduler.awaitFrame(isIdle());
+                        if (!mRun) break;
+                    }
+                    if (handshake) {
                         Log.i(TAG, "Waiting for mqttBarrier to update canvas");
                         mqttBarrier.await();
                     }
 
-                    c = mSurfaceHolder.lockCanvas(null);
+                    if (!mHeadless) c = mSurfaceHolder.lockCanvas(null);
                     synchronized (mSurfaceHolder) {
-                        if (mMode == STATE_RUNNING) updatePhysics();
-                        doDraw(c);
+                        LunarState drawn = mState;
+                        if (replay != null) {
+                            if (replay == mReplay) replayTick(replay);
+                            drawn = mReplayState;
+                        } else if (actor != null && actor == mActor) {
+                            actorTick(actor);
+                        } else if (speculative && mSpeculation != null) {
+                            if (mSpeculation.speculate(mState)) publishState();
+                        } else if (mState.mMode == STATE_RUNNING) {
+                            updatePhysics();
+                            publishState();
+                        }
+                        doDraw(c, drawn);
                     }
 
-                    if (alreadyDrawn) {
+                    if (handshake) {
                         drawBarrier.await();
                     } else {
+                        if (replay != null || actor != null || !mLockstep || speculative) {
+                            mScheduler.frameDone();
+                        }
                         alreadyDrawn = true;
                     }
                 } catch (InterruptedException | BrokenBarrierException e) {
@@ -602,6 +803,16 @@ class LunarView extends SurfaceView implements SurfaceHolder.Callback {
                     }
                 }
             }
+            Log.i(TAG, "Interactive frames: " + mScheduler);
+            setResetPool(null);
+            synchronized (mSurfaceHolder) {
+                if (mSpeculation != null) Log.i(TAG, "Speculation: " + mSpeculation);
+            }
+            try {
+                setRecording(null);
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot finish the recording", e);
+            }
         }
 
         /**
@@ -613,21 +824,21 @@ class LunarView extends SurfaceView implements SurfaceHolder.Callback {
         public Bundle saveState(Bundle map) {
             synchronized (mSurfaceHolder) {
                 if (map != null) {
-                    map.putInt(KEY_DIFFICULTY, Integer.valueOf(mDifficulty));
-                    map.putDouble(KEY_X, Double.valueOf(mX));
-                    map.putDouble(KEY_Y, Double.valueOf(mY));
-                    map.putDouble(KEY_DX, Double.valueOf(mDX));
-                    map.putDouble(KEY_DY, Double.valueOf(mDY));
-                    map.putDouble(KEY_HEADING, Double.valueOf(mHeading));
-                    map.putInt(KEY_LANDER_WIDTH, Integer.valueOf(mLanderWidth));
+                    map.putInt(KEY_DIFFICULTY, Integer.valueOf(mState.mDifficulty));
+                    map.putDouble(KEY_X, Double.valueOf(mState.mX));
+                    map.putDouble(KEY_Y, Double.valueOf(mState.mY));
+                    map.putDouble(KEY_DX, Double.valueOf(mState.mDX));
+                    map.putDouble(KEY_DY, Double.valueOf(mState.mDY));
+                    map.putDouble(KEY_HEADING, Double.valueOf(mState.mHeading));
+                    map.putInt(KEY_LANDER_WIDTH, Integer.valueOf(mState.mLanderWidth));
                     map.putInt(KEY_LANDER_HEIGHT, Integer
-                            .valueOf(mLanderHeight));
-                    map.putInt(KEY_GOAL_X, Integer.valueOf(mGoalX));
-                    map.putInt(KEY_GOAL_SPEED, Integer.valueOf(mGoalSpeed));
-                    map.putInt(KEY_GOAL_ANGLE, Integer.valueOf(mGoalAngle));
-                    map.putInt(KEY_GOAL_WIDTH, Integer.valueOf(mGoalWidth));
-                    map.putInt(KEY_WINS, Integer.valueOf(mWinsInARow));
-                    map.putDouble(KEY_FUEL, Double.valueOf(mFuel));
+                            .valueOf(mState.mLanderHeight));
+                    map.putInt(KEY_GOAL_X, Integer.valueOf(mState.mGoalX));
+                    map.putInt(KEY_GOAL_SPEED, Integer.valueOf(mState.mGoalSpeed));
+                    map.putInt(KEY_GOAL_ANGLE, Integer.valueOf(mState.mGoalAngle));
+                    map.putInt(KEY_GOAL_WIDTH, Integer.valueOf(mState.mGoalWidth));
+                    map.putInt(KEY_WINS, Integer.valueOf(mState.mWinsInARow));
+                    map.putDouble(KEY_FUEL, Double.valueOf(mState.mFuel));
                 }
             }
             return map;
@@ -640,7 +851,7 @@ class LunarView extends SurfaceView implements SurfaceHolder.Callback {
          */
         public void setDifficulty(int difficulty) {
             synchronized (mSurfaceHolder) {
-                mDifficulty = difficulty;
+                mState.mDifficulty = difficulty;
             }
         }
 
@@ -649,7 +860,7 @@ class LunarView extends SurfaceView implements SurfaceHolder.Callback {
          */
         public void setFiring(boolean firing) {
             synchronized (mSurfaceHolder) {
-                mEngineFiring = firing;
+                mState.mEngineFiring = firing;
             }
         }
 
@@ -663,6 +874,167 @@ class LunarView extends SurfaceView implements SurfaceHolder.Callback {
          */
         public void setRunning(boolean b) {
             mRun = b;
+            mScheduler.wake();
+        }
+
+        /**
+         * Switches between trainer-driven frames and paced interactive ones.
+         */
+        public void setLockstep(boolean lockstep) {
+            mLockstep = lockstep;
+            mScheduler.wake();
+        }
+
+        /**
+         * Lets lockstep frames run up to {@code window} ticks ahead of the
+         * trainer with actions predicted by {@code fallback}, or by repeating
+         * the trainer's last action when it is null; a window of 0 goes back
+         * to waiting for every action.
+         */
+        public void setSpeculation(int window, LunarPolicy fallback) {
+            synchronized (mSurfaceHolder) {
+                if (mSpeculation != null) Log.i(TAG, "Speculation: " + mSpeculation);
+                mSpeculation = window > 0
+                        ? new SpeculativeStepper(mSimulator, window, fallback, new Random()) : null;
+                if (mSpeculation != null) mSpeculation.reset(mState);
+            }
+            // wakes a thread waiting on mqttBarrier into the new mode
+            mqttBarrier.reset();
+            mScheduler.wake();
+        }
+
+        private boolean isSpeculative() {
+            return mSpeculation != null;
+        }
+
+        /**
+         * Plays a trainer action on the confirmed timeline when speculating,
+         * correcting the displayed game if it was predicted wrong.
+         *
+         * @return false when not speculating; the caller steps in lockstep
+         */
+        boolean confirmStep(int action) {
+            synchronized (mSurfaceHolder) {
+                if (mSpeculation == null) return false;
+                // paused: the step is lost, as in lockstep
+                if (mState.mMode == STATE_PAUSE) return true;
+                int landing = mSpeculation.confirm(action, mState);
+                recordLanding(landing);
+                if (landing == LunarSimulator.LANDING_HYPERSPACE) {
+                    doStart();
+                } else if (landing != LunarSimulator.LANDING_NONE) {
+                    setState(mState.mMode, landingMessage(landing));
+                }
+                return true;
+            }
+        }
+
+        /**
+         * Copies the state the trainer last confirmed when speculating.
+         *
+         * @return false when not speculating; read {@link #readState} instead
+         */
+        boolean readConfirmedState(LunarState out) {
+            synchronized (mSurfaceHolder) {
+                if (mSpeculation == null) return false;
+                mSpeculation.readConfirmed(out);
+                return true;
+            }
+        }
+
+        /**
+         * Lets {@code actor} play, such as a {@link LunarActor} or a
+         * {@link QAgent}, or stops it with null. A previous actor is closed,
+         * which for a LunarActor sends what it has recorded. The actor
+         * restarts finished games itself and waits while the game is paused.
+         */
+        public void setActor(DeviceAgent actor) {
+            DeviceAgent previous;
+            synchronized (mSurfaceHolder) {
+                previous = mActor;
+                mActor = actor;
+                mActorEpisode = false;
+            }
+            if (previous != null) previous.close();
+            mScheduler.wake();
+        }
+
+        /**
+         * Passes new weights to the actor, if there is one.
+         */
+        public void offerNetwork(PolicyNetwork network) {
+            DeviceAgent actor = mActor;
+            if (actor instanceof LunarActor) ((LunarActor) actor).offerNetwork(network);
+        }
+
+        /**
+         * @return the version of the network the actor plays with, -1 when
+         * no LunarActor is playing
+         */
+        public int getModelVersion() {
+            DeviceAgent actor = mActor;
+            return actor instanceof LunarActor ? ((LunarActor) actor).getNetwork().getVersion() : -1;
+        }
+
+        /**
+         * One frame of actor mode: restarts finished episodes, applies the
+         * actor's action for one tick and records the outcome. Call with
+         * mSurfaceHolder held.
+         */
+        private void actorTick(DeviceAgent actor) throws InterruptedException {
+            // paused like interactive play, until the player resumes
+            if (mState.mMode == STATE_PAUSE) return;
+            if (mState.mMode != STATE_RUNNING || !mActorEpisode) {
+                doStart();
+                mActorEpisode = true;
+                actor.startEpisode(mState);
+            }
+            // no grace period before the physics starts; every frame is a step
+            mLastTime = 0;
+
+            int action = actor.act();
+            mState.mEngineFiring = action == LunarSimulator.ACTION_FIRE;
+            mState.mRotating = action == LunarSimulator.ACTION_LEFT ? -1
+                    : action == LunarSimulator.ACTION_RIGHT ? 1 : 0;
+            updatePhysics();
+            mState.mEngineFiring = false;
+            mState.mRotating = 0;
+            if (actor.observe(mState)) mActorEpisode = false;
+            publishState();
+        }
+
+        /**
+         * @param framesPerSecond target rate for interactive play; 0 or less
+         *                        draws as fast as possible
+         */
+        public void setFrameRate(double framesPerSecond) {
+            mScheduler.setTargetRate(framesPerSecond);
+        }
+
+        /**
+         * @return frame timings of interactive play so far
+         */
+        public FrameScheduler getFrameScheduler() {
+            return mScheduler;
+        }
+
+        /**
+         * @return whether the game is paused
+         */
+        private boolean isPaused() {
+            synchronized (mSurfaceHolder) {
+                return mState.mMode == STATE_PAUSE;
+            }
+        }
+
+        /**
+         * @return whether nothing on screen changes until the next input or
+         * state change
+         */
+        private boolean isIdle() {
+            synchronized (mSurfaceHolder) {
+                return mState.mMode != STATE_RUNNING;
+            }
         }
 
         /**
@@ -695,9 +1067,13 @@ class LunarView extends SurfaceView implements SurfaceHolder.Callback {
              * lunarThread, which updates the user-text View.
              */
             synchronized (mSurfaceHolder) {
-                mMode = mode;
+                int previous = mState.mMode;
+                mState.mMode = mode;
 
-                if (mMode == STATE_RUNNING) {
+                if (mState.mMode == STATE_RUNNING) {
+                    // the display may have run ahead on predictions the
+                    // trainer never confirmed; resume from what it has seen
+                    if (mSpeculation != null && previous == STATE_PAUSE) mSpeculation.rollback(mState);
                     Message msg = mHandler.obtainMessage();
                     Bundle b = new Bundle();
                     b.putString("text", "");
@@ -705,26 +1081,26 @@ class LunarView extends SurfaceView implements SurfaceHolder.Callback {
                     msg.setData(b);
                     mHandler.sendMessage(msg);
                 } else {
-                    mRotating = 0;
-                    mEngineFiring = false;
+                    mState.mRotating = 0;
+                    mState.mEngineFiring = false;
                     Resources res = mContext.getResources();
                     CharSequence str = "";
-                    if (mMode == STATE_READY)
+                    if (mState.mMode == STATE_READY)
                         str = res.getText(R.string.mode_ready);
-                    else if (mMode == STATE_PAUSE)
+                    else if (mState.mMode == STATE_PAUSE)
                         str = res.getText(R.string.mode_pause);
-                    else if (mMode == STATE_LOSE)
+                    else if (mState.mMode == STATE_LOSE)
                         str = res.getText(R.string.mode_lose);
-                    else if (mMode == STATE_WIN)
+                    else if (mState.mMode == STATE_WIN)
                         str = res.getString(R.string.mode_win_prefix)
-                                + mWinsInARow + " "
+                                + mState.mWinsInARow + " "
                                 + res.getString(R.string.mode_win_suffix);
 
                     if (message != null) {
                         str = message + "\n" + str;
                     }
 
-                    if (mMode == STATE_LOSE) mWinsInARow = 0;
+                    if (mState.mMode == STATE_LOSE) mState.mWinsInARow = 0;
 
                     Message msg = mHandler.obtainMessage();
                     Bundle b = new Bundle();
@@ -733,19 +1109,239 @@ class LunarView extends SurfaceView implements SurfaceHolder.Callback {
                     msg.setData(b);
                     mHandler.sendMessage(msg);
                 }
+                publishState();
+            }
+            mScheduler.wake();
+        }
+
+        /**
+         * Copies the state published at the end of the latest tick. Never
+         * blocks the physics thread and never allocates.
+         *
+         * @param out the state to fill
+         * @return sequence number of the copied state
+         */
+        public long readState(LunarState out) {
+            return mStateBuffer.read(out);
+        }
+
+        /**
+         * Has doStart() take its start states from {@code pool}, or draw them
+         * again with null. A previous pool is closed.
+         */
+        public void setResetPool(ResetPool pool) {
+            ResetPool previous;
+            synchronized (mSurfaceHolder) {
+                previous = mResetPool;
+                mResetPool = pool;
+            }
+            if (previous != null) {
+                Log.i(TAG, previous.toString());
+                previous.close();
+            }
+        }
+
+        /**
+         * Publishes the current state to mStateBuffer. Must be called with
+         * mSurfaceHolder held so that there is only ever one writer.
+         */
+        private void publishState() {
+            mStateBuffer.publish(mState);
+            if (mRecorder != null) {
+                // speculative frames may yet be rolled back; record what the
+                // trainer confirmed
+                LunarState frame = mState;
+                if (mSpeculation != null) {
+                    mSpeculation.readConfirmed(mRecordFrame);
+                    frame = mRecordFrame;
+                }
+                try {
+                    if (mRecordEpisodeStart || frame.mTick != mRecordedTick) {
+                        mRecorder.append(frame, mRecordEpisodeStart);
+                        mRecordEpisodeStart = false;
+                        mRecordedTick = frame.mTick;
+                    } else {
+                        mRecorder.replaceLast(frame);
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Recording stopped", e);
+                    try {
+                        mRecorder.close();
+                    } catch (IOException ignored) {
+                    }
+                    mRecorder = null;
+                }
+            }
+        }
+
+        /**
+         * Records every tick from now on to {@code file}, replacing it, or
+         * stops recording with null. See {@link ReplayLog}.
+         */
+        public void setRecording(File file) throws IOException {
+            synchronized (mSurfaceHolder) {
+                if (mRecorder != null) {
+                    ReplayLog.Writer recorder = mRecorder;
+                    mRecorder = null;
+                    recorder.close();
+                }
+                if (file != null) {
+                    mRecorder = new ReplayLog.Writer(file, mState);
+                    mRecordEpisodeStart = true;
+                }
+            }
+        }
+
+        /**
+         * Plays {@code replay} instead of the game, or goes back to the game
+         * with null. A previous replay is closed. While replaying, center
+         * toggles pause, left/right step a frame when paused and change the
+         * speed (down to fast reverse) when playing, up jumps to the next
+         * episode and down back to the start of this or the previous one.
+         */
+        public void setReplay(ReplayPlayer replay) {
+            ReplayPlayer previous;
+            synchronized (mSurfaceHolder) {
+                previous = mReplay;
+                mReplay = replay;
+                if (replay == null && previous != null) setState(STATE_READY);
+            }
+            if (previous != null) {
+                try {
+                    previous.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Cannot close replay", e);
+                }
+            }
+            mScheduler.wake();
+        }
+
+        /**
+         * One frame of replay: reads the player's current frame into
+         * mReplayState. Call with mSurfaceHolder held.
+         */
+        private void replayTick(ReplayPlayer replay) {
+            try {
+                // the difficulty and other settings not in the log are the game's
+                mReplayState.set(mState);
+                replay.frame(mReplayState);
+            } catch (IOException e) {
+                Log.e(TAG, "Replay failed", e);
+                mReplay = null;
             }
         }
 
+        /**
+         * Handles a key while replaying.
+         *
+         * @return true if the key controls playback
+         */
+        private boolean replayKey(ReplayPlayer replay, int keyCode) {
+            switch (keyCode) {
+                case KeyEvent.KEYCODE_DPAD_CENTER:
+                case KeyEvent.KEYCODE_SPACE:
+                    replay.togglePause();
+                    break;
+                case KeyEvent.KEYCODE_DPAD_LEFT:
+                    if (replay.isPaused()) replay.step(-1);
+                    else replay.slower();
+                    break;
+                case KeyEvent.KEYCODE_DPAD_RIGHT:
+                    if (replay.isPaused()) replay.step(1);
+                    else replay.faster();
+                    break;
+                case KeyEvent.KEYCODE_DPAD_UP:
+                    replay.nextEpisode();
+                    break;
+                case KeyEvent.KEYCODE_DPAD_DOWN:
+                    replay.previousEpisode();
+                    break;
+                default:
+                    return false;
+            }
+            Log.i(TAG, "Replay " + replay);
+            mScheduler.wake();
+            return true;
+        }
+
         /* Callback invoked when the surface dimensions change. */
         public void setSurfaceSize(int width, int height) {
             // synchronized to make sure these all change atomically
             synchronized (mSurfaceHolder) {
-                mCanvasWidth = width;
-                mCanvasHeight = height;
+                mState.mCanvasWidth = width;
+                mState.mCanvasHeight = height;
 
-                // don't forget to resize the background image
-                mBackgroundImage = Bitmap.createScaledBitmap(
-                        mBackgroundImage, width, height, true);
+                // decoded again at the new size when next drawn
+                if (mBackgroundImage != null) {
+                    mBackgroundImage.recycle();
+                    mBackgroundImage = null;
+                }
+            }
+            mScheduler.wake();
+        }
+
+        /**
+         * Switches drawing off (or back on). Physics, the state buffer and the
+         * MqttThread handshake carry on as usual.
+         */
+        public void setHeadless(boolean headless) {
+            mHeadless = headless;
+        }
+
+        /**
+         * Scales a size decoded from a resource to the screen density, rounding
+         * as {@link Bitmap#getScaledWidth(int)} does. Resources without a
+         * density (nodpi) keep their size.
+         */
+        private int scaleFromDensity(int size, BitmapFactory.Options decoded) {
+            int from = decoded.inDensity;
+            int to = decoded.inTargetDensity;
+            if (from == 0 || to == 0 || from == to) return size;
+            return (size * to + (from >> 1)) / from;
+        }
+
+        /**
+         * Decodes the background for a canvas of the given size. The source is
+         * subsampled by the largest power of two that keeps it at least as big
+         * as the canvas before the final scale, and stored without alpha, so
+         * small screens never hold the full-size image.
+         */
+        private Bitmap decodeBackground(int width, int height) {
+            Resources res = mContext.getResources();
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            options.inScaled = false;
+            BitmapFactory.decodeResource(res, R.drawable.earthrise, options);
+
+            int sampleSize = 1;
+            while (options.outWidth / (sampleSize * 2) >= width
+                    && options.outHeight / (sampleSize * 2) >= height) {
+                sampleSize *= 2;
+            }
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = sampleSize;
+            options.inPreferredConfig = Bitmap.Config.RGB_565;
+            Bitmap decoded = BitmapFactory.decodeResource(res, R.drawable.earthrise, options);
+
+            Bitmap scaled = Bitmap.createScaledBitmap(decoded, width, height, true);
+            if (scaled != decoded) decoded.recycle();
+            return scaled;
+        }
+
+        /**
+         * @return the sprite for the current mode, loading it on first use
+         */
+        private Drawable landerSprite(LunarState s) {
+            Resources res = mContext.getResources();
+            if (s.mMode == STATE_LOSE) {
+                if (mCrashedImage == null) mCrashedImage = res.getDrawable(R.drawable.lander_crashed);
+                return mCrashedImage;
+            } else if (s.mEngineFiring) {
+                if (mFiringImage == null) mFiringImage = res.getDrawable(R.drawable.lander_firing);
+                return mFiringImage;
+            } else {
+                if (mLanderImage == null) mLanderImage = res.getDrawable(R.drawable.lander_plain);
+                return mLanderImage;
             }
         }
 
@@ -767,6 +1363,8 @@ class LunarView extends SurfaceView implements SurfaceHolder.Callback {
          * @return true
          */
         boolean doKeyDown(int keyCode) {
+            ReplayPlayer replay = mReplay;
+            if (replay != null) return replayKey(replay, keyCode);
             synchronized (mSurfaceHolder) {
                 boolean okStart = false;
                 if (keyCode == KeyEvent.KEYCODE_DPAD_UP) okStart = true;
@@ -774,15 +1372,15 @@ class LunarView extends SurfaceView implements SurfaceHolder.Callback {
                 if (keyCode == KeyEvent.KEYCODE_S) okStart = true;
 
                 if (okStart
-                        && (mMode == STATE_READY || mMode == STATE_LOSE || mMode == STATE_WIN)) {
+                        && (mState.mMode == STATE_READY || mState.mMode == STATE_LOSE || mState.mMode == STATE_WIN)) {
                     // ready-to-start -> start
                     doStart();
                     return true;
-                } else if (mMode == STATE_PAUSE && okStart) {
+                } else if (mState.mMode == STATE_PAUSE && okStart) {
                     // paused -> running
                     unpause();
                     return true;
-                } else if (mMode == STATE_RUNNING) {
+                } else if (mState.mMode == STATE_RUNNING) {
                     // center/space -> fire
                     if (keyCode == KeyEvent.KEYCODE_DPAD_CENTER
                             || keyCode == KeyEvent.KEYCODE_SPACE) {
@@ -791,12 +1389,12 @@ class LunarView extends SurfaceView implements SurfaceHolder.Callback {
                         // left/q -> left
                     } else if (keyCode == KeyEvent.KEYCODE_DPAD_LEFT
                             || keyCode == KeyEvent.KEYCODE_Q) {
-                        mRotating = -1;
+                        mState.mRotating = -1;
                         return true;
                         // right/w -> right
                     } else if (keyCode == KeyEvent.KEYCODE_DPAD_RIGHT
                             || keyCode == KeyEvent.KEYCODE_W) {
-                        mRotating = 1;
+                        mState.mRotating = 1;
                         return true;
                         // up -> pause
                     } else if (keyCode == KeyEvent.KEYCODE_DPAD_UP) {
@@ -817,9 +1415,10 @@ class LunarView extends SurfaceView implements SurfaceHolder.Callback {
          */
         boolean doKeyUp(int keyCode) {
             boolean handled = false;
+            if (mReplay != null) return false;
 
             synchronized (mSurfaceHolder) {
-                if (mMode == STATE_RUNNING) {
+                if (mState.mMode == STATE_RUNNING) {
                     if (keyCode == KeyEvent.KEYCODE_DPAD_CENTER
                             || keyCode == KeyEvent.KEYCODE_SPACE) {
                         setFiring(false);
@@ -828,7 +1427,7 @@ class LunarView extends SurfaceView implements SurfaceHolder.Callback {
                             || keyCode == KeyEvent.KEYCODE_Q
                             || keyCode == KeyEvent.KEYCODE_DPAD_RIGHT
                             || keyCode == KeyEvent.KEYCODE_W) {
-                        mRotating = 0;
+                        mState.mRotating = 0;
                         handled = true;
                     }
                 }
@@ -839,28 +1438,33 @@ class LunarView extends SurfaceView implements SurfaceHolder.Callback {
 
         /**
          * Draws the ship, fuel/speed bars, and background to the provided
-         * Canvas.
+         * Canvas. The pad and the ship of {@code s} are scaled from its
+         * canvas size to the screen's, for replays recorded on another
+         * screen.
          */
-        private void doDraw(Canvas canvas) {
+        private void doDraw(Canvas canvas, LunarState s) {
             // Draw the background image. Operations on the Canvas accumulate
             // so this is like clearing the screen.
             if (canvas == null) return;
 
+            if (mBackgroundImage == null) {
+                mBackgroundImage = decodeBackground(mState.mCanvasWidth, mState.mCanvasHeight);
+            }
             canvas.drawBitmap(mBackgroundImage, 0, 0, null);
 
-            int yTop = mCanvasHeight - ((int) mY + mLanderHeight / 2);
-            int xLeft = (int) mX - mLanderWidth / 2;
+            int yTop = s.mCanvasHeight - ((int) s.mY + s.mLanderHeight / 2);
+            int xLeft = (int) s.mX - s.mLanderWidth / 2;
 
             // Draw the fuel gauge
-            int fuelWidth = (int) (UI_BAR * mFuel / PHYS_FUEL_MAX);
+            int fuelWidth = (int) (UI_BAR * s.mFuel / PHYS_FUEL_MAX);
             mScratchRect.set(4, 4, 4 + fuelWidth, 4 + UI_BAR_HEIGHT);
             canvas.drawRect(mScratchRect, mLinePaint);
 
             // Draw the speed gauge, with a two-tone effect
-            double speed = Math.sqrt(mDX * mDX + mDY * mDY);
+            double speed = Math.sqrt(s.mDX * s.mDX + s.mDY * s.mDY);
             int speedWidth = (int) (UI_BAR * speed / PHYS_SPEED_MAX);
 
-            if (speed <= mGoalSpeed) {
+            if (speed <= s.mGoalSpeed) {
                 mScratchRect.set(4 + UI_BAR + 4, 4,
                         4 + UI_BAR + 4 + speedWidth, 4 + UI_BAR_HEIGHT);
                 canvas.drawRect(mScratchRect, mLinePaint);
@@ -870,35 +1474,33 @@ class LunarView extends SurfaceView implements SurfaceHolder.Callback {
                 mScratchRect.set(4 + UI_BAR + 4, 4,
                         4 + UI_BAR + 4 + speedWidth, 4 + UI_BAR_HEIGHT);
                 canvas.drawRect(mScratchRect, mLinePaintBad);
-                int goalWidth = (UI_BAR * mGoalSpeed / PHYS_SPEED_MAX);
+                int goalWidth = (UI_BAR * s.mGoalSpeed / PHYS_SPEED_MAX);
                 mScratchRect.set(4 + UI_BAR + 4, 4, 4 + UI_BAR + 4 + goalWidth,
                         4 + UI_BAR_HEIGHT);
                 canvas.drawRect(mScratchRect, mLinePaint);
             }
 
+            canvas.save();
+            if (s.mCanvasWidth > 0 && s.mCanvasHeight > 0) {
+                canvas.scale((float) mState.mCanvasWidth / s.mCanvasWidth,
+                        (float) mState.mCanvasHeight / s.mCanvasHeight);
+            }
+
             // Draw the landing pad
-            canvas.drawLine(mGoalX, 1 + mCanvasHeight - TARGET_PAD_HEIGHT,
-                    mGoalX + mGoalWidth, 1 + mCanvasHeight - TARGET_PAD_HEIGHT,
+            canvas.drawLine(s.mGoalX, 1 + s.mCanvasHeight - TARGET_PAD_HEIGHT,
+                    s.mGoalX + s.mGoalWidth, 1 + s.mCanvasHeight - TARGET_PAD_HEIGHT,
                     mLinePaint);
 
 
             // Draw the ship with its current rotation
             canvas.save();
-            canvas.rotate((float) mHeading, (float) mX, mCanvasHeight
-                    - (float) mY);
-            if (mMode == STATE_LOSE) {
-                mCrashedImage.setBounds(xLeft, yTop, xLeft + mLanderWidth, yTop
-                        + mLanderHeight);
-                mCrashedImage.draw(canvas);
-            } else if (mEngineFiring) {
-                mFiringImage.setBounds(xLeft, yTop, xLeft + mLanderWidth, yTop
-                        + mLanderHeight);
-                mFiringImage.draw(canvas);
-            } else {
-                mLanderImage.setBounds(xLeft, yTop, xLeft + mLanderWidth, yTop
-                        + mLanderHeight);
-                mLanderImage.draw(canvas);
-            }
+            canvas.rotate((float) s.mHeading, (float) s.mX, s.mCanvasHeight
+                    - (float) s.mY);
+            Drawable sprite = landerSprite(s);
+            sprite.setBounds(xLeft, yTop, xLeft + s.mLanderWidth, yTop
+                    + s.mLanderHeight);
+            sprite.draw(canvas);
+            canvas.restore();
             canvas.restore();
         }
 
@@ -908,7 +1510,7 @@ class LunarView extends SurfaceView implements SurfaceHolder.Callback {
          * Detects the end-of-game and sets the UI to the next state.
          */
         private void updatePhysics() {
-            mOnGoal = false;
+            mState.mOnGoal = false;
             long now = System.currentTimeMillis();
 
             // Do nothing if mLastTime is in the future.
@@ -917,202 +1519,285 @@ class LunarView extends SurfaceView implements SurfaceHolder.Callback {
             if (mLastTime > now) return;
 
 //            double elapsed = (now - mLastTime) / 1000.0;
-            double elapsed = 0.1; // TODO don't do this at home
-
-            // mRotating -- update heading
-            if (mRotating != 0) {
-                mHeading += mRotating * (PHYS_SLEW_SEC * elapsed);
+            double elapsed = LunarSimulator.TICK_SECONDS; // TODO don't do this at home
 
-                // Bring things back into the range 0..360
-                if (mHeading < 0)
-                    mHeading += 360;
-                else if (mHeading >= 360) mHeading -= 360;
-            }
+            int landing = mSimulator.update(mState, elapsed);
 
-            // Base accelerations -- 0 for x, gravity for y
-            double ddx = 0.0;
-            double ddy = -PHYS_DOWN_ACCEL_SEC * elapsed;
+            mLastTime = now;
 
-            if (mEngineFiring) {
-                // taking 0 as up, 90 as to the right
-                // cos(deg) is ddy component, sin(deg) is ddx component
-                double elapsedFiring = elapsed;
-                double fuelUsed = elapsedFiring * PHYS_FUEL_SEC;
+            if (landing == LunarSimulator.LANDING_NONE) return;
+            recordLanding(landing);
 
-                // tricky case where we run out of fuel partway through the
-                // elapsed
-                if (fuelUsed > mFuel) {
-                    elapsedFiring = mFuel / fuelUsed * elapsed;
-                    fuelUsed = mFuel;
+            // "Hyperspace" win -- upside down, going fast,
+            // puts you back at the top.
+            if (landing == LunarSimulator.LANDING_HYPERSPACE) {
+                doStart();
+                return;
+            }
 
-                    // Oddball case where we adjust the "control" from here
-                    mEngineFiring = false;
-                }
+            setState(mState.mMode, landingMessage(landing));
+        }
 
-                mFuel -= fuelUsed;
+        /**
+         * Adds a touchdown to mAnalytics before the state moves on. Call
+         * with mSurfaceHolder held.
+         */
+        private void recordLanding(int landing) {
+            if (landing == LunarSimulator.LANDING_NONE) return;
+            // a hyperspace win goes on as the same episode
+            int steps = landing == LunarSimulator.LANDING_HYPERSPACE ? 0
+                    : (int) (mState.mTick - mEpisodeStartTick);
+            mAnalytics.record(mState, landing, EpisodeLimits.TRUNCATE_NONE, steps);
+        }
 
-                // have this much acceleration from the engine
-                double accel = PHYS_FIRE_ACCEL_SEC * elapsedFiring;
+        /**
+         * @return the episode statistics of this game; safe to record into
+         * and read from any thread
+         */
+        EpisodeAnalytics getAnalytics() {
+            return mAnalytics;
+        }
 
-                double radians = 2 * Math.PI * mHeading / 360;
-                ddx = Math.sin(radians) * accel;
-                ddy += Math.cos(radians) * accel;
+        /**
+         * @return the text shown for a touchdown, empty for a win
+         */
+        private CharSequence landingMessage(int landing) {
+            Resources res = mContext.getResources();
+            if (landing == LunarSimulator.LANDING_OFF_PAD) {
+                return res.getText(R.string.message_off_pad);
+            } else if (landing == LunarSimulator.LANDING_BAD_ANGLE) {
+                return res.getText(R.string.message_bad_angle);
+            } else if (landing == LunarSimulator.LANDING_TOO_FAST) {
+                return res.getText(R.string.message_too_fast);
             }
+            return "";
+        }
+    }
 
-            double dxOld = mDX;
-            double dyOld = mDY;
+    class MqttThread extends Thread implements LunarActor.Uploader {
+        private static final String BROKER = "tcp://" + MQTT_HOST + ":1883";
+        private static final String CLIENT_ID = "AndroidLunarLander";
 
-            // figure speeds for the end of the period
-            mDX += ddx;
-            mDY += ddy;
+        /**
+         * Where actor mode publishes its compressed experience.
+         */
+        private static final String TRAJECTORY_TOPIC = "TRAJECTORIES_FROM_ANDROID";
 
-            // figure position based on average speed during the period
-            mX += elapsed * (mDX + dxOld) / 2;
-            mY += elapsed * (mDY + dyOld) / 2;
+        /**
+         * Where the trainer pushes new policy weights, in WeightAssembler
+         * chunks.
+         */
+        private static final String WEIGHTS_TOPIC = "WEIGHTS_FROM_AI";
 
-            mLastTime = now;
+        /**
+         * Collects weight chunks. Only touched from the MQTT callback.
+         */
+        private final WeightAssembler mWeights = new WeightAssembler();
 
-            // Evaluate if we have landed ... stop the game
-            double yLowerBound = TARGET_PAD_HEIGHT + mLanderHeight / 2
-                    - TARGET_BOTTOM_PADDING;
-            if (mY <= yLowerBound) {
-                mY = yLowerBound;
-
-                int result = STATE_LOSE;
-                CharSequence message = "";
-                Resources res = mContext.getResources();
-                double speed = Math.sqrt(mDX * mDX + mDY * mDY);
-                boolean onGoal = (mGoalX <= mX - mLanderWidth / 2 && mX
-                        + mLanderWidth / 2 <= mGoalX + mGoalWidth);
-                mOnGoal = onGoal;
-                // "Hyperspace" win -- upside down, going fast,
-                // puts you back at the top.
-                if (onGoal && Math.abs(mHeading - 180) < mGoalAngle
-                        && speed > PHYS_SPEED_HYPERSPACE) {
-                    result = STATE_WIN;
-                    mWinsInARow++;
-                    doStart();
+        /**
+         * Seconds to wait for the broker before giving up.
+         */
+        private static final int CONNECT_TIMEOUT = 5;
 
-                    return;
-                    // Oddball case: this case does a return, all other cases
-                    // fall through to setMode() below.
-                } else if (!onGoal) {
-                    message = res.getText(R.string.message_off_pad);
-                } else if (!(mHeading <= mGoalAngle || mHeading >= 360 - mGoalAngle)) {
-                    message = res.getText(R.string.message_bad_angle);
-                } else if (speed > mGoalSpeed) {
-                    message = res.getText(R.string.message_too_fast);
-                } else {
-                    result = STATE_WIN;
-                    mWinsInARow++;
-                }
+        /**
+         * QoS 2 state messages allowed in flight before publishing blocks.
+         */
+        static final int MAX_INFLIGHT = 64;
 
-                setState(result, message);
-            }
-        }
-    }
+        private volatile MqttAsyncClient mqttClient;
+        private String sub_topic = LockstepHandler.COMMAND_TOPIC;
 
-    class MqttThread extends Thread {
-        private static final String BROKER = "tcp://" + MQTT_HOST + ":1883";
-        private static final String CLIENT_ID = "AndroidLunarLander";
+        /**
+         * Answers the trainer's commands. Set before connecting.
+         */
+        private LockstepHandler mLockstep;
+
+        /**
+         * When the connection attempt started, for the start-up timings.
+         */
+        private final long mStartTime = SystemClock.elapsedRealtime();
+        private boolean mFirstStep = true;
 
-        private MqttClient mqttClient;
-        private MqttTopic mqttTopic;
-        private String pub_topic = "DATA_FROM_ANDROID";
-        private String sub_topic = "DATA_FROM_AI";
-        private double prevFuelState = -1;
-        private double prevShaping = 0.0;
-        private boolean prevShapingExist = false;
+        private ConnectionListener mConnectionListener;
+        /**
+         * Outcome to replay to a listener registered late: null while
+         * connecting, the cause on failure, or this thread once ready.
+         */
+        private Object mConnectionResult;
 
+        /**
+         * Starts connecting and returns right away; paho's own threads finish
+         * the connect, subscribe and deliver commands from then on.
+         */
         @Override
         public void run() {
-
             try {
-                MemoryPersistence persistence = new MemoryPersistence();
-                mqttClient = new MqttClient(BROKER, CLIENT_ID, persistence);
+                mqttClient = new MqttAsyncClient(BROKER, CLIENT_ID, new MemoryPersistence());
+                mLockstep = new LockstepHandler(mqttClient, new LunarGame(), screenWidth, screenHeight);
+                mqttClient.setCallback(new DefaultMqttCallback());
                 MqttConnectOptions connOpts = new MqttConnectOptions();
                 connOpts.setCleanSession(true);
+                connOpts.setConnectionTimeout(CONNECT_TIMEOUT);
+                connOpts.setMaxInflight(MAX_INFLIGHT);
                 System.out.println("Connecting to broker: " + BROKER);
-                mqttClient.connect(connOpts);
-                System.out.println("Connected");
-                mqttClient.subscribe(sub_topic);
+                mqttClient.connect(connOpts, null, new IMqttActionListener() {
+                    @Override
+                    public void onSuccess(IMqttToken token) {
+                        System.out.println("Connected");
+                        subscribe();
+                    }
 
-                mqttTopic = mqttClient.getTopic(pub_topic);
-                mqttClient.setCallback(new DefaultMqttCallback());
+                    @Override
+                    public void onFailure(IMqttToken token, Throwable cause) {
+                        connectionFailed(cause);
+                    }
+                });
+            } catch (MqttException me) {
+                connectionFailed(me);
+            }
+        }
 
+        private void subscribe() {
+            try {
+                mqttClient.subscribe(new String[]{sub_topic, WEIGHTS_TOPIC}, new int[]{1, 1}, null,
+                        new IMqttActionListener() {
+                            @Override
+                            public void onSuccess(IMqttToken token) {
+                                long elapsed = SystemClock.elapsedRealtime() - mStartTime;
+                                Log.i(TAG, "MQTT ready after " + elapsed + " ms");
+                                lunarThread.setLockstep(true);
+                                ConnectionListener listener;
+                                synchronized (MqttThread.this) {
+                                    mConnectionResult = MqttThread.this;
+                                    listener = mConnectionListener;
+                                }
+                                if (listener != null) listener.onConnected(elapsed);
+                            }
+
+                            @Override
+                            public void onFailure(IMqttToken token, Throwable cause) {
+                                connectionFailed(cause);
+                            }
+                        });
             } catch (MqttException me) {
-                System.out.println("reason " + me.getReasonCode());
-                System.out.println("msg " + me.getMessage());
-                System.out.println("loc " + me.getLocalizedMessage());
-                System.out.println("cause " + me.getCause());
-                System.out.println("excep " + me);
-                me.printStackTrace();
+                connectionFailed(me);
             }
         }
 
-        private void publishCurrentGameState() throws Exception {
-            double fuelUsed = prevFuelState > 0 ? prevFuelState - lunarThread.getFuel() : 0;
-            prevFuelState = lunarThread.getFuel();
-            double landingPadHeight = TARGET_PAD_HEIGHT + lunarThread.mLanderHeight / 2 - TARGET_BOTTOM_PADDING;
-            double mX = (lunarThread.mX - screenWidth / 2) / (screenWidth / 2);
-            double mY = (lunarThread.mY -  landingPadHeight) / screenHeight;
-            double mDX = lunarThread.mDX / 500;
-            double mDY = lunarThread.mDY / 500;
-            double mHeading = lunarThread.mHeading * 0.0174532925;
-//            System.out.println("mX:" + mX);
-//            System.out.println("mY:" + mY);
-//            System.out.println("mDX:" + lunarThread.mDX);
-//            System.out.println("mDY:" + lunarThread.mDY);
-
-//            System.out.println("100*sqrtXY(x =" + mX + " , y = " + mY + "):" + -100 * Math.sqrt(Math.pow(mX, 2) + Math.pow(mY, 2)));
-//            System.out.println("100*sqrtDXDY(dx = " + mDX + " , dy = " + mDY + "):" + -100 * Math.sqrt(Math.pow(mDX, 2) + Math.pow(mDY, 2)));
-            JSONObject lunarState = new JSONObject()
-                    .put(LunarThread.KEY_X, mX)
-                    .put(LunarThread.KEY_Y, mY)
-                    .put(LunarThread.KEY_DX, mDX)
-                    .put(LunarThread.KEY_DY, mDY)
-                    .put(LunarThread.KEY_HEADING, mHeading)
-                    .put(LunarThread.KEY_ON_GOAL, lunarThread.mOnGoal);
-
-            mHeading = mHeading > Math.PI ? 2*Math.PI - mHeading : mHeading;
-//            System.out.println("mHeading:" + - 100 * mHeading);
-            double reward = 0.0;
-            double shaping = -100 * Math.sqrt(Math.pow(mX, 2) + Math.pow(mY, 2))
-                    - 100 * Math.sqrt(Math.pow(mDX, 2) + Math.pow(mDY, 2))
-                    - 100 * Math.abs(mHeading) // transform degrees to radians
-                    + (lunarThread.mOnGoal ? 10 : 0) ;
-            if(prevShapingExist){
-                reward = shaping - prevShaping;
+        private void connectionFailed(Throwable cause) {
+            System.out.println("MQTT connection failed: " + cause);
+            ConnectionListener listener;
+            synchronized (this) {
+                mConnectionResult = cause;
+                listener = mConnectionListener;
             }
-            System.out.println("Shaping diff: " + reward);
-//            System.out.println("shaping:" + shaping);
-//            System.out.println("prevShaping:" + prevShaping);
-            System.out.println();
-            reward -= 0.3 * fuelUsed;
-            System.out.println("fuelUsed: " + -0.3 * fuelUsed);
-            boolean done = lunarThread.mMode != LunarThread.STATE_RUNNING;
-
-            if(done){
-                if(lunarThread.mMode == LunarThread.STATE_WIN){
-                    reward = 100;
-                } else if(lunarThread.mMode == LunarThread.STATE_LOSE){
-                    reward = -100;
-                }
+            if (listener != null) listener.onConnectionFailed(cause);
+        }
+
+        void setConnectionListener(ConnectionListener listener) {
+            Object result;
+            synchronized (this) {
+                mConnectionListener = listener;
+                result = mConnectionResult;
+            }
+            if (result instanceof Throwable) {
+                listener.onConnectionFailed((Throwable) result);
+            } else if (result != null) {
+                listener.onConnected(SystemClock.elapsedRealtime() - mStartTime);
             }
-//            System.out.println("reward: " + reward);
-            JSONObject jsonMsg = new JSONObject()
-                    .put("done", done)
-                    .put("reward", reward)
-                    .put("state", lunarState);
-
-            MqttMessage gameStateMessage = new MqttMessage(jsonMsg.toString().getBytes());
-            gameStateMessage.setQos(2);
-            prevShaping = shaping;
-            prevShapingExist = true;
-
-            if (mqttTopic != null) {
-                mqttTopic.publish(gameStateMessage);
-                System.out.println("Message published");
+        }
+
+        /**
+         * Disconnects from the broker without waiting for it. Does nothing
+         * if the connection never came up.
+         */
+        void disconnect() {
+            MqttAsyncClient client = mqttClient;
+            if (client == null || !client.isConnected()) return;
+            try {
+                client.disconnect();
+            } catch (MqttException me) {
+                Log.w(TAG, "Cannot disconnect: " + me);
+            }
+        }
+
+        /**
+         * Publishes one run of actor experience. Runs recorded while the
+         * broker is unreachable are dropped.
+         */
+        @Override
+        public void upload(byte[] trajectory) {
+            MqttAsyncClient client = mqttClient;
+            if (client == null || !client.isConnected()) {
+                Log.w(TAG, "Not connected, dropping " + trajectory.length + " bytes of experience");
+                return;
+            }
+            try {
+                client.publish(TRAJECTORY_TOPIC, trajectory, 1, false);
+            } catch (MqttException me) {
+                Log.w(TAG, "Dropping experience: " + me);
+            }
+        }
+
+        /**
+         * Adds a weight chunk and hands a completed network to the actor,
+         * which swaps it in between two ticks.
+         */
+        private void receiveWeights(byte[] chunk) {
+            try {
+                PolicyNetwork network = mWeights.add(chunk);
+                if (network == null) return;
+                Log.i(TAG, "Received model version " + network.getVersion());
+                lunarThread.offerNetwork(network);
+            } catch (IOException | IllegalArgumentException e) {
+                Log.w(TAG, "Dropping weights: " + e);
+            }
+        }
+
+        /**
+         * @return the version of the weights the actor plays with, or when
+         * not in actor mode of the last weights received; -1 for none
+         */
+        private int modelVersion() {
+            int version = lunarThread.getModelVersion();
+            return version >= 0 ? version : mWeights.getLatestVersion();
+        }
+
+        /**
+         * Plays the trainer's commands on the lunarThread, in lockstep
+         * through mqttBarrier/drawBarrier.
+         */
+        class LunarGame implements LockstepHandler.Game {
+            @Override
+            public void start() {
+                lunarThread.doStart();
+            }
+
+            @Override
+            public void step(int action) throws Exception {
+                if (lunarThread.confirmStep(action)) return;
+                lunarThread.doKeyDown(action);
+                mqttBarrier.await();
+
+                Log.i(TAG, "Waiting for drawBarrier to publish game state...");
+                drawBarrier.await();
+                lunarThread.doKeyUp(action);
+            }
+
+            @Override
+            public void readState(LunarState out) {
+                // when speculating the trainer only ever sees the ticks it confirmed
+                if (!lunarThread.readConfirmedState(out)) lunarThread.readState(out);
+            }
+
+            @Override
+            public EpisodeAnalytics getAnalytics() {
+                return lunarThread.getAnalytics();
+            }
+
+            @Override
+            public int getModelVersion() {
+                return modelVersion();
             }
         }
 
@@ -1121,34 +1806,27 @@ class LunarView extends SurfaceView implements SurfaceHolder.Callback {
             @Override
             public void connectionLost(Throwable cause) {
                 System.out.println("Connection lost");
+                // back to interactive play; frees a lunarThread waiting for a step
+                lunarThread.setLockstep(false);
+                mqttBarrier.reset();
             }
 
             @Override
             public void messageArrived(String topic, MqttMessage message) throws Exception {
+                if (WEIGHTS_TOPIC.equals(topic)) {
+                    receiveWeights(message.getPayload());
+                    return;
+                }
                 System.out.println("Message arrived: " + message + ", topic:" + topic);
 
                 JSONObject json = new JSONObject(message.toString());
-                String type = json.optString("type");
                 System.out.println(json);
-                switch (type) {
-                    case "reset":
-                        prevFuelState = -1;
-                        prevShaping = -1;
-                        prevShapingExist = false;
-                        lunarThread.doStart();
-                        break;
-                    case "step":
-                        int action = json.optInt("action");
-                        lunarThread.doKeyDown(action);
-                        mqttBarrier.await();
-
-                        Log.i(TAG, "Waiting for drawBarrier to publish game state...");
-                        drawBarrier.await();
-                        lunarThread.doKeyUp(action);
+                if (mFirstStep && "step".equals(json.optString("type"))) {
+                    mFirstStep = false;
+                    Log.i(TAG, "First step " + (SystemClock.elapsedRealtime() - mStartTime)
+                            + " ms after start");
                 }
-
-                Log.i(TAG, "Publishing message to server side");
-                publishCurrentGameState();
+                mLockstep.handle(json);
             }
 
             @Override
@@ -0,0 +1,537 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import static com.example.android.lunarlander.LunarView.LunarThread.DIFFICULTY_MEDIUM;
+import static com.example.android.lunarlander.LunarView.LunarThread.STATE_LOSE;
+import static com.example.android.lunarlander.LunarView.LunarThread.STATE_RUNNING;
+import static com.example.android.lunarlander.LunarView.LunarThread.STATE_WIN;
+
+/**
+ * Many landers sharing one wide world with several landing pads, for
+ * training cooperative and competitive landing policies.
+ * <p>
+ * Every lander is an ordinary {@link LunarState} stepped by one
+ * {@link LunarSimulator}; before each tick its goal is set to the pad
+ * nearest to it, so the usual landing rules apply to whichever pad it comes
+ * down on. Landers are discs of {@link #RADIUS_FACTOR} times their width;
+ * two that touch both crash with {@link #LANDING_COLLISION}. Landed landers
+ * stay in place as obstacles. Collisions are found with a uniform grid of
+ * lander-sized cells rebuilt by counting sort every tick, so a tick costs
+ * time linear in the number of landers as long as they do not all crowd
+ * into a few cells.
+ * <p>
+ * Each lander's observation is the {@link RewardShaper} observation with x
+ * measured from its nearest pad, followed by its NEIGHBOURS nearest flying or
+ * landed neighbours within two grid cells, nearest first, as (present, dx,
+ * dy, ddx, ddy) scaled like the shaper's fields. Landers farther away are
+ * left out even when fewer than NEIGHBOURS are in range, and a crashed lander
+ * sees no neighbours at all. Rewards are the shaper's, also relative to the
+ * nearest pad. Not thread-safe; nothing is allocated per tick.
+ */
+final class LunarWorld {
+    /**
+     * Result of a tick in which a lander hit another one.
+     */
+    static final int LANDING_COLLISION = LunarSimulator.LANDING_TOO_FAST + 1;
+
+    /**
+     * Collision radius over lander width.
+     */
+    static final double RADIUS_FACTOR = 0.4;
+
+    /*
+     * Observation layout after the RewardShaper fields
+     */
+    static final int NEIGHBOURS = 4;
+    static final int NEIGHBOUR_FEATURES = 5;
+    static final int OBSERVATION_SIZE = RewardShaper.OBSERVATION_SIZE + NEIGHBOURS * NEIGHBOUR_FEATURES;
+
+    /**
+     * Range of the neighbour observation, in cells. Every lander within
+     * this distance lies in the cells this far around the observer's.
+     */
+    private static final int NEIGHBOUR_CELLS = 2;
+
+    /**
+     * Width of the screen x is measured in, as on the default device.
+     */
+    private static final int VIEW_WIDTH = LunarSimulator.DEFAULT_CANVAS_WIDTH;
+
+    private final LunarSimulator mSimulator;
+    private final Random mRandom;
+    private final int mCount;
+    private final LunarState[] mLanders;
+    private final RewardShaper[] mShapers;
+    private final int[] mLandings;
+    private final double[] mRewards;
+
+    /**
+     * Whether each lander was flying at the start of the current tick.
+     */
+    private final boolean[] mActive;
+
+    /**
+     * Observations of all landers, [lander][OBSERVATION_SIZE].
+     */
+    private final double[] mObservations;
+
+    /**
+     * Left edges of the pads, ascending.
+     */
+    private final int[] mPadX;
+
+    /**
+     * Lander copy moved so its nearest pad is centered, fed to the shapers.
+     */
+    private final LunarState mView = new LunarState();
+    private final double[] mShaped = new double[RewardShaper.OBSERVATION_SIZE];
+
+    /*
+     * Uniform grid: landers of cell c are mCellItems[mCellStart[c] ..
+     * mCellStart[c + 1]), built by counting sort
+     */
+    private final double mCellSize;
+    private final int mGridWidth;
+    private final int mGridHeight;
+    private final int[] mCellStart;
+    private final int[] mCellItems;
+    private final int[] mLanderCell;
+
+    /*
+     * Nearest neighbours found so far for one lander
+     */
+    private final int[] mNearest = new int[NEIGHBOURS];
+    private final double[] mNearestDistance = new double[NEIGHBOURS];
+
+    private int mDifficulty = DIFFICULTY_MEDIUM;
+    private int mRunning;
+    private long mPairTests;
+    private long mCollisions;
+
+    /**
+     * @param landers    number of landers
+     * @param pads       number of landing pads
+     * @param worldWidth width of the world; must leave room to spawn all
+     *                   landers in the top half
+     */
+    LunarWorld(int landers, int pads, int worldWidth, Random random) {
+        mRandom = random;
+        mSimulator = new LunarSimulator(random);
+        mCount = landers;
+        mLanders = new LunarState[landers];
+        mShapers = new RewardShaper[landers];
+        for (int i = 0; i < landers; i++) {
+            LunarState s = new LunarState();
+            s.mCanvasWidth = worldWidth;
+            s.mCanvasHeight = LunarSimulator.DEFAULT_CANVAS_HEIGHT;
+            s.mLanderWidth = LunarSimulator.DEFAULT_LANDER_WIDTH;
+            s.mLanderHeight = LunarSimulator.DEFAULT_LANDER_HEIGHT;
+            mLanders[i] = s;
+            mShapers[i] = new RewardShaper();
+        }
+        int perRow = (int) (worldWidth / (1.5 * LunarSimulator.DEFAULT_LANDER_WIDTH));
+        int rows = (int) (LunarSimulator.DEFAULT_CANVAS_HEIGHT / 2 / (1.5 * LunarSimulator.DEFAULT_LANDER_HEIGHT));
+        if (perRow * rows < landers) {
+            throw new IllegalArgumentException("World too narrow for " + landers + " landers");
+        }
+        mLandings = new int[landers];
+        mActive = new boolean[landers];
+        mRewards = new double[landers];
+        mObservations = new double[landers * OBSERVATION_SIZE];
+        mPadX = new int[pads];
+
+        mCellSize = Math.max(LunarSimulator.DEFAULT_LANDER_WIDTH, LunarSimulator.DEFAULT_LANDER_HEIGHT);
+        mGridWidth = (int) Math.ceil(worldWidth / mCellSize);
+        mGridHeight = (int) Math.ceil(LunarSimulator.DEFAULT_CANVAS_HEIGHT / mCellSize);
+        mCellStart = new int[mGridWidth * mGridHeight + 1];
+        mCellItems = new int[landers];
+        mLanderCell = new int[landers];
+    }
+
+    /**
+     * @param difficulty one of the LunarThread.DIFFICULTY_* constants, used
+     *                   from the next reset on
+     */
+    LunarWorld setDifficulty(int difficulty) {
+        mDifficulty = difficulty;
+        return this;
+    }
+
+    /**
+     * Starts a new episode: pads are laid out afresh and all landers
+     * spawned near the top, spread over the world.
+     */
+    void reset() {
+        int worldWidth = mLanders[0].mCanvasWidth;
+        int pads = mPadX.length;
+        double spacing = (double) worldWidth / pads;
+        for (int p = 0; p < pads; p++) {
+            int goalWidth = goalWidth();
+            double center = (p + 0.25 + 0.5 * mRandom.nextDouble()) * spacing;
+            mPadX[p] = (int) Math.max(0, Math.min(worldWidth - goalWidth, center - goalWidth / 2));
+        }
+
+        int perRow = (int) (worldWidth / (1.5 * LunarSimulator.DEFAULT_LANDER_WIDTH));
+        double slotWidth = (double) worldWidth / perRow;
+        double slotHeight = 1.5 * LunarSimulator.DEFAULT_LANDER_HEIGHT;
+        for (int i = 0; i < mCount; i++) {
+            LunarState s = mLanders[i];
+            s.mDifficulty = mDifficulty;
+            mSimulator.start(s);
+            s.mX = (i % perRow + 0.5 + 0.3 * (mRandom.nextDouble() - 0.5)) * slotWidth;
+            s.mY = s.mCanvasHeight - s.mLanderHeight / 2 - (i / perRow) * slotHeight;
+            mLandings[i] = LunarSimulator.LANDING_NONE;
+            mActive[i] = true;
+            mShapers[i].reset();
+        }
+        mRunning = mCount;
+        buildGrid();
+        for (int i = 0; i < mCount; i++) {
+            aimAtNearestPad(mLanders[i]);
+            mRewards[i] = shape(i);
+        }
+        observeNeighbours();
+    }
+
+    /**
+     * Plays one tick. Landers that are done ignore their action.
+     *
+     * @param actions one LunarSimulator.ACTION_* key code per lander
+     */
+    void step(int[] actions) {
+        for (int i = 0; i < mCount; i++) {
+            LunarState s = mLanders[i];
+            mRewards[i] = 0;
+            mLandings[i] = LunarSimulator.LANDING_NONE;
+            mActive[i] = s.mMode == STATE_RUNNING;
+            if (!mActive[i]) continue;
+            aimAtNearestPad(s);
+            int landing = mSimulator.step(s, actions[i]);
+            if (landing == LunarSimulator.LANDING_HYPERSPACE) {
+                // back to the top, like the single-lander game
+                double x = s.mX;
+                mSimulator.start(s);
+                s.mX = x;
+                aimAtNearestPad(s);
+            }
+            mLandings[i] = landing;
+        }
+
+        buildGrid();
+        collide();
+
+        for (int i = 0; i < mCount; i++) {
+            // done landers already got their terminal reward
+            if (!mActive[i]) continue;
+            mRewards[i] = shape(i);
+            if (mLanders[i].mMode != STATE_RUNNING) mRunning--;
+        }
+        observeNeighbours();
+    }
+
+    /**
+     * Crashes every pair of touching landers where at least one is flying.
+     */
+    private void collide() {
+        for (int i = 0; i < mCount; i++) {
+            LunarState a = mLanders[i];
+            int cell = mLanderCell[i];
+            if (cell < 0) continue;
+            int cx = cell % mGridWidth;
+            int cy = cell / mGridWidth;
+            for (int y = Math.max(0, cy - 1); y <= Math.min(mGridHeight - 1, cy + 1); y++) {
+                for (int x = Math.max(0, cx - 1); x <= Math.min(mGridWidth - 1, cx + 1); x++) {
+                    int c = y * mGridWidth + x;
+                    for (int k = mCellStart[c]; k < mCellStart[c + 1]; k++) {
+                        int j = mCellItems[k];
+                        if (j <= i) continue;
+                        LunarState b = mLanders[j];
+                        if (a.mMode == STATE_LOSE || b.mMode == STATE_LOSE) continue;
+                        mPairTests++;
+                        double dx = a.mX - b.mX;
+                        double dy = a.mY - b.mY;
+                        double reach = RADIUS_FACTOR * (a.mLanderWidth + b.mLanderWidth);
+                        if (dx * dx + dy * dy < reach * reach
+                                && (a.mMode == STATE_RUNNING || b.mMode == STATE_RUNNING)) {
+                            crash(i);
+                            crash(j);
+                            mCollisions++;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private void crash(int i) {
+        LunarState s = mLanders[i];
+        if (s.mMode == STATE_LOSE) return;
+        if (s.mMode == STATE_WIN && !mActive[i]) {
+            // knocked off the pad after landing; its win reward was paid
+            s.mMode = STATE_LOSE;
+            return;
+        }
+        s.mMode = STATE_LOSE;
+        s.mWinsInARow = 0;
+        s.mEngineFiring = false;
+        s.mRotating = 0;
+        mLandings[i] = LANDING_COLLISION;
+    }
+
+    /**
+     * Sorts the landers that are still in the world (flying or landed) into
+     * grid cells; crashed ones get cell -1.
+     */
+    private void buildGrid() {
+        int cells = mGridWidth * mGridHeight;
+        Arrays.fill(mCellStart, 0);
+        for (int i = 0; i < mCount; i++) {
+            LunarState s = mLanders[i];
+            if (s.mMode == STATE_LOSE) {
+                mLanderCell[i] = -1;
+                continue;
+            }
+            int cx = clamp((int) (s.mX / mCellSize), mGridWidth);
+            int cy = clamp((int) (s.mY / mCellSize), mGridHeight);
+            int cell = cy * mGridWidth + cx;
+            mLanderCell[i] = cell;
+            mCellStart[cell + 1]++;
+        }
+        for (int c = 0; c < cells; c++) mCellStart[c + 1] += mCellStart[c];
+        for (int i = 0; i < mCount; i++) {
+            int cell = mLanderCell[i];
+            if (cell >= 0) mCellItems[mCellStart[cell]++] = i;
+        }
+        // the fill loop advanced every start to the next cell's start
+        for (int c = cells; c > 0; c--) mCellStart[c] = mCellStart[c - 1];
+        mCellStart[0] = 0;
+    }
+
+    private static int clamp(int cell, int cells) {
+        return cell < 0 ? 0 : cell >= cells ? cells - 1 : cell;
+    }
+
+    /**
+     * Fills the neighbour part of every observation from the grid.
+     */
+    private void observeNeighbours() {
+        double xScale = VIEW_WIDTH / 2;
+        double yScale = LunarSimulator.DEFAULT_CANVAS_HEIGHT;
+        double range = NEIGHBOUR_CELLS * mCellSize;
+        for (int i = 0; i < mCount; i++) {
+            LunarState a = mLanders[i];
+            int found = 0;
+            int cell = mLanderCell[i];
+            // crashed landers see nothing, also those that collided this tick
+            if (cell >= 0 && a.mMode != STATE_LOSE) {
+                int cx = cell % mGridWidth;
+                int cy = cell / mGridWidth;
+                for (int y = Math.max(0, cy - NEIGHBOUR_CELLS);
+                     y <= Math.min(mGridHeight - 1, cy + NEIGHBOUR_CELLS); y++) {
+                    for (int x = Math.max(0, cx - NEIGHBOUR_CELLS);
+                         x <= Math.min(mGridWidth - 1, cx + NEIGHBOUR_CELLS); x++) {
+                        int c = y * mGridWidth + x;
+                        for (int k = mCellStart[c]; k < mCellStart[c + 1]; k++) {
+                            int j = mCellItems[k];
+                            if (j == i || mLanders[j].mMode == STATE_LOSE) continue;
+                            double dx = mLanders[j].mX - a.mX;
+                            double dy = mLanders[j].mY - a.mY;
+                            double d = dx * dx + dy * dy;
+                            // the window's corners reach past the range
+                            if (d <= range * range) found = insertNearest(j, d, found);
+                        }
+                    }
+                }
+            }
+            int o = i * OBSERVATION_SIZE + RewardShaper.OBSERVATION_SIZE;
+            for (int n = 0; n < NEIGHBOURS; n++, o += NEIGHBOUR_FEATURES) {
+                if (n < found) {
+                    LunarState b = mLanders[mNearest[n]];
+                    mObservations[o] = 1;
+                    mObservations[o + 1] = (b.mX - a.mX) / xScale;
+                    mObservations[o + 2] = (b.mY - a.mY) / yScale;
+                    mObservations[o + 3] = (b.mDX - a.mDX) / 500;
+                    mObservations[o + 4] = (b.mDY - a.mDY) / 500;
+                } else {
+                    for (int f = 0; f < NEIGHBOUR_FEATURES; f++) mObservations[o + f] = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds lander {@code j} at squared distance {@code d} to the sorted
+     * nearest list if it is among the NEIGHBOURS closest.
+     *
+     * @return the new list length
+     */
+    private int insertNearest(int j, double d, int found) {
+        if (found == NEIGHBOURS && d >= mNearestDistance[NEIGHBOURS - 1]) return found;
+        int k = found < NEIGHBOURS ? found++ : NEIGHBOURS - 1;
+        while (k > 0 && mNearestDistance[k - 1] > d) {
+            mNearest[k] = mNearest[k - 1];
+            mNearestDistance[k] = mNearestDistance[k - 1];
+            k--;
+        }
+        mNearest[k] = j;
+        mNearestDistance[k] = d;
+        return found;
+    }
+
+    /**
+     * Points the lander's goal at the pad whose center is nearest in x.
+     */
+    private void aimAtNearestPad(LunarState s) {
+        int best = 0;
+        double bestDistance = Double.MAX_VALUE;
+        for (int p = 0; p < mPadX.length; p++) {
+            double d = Math.abs(mPadX[p] + s.mGoalWidth / 2.0 - s.mX);
+            if (d < bestDistance) {
+                bestDistance = d;
+                best = p;
+            }
+        }
+        s.mGoalX = mPadX[best];
+    }
+
+    /**
+     * Runs lander {@code i} through its shaper as seen from its pad, and
+     * writes the first part of its observation.
+     *
+     * @return the shaped reward
+     */
+    private double shape(int i) {
+        LunarState s = mLanders[i];
+        mView.set(s);
+        mView.mX = s.mX - (s.mGoalX + s.mGoalWidth / 2.0) + VIEW_WIDTH / 2.0;
+        double reward = mShapers[i].update(mView, VIEW_WIDTH, s.mCanvasHeight, mShaped);
+        System.arraycopy(mShaped, 0, mObservations, i * OBSERVATION_SIZE, mShaped.length);
+        return reward;
+    }
+
+    private int goalWidth() {
+        int width = (int) (LunarSimulator.DEFAULT_LANDER_WIDTH * LunarView.LunarThread.TARGET_WIDTH);
+        if (mDifficulty == LunarView.LunarThread.DIFFICULTY_EASY) return width * 4 / 3;
+        if (mDifficulty == LunarView.LunarThread.DIFFICULTY_HARD) return width * 3 / 4;
+        return width;
+    }
+
+    int size() {
+        return mCount;
+    }
+
+    /**
+     * @return the state of lander {@code i}, owned by the world
+     */
+    LunarState lander(int i) {
+        return mLanders[i];
+    }
+
+    /**
+     * @return every lander's observation, [lander][OBSERVATION_SIZE]; owned
+     * by the world
+     */
+    double[] observations() {
+        return mObservations;
+    }
+
+    /**
+     * @return the reward of lander {@code i} for the last tick, 0 once it is
+     * done
+     */
+    double reward(int i) {
+        return mRewards[i];
+    }
+
+    boolean isDone(int i) {
+        return mLanders[i].mMode != STATE_RUNNING;
+    }
+
+    /**
+     * @return the LunarSimulator.LANDING_* result or LANDING_COLLISION of
+     * lander {@code i}'s last tick; LANDING_NONE while flying and after it
+     * is done
+     */
+    int landing(int i) {
+        return mLandings[i];
+    }
+
+    /**
+     * @return the number of landers still flying
+     */
+    int running() {
+        return mRunning;
+    }
+
+    /**
+     * @return left edges of the pads, owned by the world
+     */
+    int[] pads() {
+        return mPadX;
+    }
+
+    long pairTests() {
+        return mPairTests;
+    }
+
+    long collisions() {
+        return mCollisions;
+    }
+
+    /**
+     * Plays episodes with a random policy at several world sizes, with the
+     * world widened in proportion, and reports the cost per lander-tick and
+     * how many pairs the broad phase tested: {@code [episodes]}.
+     */
+    public static void main(String[] args) {
+        int episodes = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        Random random = new Random(42);
+        for (int landers : new int[]{100, 400, 1600, 6400}) {
+            int width = landers * LunarSimulator.DEFAULT_LANDER_WIDTH;
+            LunarWorld world = new LunarWorld(landers, Math.max(1, landers / 32), width, random);
+            int[] actions = new int[landers];
+            long ticks = 0;
+            long wins = 0;
+            long start = System.nanoTime();
+            for (int e = 0; e < episodes; e++) {
+                world.reset();
+                while (world.running() > 0) {
+                    for (int i = 0; i < landers; i++) {
+                        double u = random.nextDouble();
+                        actions[i] = u < 0.7 ? LunarSimulator.ACTION_FIRE : u < 0.8 ? LunarSimulator.ACTION_LEFT
+                                : u < 0.9 ? LunarSimulator.ACTION_RIGHT : LunarSimulator.ACTION_NONE;
+                    }
+                    world.step(actions);
+                    ticks += world.running();
+                    for (int i = 0; i < landers; i++) {
+                        if (world.landing(i) == LunarSimulator.LANDING_WIN) wins++;
+                    }
+                }
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.println(String.format(Locale.US,
+                    "%5d landers: %6.0f ns per lander-tick, %.2f pair tests per lander-tick, "
+                            + "%d collisions, %d wins in %d episodes", landers, 1e9 * seconds / ticks,
+                    (double) world.pairTests() / ticks, world.collisions(), wins, episodes));
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures the whole trainer loop the way the device runs it: trainer
+ * command, the MqttThread's {@link LockstepHandler}, one physics tick, state
+ * message back to the trainer. Runs headless on a desktop JVM against an
+ * in-process {@link LocalMqttBroker} (or any broker given on the command
+ * line), so transports and message formats can be compared reproducibly.
+ * <p>
+ * The device side is the app's own command handling on an MqttAsyncClient
+ * set up as the MqttThread sets it up, playing a {@link LunarEnvironment}
+ * in place of the LunarThread. The LunarThread's handshake and drawing are
+ * left out; an optional fixed frame time stands in for them.
+ * <p>
+ * Arguments: [steps] [device qos] [trainer qos] [frame ms] [broker uri].
+ * Defaults are 20000 steps, the app's QoS 2 for state messages, QoS 0 for
+ * commands as the Python client sends them, an unthrottled frame and the
+ * embedded broker. Episodes are truncated after MAX_STEPS and auto-reset.
+ */
+final class MqttLoopBenchmark {
+    private static final String TAG = MqttLoopBenchmark.class.getSimpleName();
+
+    private static final int SCREEN_WIDTH = LunarSimulator.DEFAULT_CANVAS_WIDTH;
+    private static final int SCREEN_HEIGHT = LunarSimulator.DEFAULT_CANVAS_HEIGHT;
+    private static final int WARMUP_STEPS = 2000;
+    private static final int MAX_STEPS = 1000;
+
+    /**
+     * The LunarThread without the surface: one environment tick per step.
+     */
+    static final class HeadlessGame implements LockstepHandler.Game {
+        private final LunarEnvironment mEnvironment = new LunarEnvironment(new Random(42));
+        private final EpisodeAnalytics mAnalytics = new EpisodeAnalytics();
+        private final long mFrameNanos;
+
+        /**
+         * @param frameNanos time one frame takes to draw and post, 0 for none
+         */
+        HeadlessGame(long frameNanos) {
+            mFrameNanos = frameNanos;
+            mEnvironment.setGeometry(SCREEN_WIDTH, SCREEN_HEIGHT,
+                    LunarSimulator.DEFAULT_LANDER_WIDTH, LunarSimulator.DEFAULT_LANDER_HEIGHT)
+                    .setAnalytics(mAnalytics);
+        }
+
+        @Override
+        public void start() {
+            mEnvironment.reset();
+        }
+
+        @Override
+        public void step(int action) {
+            long frameStart = System.nanoTime();
+            mEnvironment.step(action);
+            if (mFrameNanos > 0) {
+                // stands in for drawing and waiting for vsync in unlockCanvasAndPost
+                long remaining;
+                while ((remaining = frameStart + mFrameNanos - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(remaining);
+                }
+            }
+        }
+
+        @Override
+        public void readState(LunarState out) {
+            out.set(mEnvironment.state());
+        }
+
+        @Override
+        public EpisodeAnalytics getAnalytics() {
+            return mAnalytics;
+        }
+
+        @Override
+        public int getModelVersion() {
+            return -1;
+        }
+    }
+
+    /**
+     * The MqttThread callback: hands every command to the handler.
+     */
+    private static final class DeviceCallback implements MqttCallback {
+        private final LockstepHandler mHandler;
+
+        DeviceCallback(LockstepHandler handler) {
+            mHandler = handler;
+        }
+
+        @Override
+        public void messageArrived(String topic, MqttMessage message) throws Exception {
+            mHandler.handle(new JSONObject(message.toString()));
+        }
+
+        @Override
+        public void connectionLost(Throwable cause) {
+            System.out.println(TAG + ": device connection lost: " + cause);
+        }
+
+        @Override
+        public void deliveryComplete(IMqttDeliveryToken token) {
+        }
+    }
+
+    /**
+     * Collects the replies the trainer is waiting for.
+     */
+    private static final class TrainerCallback implements MqttCallback {
+        final BlockingQueue<byte[]> mReplies = new ArrayBlockingQueue<>(16);
+
+        @Override
+        public void messageArrived(String topic, MqttMessage message) throws Exception {
+            mReplies.put(message.getPayload());
+        }
+
+        @Override
+        public void connectionLost(Throwable cause) {
+            System.out.println(TAG + ": trainer connection lost: " + cause);
+        }
+
+        @Override
+        public void deliveryComplete(IMqttDeliveryToken token) {
+        }
+    }
+
+    private static MqttClient connect(String uri, String clientId) throws MqttException {
+        MqttClient client = new MqttClient(uri, clientId, new MemoryPersistence());
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setCleanSession(true);
+        client.connect(options);
+        return client;
+    }
+
+    private static byte[] command(MqttClient trainer, TrainerCallback replies, JSONObject command, int qos)
+            throws Exception {
+        MqttMessage message = new MqttMessage(command.toString().getBytes("UTF-8"));
+        message.setQos(qos);
+        trainer.publish(LockstepHandler.COMMAND_TOPIC, message);
+        byte[] reply = replies.mReplies.poll(10, TimeUnit.SECONDS);
+        if (reply == null) throw new IllegalStateException("No reply to " + command);
+        return reply;
+    }
+
+    /**
+     * A simple scripted pilot: fire whenever falling faster than a
+     * threshold, otherwise coast.
+     */
+    private static int act(JSONObject reply) {
+        JSONObject state = reply.optJSONObject("state");
+        double dy = state == null ? 0 : state.optDouble(LunarView.LunarThread.KEY_DY, 0);
+        return dy < -0.1 ? LunarSimulator.ACTION_FIRE : LunarSimulator.ACTION_NONE;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int steps = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int deviceQos = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        int trainerQos = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+        double frameMillis = args.length > 3 ? Double.parseDouble(args[3]) : 0;
+
+        LocalMqttBroker broker = null;
+        String uri;
+        if (args.length > 4) {
+            uri = args[4];
+        } else {
+            broker = new LocalMqttBroker(0);
+            broker.start();
+            uri = broker.getUri();
+        }
+
+        MqttConnectOptions deviceOptions = new MqttConnectOptions();
+        deviceOptions.setCleanSession(true);
+        deviceOptions.setMaxInflight(LunarView.MqttThread.MAX_INFLIGHT);
+        MqttAsyncClient device = new MqttAsyncClient(uri, TAG + "-device", new MemoryPersistence());
+        device.setCallback(new DeviceCallback(new LockstepHandler(device,
+                new HeadlessGame((long) (frameMillis * 1e6)), SCREEN_WIDTH, SCREEN_HEIGHT)
+                .setQos(deviceQos)));
+        device.connect(deviceOptions).waitForCompletion();
+        device.subscribe(LockstepHandler.COMMAND_TOPIC, 1).waitForCompletion();
+
+        MqttClient trainer = connect(uri, TAG + "-trainer");
+        TrainerCallback replies = new TrainerCallback();
+        trainer.setCallback(replies);
+        trainer.subscribe(LockstepHandler.STATE_TOPIC, trainerQos);
+
+        JSONObject reset = new JSONObject().put("type", "reset").put("max_steps", MAX_STEPS)
+                .put("auto_reset", true);
+        JSONObject step = new JSONObject().put("type", "step");
+        long[] latencies = new long[steps];
+        long bytes = 0;
+        int episodes = 0;
+        JSONObject reply = new JSONObject(new String(command(trainer, replies, reset, trainerQos), "UTF-8"));
+        long start = 0;
+        for (int i = -WARMUP_STEPS; i < steps; i++) {
+            if (i == 0) start = System.nanoTime();
+            step.put("action", act(reply));
+            long t0 = System.nanoTime();
+            byte[] payload = command(trainer, replies, step, trainerQos);
+            if (i >= 0) {
+                latencies[i] = System.nanoTime() - t0;
+                bytes += payload.length;
+            }
+            reply = new JSONObject(new String(payload, "UTF-8"));
+            if (reply.has("reset")) {
+                reply = reply.getJSONObject("reset");
+                if (i >= 0) episodes++;
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        trainer.disconnect();
+        device.disconnect().waitForCompletion();
+        device.close();
+        if (broker != null) broker.close();
+
+        Arrays.sort(latencies);
+        System.out.println(String.format(Locale.US,
+                "%s: %d steps, %d episodes in %.2f s: %.0f steps/s, latency p50 %.0f us, p99 %.0f us,"
+                        + " p999 %.0f us, %.0f bytes/state (device qos %d, trainer qos %d, frame %.1f ms)",
+                TAG, steps, episodes, seconds, steps / seconds,
+                percentile(latencies, 0.5) / 1e3, percentile(latencies, 0.99) / 1e3,
+                percentile(latencies, 0.999) / 1e3, (double) bytes / steps,
+                deviceQos, trainerQos, frameMillis));
+    }
+
+    private static long percentile(long[] sorted, double q) {
+        return sorted[(int) Math.min(sorted.length - 1, Math.round(q * (sorted.length - 1)))];
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * A preallocated batch of ready-to-train n-step transitions, filled by one or
+ * more {@link NStepReturns} and encoded for upload as one compressed
+ * message.
+ * <p>
+ * Each transition is the observation an action was chosen from, the action,
+ * the discounted reward over the next n ticks or fewer, the observation to
+ * bootstrap from and the factor its value is to be scaled by: gamma to the
+ * power of the ticks the return covers, or 0 when the episode ended within
+ * them. A learner's target is then simply
+ * {@code return + discount * max Q(next)}. Episodes that end add a summary
+ * when the returns were asked to track them.
+ * <p>
+ * Encoded form, little-endian, then zlib-deflated: int magic "LNST", int
+ * actor id, int model version, int n, float32 gamma, int count c, int
+ * observation size k, int episodes e, float32 observations [c][k], byte
+ * actions [c] (indices into LunarSimulator.ACTIONS), float32 returns [c],
+ * float32 next observations [c][k], float32 discounts [c], long episode
+ * numbers [e], int lengths [e], float32 episode returns [e], float32
+ * discounted episode returns [e].
+ */
+final class NStepBatch {
+    static final int MAGIC = 0x4C4E5354;
+    private static final int HEADER_SIZE = 32;
+    private static final int EPISODE_SIZE = 20;
+
+    private final int mCapacity;
+    private final int mObservationSize;
+    private final float[] mObservations;
+    private final byte[] mActions;
+    private final float[] mReturns;
+    private final float[] mNextObservations;
+    private final float[] mDiscounts;
+    private final long[] mEpisodes;
+    private final int[] mLengths;
+    private final float[] mEpisodeReturns;
+    private final float[] mDiscountedReturns;
+    private final ByteBuffer mEncoded;
+    private byte[] mCompressed;
+
+    private int mCount;
+    private int mEpisodeCount;
+    private int mActorId;
+    private int mModelVersion;
+    private int mSteps;
+    private double mGamma;
+
+    /**
+     * @param capacity most transitions, and episode summaries, per batch
+     */
+    NStepBatch(int capacity, int observationSize) {
+        mCapacity = capacity;
+        mObservationSize = observationSize;
+        mObservations = new float[capacity * observationSize];
+        mActions = new byte[capacity];
+        mReturns = new float[capacity];
+        mNextObservations = new float[capacity * observationSize];
+        mDiscounts = new float[capacity];
+        mEpisodes = new long[capacity];
+        mLengths = new int[capacity];
+        mEpisodeReturns = new float[capacity];
+        mDiscountedReturns = new float[capacity];
+        mEncoded = ByteBuffer.allocate(HEADER_SIZE + capacity * (8 * observationSize + 9 + EPISODE_SIZE))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        mCompressed = new byte[mEncoded.capacity() / 2];
+    }
+
+    /**
+     * Empties the batch for transitions computed with {@code steps} and
+     * {@code gamma}.
+     */
+    void begin(int actorId, int modelVersion, int steps, double gamma) {
+        mActorId = actorId;
+        mModelVersion = modelVersion;
+        mSteps = steps;
+        mGamma = gamma;
+        mCount = 0;
+        mEpisodeCount = 0;
+    }
+
+    int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * @return whether {@code transitions} more transitions and an episode
+     * summary still fit
+     */
+    boolean hasRoom(int transitions) {
+        return mCount + transitions <= mCapacity && mEpisodeCount < mCapacity;
+    }
+
+    /**
+     * Appends one n-step transition.
+     *
+     * @param action   index into LunarSimulator.ACTIONS
+     * @param discount gamma to the power of the ticks covered, 0 if terminal
+     */
+    void add(double[] observation, int action, double reward, double[] nextObservation,
+             double discount) {
+        if (mCount == mCapacity) throw new IllegalStateException("Batch is full");
+        int offset = mCount * mObservationSize;
+        for (int i = 0; i < mObservationSize; i++) {
+            mObservations[offset + i] = (float) observation[i];
+            mNextObservations[offset + i] = (float) nextObservation[i];
+        }
+        mActions[mCount] = (byte) action;
+        mReturns[mCount] = (float) reward;
+        mDiscounts[mCount] = (float) discount;
+        mCount++;
+    }
+
+    /**
+     * Appends the summary of an episode that has ended.
+     */
+    void addEpisode(long episode, int length, double reward, double discountedReward) {
+        if (mEpisodeCount == mCapacity) throw new IllegalStateException("Batch is full");
+        mEpisodes[mEpisodeCount] = episode;
+        mLengths[mEpisodeCount] = length;
+        mEpisodeReturns[mEpisodeCount] = (float) reward;
+        mDiscountedReturns[mEpisodeCount] = (float) discountedReward;
+        mEpisodeCount++;
+    }
+
+    int size() {
+        return mCount;
+    }
+
+    int episodes() {
+        return mEpisodeCount;
+    }
+
+    boolean isEmpty() {
+        return mCount == 0 && mEpisodeCount == 0;
+    }
+
+    /**
+     * @return the batch encoded and compressed, in a new array of exactly the
+     * message size (MQTT keeps it until delivered)
+     */
+    byte[] encode(Deflater deflater) {
+        ByteBuffer out = mEncoded;
+        out.clear();
+        out.putInt(MAGIC).putInt(mActorId).putInt(mModelVersion).putInt(mSteps)
+                .putFloat((float) mGamma).putInt(mCount).putInt(mObservationSize)
+                .putInt(mEpisodeCount);
+        int rows = mCount * mObservationSize;
+        out.asFloatBuffer().put(mObservations, 0, rows);
+        out.position(out.position() + rows * 4);
+        out.put(mActions, 0, mCount);
+        out.asFloatBuffer().put(mReturns, 0, mCount);
+        out.position(out.position() + mCount * 4);
+        out.asFloatBuffer().put(mNextObservations, 0, rows);
+        out.position(out.position() + rows * 4);
+        out.asFloatBuffer().put(mDiscounts, 0, mCount);
+        out.position(out.position() + mCount * 4);
+        out.asLongBuffer().put(mEpisodes, 0, mEpisodeCount);
+        out.position(out.position() + mEpisodeCount * 8);
+        out.asIntBuffer().put(mLengths, 0, mEpisodeCount);
+        out.position(out.position() + mEpisodeCount * 4);
+        out.asFloatBuffer().put(mEpisodeReturns, 0, mEpisodeCount);
+        out.position(out.position() + mEpisodeCount * 4);
+        out.asFloatBuffer().put(mDiscountedReturns, 0, mEpisodeCount);
+        out.position(out.position() + mEpisodeCount * 4);
+
+        deflater.reset();
+        deflater.setInput(out.array(), 0, out.position());
+        deflater.finish();
+        int total = 0;
+        while (!deflater.finished()) {
+            if (total == mCompressed.length) {
+                byte[] grown = new byte[mCompressed.length * 2];
+                System.arraycopy(mCompressed, 0, grown, 0, total);
+                mCompressed = grown;
+            }
+            total += deflater.deflate(mCompressed, total, mCompressed.length - total);
+        }
+        return Arrays.copyOf(mCompressed, total);
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+/**
+ * Turns one environment's stream of one-step transitions into n-step ones,
+ * so the learner gets ready-to-train tuples instead of stitching episodes
+ * back together.
+ * <p>
+ * A ring keeps the last n observations, actions and rewards. Once it is
+ * full, every tick completes the transition at its oldest entry: the
+ * discounted sum of the n rewards since, bootstrapping from the newest
+ * observation with gamma^n. When the episode ends the remaining entries are
+ * all completed at once with nothing to bootstrap from; when it is cut short
+ * instead ({@link #flush}) they bootstrap from the last observation with
+ * the power of gamma they cover. Optionally the episode's total and
+ * discounted return are added to the batch as it ends.
+ * <p>
+ * Not thread-safe; one per environment, fed from its physics thread.
+ */
+final class NStepReturns {
+    private final int mSteps;
+    private final double mGamma;
+    private final int mObservationSize;
+    private final boolean mEpisodeReturns;
+
+    /*
+     * The ring: the observation each pending action was chosen from, the
+     * action and the reward it got, oldest at mHead
+     */
+    private final double[][] mObservations;
+    private final int[] mActions;
+    private final double[] mRewards;
+    private int mHead;
+    private int mPending;
+
+    /**
+     * The observation the next action is chosen from.
+     */
+    private final double[] mLast;
+    private boolean mStarted;
+
+    private long mEpisode;
+    private int mLength;
+    private double mEpisodeReturn;
+    private double mDiscountedReturn;
+    private double mDiscount;
+
+    /**
+     * @param steps          the n of the returns
+     * @param gamma          discount per tick
+     * @param episodeReturns also add a summary of every episode that ends
+     */
+    NStepReturns(int steps, double gamma, int observationSize, boolean episodeReturns) {
+        if (steps < 1) throw new IllegalArgumentException("Need at least one step");
+        mSteps = steps;
+        mGamma = gamma;
+        mObservationSize = observationSize;
+        mEpisodeReturns = episodeReturns;
+        mObservations = new double[steps][observationSize];
+        mActions = new int[steps];
+        mRewards = new double[steps];
+        mLast = new double[observationSize];
+    }
+
+    int getSteps() {
+        return mSteps;
+    }
+
+    double getGamma() {
+        return mGamma;
+    }
+
+    boolean hasEpisodeReturns() {
+        return mEpisodeReturns;
+    }
+
+    /**
+     * @return whether an episode has begun and not yet ended or been flushed
+     */
+    boolean isStarted() {
+        return mStarted;
+    }
+
+    /**
+     * Starts an episode from {@code observation}. Transitions still pending
+     * from the last one are dropped; {@link #flush} them first to keep them.
+     */
+    void begin(long episode, double[] observation) {
+        mEpisode = episode;
+        mLength = 0;
+        mEpisodeReturn = 0;
+        mDiscountedReturn = 0;
+        mDiscount = 1;
+        mHead = 0;
+        mPending = 0;
+        System.arraycopy(observation, 0, mLast, 0, mObservationSize);
+        mStarted = true;
+    }
+
+    /**
+     * Takes in one tick and adds the transitions it completes to {@code out},
+     * which must have room for n of them and an episode summary, see
+     * {@link NStepBatch#hasRoom}.
+     *
+     * @param action index into LunarSimulator.ACTIONS
+     * @return the number of transitions added
+     */
+    int add(int action, double reward, boolean done, double[] nextObservation, NStepBatch out) {
+        if (!mStarted) throw new IllegalStateException("No episode begun");
+        int slot = (mHead + mPending) % mSteps;
+        System.arraycopy(mLast, 0, mObservations[slot], 0, mObservationSize);
+        mActions[slot] = action;
+        mRewards[slot] = reward;
+        mPending++;
+        System.arraycopy(nextObservation, 0, mLast, 0, mObservationSize);
+
+        mLength++;
+        mEpisodeReturn += reward;
+        mDiscountedReturn += mDiscount * reward;
+        mDiscount *= mGamma;
+
+        if (done) {
+            int added = drain(false, out);
+            if (mEpisodeReturns) out.addEpisode(mEpisode, mLength, mEpisodeReturn, mDiscountedReturn);
+            mStarted = false;
+            return added;
+        }
+        if (mPending < mSteps) return 0;
+        emit(true, out);
+        return 1;
+    }
+
+    /**
+     * Adds the transitions still pending for an episode that stops without
+     * ending, each bootstrapping from the last observation.
+     *
+     * @return the number of transitions added
+     */
+    int flush(NStepBatch out) {
+        int added = drain(true, out);
+        mStarted = false;
+        return added;
+    }
+
+    private int drain(boolean bootstrap, NStepBatch out) {
+        int added = mPending;
+        while (mPending > 0) emit(bootstrap, out);
+        return added;
+    }
+
+    /**
+     * Completes the oldest pending transition with the rewards up to now.
+     */
+    private void emit(boolean bootstrap, NStepBatch out) {
+        double total = 0;
+        double discount = 1;
+        for (int i = 0; i < mPending; i++) {
+            total += discount * mRewards[(mHead + i) % mSteps];
+            discount *= mGamma;
+        }
+        out.add(mObservations[mHead], mActions[mHead], total, mLast, bootstrap ? discount : 0);
+        mHead = (mHead + 1) % mSteps;
+        mPending--;
+    }
+}
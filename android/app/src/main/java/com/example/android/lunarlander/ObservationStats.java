@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Running statistics of every observation field the MqttThread publishes,
+ * plus the reward, so that trainers can normalize by the real distributions
+ * instead of the fixed scale factors.
+ * <p>
+ * Updated from the thread that publishes the game state; not thread-safe.
+ * Instances from parallel environments can be combined with {@link #merge},
+ * and {@link #toJson} exports the raw sums and histograms so that instances
+ * from different devices can be merged by the trainer too.
+ */
+final class ObservationStats {
+    static final int FIELD_X = 0;
+    static final int FIELD_Y = 1;
+    static final int FIELD_DX = 2;
+    static final int FIELD_DY = 3;
+    static final int FIELD_HEADING = 4;
+    static final int FIELD_REWARD = 5;
+
+    /**
+     * JSON keys of the fields, matching the keys of the state message.
+     */
+    static final String[] FIELD_NAMES = {"mX", "mY", "mDX", "mDY", "mHeading", "reward"};
+
+    /**
+     * Number of histogram bins per field.
+     */
+    private static final int BINS = 256;
+
+    private final RunningStats[] mStats = {
+            // published x is centered and divided by half the screen width
+            new RunningStats(-2, 2, BINS),
+            // published y is height above the pad over the screen height
+            new RunningStats(-0.1, 1.1, BINS),
+            // published velocities are divided by 500
+            new RunningStats(-1, 1, BINS),
+            new RunningStats(-1, 1, BINS),
+            // published heading is in radians
+            new RunningStats(0, 2 * Math.PI, BINS),
+            // shaping differences, with the +-100 terminal rewards at the ends
+            new RunningStats(-110, 110, BINS),
+    };
+
+    /**
+     * Records one published observation and the reward that came with it.
+     */
+    void add(double x, double y, double dx, double dy, double heading, double reward) {
+        mStats[FIELD_X].add(x);
+        mStats[FIELD_Y].add(y);
+        mStats[FIELD_DX].add(dx);
+        mStats[FIELD_DY].add(dy);
+        mStats[FIELD_HEADING].add(heading);
+        mStats[FIELD_REWARD].add(reward);
+    }
+
+    /**
+     * @param field one of the FIELD_* constants
+     */
+    RunningStats get(int field) {
+        return mStats[field];
+    }
+
+    /**
+     * @param field one of the FIELD_* constants
+     * @return value standardized by the running mean and deviation of field
+     */
+    double normalize(int field, double value) {
+        return mStats[field].normalize(value);
+    }
+
+    void merge(ObservationStats other) {
+        for (int i = 0; i < mStats.length; i++) mStats[i].merge(other.mStats[i]);
+    }
+
+    void reset() {
+        for (RunningStats stats : mStats) stats.reset();
+    }
+
+    /**
+     * Exports every field as count/mean/m2/min/max and its histogram, which is
+     * enough to merge, plus std and a few quantiles for convenience.
+     */
+    JSONObject toJson() throws JSONException {
+        JSONObject fields = new JSONObject();
+        for (int i = 0; i < mStats.length; i++) {
+            RunningStats s = mStats[i];
+            JSONObject field = new JSONObject()
+                    .put("count", s.count())
+                    .put("mean", s.mean())
+                    .put("m2", s.m2())
+                    .put("std", s.stdDev())
+                    .put("low", s.low())
+                    .put("high", s.high());
+            if (s.count() > 0) {
+                field.put("min", s.min())
+                        .put("max", s.max())
+                        .put("p05", s.quantile(0.05))
+                        .put("p50", s.quantile(0.5))
+                        .put("p95", s.quantile(0.95));
+            }
+            JSONArray bins = new JSONArray();
+            for (long count : s.bins()) bins.put(count);
+            field.put("bins", bins);
+            fields.put(FIELD_NAMES[i], field);
+        }
+        return new JSONObject().put("fields", fields);
+    }
+}
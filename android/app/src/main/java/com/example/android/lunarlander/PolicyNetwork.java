@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+/**
+ * A fully connected Q-network evaluated on the CPU, one observation at a
+ * time. The DQN in dqn_lunar_lander.py is 6-256-256-512-4 with ReLU, ReLU,
+ * tanh and a linear output; other shapes load too.
+ * <p>
+ * Weights are immutable once loaded, so one instance can be shared by any
+ * number of threads, each with its own scratch from {@link #newScratch}.
+ * <p>
+ * Serialized form, little-endian as numpy writes it: int magic "LPOL", int
+ * model version, int layer count L, int[L + 1] layer sizes, int[L]
+ * activations (ACTIVATION_*), then per layer the float32 weights as
+ * [in][out] (TensorFlow's layout) followed by the float32 biases [out].
+ */
+final class PolicyNetwork {
+    static final int MAGIC = 0x4C504F4C;
+
+    /*
+     * Activations
+     */
+    static final int ACTIVATION_LINEAR = 0;
+    static final int ACTIVATION_RELU = 1;
+    static final int ACTIVATION_TANH = 2;
+
+    /**
+     * Layer sizes and activations of the DQN in dqn_lunar_lander.py.
+     */
+    static final int[] DQN_SIZES = {RewardShaper.OBSERVATION_SIZE, 256, 256, 512, 4};
+    static final int[] DQN_ACTIVATIONS = {ACTIVATION_RELU, ACTIVATION_RELU, ACTIVATION_TANH, ACTIVATION_LINEAR};
+
+    /**
+     * Upper bound on any layer width accepted from a blob.
+     */
+    private static final int MAX_LAYER_SIZE = 1 << 16;
+
+    private final int mVersion;
+    private final int[] mSizes;
+    private final int[] mActivations;
+    private final float[][] mWeights;
+    private final float[][] mBiases;
+
+    PolicyNetwork(int version, int[] sizes, int[] activations, float[][] weights, float[][] biases) {
+        if (activations.length != sizes.length - 1 || weights.length != activations.length
+                || biases.length != activations.length) {
+            throw new IllegalArgumentException("Layer count mismatch");
+        }
+        for (int l = 0; l < activations.length; l++) {
+            if (weights[l].length != sizes[l] * sizes[l + 1] || biases[l].length != sizes[l + 1]) {
+                throw new IllegalArgumentException("Layer " + l + " has the wrong shape");
+            }
+        }
+        mVersion = version;
+        mSizes = sizes.clone();
+        mActivations = activations.clone();
+        mWeights = weights;
+        mBiases = biases;
+    }
+
+    /**
+     * @return a network with uniformly random weights in [-scale, scale],
+     * e.g. for benchmarks
+     */
+    static PolicyNetwork random(int[] sizes, int[] activations, double scale, Random random) {
+        float[][] weights = new float[activations.length][];
+        float[][] biases = new float[activations.length][];
+        for (int l = 0; l < activations.length; l++) {
+            weights[l] = new float[sizes[l] * sizes[l + 1]];
+            biases[l] = new float[sizes[l + 1]];
+            for (int i = 0; i < weights[l].length; i++) {
+                weights[l][i] = (float) ((random.nextDouble() * 2 - 1) * scale);
+            }
+        }
+        return new PolicyNetwork(0, sizes, activations, weights, biases);
+    }
+
+    /**
+     * Parses the serialized form starting at the buffer's position.
+     *
+     * @throws IOException if the blob is malformed or truncated
+     */
+    static PolicyNetwork read(ByteBuffer buffer) throws IOException {
+        ByteBuffer in = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            if (in.getInt() != MAGIC) throw new IOException("Not a policy blob");
+            int version = in.getInt();
+            int layers = in.getInt();
+            if (layers < 1 || layers > 64) throw new IOException("Bad layer count " + layers);
+            int[] sizes = new int[layers + 1];
+            for (int l = 0; l <= layers; l++) {
+                sizes[l] = in.getInt();
+                if (sizes[l] < 1 || sizes[l] > MAX_LAYER_SIZE) throw new IOException("Bad layer size " + sizes[l]);
+            }
+            int[] activations = new int[layers];
+            for (int l = 0; l < layers; l++) {
+                activations[l] = in.getInt();
+                if (activations[l] < ACTIVATION_LINEAR || activations[l] > ACTIVATION_TANH) {
+                    throw new IOException("Bad activation " + activations[l]);
+                }
+            }
+            float[][] weights = new float[layers][];
+            float[][] biases = new float[layers][];
+            for (int l = 0; l < layers; l++) {
+                long count = (long) sizes[l] * sizes[l + 1];
+                if (count * 4 > in.remaining()) throw new IOException("Truncated policy blob");
+                weights[l] = new float[(int) count];
+                in.asFloatBuffer().get(weights[l]);
+                in.position(in.position() + weights[l].length * 4);
+                biases[l] = new float[sizes[l + 1]];
+                in.asFloatBuffer().get(biases[l]);
+                in.position(in.position() + biases[l].length * 4);
+            }
+            buffer.position(buffer.position() + in.position());
+            return new PolicyNetwork(version, sizes, activations, weights, biases);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated policy blob");
+        }
+    }
+
+    static PolicyNetwork read(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return the serialized form, readable by {@link #read(ByteBuffer)}
+     */
+    byte[] toBytes() {
+        int size = 12 + 4 * mSizes.length + 4 * mActivations.length;
+        for (int l = 0; l < mActivations.length; l++) size += 4 * (mWeights[l].length + mBiases[l].length);
+        ByteBuffer out = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(MAGIC).putInt(mVersion).putInt(mActivations.length);
+        for (int s : mSizes) out.putInt(s);
+        for (int a : mActivations) out.putInt(a);
+        for (int l = 0; l < mActivations.length; l++) {
+            for (float w : mWeights[l]) out.putFloat(w);
+            for (float b : mBiases[l]) out.putFloat(b);
+        }
+        return out.array();
+    }
+
+    /**
+     * @return the model version the trainer assigned to these weights
+     */
+    int getVersion() {
+        return mVersion;
+    }
+
+    int getInputSize() {
+        return mSizes[0];
+    }
+
+    int getOutputSize() {
+        return mSizes[mSizes.length - 1];
+    }
+
+    int[] getSizes() {
+        return mSizes.clone();
+    }
+
+    int[] getActivations() {
+        return mActivations.clone();
+    }
+
+    /**
+     * Weights of layer {@code l} as [in][out]; not a copy, do not modify.
+     */
+    float[] getWeights(int l) {
+        return mWeights[l];
+    }
+
+    /**
+     * Biases of layer {@code l}; not a copy, do not modify.
+     */
+    float[] getBiases(int l) {
+        return mBiases[l];
+    }
+
+    /**
+     * @return activation buffers for one thread's calls to {@link #forward}
+     */
+    float[][] newScratch() {
+        float[][] scratch = new float[mSizes.length][];
+        for (int l = 0; l < mSizes.length; l++) scratch[l] = new float[mSizes[l]];
+        return scratch;
+    }
+
+    /**
+     * Evaluates the network on the observation already stored in
+     * {@code scratch[0]}.
+     *
+     * @return the output layer, {@code scratch[L]}
+     */
+    float[] forward(float[][] scratch) {
+        for (int l = 0; l < mActivations.length; l++) {
+            float[] in = scratch[l];
+            float[] out = scratch[l + 1];
+            float[] w = mWeights[l];
+            int n = out.length;
+            System.arraycopy(mBiases[l], 0, out, 0, n);
+            // row by row so the inner loop walks the weights sequentially
+            for (int i = 0, row = 0; i < in.length; i++, row += n) {
+                float x = in[i];
+                if (x == 0) continue; // common after a ReLU
+                for (int j = 0; j < n; j++) out[j] += x * w[row + j];
+            }
+            activate(mActivations[l], out, n);
+        }
+        return scratch[mActivations.length];
+    }
+
+    /**
+     * @return the index of the largest output for {@code observation}
+     */
+    int greedy(double[] observation, float[][] scratch) {
+        float[] input = scratch[0];
+        for (int i = 0; i < input.length; i++) input[i] = (float) observation[i];
+        float[] q = forward(scratch);
+        int best = 0;
+        for (int a = 1; a < q.length; a++) {
+            if (q[a] > q[best]) best = a;
+        }
+        return best;
+    }
+
+    static void activate(int activation, float[] v, int n) {
+        if (activation == ACTIVATION_RELU) {
+            for (int j = 0; j < n; j++) if (v[j] < 0) v[j] = 0;
+        } else if (activation == ACTIVATION_TANH) {
+            for (int j = 0; j < n; j++) v[j] = (float) Math.tanh(v[j]);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Random;
+
+import static com.example.android.lunarlander.LunarView.LunarThread.STATE_WIN;
+
+/**
+ * Learns to play on the device with a {@link QLearner}, updating the Q-table
+ * online inside every physics tick instead of over the network, so it
+ * learns at the frame rate, or as fast as the CPU allows when headless.
+ * <p>
+ * Observations and rewards come from the same {@link RewardShaper} as the
+ * remote path. Nothing is allocated per tick; a summary line is printed
+ * every REPORT_EVERY episodes. With a checkpoint file the learner is saved
+ * there in the background at the same interval and on close, and picks up
+ * from it on the next start.
+ */
+final class QAgent implements DeviceAgent {
+    private static final String TAG = QAgent.class.getSimpleName();
+
+    /**
+     * Episodes between progress lines.
+     */
+    static final int REPORT_EVERY = 100;
+
+    /**
+     * Checkpoint scalar after the learner's: episodes played.
+     */
+    private static final int SCALAR_EPISODES = QLearner.SCALARS;
+
+    private final QLearner mLearner;
+    private final int mScreenWidth;
+    private final int mScreenHeight;
+    private final RewardShaper mShaper = new RewardShaper();
+    private final double[] mObservation = new double[RewardShaper.OBSERVATION_SIZE];
+
+    /**
+     * Where the learner is saved, or null.
+     */
+    private final CheckpointStore mStore;
+
+    /**
+     * Discrete state before the next action.
+     */
+    private int mState;
+
+    /**
+     * Index of the action taken in the current tick.
+     */
+    private int mAction;
+
+    private long mEpisodes;
+    private double mWindowReward;
+    private int mWindowWins;
+
+    /**
+     * @param screenWidth  width the x coordinate is normalized by, as in the
+     *                     MqttThread
+     * @param screenHeight height the y coordinate is normalized by
+     * @param checkpoint   file to resume from and save to, or null
+     */
+    QAgent(QConfig config, int screenWidth, int screenHeight, Random random,
+           File checkpoint) throws IOException {
+        mLearner = new QLearner(config, random);
+        mScreenWidth = screenWidth;
+        mScreenHeight = screenHeight;
+        if (checkpoint != null) {
+            mStore = CheckpointStore.open(checkpoint, QLearner.schema(config, 1));
+            mLearner.restore(mStore);
+            mEpisodes = mStore.getScalar(SCALAR_EPISODES);
+            if (mStore.isResumed()) Log.i(TAG, "Resumed at episode " + mEpisodes);
+        } else {
+            mStore = null;
+        }
+    }
+
+    QLearner getLearner() {
+        return mLearner;
+    }
+
+    @Override
+    public void startEpisode(LunarState s) {
+        mLearner.beginAttempt();
+        mShaper.reset();
+        mShaper.update(s, mScreenWidth, mScreenHeight, mObservation);
+        mState = mLearner.discretize(mObservation);
+    }
+
+    @Override
+    public int act() {
+        mAction = mLearner.act(mState);
+        return LunarSimulator.ACTIONS[mAction];
+    }
+
+    @Override
+    public boolean observe(LunarState s) {
+        double reward = mShaper.update(s, mScreenWidth, mScreenHeight, mObservation);
+        boolean done = RewardShaper.isDone(s);
+        int next = mLearner.discretize(mObservation);
+        mLearner.learn(mState, mAction, reward, next, done);
+        mState = next;
+        mWindowReward += reward;
+        if (done) {
+            mEpisodes++;
+            if (s.mMode == STATE_WIN) mWindowWins++;
+            if (mEpisodes % REPORT_EVERY == 0) {
+                report();
+                save(false);
+            }
+        }
+        return done;
+    }
+
+    private void save(boolean wait) {
+        if (mStore == null) return;
+        try {
+            // the previous checkpoint must be out before its columns change
+            mStore.awaitPending();
+            mLearner.save(mStore);
+            mStore.setScalar(SCALAR_EPISODES, mEpisodes);
+            if (wait) {
+                mStore.checkpoint();
+            } else {
+                mStore.checkpointAsync();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Checkpoint failed: " + e);
+        }
+    }
+
+    private void report() {
+        Log.i(TAG, String.format(Locale.US,
+                "%d episodes, last %d mean reward %.2f, %d wins, explore %.3f",
+                mEpisodes, REPORT_EVERY, mWindowReward / REPORT_EVERY, mWindowWins,
+                mLearner.getExploreRate()));
+        mWindowReward = 0;
+        mWindowWins = 0;
+    }
+
+    @Override
+    public void close() {
+        save(true);
+        if (mStore != null) {
+            try {
+                mStore.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot close the checkpoint: " + e);
+            }
+        }
+        Log.i(TAG, "Stopped after " + mEpisodes + " episodes");
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Hyperparameters of a {@link QLearner}, the Java counterpart of QConfig in
+ * qlearner.py: how many buckets each observed field is cut into, and the
+ * learning, discount and explore rates as (min, max, steps) schedules.
+ * <p>
+ * A schedule starts at max and decays with the log of the attempt number,
+ * {@code max(min, min(max, max - log10((attempt + 1) / steps)))}, so
+ * {@code steps} is roughly the attempt at which it starts to fall.
+ */
+final class QConfig {
+    /*
+     * Fields that are discretized, in mixed-radix order
+     */
+    static final int FIELD_X = 0;
+    static final int FIELD_Y = 1;
+    static final int FIELD_DY = 2;
+    static final int FIELD_HEADING = 3;
+    static final int FIELDS = 4;
+
+    /**
+     * Names of the fields, as published in the state message.
+     */
+    static final String[] FIELD_NAMES = {"mX", "mY", "mDY", "mHeading"};
+
+    /**
+     * Range cut into buckets per field; values outside fall in the end
+     * buckets. x is centered and divided by half the screen width, y is
+     * height over screen height, dy is over 500 (crash speed is 0.2) and the
+     * heading is in radians, signed.
+     */
+    static final double[] LOWER_BOUNDS = {-1, 0, -0.4, -Math.PI / 4};
+    static final double[] UPPER_BOUNDS = {1, 1, 0.2, Math.PI / 4};
+
+    /*
+     * Schedule tuple layout
+     */
+    static final int RATE_MIN = 0;
+    static final int RATE_MAX = 1;
+    static final int RATE_STEPS = 2;
+
+    /**
+     * Buckets per field, indexed by the FIELD_* constants.
+     */
+    final int[] mBuckets;
+
+    /*
+     * (min, max, steps) schedules
+     */
+    final double[] mLearningRate;
+    final double[] mDiscountFactor;
+    final double[] mExploreRate;
+
+    QConfig(int[] buckets, double[] learningRate, double[] discountFactor, double[] exploreRate) {
+        if (buckets.length != FIELDS) throw new IllegalArgumentException("Need " + FIELDS + " bucket counts");
+        for (int b : buckets) if (b < 1) throw new IllegalArgumentException("Bucket count " + b);
+        mBuckets = buckets.clone();
+        mLearningRate = learningRate.clone();
+        mDiscountFactor = discountFactor.clone();
+        mExploreRate = exploreRate.clone();
+    }
+
+    /**
+     * The defaults of qlearner.py's main().
+     */
+    static QConfig defaults() {
+        return new QConfig(new int[]{3, 6, 8, 4}, new double[]{0.2, 0.7, 200},
+                new double[]{1, 1, 1}, new double[]{0, 0.3, 100});
+    }
+
+    double getLearningRate(int attempt) {
+        return getAdjustedRate(mLearningRate, attempt);
+    }
+
+    double getDiscountFactor(int attempt) {
+        return getAdjustedRate(mDiscountFactor, attempt);
+    }
+
+    double getExploreRate(int attempt) {
+        return getAdjustedRate(mExploreRate, attempt);
+    }
+
+    static double getAdjustedRate(double[] rate, int attempt) {
+        return Math.max(rate[RATE_MIN], Math.min(rate[RATE_MAX],
+                rate[RATE_MAX] - Math.log10((attempt + 1) / rate[RATE_STEPS])));
+    }
+
+    /**
+     * @return the number of discrete states, the product of the buckets
+     */
+    int stateCount() {
+        int n = 1;
+        for (int b : mBuckets) n *= b;
+        return n;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "buckets %s lr %s gamma %s explore %s",
+                Arrays.toString(mBuckets), schedule(mLearningRate), schedule(mDiscountFactor),
+                schedule(mExploreRate));
+    }
+
+    private static String schedule(double[] rate) {
+        return String.format(Locale.US, "(%.3g, %.3g, %.0f)", rate[RATE_MIN], rate[RATE_MAX], rate[RATE_STEPS]);
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.util.Random;
+
+/**
+ * Tabular Q-learning over the lander's x, y, vertical speed and heading, the
+ * Java counterpart of QLearner in qlearner.py.
+ * <p>
+ * Each field is cut into its configured number of buckets by bin edges that
+ * are computed once, and the four bucket indices plus the action form a
+ * mixed-radix index into one flat {@code double[]}. Nothing is allocated
+ * after construction, so an update costs a few dozen comparisons and one
+ * cache line. Not thread-safe; use one learner per thread.
+ */
+final class QLearner {
+    private final QConfig mConfig;
+    private final Random mRandom;
+
+    /**
+     * Interior bin edges per field, ascending; field f has mBuckets[f] - 1.
+     */
+    private final double[][] mEdges;
+
+    /**
+     * Stride of each field in the state index.
+     */
+    private final int[] mStrides;
+
+    /**
+     * Q-values, indexed by state * ACTION_COUNT + action.
+     */
+    private final double[] mTable;
+
+    /**
+     * Attempts started so far, counting from 1 like qlearner.py.
+     */
+    private int mAttempt = 1;
+
+    /*
+     * Rates of the current attempt, see beginAttempt()
+     */
+    private double mLearningRate;
+    private double mDiscountFactor;
+    private double mExploreRate;
+
+    /**
+     * Number of actions, indices into LunarSimulator.ACTIONS.
+     */
+    static final int ACTION_COUNT = LunarSimulator.ACTIONS.length;
+
+    /*
+     * Checkpoint contents; owners may add scalars after SCALARS
+     */
+    static final String COLUMN_TABLE = "q_table";
+    static final int SCALAR_ATTEMPT = 0;
+    static final int SCALAR_SEED = 1;
+    static final int SCALARS = 2;
+
+    QLearner(QConfig config, Random random) {
+        mConfig = config;
+        mRandom = random;
+        mEdges = new double[QConfig.FIELDS][];
+        mStrides = new int[QConfig.FIELDS];
+        int stride = 1;
+        for (int f = QConfig.FIELDS - 1; f >= 0; f--) {
+            int buckets = config.mBuckets[f];
+            double low = QConfig.LOWER_BOUNDS[f];
+            double width = (QConfig.UPPER_BOUNDS[f] - low) / buckets;
+            mEdges[f] = new double[buckets - 1];
+            for (int i = 1; i < buckets; i++) mEdges[f][i - 1] = low + i * width;
+            mStrides[f] = stride;
+            stride *= buckets;
+        }
+        mTable = new double[stride * ACTION_COUNT];
+    }
+
+    QConfig getConfig() {
+        return mConfig;
+    }
+
+    /**
+     * @return the Q-values, owned by this learner, indexed by
+     * {@code state * ACTION_COUNT + action}
+     */
+    double[] getTable() {
+        return mTable;
+    }
+
+    int getAttempt() {
+        return mAttempt;
+    }
+
+    /**
+     * @param extraScalars scalars the owner stores after SCALARS
+     * @return the checkpoint schema of a learner with {@code config}
+     */
+    static CheckpointStore.Schema schema(QConfig config, int extraScalars) {
+        return new CheckpointStore.Schema()
+                .column(COLUMN_TABLE, CheckpointStore.TYPE_DOUBLE, (long) config.stateCount() * ACTION_COUNT)
+                .scalars(SCALARS + extraScalars);
+    }
+
+    /**
+     * Copies the table, attempt number and random state into {@code store}
+     * for its next checkpoint. The random generator is reseeded from itself
+     * so that a restored learner continues the same sequence.
+     */
+    void save(CheckpointStore store) {
+        store.column(COLUMN_TABLE).asDoubleBuffer().put(mTable);
+        long seed = mRandom.nextLong();
+        mRandom.setSeed(seed);
+        store.setScalar(SCALAR_ATTEMPT, mAttempt);
+        store.setScalar(SCALAR_SEED, seed);
+    }
+
+    /**
+     * Loads what {@link #save} stored, if {@code store} was resumed.
+     */
+    void restore(CheckpointStore store) {
+        if (!store.isResumed()) return;
+        store.column(COLUMN_TABLE).asDoubleBuffer().get(mTable);
+        mAttempt = (int) store.getScalar(SCALAR_ATTEMPT);
+        mRandom.setSeed(store.getScalar(SCALAR_SEED));
+    }
+
+    /**
+     * @param obs a RewardShaper observation
+     * @return the index of the discrete state {@code obs} falls in
+     */
+    int discretize(double[] obs) {
+        double heading = obs[RewardShaper.OBS_HEADING];
+        if (heading > Math.PI) heading -= 2 * Math.PI;
+        return bucket(QConfig.FIELD_X, obs[RewardShaper.OBS_X])
+                + bucket(QConfig.FIELD_Y, obs[RewardShaper.OBS_Y])
+                + bucket(QConfig.FIELD_DY, obs[RewardShaper.OBS_DY])
+                + bucket(QConfig.FIELD_HEADING, heading);
+    }
+
+    /**
+     * @return the bucket of {@code x} in field {@code f}, times the field's
+     * stride
+     */
+    private int bucket(int f, double x) {
+        double[] edges = mEdges[f];
+        int i = 0;
+        while (i < edges.length && x >= edges[i]) i++;
+        return i * mStrides[f];
+    }
+
+    /**
+     * Starts a new attempt, moving the rates along their schedules.
+     */
+    void beginAttempt() {
+        mLearningRate = mConfig.getLearningRate(mAttempt);
+        mDiscountFactor = mConfig.getDiscountFactor(mAttempt);
+        mExploreRate = mConfig.getExploreRate(mAttempt);
+        mAttempt++;
+    }
+
+    double getExploreRate() {
+        return mExploreRate;
+    }
+
+    /**
+     * @return the action index to take in {@code state} at the current
+     * attempt's explore rate
+     */
+    int act(int state) {
+        return pickAction(state, mExploreRate);
+    }
+
+    /**
+     * {@link #update} at the current attempt's rates.
+     */
+    void learn(int state, int action, double reward, int next, boolean done) {
+        update(state, action, reward, next, done, mLearningRate, mDiscountFactor);
+    }
+
+    /**
+     * @return an action index, random with probability {@code explore} and
+     * otherwise the best known one
+     */
+    int pickAction(int state, double explore) {
+        if (mRandom.nextDouble() < explore) return mRandom.nextInt(ACTION_COUNT);
+        return greedy(state);
+    }
+
+    int greedy(int state) {
+        int base = state * ACTION_COUNT;
+        int best = 0;
+        for (int a = 1; a < ACTION_COUNT; a++) {
+            if (mTable[base + a] > mTable[base + best]) best = a;
+        }
+        return best;
+    }
+
+    /**
+     * One Q-learning update for taking {@code action} in {@code state}.
+     * Unlike qlearner.py, a terminal transition does not bootstrap from the
+     * state it ended in.
+     */
+    void update(int state, int action, double reward, int next, boolean done,
+                double learningRate, double discountFactor) {
+        int i = state * ACTION_COUNT + action;
+        double target = reward;
+        if (!done) {
+            int base = next * ACTION_COUNT;
+            double max = mTable[base];
+            for (int a = 1; a < ACTION_COUNT; a++) max = Math.max(max, mTable[base + a]);
+            target += discountFactor * max;
+        }
+        mTable[i] += learningRate * (target - mTable[i]);
+    }
+
+    /**
+     * Plays and learns from one episode of {@code env}, which the caller has
+     * already configured and seeded.
+     *
+     * @param maxSteps steps after which the episode is cut off
+     * @return the sum of the rewards
+     */
+    double attempt(LunarEnvironment env, int maxSteps) {
+        beginAttempt();
+        env.reset();
+        int state = discretize(env.observation());
+        double rewardSum = 0;
+        while (!env.isDone() && env.steps() < maxSteps) {
+            int action = act(state);
+            env.step(LunarSimulator.ACTIONS[action]);
+            int next = discretize(env.observation());
+            learn(state, action, env.reward(), next, env.isDone());
+            state = next;
+            rewardSum += env.reward();
+        }
+        return rewardSum;
+    }
+}
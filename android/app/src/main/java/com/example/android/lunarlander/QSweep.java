@@ -0,0 +1,354 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.example.android.lunarlander.LunarView.LunarThread.DIFFICULTY_MEDIUM;
+
+/**
+ * Tunes {@link QConfig} by training one {@link QLearner} per configuration on
+ * headless simulations, on every core, instead of one slow run over MQTT at
+ * a time.
+ * <p>
+ * Every trial sees the same sequence of episode starts for a given seed.
+ * Every few hundred attempts a trial reports its mean reward over the last
+ * window of attempts, and after a grace period it is stopped early if that
+ * falls in the bottom quarter of what other trials reported at the same
+ * point, once enough of them have (a gentler median stopping rule). Which
+ * trials get stopped therefore depends a little on scheduling; the scores of
+ * the trials that finish do not.
+ */
+final class QSweep {
+    private static final String TAG = QSweep.class.getSimpleName();
+
+    private final int mThreads;
+    private int mAttempts = 1000;
+    private int mMaxSteps = 1000;
+
+    /**
+     * Attempts between early-stopping checks; also the window the final
+     * score is averaged over.
+     */
+    private int mCheckEvery = 100;
+
+    /**
+     * Reports needed at a check before anything is stopped there.
+     */
+    private int mMinReports = 8;
+
+    /**
+     * Attempts before a trial can be stopped.
+     */
+    private int mGrace = 300;
+
+    /**
+     * Trials reporting below this quantile of the others are stopped.
+     */
+    private double mStopQuantile = 0.25;
+
+    /**
+     * Window means reported at each check, by check index.
+     */
+    private final List<List<Double>> mReports = new ArrayList<>();
+
+    QSweep(int threads) {
+        mThreads = threads;
+    }
+
+    QSweep setAttempts(int attempts) {
+        mAttempts = attempts;
+        return this;
+    }
+
+    QSweep setMaxSteps(int maxSteps) {
+        mMaxSteps = maxSteps;
+        return this;
+    }
+
+    /**
+     * @param checkEvery   attempts between early-stopping checks
+     * @param minReports   reports needed at a check before it stops trials
+     * @param grace        attempts before a trial can be stopped
+     * @param stopQuantile trials reporting below this quantile of the
+     *                     others are stopped; 0 disables early stopping
+     */
+    QSweep setEarlyStopping(int checkEvery, int minReports, int grace, double stopQuantile) {
+        mCheckEvery = checkEvery;
+        mMinReports = minReports;
+        mGrace = grace;
+        mStopQuantile = stopQuantile;
+        return this;
+    }
+
+    /**
+     * Trains every configuration and returns them best first: trials that
+     * ran to the end by final score, then stopped ones by how long they
+     * lasted.
+     */
+    List<Trial> run(List<QConfig> configs, long seed) throws InterruptedException {
+        synchronized (mReports) {
+            mReports.clear();
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(mThreads);
+        try {
+            List<Future<Trial>> futures = new ArrayList<>();
+            for (int i = 0; i < configs.size(); i++) {
+                futures.add(executor.submit(new Worker(configs.get(i), i, seed)));
+            }
+            List<Trial> trials = new ArrayList<>();
+            for (Future<Trial> future : futures) trials.add(future.get());
+            Collections.sort(trials, new Comparator<Trial>() {
+                @Override
+                public int compare(Trial a, Trial b) {
+                    if (a.mStopped != b.mStopped) return a.mStopped ? 1 : -1;
+                    if (a.mAttempts != b.mAttempts) return b.mAttempts - a.mAttempts;
+                    return Double.compare(b.mScore, a.mScore);
+                }
+            });
+            return trials;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Sweep failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Records {@code mean} for check {@code check}.
+     *
+     * @return whether the trial should stop
+     */
+    private boolean report(int check, double mean) {
+        synchronized (mReports) {
+            while (mReports.size() <= check) mReports.add(new ArrayList<Double>());
+            List<Double> reports = mReports.get(check);
+            boolean stop = false;
+            if (reports.size() >= mMinReports && (check + 1) * mCheckEvery >= mGrace) {
+                List<Double> sorted = new ArrayList<>(reports);
+                Collections.sort(sorted);
+                stop = mean < sorted.get((int) (mStopQuantile * (sorted.size() - 1)));
+            }
+            reports.add(mean);
+            return stop;
+        }
+    }
+
+    /**
+     * Trains one configuration.
+     */
+    private final class Worker implements Callable<Trial> {
+        private final QConfig mConfig;
+        private final int mIndex;
+        private final long mSeed;
+
+        Worker(QConfig config, int index, long seed) {
+            mConfig = config;
+            mIndex = index;
+            mSeed = seed;
+        }
+
+        @Override
+        public Trial call() {
+            Random starts = new Random();
+            LunarEnvironment env = new LunarEnvironment(starts).setDifficulty(DIFFICULTY_MEDIUM);
+            QLearner learner = new QLearner(mConfig, new Random(EvaluationHarness.episodeSeed(
+                    mSeed, DIFFICULTY_MEDIUM, -1 - mIndex)));
+            Trial trial = new Trial(mConfig);
+
+            double windowSum = 0;
+            int windowWins = 0;
+            for (int attempt = 0; attempt < mAttempts; attempt++) {
+                starts.setSeed(EvaluationHarness.episodeSeed(mSeed, DIFFICULTY_MEDIUM, attempt));
+                windowSum += learner.attempt(env, mMaxSteps);
+                if (env.landing() == LunarSimulator.LANDING_WIN) windowWins++;
+                trial.mAttempts = attempt + 1;
+
+                if (trial.mAttempts % mCheckEvery == 0 || trial.mAttempts == mAttempts) {
+                    int window = (trial.mAttempts - 1) % mCheckEvery + 1;
+                    trial.mScore = windowSum / window;
+                    trial.mWinRate = (double) windowWins / window;
+                    windowSum = 0;
+                    windowWins = 0;
+                    if (trial.mAttempts < mAttempts
+                            && report(trial.mAttempts / mCheckEvery - 1, trial.mScore)) {
+                        trial.mStopped = true;
+                        break;
+                    }
+                }
+            }
+            return trial;
+        }
+    }
+
+    /**
+     * Result of training one configuration.
+     */
+    static final class Trial {
+        final QConfig mConfig;
+        int mAttempts;
+        /**
+         * Mean reward over the last window of attempts.
+         */
+        double mScore;
+        /**
+         * Fraction of the last window of attempts that landed on the pad.
+         */
+        double mWinRate;
+        boolean mStopped;
+
+        Trial(QConfig config) {
+            mConfig = config;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%9.2f %6.2f%% %5d%s  %s", mScore, 100 * mWinRate,
+                    mAttempts, mStopped ? "*" : " ", mConfig);
+        }
+    }
+
+    /**
+     * Candidate values for every hyperparameter. A grid search tries every
+     * combination; a random search draws each bucket count and each
+     * component of each schedule uniformly between the smallest and largest
+     * candidate.
+     */
+    static final class SearchSpace {
+        /**
+         * Candidate bucket counts, per QConfig.FIELD_*.
+         */
+        final int[][] mBuckets;
+
+        /*
+         * Candidate (min, max, steps) schedules
+         */
+        final double[][] mLearningRates;
+        final double[][] mDiscountFactors;
+        final double[][] mExploreRates;
+
+        SearchSpace(int[][] buckets, double[][] learningRates, double[][] discountFactors,
+                    double[][] exploreRates) {
+            mBuckets = buckets;
+            mLearningRates = learningRates;
+            mDiscountFactors = discountFactors;
+            mExploreRates = exploreRates;
+        }
+
+        List<QConfig> grid() {
+            List<QConfig> configs = new ArrayList<>();
+            int[] buckets = new int[QConfig.FIELDS];
+            int combinations = 1;
+            for (int[] b : mBuckets) combinations *= b.length;
+            for (int c = 0; c < combinations; c++) {
+                int rest = c;
+                for (int f = 0; f < QConfig.FIELDS; f++) {
+                    buckets[f] = mBuckets[f][rest % mBuckets[f].length];
+                    rest /= mBuckets[f].length;
+                }
+                for (double[] lr : mLearningRates) {
+                    for (double[] gamma : mDiscountFactors) {
+                        for (double[] explore : mExploreRates) {
+                            configs.add(new QConfig(buckets, lr, gamma, explore));
+                        }
+                    }
+                }
+            }
+            return configs;
+        }
+
+        List<QConfig> random(int count, Random random) {
+            List<QConfig> configs = new ArrayList<>();
+            int[] buckets = new int[QConfig.FIELDS];
+            for (int i = 0; i < count; i++) {
+                for (int f = 0; f < QConfig.FIELDS; f++) {
+                    int low = Integer.MAX_VALUE;
+                    int high = Integer.MIN_VALUE;
+                    for (int b : mBuckets[f]) {
+                        low = Math.min(low, b);
+                        high = Math.max(high, b);
+                    }
+                    buckets[f] = low + random.nextInt(high - low + 1);
+                }
+                configs.add(new QConfig(buckets, draw(mLearningRates, random),
+                        draw(mDiscountFactors, random), draw(mExploreRates, random)));
+            }
+            return configs;
+        }
+
+        private static double[] draw(double[][] candidates, Random random) {
+            double[] rate = new double[3];
+            for (int k = 0; k < rate.length; k++) {
+                double low = Double.POSITIVE_INFINITY;
+                double high = Double.NEGATIVE_INFINITY;
+                for (double[] c : candidates) {
+                    low = Math.min(low, c[k]);
+                    high = Math.max(high, c[k]);
+                }
+                rate[k] = low + random.nextDouble() * (high - low);
+            }
+            if (rate[QConfig.RATE_MIN] > rate[QConfig.RATE_MAX]) {
+                double t = rate[QConfig.RATE_MIN];
+                rate[QConfig.RATE_MIN] = rate[QConfig.RATE_MAX];
+                rate[QConfig.RATE_MAX] = t;
+            }
+            rate[QConfig.RATE_STEPS] = Math.max(1, Math.round(rate[QConfig.RATE_STEPS]));
+            return rate;
+        }
+    }
+
+    /**
+     * Sweeps a space around qlearner.py's defaults and prints a leaderboard.
+     * Arguments: [grid|random] [random trials] [attempts] [threads] [seed].
+     */
+    public static void main(String[] args) throws InterruptedException {
+        boolean grid = args.length == 0 || args[0].equals("grid");
+        int count = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int attempts = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        int threads = args.length > 3 ? Integer.parseInt(args[3])
+                : Runtime.getRuntime().availableProcessors();
+        long seed = args.length > 4 ? Long.parseLong(args[4]) : 42;
+
+        SearchSpace space = new SearchSpace(
+                new int[][]{{2, 3, 5}, {3, 6, 10}, {4, 8}, {2, 4, 6}},
+                new double[][]{{0.05, 0.5, 100}, {0.2, 0.7, 200}},
+                new double[][]{{0.95, 0.95, 1}, {1, 1, 1}},
+                new double[][]{{0, 0.3, 100}, {0.05, 0.5, 300}});
+        List<QConfig> configs = grid ? space.grid() : space.random(count, new Random(seed));
+
+        long start = System.nanoTime();
+        List<Trial> trials = new QSweep(threads).setAttempts(attempts).run(configs, seed);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.println("    score    win  tries  config (* stopped early)");
+        for (int i = 0; i < Math.min(20, trials.size()); i++) System.out.println(trials.get(i));
+        int stopped = 0;
+        for (Trial trial : trials) if (trial.mStopped) stopped++;
+        System.out.println(String.format(Locale.US, "%s: %d trials x %d attempts (%d stopped early) in %.1f s on %d threads",
+                TAG, trials.size(), attempts, stopped, seconds, threads));
+    }
+}
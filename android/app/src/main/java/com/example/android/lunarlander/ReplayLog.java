@@ -0,0 +1,413 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import static com.example.android.lunarlander.LunarView.LunarThread.STATE_RUNNING;
+
+/**
+ * A recording of lander states, one fixed-size record per physics tick, that
+ * can be played back without loading it: records are read straight out of
+ * memory-mapped windows of the file, and an index of where each episode
+ * starts makes seeking to any episode or frame constant-time.
+ * <p>
+ * Layout, little-endian: a HEADER_BYTES header ("LRPL" magic, version,
+ * record size, canvas and lander size), then RECORD_BYTES per frame (x, y,
+ * dx, dy, heading and fuel as floats, goal x, goal width, mode and a flags
+ * byte with the controls and an episode-start bit), then a footer with the
+ * frame index of every episode start, the episode and frame counts and an
+ * "LRPI" magic. A log whose footer is missing or does not add up, for
+ * instance because the recording was killed, is still readable: the index
+ * is rebuilt by one scan of the flags.
+ * <p>
+ * The reader maps windows of WINDOW_FRAMES as they are first needed and
+ * keeps each one until it is closed, because a mapping is only released
+ * when its buffer is garbage collected. However the log is scrubbed, no
+ * more than the log itself is ever mapped. The mapped pages are page cache
+ * the system can reclaim, so resident memory does not grow with the log,
+ * but on a 32-bit device a log of more than a few hundred megabytes may
+ * not fit in the address space. Not thread-safe.
+ */
+final class ReplayLog implements Closeable {
+    private static final int MAGIC = 0x4C52504C; // "LRPL"
+    private static final int INDEX_MAGIC = 0x4C525049; // "LRPI"
+    private static final int VERSION = 1;
+    static final int HEADER_BYTES = 32;
+    static final int RECORD_BYTES = 32;
+    private static final int TRAILER_BYTES = 24;
+
+    /**
+     * Frames per mapped window, 64 MB.
+     */
+    static final int WINDOW_FRAMES = 1 << 21;
+
+    /*
+     * Flag bits of a record
+     */
+    private static final int FLAG_FIRING = 1;
+    private static final int FLAG_LEFT = 2;
+    private static final int FLAG_RIGHT = 4;
+    private static final int FLAG_EPISODE_START = 8;
+
+    private final RandomAccessFile mRaf;
+    private final FileChannel mChannel;
+    private final long mFrames;
+
+    /**
+     * Start frame of every episode: mapped from the footer, or rebuilt.
+     */
+    private final ByteBuffer mIndex;
+    private final int mEpisodes;
+
+    /*
+     * Geometry of the recording
+     */
+    final int mCanvasWidth;
+    final int mCanvasHeight;
+    final int mLanderWidth;
+    final int mLanderHeight;
+
+    /**
+     * Windows mapped so far, by window number, or null.
+     */
+    private final MappedByteBuffer[] mWindows;
+
+    private ReplayLog(File file) throws IOException {
+        mRaf = new RandomAccessFile(file, "r");
+        mChannel = mRaf.getChannel();
+        long length = mChannel.size();
+        ByteBuffer header = read(0, HEADER_BYTES);
+        if (length < HEADER_BYTES || header.getInt(0) != MAGIC || header.getInt(4) != VERSION
+                || header.getInt(8) != RECORD_BYTES) {
+            mRaf.close();
+            throw new IOException(file + " is not a replay log");
+        }
+        mCanvasWidth = header.getInt(12);
+        mCanvasHeight = header.getInt(16);
+        mLanderWidth = header.getInt(20);
+        mLanderHeight = header.getInt(24);
+
+        ByteBuffer index = readIndex(length);
+        if (index != null) {
+            mEpisodes = index.capacity() / 8;
+            mFrames = (length - HEADER_BYTES - TRAILER_BYTES - index.capacity()) / RECORD_BYTES;
+            mIndex = index;
+            mWindows = new MappedByteBuffer[windowCount(mFrames)];
+        } else {
+            mFrames = (length - HEADER_BYTES) / RECORD_BYTES;
+            mWindows = new MappedByteBuffer[windowCount(mFrames)];
+            long[] starts = new long[16];
+            int episodes = 0;
+            for (long f = 0; f < mFrames; f++) {
+                if ((record(f).get(recordOffset(f) + 31) & FLAG_EPISODE_START) == 0 && f > 0) continue;
+                if (episodes == starts.length) starts = Arrays.copyOf(starts, episodes * 2);
+                starts[episodes++] = f;
+            }
+            mEpisodes = episodes;
+            mIndex = ByteBuffer.allocate(8 * episodes).order(ByteOrder.LITTLE_ENDIAN);
+            for (int e = 0; e < episodes; e++) mIndex.putLong(8 * e, starts[e]);
+        }
+    }
+
+    /**
+     * Maps the footer's episode index if the footer is there and agrees
+     * with the file: the counts fill the file exactly, and the episode
+     * starts begin at frame 0 and rise within the frames.
+     *
+     * @return the index, or null to rebuild it
+     */
+    private ByteBuffer readIndex(long length) throws IOException {
+        if (length < HEADER_BYTES + TRAILER_BYTES) return null;
+        ByteBuffer trailer = read(length - TRAILER_BYTES, TRAILER_BYTES);
+        if (trailer.getInt(16) != INDEX_MAGIC) return null;
+        long episodes = trailer.getLong(0);
+        long frames = trailer.getLong(8);
+        long body = length - HEADER_BYTES - TRAILER_BYTES;
+        if (episodes < 0 || frames < 0 || episodes > frames || (frames > 0) != (episodes > 0)
+                || episodes > Integer.MAX_VALUE / 8 || frames > body / RECORD_BYTES
+                || 8 * episodes + RECORD_BYTES * frames != body) {
+            return null;
+        }
+        ByteBuffer index = mChannel.map(FileChannel.MapMode.READ_ONLY, length - TRAILER_BYTES - 8 * episodes,
+                8 * episodes).order(ByteOrder.LITTLE_ENDIAN);
+        long previous = -1;
+        for (int e = 0; e < episodes; e++) {
+            long start = index.getLong(8 * e);
+            if (start <= previous || start >= frames || (e == 0 && start != 0)) return null;
+            previous = start;
+        }
+        return index;
+    }
+
+    private static int windowCount(long frames) {
+        return (int) ((frames + WINDOW_FRAMES - 1) / WINDOW_FRAMES);
+    }
+
+    /**
+     * Opens {@code file} for reading.
+     */
+    static ReplayLog open(File file) throws IOException {
+        return new ReplayLog(file);
+    }
+
+    long frameCount() {
+        return mFrames;
+    }
+
+    int episodeCount() {
+        return mEpisodes;
+    }
+
+    /**
+     * @return the first frame of episode {@code e}
+     */
+    long episodeStart(int e) {
+        return mIndex.getLong(8 * e);
+    }
+
+    /**
+     * @return the frame after the last of episode {@code e}
+     */
+    long episodeEnd(int e) {
+        return e + 1 < mEpisodes ? episodeStart(e + 1) : mFrames;
+    }
+
+    /**
+     * @return the episode {@code frame} belongs to
+     */
+    int episodeOf(long frame) {
+        int low = 0;
+        int high = mEpisodes - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (episodeStart(mid) <= frame) low = mid;
+            else high = mid - 1;
+        }
+        return low;
+    }
+
+    /**
+     * Copies frame {@code frame} into {@code out}. The canvas and lander
+     * size of {@code out} are left alone.
+     */
+    void read(long frame, LunarState out) throws IOException {
+        ByteBuffer window = record(frame);
+        int o = recordOffset(frame);
+        out.mX = window.getFloat(o);
+        out.mY = window.getFloat(o + 4);
+        out.mDX = window.getFloat(o + 8);
+        out.mDY = window.getFloat(o + 12);
+        out.mHeading = window.getFloat(o + 16);
+        out.mFuel = window.getFloat(o + 20);
+        out.mGoalX = window.getInt(o + 24);
+        out.mGoalWidth = window.getShort(o + 28);
+        out.mMode = window.get(o + 30);
+        int flags = window.get(o + 31);
+        out.mEngineFiring = (flags & FLAG_FIRING) != 0;
+        out.mRotating = (flags & FLAG_LEFT) != 0 ? -1 : (flags & FLAG_RIGHT) != 0 ? 1 : 0;
+    }
+
+    /**
+     * @return the window holding {@code frame}, mapping it if needed
+     */
+    private ByteBuffer record(long frame) throws IOException {
+        int w = (int) (frame / WINDOW_FRAMES);
+        MappedByteBuffer window = mWindows[w];
+        if (window == null) {
+            long start = (long) w * WINDOW_FRAMES;
+            long frames = Math.min(WINDOW_FRAMES, mFrames - start);
+            window = mChannel.map(FileChannel.MapMode.READ_ONLY,
+                    HEADER_BYTES + start * RECORD_BYTES, frames * RECORD_BYTES);
+            window.order(ByteOrder.LITTLE_ENDIAN);
+            mWindows[w] = window;
+        }
+        return window;
+    }
+
+    private static int recordOffset(long frame) {
+        return (int) (frame % WINDOW_FRAMES) * RECORD_BYTES;
+    }
+
+    private ByteBuffer read(long position, int bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (mChannel.read(buffer, position + buffer.position()) < 0) break;
+        }
+        return buffer;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mRaf.close();
+    }
+
+    /**
+     * Appends frames to a new log. Buffered; nothing reaches the file before
+     * the buffer fills or the writer is closed, which also writes the index.
+     * The last frame is held back until the next one is appended, so it can
+     * still be replaced.
+     */
+    static final class Writer implements Closeable {
+        private final OutputStream mOut;
+        private final ByteBuffer mRecord = ByteBuffer.allocate(RECORD_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        private boolean mHeld;
+        private long[] mStarts = new long[16];
+        private int mEpisodes;
+        private long mFrames;
+
+        /**
+         * @param geometry state whose canvas and lander size are recorded
+         */
+        Writer(File file, LunarState geometry) throws IOException {
+            mOut = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(RECORD_BYTES)
+                    .putInt(geometry.mCanvasWidth).putInt(geometry.mCanvasHeight)
+                    .putInt(geometry.mLanderWidth).putInt(geometry.mLanderHeight);
+            mOut.write(header.array());
+        }
+
+        /**
+         * Records {@code s} as the next frame.
+         *
+         * @param episodeStart whether this is the first frame of an episode
+         */
+        void append(LunarState s, boolean episodeStart) throws IOException {
+            if (mHeld) mOut.write(mRecord.array());
+            if (episodeStart || mFrames == 0) {
+                if (mEpisodes == mStarts.length) mStarts = Arrays.copyOf(mStarts, mEpisodes * 2);
+                mStarts[mEpisodes++] = mFrames;
+            }
+            encode(s, episodeStart || mFrames == 0);
+            mHeld = true;
+            mFrames++;
+        }
+
+        /**
+         * Records {@code s} in place of the last frame appended, keeping
+         * whether it starts an episode.
+         */
+        void replaceLast(LunarState s) {
+            if (!mHeld) throw new IllegalStateException("No frame to replace");
+            encode(s, (mRecord.get(31) & FLAG_EPISODE_START) != 0);
+        }
+
+        private void encode(LunarState s, boolean episodeStart) {
+            int flags = (s.mEngineFiring ? FLAG_FIRING : 0)
+                    | (s.mRotating < 0 ? FLAG_LEFT : s.mRotating > 0 ? FLAG_RIGHT : 0)
+                    | (episodeStart ? FLAG_EPISODE_START : 0);
+            mRecord.clear();
+            mRecord.putFloat((float) s.mX).putFloat((float) s.mY)
+                    .putFloat((float) s.mDX).putFloat((float) s.mDY)
+                    .putFloat((float) s.mHeading).putFloat((float) s.mFuel)
+                    .putInt(s.mGoalX).putShort((short) s.mGoalWidth)
+                    .put((byte) s.mMode).put((byte) flags);
+        }
+
+        long frameCount() {
+            return mFrames;
+        }
+
+        /**
+         * Writes the episode index and closes the file.
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                if (mHeld) mOut.write(mRecord.array());
+                mHeld = false;
+                ByteBuffer footer = ByteBuffer.allocate(8 * mEpisodes + TRAILER_BYTES)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                for (int e = 0; e < mEpisodes; e++) footer.putLong(mStarts[e]);
+                footer.putLong(mEpisodes).putLong(mFrames).putInt(INDEX_MAGIC).putInt(0);
+                mOut.write(footer.array());
+            } finally {
+                mOut.close();
+            }
+        }
+    }
+
+    /**
+     * Records a random-policy log and times opening, seeking and playing
+     * it: {@code [file] [frames, default 20M]}.
+     */
+    public static void main(String[] args) throws IOException {
+        File file = new File(args.length > 0 ? args[0] : "replay.lrpl");
+        long frames = args.length > 1 ? Long.parseLong(args[1]) : 20000000;
+        Random random = new Random(42);
+        LunarEnvironment env = new LunarEnvironment(random);
+
+        long start = System.nanoTime();
+        Writer writer = new Writer(file, env.state());
+        env.reset();
+        boolean episodeStart = true;
+        while (writer.frameCount() < frames) {
+            writer.append(env.state(), episodeStart);
+            episodeStart = false;
+            if (env.isDone() || env.steps() >= 1000) {
+                env.reset();
+                episodeStart = true;
+            } else {
+                env.step(random.nextDouble() < 0.8 ? LunarSimulator.ACTION_FIRE
+                        : LunarSimulator.ACTIONS[random.nextInt(LunarSimulator.ACTIONS.length)]);
+            }
+        }
+        writer.close();
+        double recorded = (System.nanoTime() - start) / 1e9;
+
+        start = System.nanoTime();
+        ReplayLog log = open(file);
+        double opened = (System.nanoTime() - start) / 1e9;
+
+        LunarState state = new LunarState();
+        int seeks = 100000;
+        start = System.nanoTime();
+        for (int i = 0; i < seeks; i++) {
+            int e = random.nextInt(log.episodeCount());
+            log.read(log.episodeStart(e) + random.nextInt((int) (log.episodeEnd(e) - log.episodeStart(e))), state);
+        }
+        double seek = (System.nanoTime() - start) / 1e9 / seeks;
+
+        start = System.nanoTime();
+        int running = 0;
+        for (long f = log.frameCount() - 1; f >= 0; f--) {
+            log.read(f, state);
+            if (state.mMode == STATE_RUNNING) running++;
+        }
+        double reverse = (System.nanoTime() - start) / 1e9;
+        log.close();
+
+        System.out.println(String.format(Locale.US, "%s: %d frames, %d episodes, %.2f GB; recorded in %.1f s, "
+                        + "opened in %.2f ms, random seek %.2f us, reverse scan %.0f M frames/s",
+                ReplayLog.class.getSimpleName(), log.frameCount(), log.episodeCount(), file.length() / 1e9,
+                recorded, 1000 * opened, 1e6 * seek, log.frameCount() / reverse / 1e6));
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Plays a {@link ReplayLog} back one frame per LunarThread tick, at a
+ * variable speed in either direction, with pausing, single-frame stepping
+ * and jumping between episodes.
+ * <p>
+ * The LunarThread calls {@link #frame} every tick; the controls may be
+ * called from any thread. Playback pauses by itself at either end of the
+ * log.
+ */
+final class ReplayPlayer implements Closeable {
+    /**
+     * Playback speeds in frames per tick, negative for reverse.
+     */
+    static final double[] SPEEDS = {-8, -4, -2, -1, -0.5, -0.25, 0.25, 0.5, 1, 2, 4, 8};
+    private static final int NORMAL_SPEED = 8;
+
+    /**
+     * Frames into an episode after which "previous episode" goes back to
+     * the start of the current one instead.
+     */
+    private static final int RESTART_FRAMES = 10;
+
+    private final ReplayLog mLog;
+
+    /**
+     * Current frame; fractional so that slow speeds advance every few ticks.
+     */
+    private double mPosition;
+    private int mSpeed = NORMAL_SPEED;
+    private boolean mPaused;
+
+    ReplayPlayer(ReplayLog log) {
+        mLog = log;
+    }
+
+    ReplayLog getLog() {
+        return mLog;
+    }
+
+    /**
+     * Copies the current frame into {@code out}, with the canvas and lander
+     * size it was recorded at, and moves on by the speed. Leaves {@code out}
+     * alone if the log is empty.
+     */
+    synchronized void frame(LunarState out) throws IOException {
+        long frames = mLog.frameCount();
+        if (frames == 0) return;
+        mLog.read((long) mPosition, out);
+        out.mCanvasWidth = mLog.mCanvasWidth;
+        out.mCanvasHeight = mLog.mCanvasHeight;
+        out.mLanderWidth = mLog.mLanderWidth;
+        out.mLanderHeight = mLog.mLanderHeight;
+        if (mPaused) return;
+        mPosition += SPEEDS[mSpeed];
+        if (mPosition < 0 || mPosition > frames - 1) {
+            mPosition = Math.max(0, Math.min(frames - 1, mPosition));
+            mPaused = true;
+        }
+    }
+
+    synchronized void togglePause() {
+        mPaused = !mPaused;
+    }
+
+    synchronized boolean isPaused() {
+        return mPaused;
+    }
+
+    /**
+     * Moves one step along SPEEDS, towards fast forward.
+     */
+    synchronized void faster() {
+        mSpeed = Math.min(SPEEDS.length - 1, mSpeed + 1);
+    }
+
+    /**
+     * Moves one step along SPEEDS, towards fast reverse.
+     */
+    synchronized void slower() {
+        mSpeed = Math.max(0, mSpeed - 1);
+    }
+
+    synchronized double getSpeed() {
+        return SPEEDS[mSpeed];
+    }
+
+    /**
+     * Pauses and moves {@code frames} frames, negative for back.
+     */
+    synchronized void step(int frames) {
+        mPaused = true;
+        seek((long) mPosition + frames);
+    }
+
+    /**
+     * Jumps to {@code frame}, clamped to the log.
+     */
+    synchronized void seek(long frame) {
+        mPosition = Math.max(0, Math.min(mLog.frameCount() - 1, frame));
+    }
+
+    synchronized void seekEpisode(int episode) {
+        if (mLog.episodeCount() == 0) return;
+        seek(mLog.episodeStart(Math.max(0, Math.min(mLog.episodeCount() - 1, episode))));
+    }
+
+    synchronized void nextEpisode() {
+        seekEpisode(getEpisode() + 1);
+    }
+
+    /**
+     * Goes to the start of the current episode, or of the previous one if
+     * already near its start.
+     */
+    synchronized void previousEpisode() {
+        int episode = getEpisode();
+        if (mLog.episodeCount() > 0 && mPosition - mLog.episodeStart(episode) < RESTART_FRAMES) episode--;
+        seekEpisode(episode);
+    }
+
+    synchronized long getFrame() {
+        return (long) mPosition;
+    }
+
+    synchronized int getEpisode() {
+        return mLog.episodeCount() > 0 ? mLog.episodeOf((long) mPosition) : 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        int episode = getEpisode();
+        long start = mLog.episodeCount() > 0 ? mLog.episodeStart(episode) : 0;
+        return String.format(Locale.US, "episode %d/%d frame %d %s", episode + 1, mLog.episodeCount(),
+                (long) mPosition - start, mPaused ? "paused" : "x" + SPEEDS[mSpeed]);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mLog.close();
+    }
+}
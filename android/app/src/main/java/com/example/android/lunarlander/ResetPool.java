@@ -0,0 +1,360 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Start states made ahead of time, so a reset only copies one in.
+ * <p>
+ * Only the random parts of a start are kept (the initial velocity and the
+ * landing pad position); the rest follows from the geometry and difficulty,
+ * see {@link LunarSimulator#start(LunarState, double, double, int)}. There
+ * is one pool per difficulty.
+ * <p>
+ * A generated pool is a ring per difficulty, filled by a background thread
+ * with the same draws as {@link LunarSimulator#start(LunarState)} and
+ * emptied by the single physics thread that resets. Neither side locks; the
+ * filler is woken when a ring drops below half. Entries carry the geometry
+ * they were made for, and a reset on a different screen size discards them
+ * and has the filler start over. A loaded pool cycles through a fixed set of
+ * start states read from a file, such as a set to evaluate against.
+ * <p>
+ * {@link #take} returns false when there is nothing to take; the caller
+ * then starts the episode itself.
+ * <p>
+ * File format, little-endian: int magic "LRSP", int canvas width, int canvas
+ * height, int lander width, int lander height, int counts [3] by difficulty,
+ * then for each difficulty in order its entries: double dx, double dy, int
+ * goal x.
+ */
+final class ResetPool {
+    private static final String TAG = ResetPool.class.getSimpleName();
+
+    static final int MAGIC = 0x4C525350;
+
+    /**
+     * DIFFICULTY_EASY, DIFFICULTY_HARD and DIFFICULTY_MEDIUM.
+     */
+    static final int DIFFICULTIES = 3;
+
+    private static final int HEADER_BYTES = 20 + 4 * DIFFICULTIES;
+    private static final int ENTRY_BYTES = 20;
+
+    /*
+     * Entries by difficulty; in a generated pool each also records the
+     * geometry generation it was made for
+     */
+    private final double[][] mDX = new double[DIFFICULTIES][];
+    private final double[][] mDY = new double[DIFFICULTIES][];
+    private final int[][] mGoalX = new int[DIFFICULTIES][];
+    private final int[][] mGeneration = new int[DIFFICULTIES][];
+
+    /**
+     * Whether the entries come from a file and are cycled through.
+     */
+    private final boolean mFixed;
+
+    /*
+     * Generated pool: entries taken and entries made so far, by difficulty.
+     * Loaded pool: only mHeads is used, as the cursor.
+     */
+    private final AtomicLongArray mHeads = new AtomicLongArray(DIFFICULTIES);
+    private final AtomicLongArray mTails = new AtomicLongArray(DIFFICULTIES);
+
+    /**
+     * The geometry entries are made for: generation, canvas width and height,
+     * lander width and height. Replaced, never modified.
+     */
+    private volatile int[] mGeometry;
+
+    /**
+     * Applies entries; shared by the filler, which only uses it to draw.
+     */
+    private final LunarSimulator mSimulator;
+    private final Thread mFiller;
+    private volatile boolean mClosed;
+
+    /*
+     * Written only by the thread that takes, read by toString from any thread
+     */
+    private volatile long mHits;
+    private volatile long mMisses;
+
+    /**
+     * A pool generated in the background.
+     *
+     * @param capacity entries kept ready per difficulty
+     */
+    ResetPool(int capacity, Random random) {
+        mFixed = false;
+        mSimulator = new LunarSimulator(random);
+        for (int d = 0; d < DIFFICULTIES; d++) {
+            mDX[d] = new double[capacity];
+            mDY[d] = new double[capacity];
+            mGoalX[d] = new int[capacity];
+            mGeneration[d] = new int[capacity];
+        }
+        mFiller = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                fill();
+            }
+        }, TAG + "-fill");
+        mFiller.setDaemon(true);
+        mFiller.setPriority(Thread.MIN_PRIORITY);
+        mFiller.start();
+    }
+
+    /**
+     * A pool of the entries in {@code buffer}, in the file format.
+     */
+    private ResetPool(ByteBuffer buffer) throws IOException {
+        mFixed = true;
+        mSimulator = new LunarSimulator(new Random());
+        mFiller = null;
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            if (buffer.getInt() != MAGIC) throw new IOException("Not a reset pool");
+            mGeometry = new int[]{0, buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getInt()};
+            int[] counts = new int[DIFFICULTIES];
+            long entries = 0;
+            for (int d = 0; d < DIFFICULTIES; d++) {
+                counts[d] = buffer.getInt();
+                if (counts[d] < 0) throw new IOException("Bad entry count " + counts[d]);
+                entries += counts[d];
+            }
+            // before allocating, so a corrupt count cannot run us out of memory
+            if (entries * ENTRY_BYTES > buffer.remaining()) throw new IOException("Truncated reset pool");
+            for (int d = 0; d < DIFFICULTIES; d++) {
+                mDX[d] = new double[counts[d]];
+                mDY[d] = new double[counts[d]];
+                mGoalX[d] = new int[counts[d]];
+                for (int i = 0; i < counts[d]; i++) {
+                    mDX[d][i] = buffer.getDouble();
+                    mDY[d][i] = buffer.getDouble();
+                    mGoalX[d][i] = buffer.getInt();
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated reset pool");
+        }
+    }
+
+    /**
+     * @return a pool cycling through the start states in {@code file}
+     */
+    static ResetPool load(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            return new ResetPool(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Draws {@code perDifficulty} start states of each difficulty for the
+     * geometry of {@code geometry} and writes them to {@code file}.
+     */
+    static void write(File file, LunarState geometry, int perDifficulty, Random random)
+            throws IOException {
+        LunarSimulator simulator = new LunarSimulator(random);
+        LunarState s = new LunarState();
+        s.set(geometry);
+        ByteBuffer out = ByteBuffer.allocate(HEADER_BYTES + DIFFICULTIES * perDifficulty * ENTRY_BYTES)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(MAGIC).putInt(s.mCanvasWidth).putInt(s.mCanvasHeight)
+                .putInt(s.mLanderWidth).putInt(s.mLanderHeight);
+        for (int d = 0; d < DIFFICULTIES; d++) out.putInt(perDifficulty);
+        for (int d = 0; d < DIFFICULTIES; d++) {
+            s.mDifficulty = d;
+            for (int i = 0; i < perDifficulty; i++) {
+                simulator.start(s);
+                out.putDouble(s.mDX).putDouble(s.mDY).putInt(s.mGoalX);
+            }
+        }
+        FileOutputStream stream = new FileOutputStream(file);
+        try {
+            stream.write(out.array());
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Starts an episode in {@code s} from the pool, for its difficulty and
+     * geometry. Only one thread may take at a time.
+     *
+     * @return false, leaving {@code s} alone, if the pool has nothing ready;
+     * a generated pool is then refilled for the geometry of {@code s}
+     */
+    boolean take(LunarState s) {
+        int d = s.mDifficulty;
+        int[] geometry = mGeometry;
+        boolean fits = geometry != null && d >= 0 && d < DIFFICULTIES
+                && geometry[1] == s.mCanvasWidth && geometry[2] == s.mCanvasHeight
+                && geometry[3] == s.mLanderWidth && geometry[4] == s.mLanderHeight;
+        if (mFixed) {
+            if (!fits || mDX[d].length == 0) {
+                mMisses++;
+                return false;
+            }
+            long next = mHeads.get(d);
+            mHeads.set(d, next + 1);
+            int i = (int) (next % mDX[d].length);
+            mSimulator.start(s, mDX[d][i], mDY[d][i], mGoalX[d][i]);
+            mHits++;
+            return true;
+        }
+        if (!fits) {
+            if (d >= 0 && d < DIFFICULTIES) {
+                mGeometry = new int[]{geometry == null ? 1 : geometry[0] + 1, s.mCanvasWidth,
+                        s.mCanvasHeight, s.mLanderWidth, s.mLanderHeight};
+                LockSupport.unpark(mFiller);
+            }
+            mMisses++;
+            return false;
+        }
+
+        int capacity = mDX[d].length;
+        long head = mHeads.get(d);
+        long tail = mTails.get(d);
+        // entries made for an earlier geometry are skipped
+        while (head < tail && mGeneration[d][(int) (head % capacity)] != geometry[0]) head++;
+        if (head == tail) {
+            mHeads.lazySet(d, head);
+            LockSupport.unpark(mFiller);
+            mMisses++;
+            return false;
+        }
+        int i = (int) (head % capacity);
+        mSimulator.start(s, mDX[d][i], mDY[d][i], mGoalX[d][i]);
+        mHeads.lazySet(d, head + 1);
+        if (tail - head - 1 < capacity / 2) LockSupport.unpark(mFiller);
+        mHits++;
+        return true;
+    }
+
+    /**
+     * The filler: tops every ring up for the current geometry, then parks
+     * until a ring runs low or the geometry changes.
+     */
+    private void fill() {
+        LunarState s = new LunarState();
+        while (!mClosed) {
+            int[] geometry = mGeometry;
+            if (geometry == null) {
+                LockSupport.park(this);
+                continue;
+            }
+            s.mCanvasWidth = geometry[1];
+            s.mCanvasHeight = geometry[2];
+            s.mLanderWidth = geometry[3];
+            s.mLanderHeight = geometry[4];
+            for (int d = 0; d < DIFFICULTIES && mGeometry == geometry; d++) {
+                int capacity = mDX[d].length;
+                s.mDifficulty = d;
+                long tail = mTails.get(d);
+                while (tail - mHeads.get(d) < capacity && mGeometry == geometry) {
+                    int i = (int) (tail % capacity);
+                    mSimulator.start(s);
+                    mDX[d][i] = s.mDX;
+                    mDY[d][i] = s.mDY;
+                    mGoalX[d][i] = s.mGoalX;
+                    mGeneration[d][i] = geometry[0];
+                    mTails.lazySet(d, ++tail);
+                }
+            }
+            if (mGeometry == geometry) LockSupport.park(this);
+        }
+    }
+
+    /**
+     * Stops the filler of a generated pool.
+     */
+    void close() {
+        mClosed = true;
+        if (mFiller != null) LockSupport.unpark(mFiller);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%s: %d resets from the pool, %d started directly",
+                TAG, mHits, mMisses);
+    }
+
+    /**
+     * Times resets from a generated pool against starting directly, and with
+     * {@code [file] [per difficulty]} writes a pool file for the default
+     * geometry.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        LunarState s = new LunarEnvironment(new Random(42)).state();
+        if (args.length > 0) {
+            int perDifficulty = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+            write(new File(args[0]), s, perDifficulty, new Random(42));
+            ResetPool loaded = load(new File(args[0]));
+            System.out.println(String.format(Locale.US, "%s: wrote %d start states per difficulty "
+                    + "to %s, first %s", TAG, perDifficulty, args[0], loaded.take(s) ? "loads" : "fails"));
+            return;
+        }
+
+        int rounds = 200;
+        int perRound = 2048;
+        LunarSimulator simulator = new LunarSimulator(new Random(42));
+        long sink = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds * perRound; i++) {
+            s.mDifficulty = i % DIFFICULTIES;
+            simulator.start(s);
+            sink += s.mGoalX;
+        }
+        double direct = (System.nanoTime() - start) / (double) (rounds * perRound);
+
+        // bursts of resets with time in between for the filler to catch up,
+        // as between the episodes of a training run
+        ResetPool pool = new ResetPool(perRound, new Random(42));
+        pool.take(s);
+        long taking = 0;
+        for (int round = 0; round < rounds; round++) {
+            Thread.sleep(5);
+            long t = System.nanoTime();
+            for (int i = 0; i < perRound; i++) {
+                s.mDifficulty = i % DIFFICULTIES;
+                pool.take(s);
+                sink += s.mGoalX;
+            }
+            taking += System.nanoTime() - t;
+        }
+        pool.close();
+        System.out.println(String.format(Locale.US, "%s: start %.0f ns, take %.0f ns; %s (%d)",
+                TAG, direct, taking / (double) (rounds * perRound), pool, sink & 1));
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import static com.example.android.lunarlander.LunarView.LunarThread.STATE_LOSE;
+import static com.example.android.lunarlander.LunarView.LunarThread.STATE_RUNNING;
+import static com.example.android.lunarlander.LunarView.LunarThread.STATE_WIN;
+
+/**
+ * Turns consecutive lander states into the observation and shaped reward the
+ * trainer sees. Shared by the MqttThread and the headless environments so
+ * that every transport hands out the same numbers.
+ * <p>
+ * The observation is x centered and divided by half the screen width, height
+ * above the pad over the screen height, velocities over 500, heading in
+ * radians and whether the lander is on the pad. The reward is the change in a
+ * shaping potential (distance, speed and tilt penalties, pad bonus) minus
+ * 0.3 per unit of fuel burned, replaced by +100/-100 when the episode ends in
+ * a win/loss.
+ */
+final class RewardShaper {
+    /*
+     * Observation layout
+     */
+    static final int OBS_X = 0;
+    static final int OBS_Y = 1;
+    static final int OBS_DX = 2;
+    static final int OBS_DY = 3;
+    static final int OBS_HEADING = 4;
+    static final int OBS_ON_GOAL = 5;
+    static final int OBSERVATION_SIZE = 6;
+
+    private double mPrevFuel = -1;
+    private double mPrevShaping = 0.0;
+    private boolean mPrevShapingExist = false;
+
+    /**
+     * Forgets the previous state; call at the start of every episode.
+     */
+    void reset() {
+        mPrevFuel = -1;
+        mPrevShaping = -1;
+        mPrevShapingExist = false;
+    }
+
+    /**
+     * Fills {@code obs} with the observation of {@code s} and returns the
+     * reward for reaching it from the previous state.
+     *
+     * @param screenWidth  width the x coordinate is normalized by
+     * @param screenHeight height the y coordinate is normalized by
+     * @param obs          array of at least OBSERVATION_SIZE to fill
+     */
+    double update(LunarState s, int screenWidth, int screenHeight, double[] obs) {
+        double fuelUsed = mPrevFuel > 0 ? mPrevFuel - s.mFuel : 0;
+        mPrevFuel = s.mFuel;
+        double mX = (s.mX - screenWidth / 2) / (screenWidth / 2);
+        double mY = (s.mY - LunarSimulator.groundY(s)) / screenHeight;
+        double mDX = s.mDX / 500;
+        double mDY = s.mDY / 500;
+        double mHeading = s.mHeading * 0.0174532925;
+
+        obs[OBS_X] = mX;
+        obs[OBS_Y] = mY;
+        obs[OBS_DX] = mDX;
+        obs[OBS_DY] = mDY;
+        obs[OBS_HEADING] = mHeading;
+        obs[OBS_ON_GOAL] = s.mOnGoal ? 1 : 0;
+
+        mHeading = mHeading > Math.PI ? 2 * Math.PI - mHeading : mHeading;
+        double reward = 0.0;
+        double shaping = -100 * Math.sqrt(mX * mX + mY * mY)
+                - 100 * Math.sqrt(mDX * mDX + mDY * mDY)
+                - 100 * Math.abs(mHeading)
+                + (s.mOnGoal ? 10 : 0);
+        if (mPrevShapingExist) {
+            reward = shaping - mPrevShaping;
+        }
+        reward -= 0.3 * fuelUsed;
+        mPrevShaping = shaping;
+        mPrevShapingExist = true;
+
+        if (isDone(s)) {
+            if (s.mMode == STATE_WIN) {
+                reward = 100;
+            } else if (s.mMode == STATE_LOSE) {
+                reward = -100;
+            }
+        }
+        return reward;
+    }
+
+    /**
+     * @return whether the episode is over, i.e. the game is not running
+     */
+    static boolean isDone(LunarState s) {
+        return s.mMode != STATE_RUNNING;
+    }
+}
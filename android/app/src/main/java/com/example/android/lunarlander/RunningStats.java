@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+/**
+ * Streaming summary of one scalar: count, mean, variance, min, max and a
+ * fixed-bin histogram that answers quantile queries.
+ * <p>
+ * {@link #add} never allocates. Two instances built with the same range and
+ * bin count can be merged exactly, so each environment (or device) keeps its
+ * own and a trainer combines them. Mean and variance use Welford's update and
+ * Chan's parallel merge; quantiles are accurate to one bin width inside the
+ * range and clamp to min/max outside it.
+ */
+final class RunningStats {
+    /**
+     * Smallest standard deviation used by {@link #normalize}, so constant
+     * inputs don't blow up.
+     */
+    private static final double MIN_STD = 1e-8;
+
+    private final double mLow;
+    private final double mHigh;
+    private final double mBinWidth;
+
+    /**
+     * Histogram counts. Index 0 is the underflow bin and the last index the
+     * overflow bin.
+     */
+    private final long[] mBins;
+
+    private long mCount;
+    private double mMean;
+    private double mM2;
+    private double mMin = Double.POSITIVE_INFINITY;
+    private double mMax = Double.NEGATIVE_INFINITY;
+
+    /**
+     * @param low  lower end of the histogram range
+     * @param high upper end of the histogram range
+     * @param bins number of bins between low and high
+     */
+    RunningStats(double low, double high, int bins) {
+        mLow = low;
+        mHigh = high;
+        mBinWidth = (high - low) / bins;
+        mBins = new long[bins + 2];
+    }
+
+    void add(double x) {
+        mCount++;
+        double delta = x - mMean;
+        mMean += delta / mCount;
+        mM2 += delta * (x - mMean);
+        if (x < mMin) mMin = x;
+        if (x > mMax) mMax = x;
+        mBins[binOf(x)]++;
+    }
+
+    /**
+     * Adds everything {@code other} has seen to this instance.
+     *
+     * @throws IllegalArgumentException if the histograms differ
+     */
+    void merge(RunningStats other) {
+        if (other.mBins.length != mBins.length || other.mLow != mLow || other.mHigh != mHigh) {
+            throw new IllegalArgumentException("Histogram ranges differ");
+        }
+        if (other.mCount == 0) return;
+
+        long count = mCount + other.mCount;
+        double delta = other.mMean - mMean;
+        mMean += delta * other.mCount / count;
+        mM2 += other.mM2 + delta * delta * ((double) mCount * other.mCount / count);
+        mCount = count;
+        mMin = Math.min(mMin, other.mMin);
+        mMax = Math.max(mMax, other.mMax);
+        for (int i = 0; i < mBins.length; i++) mBins[i] += other.mBins[i];
+    }
+
+    void reset() {
+        mCount = 0;
+        mMean = 0;
+        mM2 = 0;
+        mMin = Double.POSITIVE_INFINITY;
+        mMax = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < mBins.length; i++) mBins[i] = 0;
+    }
+
+    long count() {
+        return mCount;
+    }
+
+    double mean() {
+        return mMean;
+    }
+
+    /**
+     * @return the unbiased sample variance, 0 with fewer than two samples
+     */
+    double variance() {
+        return mCount > 1 ? mM2 / (mCount - 1) : 0;
+    }
+
+    double stdDev() {
+        return Math.sqrt(variance());
+    }
+
+    double min() {
+        return mMin;
+    }
+
+    double max() {
+        return mMax;
+    }
+
+    /**
+     * @return x shifted and scaled to zero mean and unit variance
+     */
+    double normalize(double x) {
+        return (x - mMean) / Math.max(stdDev(), MIN_STD);
+    }
+
+    /**
+     * Estimates the q-quantile by linear interpolation inside the histogram
+     * bin that contains it.
+     *
+     * @param q between 0 and 1
+     * @return the estimate, or NaN if nothing has been added
+     */
+    double quantile(double q) {
+        if (mCount == 0) return Double.NaN;
+        double rank = q * mCount;
+        long seen = 0;
+        for (int i = 0; i < mBins.length; i++) {
+            long inBin = mBins[i];
+            if (inBin > 0 && seen + inBin >= rank) {
+                if (i == 0) return mMin;
+                if (i == mBins.length - 1) return mMax;
+                double lo = mLow + (i - 1) * mBinWidth;
+                double estimate = lo + mBinWidth * (rank - seen) / inBin;
+                return Math.max(mMin, Math.min(mMax, estimate));
+            }
+            seen += inBin;
+        }
+        return mMax;
+    }
+
+    /**
+     * @return the raw histogram counts, underflow first and overflow last.
+     * Owned by this instance; do not modify.
+     */
+    long[] bins() {
+        return mBins;
+    }
+
+    double low() {
+        return mLow;
+    }
+
+    double high() {
+        return mHigh;
+    }
+
+    double m2() {
+        return mM2;
+    }
+
+    private int binOf(double x) {
+        if (x < mLow) return 0;
+        if (x >= mHigh) return mBins.length - 1;
+        int bin = 1 + (int) ((x - mLow) / mBinWidth);
+        return Math.min(bin, mBins.length - 2);
+    }
+}
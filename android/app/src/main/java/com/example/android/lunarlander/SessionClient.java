@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Asynchronous client of a {@link SessionServer}.
+ * <p>
+ * {@link #stepAsync} and {@link #resetAsync} only queue a request and return
+ * a future; any number of environments and requests can be in flight on the
+ * one connection, so throughput is bound by bandwidth rather than round
+ * trips. The server answers requests in order, so a single reader thread
+ * matches each response to the oldest pending future and completes it.
+ * Completions run on that reader thread; chain with the *Async variants to
+ * move heavy work elsewhere. When auto-flush is off, requests issued from
+ * completion callbacks are sent together once the reader has drained the
+ * responses that were available, which batches naturally.
+ * <p>
+ * Issuing a request blocks while maxInFlight are unanswered, except on the
+ * reader thread: only the reader frees room, so requests issued from
+ * completion callbacks instead wait in a backlog that is sent, in order, as
+ * responses come in. A caller about to block flushes first, so requests it
+ * has not flushed yet cannot hold up the responses it waits for.
+ * <p>
+ * Meant for trainer-side JVMs; needs API 24 when used on a device.
+ */
+@TargetApi(Build.VERSION_CODES.N)
+final class SessionClient implements Closeable {
+    private static final String TAG = SessionClient.class.getSimpleName();
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Socket mSocket;
+    private final DataOutputStream mOut;
+    private final BufferedInputStream mBufferedIn;
+    private final DataInputStream mIn;
+    private final ConcurrentLinkedQueue<Pending> mPending = new ConcurrentLinkedQueue<>();
+    private final Semaphore mInFlight;
+
+    /**
+     * Requests issued on the reader thread that have no room yet, oldest
+     * first. Guarded by mOut.
+     */
+    private final ArrayDeque<Pending> mBacklog = new ArrayDeque<>();
+    private final AtomicLong mIds = new AtomicLong();
+    private final Thread mReader;
+    private volatile boolean mAutoFlush = true;
+    private volatile IOException mFailure;
+
+    /**
+     * @param maxInFlight requests allowed to wait for a response before
+     *                    issuing another one blocks
+     */
+    SessionClient(InetAddress host, int port, int maxInFlight) throws IOException {
+        mSocket = new Socket(host, port);
+        mSocket.setTcpNoDelay(true);
+        mOut = new DataOutputStream(new BufferedOutputStream(mSocket.getOutputStream(), BUFFER_SIZE));
+        mBufferedIn = new BufferedInputStream(mSocket.getInputStream(), BUFFER_SIZE);
+        mIn = new DataInputStream(mBufferedIn);
+        mInFlight = new Semaphore(maxInFlight);
+        mReader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readResponses();
+            }
+        }, TAG + "-reader");
+        mReader.setDaemon(true);
+        mReader.start();
+    }
+
+    /**
+     * With auto-flush on (the default) every request is sent immediately.
+     * Turn it off to issue a batch and send it with one {@link #flush}.
+     */
+    void setAutoFlush(boolean autoFlush) {
+        mAutoFlush = autoFlush;
+    }
+
+    /**
+     * Starts a new episode in environment {@code env}, creating it on the
+     * server if needed.
+     *
+     * @param env from 0 to SessionProtocol.MAX_ENVS - 1
+     */
+    CompletableFuture<Transition> resetAsync(int env) throws IOException, InterruptedException {
+        return send(env, SessionProtocol.TYPE_RESET, 0);
+    }
+
+    /**
+     * Plays one tick of environment {@code env} with {@code action} held.
+     *
+     * @param action one of the LunarSimulator.ACTION_* key codes
+     */
+    CompletableFuture<Transition> stepAsync(int env, int action) throws IOException, InterruptedException {
+        return send(env, SessionProtocol.TYPE_STEP, action);
+    }
+
+    /**
+     * Sends everything issued so far.
+     */
+    void flush() throws IOException {
+        synchronized (mOut) {
+            mOut.flush();
+        }
+    }
+
+    private CompletableFuture<Transition> send(int env, int type, int action)
+            throws IOException, InterruptedException {
+        if (mFailure != null) throw mFailure;
+        Pending pending = new Pending(mIds.incrementAndGet(), env, type, action);
+        if (Thread.currentThread() == mReader) {
+            synchronized (mOut) {
+                if (mFailure != null) throw mFailure;
+                mBacklog.add(pending);
+                sendBacklog();
+            }
+            return pending.mFuture;
+        }
+
+        if (!mInFlight.tryAcquire()) {
+            flush();
+            mInFlight.acquire();
+        }
+        synchronized (mOut) {
+            // checked under the lock the failure drain holds, so a request
+            // is either refused here or failed there
+            if (mFailure != null) {
+                mInFlight.release();
+                throw mFailure;
+            }
+            write(pending);
+            if (mAutoFlush) mOut.flush();
+        }
+        return pending.mFuture;
+    }
+
+    /**
+     * Sends backlogged requests while there is room. Call with mOut held.
+     */
+    private void sendBacklog() throws IOException {
+        boolean sent = false;
+        while (!mBacklog.isEmpty() && mInFlight.tryAcquire()) {
+            write(mBacklog.poll());
+            sent = true;
+        }
+        if (sent && mAutoFlush) mOut.flush();
+    }
+
+    /**
+     * Writes one request that holds room. Call with mOut held, so the
+     * queue order is the wire order.
+     */
+    private void write(Pending pending) throws IOException {
+        mPending.add(pending);
+        SessionProtocol.writeRequest(mOut, pending.mId, pending.mEnv, pending.mType, pending.mAction);
+    }
+
+    private void readResponses() {
+        try {
+            while (true) {
+                long id = mIn.readLong();
+                int env = mIn.readInt();
+                Transition t = new Transition();
+                SessionProtocol.readResponseBody(mIn, t);
+
+                Pending pending = mPending.poll();
+                if (pending == null || pending.mId != id || pending.mEnv != env) {
+                    throw new IOException("Unexpected response " + id + " for env " + env);
+                }
+                mInFlight.release();
+                pending.mFuture.complete(t);
+                synchronized (mOut) {
+                    if (!mBacklog.isEmpty()) sendBacklog();
+                }
+
+                // requests issued by the callbacks go out once we've caught up
+                if (!mAutoFlush && mBufferedIn.available() < SessionProtocol.RESPONSE_SIZE) {
+                    flush();
+                }
+            }
+        } catch (IOException e) {
+            mFailure = e;
+            // unblocks a sender stuck writing to a server that stopped reading
+            try {
+                mSocket.close();
+            } catch (IOException ignored) {
+            }
+            synchronized (mOut) {
+                Pending pending;
+                while ((pending = mPending.poll()) != null) {
+                    pending.mFuture.completeExceptionally(e);
+                    mInFlight.release();
+                }
+                while ((pending = mBacklog.poll()) != null) pending.mFuture.completeExceptionally(e);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (mOut) {
+            // after a failure the socket is already closed, and the server gone
+            if (mFailure == null) {
+                SessionProtocol.writeRequest(mOut, 0, 0, SessionProtocol.TYPE_CLOSE, 0);
+                mOut.flush();
+            }
+        }
+        mSocket.close();
+    }
+
+    private static final class Pending {
+        final long mId;
+        final int mEnv;
+        final int mType;
+        final int mAction;
+        final CompletableFuture<Transition> mFuture = new CompletableFuture<>();
+
+        Pending(long id, int env, int type, int action) {
+            mId = id;
+            mEnv = env;
+            mType = type;
+            mAction = action;
+        }
+    }
+
+    /**
+     * Compares one blocking environment with many pipelined ones over a single
+     * connection to an in-process server. Arguments: [envs] [steps].
+     */
+    public static void main(String[] args) throws Exception {
+        final int envs = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        final int steps = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+        SessionServer server = new SessionServer(0);
+        server.start();
+
+        SessionClient client = new SessionClient(InetAddress.getLoopbackAddress(), server.getPort(), 4 * envs);
+        long start = System.nanoTime();
+        Transition t = client.resetAsync(0).get();
+        for (int i = 0; i < steps / 10; i++) {
+            t = (t.mDone ? client.resetAsync(0) : client.stepAsync(0, LunarSimulator.ACTION_FIRE)).get();
+        }
+        double blocking = steps / 10 / ((System.nanoTime() - start) / 1e9);
+
+        client.setAutoFlush(false);
+        final CountDownLatch done = new CountDownLatch(envs);
+        final AtomicLong remaining = new AtomicLong(steps);
+        start = System.nanoTime();
+        for (int env = 0; env < envs; env++) {
+            loop(client, env, client.resetAsync(env), remaining, done);
+        }
+        client.flush();
+        done.await();
+        double pipelined = steps / ((System.nanoTime() - start) / 1e9);
+        client.close();
+        server.close();
+
+        System.out.println(String.format(Locale.US,
+                "%s: blocking %.0f steps/s, pipelined over %d envs %.0f steps/s",
+                TAG, blocking, envs, pipelined));
+    }
+
+    /**
+     * Keeps one environment stepping until the shared step budget runs out.
+     */
+    private static void loop(final SessionClient client, final int env,
+                             CompletableFuture<Transition> future,
+                             final AtomicLong remaining, final CountDownLatch done) {
+        future.whenComplete(new BiConsumer<Transition, Throwable>() {
+            @Override
+            public void accept(Transition t, Throwable failure) {
+                if (failure != null || remaining.decrementAndGet() < 0) {
+                    done.countDown();
+                    return;
+                }
+                try {
+                    loop(client, env, t.mDone ? client.resetAsync(env)
+                            : client.stepAsync(env, LunarSimulator.ACTION_FIRE), remaining, done);
+                } catch (Exception e) {
+                    done.countDown();
+                }
+            }
+        });
+    }
+}
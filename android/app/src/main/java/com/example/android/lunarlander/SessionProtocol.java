@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Wire format spoken by {@link SessionServer} and its clients: fixed-size,
+ * big-endian binary frames over a stream socket.
+ * <p>
+ * A request names one of the connection's environments, so a client can run
+ * several environments over one connection and keep many requests in flight;
+ * every request gets exactly one response, in order, carrying the request id.
+ * Environment ids run from 0 to MAX_ENVS - 1, and an environment must be
+ * reset before it is stepped. A request that breaks either rule, or has an
+ * unknown type, makes the server close the connection.
+ * <pre>
+ * request  (20 bytes): long id, int env, int type, int action
+ * response (80 bytes): long id, int env, int done, double reward,
+ *                      int landing, int steps, double[6] observation
+ * </pre>
+ */
+final class SessionProtocol {
+    /*
+     * Request types
+     */
+    static final int TYPE_RESET = 1;
+    static final int TYPE_STEP = 2;
+    static final int TYPE_CLOSE = 3;
+
+    /**
+     * Environments per connection.
+     */
+    static final int MAX_ENVS = 4096;
+
+    static final int REQUEST_SIZE = 20;
+    static final int RESPONSE_SIZE = 32 + 8 * RewardShaper.OBSERVATION_SIZE;
+
+    private SessionProtocol() {
+    }
+
+    static void writeRequest(DataOutputStream out, long id, int env, int type, int action)
+            throws IOException {
+        out.writeLong(id);
+        out.writeInt(env);
+        out.writeInt(type);
+        out.writeInt(action);
+    }
+
+    static void writeResponse(DataOutputStream out, long id, int env, LunarEnvironment e)
+            throws IOException {
+        out.writeLong(id);
+        out.writeInt(env);
+        out.writeInt(e.isDone() ? 1 : 0);
+        out.writeDouble(e.reward());
+        out.writeInt(e.landing());
+        out.writeInt(e.steps());
+        double[] obs = e.observation();
+        for (int i = 0; i < RewardShaper.OBSERVATION_SIZE; i++) out.writeDouble(obs[i]);
+    }
+
+    /**
+     * Reads the response fields after the id and env into {@code t}.
+     */
+    static void readResponseBody(DataInputStream in, Transition t) throws IOException {
+        t.mDone = in.readInt() != 0;
+        t.mReward = in.readDouble();
+        t.mLanding = in.readInt();
+        t.mSteps = in.readInt();
+        for (int i = 0; i < RewardShaper.OBSERVATION_SIZE; i++) t.mObservation[i] = in.readDouble();
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hosts headless {@link LunarEnvironment}s for remote agents, one session per
+ * connection, speaking {@link SessionProtocol}.
+ * <p>
+ * Each session is a plain blocking read-step-write loop on its own thread.
+ * When the JVM has virtual threads (Java 21+) those are used, so a session
+ * waiting on its client costs a parked continuation rather than an OS thread
+ * and thousands of sessions fit in one JVM; elsewhere (including Android) it
+ * falls back to ordinary daemon threads. Per-session memory is the socket,
+ * two small buffers and the environments it created.
+ */
+final class SessionServer implements Closeable {
+    private static final String TAG = SessionServer.class.getSimpleName();
+
+    /**
+     * Socket buffer size per session. Frames are under 100 bytes, so this
+     * still batches a pipelined burst into one write.
+     */
+    private static final int BUFFER_SIZE = 1024;
+
+    private final ServerSocket mServerSocket;
+    private final ThreadFactory mThreadFactory;
+    private final AtomicInteger mActiveSessions = new AtomicInteger();
+    private final AtomicLong mSeeds = new AtomicLong(System.nanoTime());
+    private volatile boolean mRunning = true;
+
+    /**
+     * @param port port to listen on, 0 for any free port
+     */
+    SessionServer(int port) throws IOException {
+        mServerSocket = new ServerSocket(port, 1024, InetAddress.getLoopbackAddress());
+        mThreadFactory = sessionThreadFactory();
+    }
+
+    int getPort() {
+        return mServerSocket.getLocalPort();
+    }
+
+    int getActiveSessions() {
+        return mActiveSessions.get();
+    }
+
+    /**
+     * Starts accepting connections on a background thread.
+     */
+    void start() {
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (mRunning) {
+                    try {
+                        Socket socket = mServerSocket.accept();
+                        socket.setTcpNoDelay(true);
+                        mThreadFactory.newThread(new Session(socket)).start();
+                    } catch (IOException e) {
+                        if (!mRunning) return;
+                        // typically out of file descriptors; back off
+                        System.out.println(TAG + ": accept failed: " + e);
+                        try {
+                            Thread.sleep(100);
+                        } catch (InterruptedException ie) {
+                            return;
+                        }
+                    }
+                }
+            }
+        }, TAG + "-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mRunning = false;
+        mServerSocket.close();
+    }
+
+    /**
+     * @return a factory of virtual threads if the runtime has them, else of
+     * daemon platform threads
+     */
+    static ThreadFactory sessionThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (Exception e) {
+            return new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(null, r, TAG + "-session", 256 * 1024);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            };
+        }
+    }
+
+    /**
+     * One connected agent and the environments it has created.
+     */
+    private final class Session implements Runnable {
+        private final Socket mSocket;
+        private LunarEnvironment[] mEnvs = new LunarEnvironment[1];
+
+        Session(Socket socket) {
+            mSocket = socket;
+        }
+
+        @Override
+        public void run() {
+            mActiveSessions.incrementAndGet();
+            try {
+                BufferedInputStream buffered = new BufferedInputStream(mSocket.getInputStream(), BUFFER_SIZE);
+                DataInputStream in = new DataInputStream(buffered);
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(mSocket.getOutputStream(), BUFFER_SIZE));
+                while (true) {
+                    long id = in.readLong();
+                    int env = in.readInt();
+                    int type = in.readInt();
+                    int action = in.readInt();
+                    if (type == SessionProtocol.TYPE_CLOSE) break;
+
+                    LunarEnvironment e = environment(env, type);
+                    if (type == SessionProtocol.TYPE_RESET) {
+                        e.reset();
+                    } else {
+                        e.step(action);
+                    }
+                    SessionProtocol.writeResponse(out, id, env, e);
+
+                    // answer a pipelined burst with one write
+                    if (buffered.available() < SessionProtocol.REQUEST_SIZE) out.flush();
+                }
+                out.flush();
+            } catch (EOFException e) {
+                // client went away
+            } catch (IOException e) {
+                System.out.println(TAG + ": session failed: " + e);
+            } finally {
+                mActiveSessions.decrementAndGet();
+                try {
+                    mSocket.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+
+        /**
+         * @return environment {@code env}, created by its first reset
+         * @throws ProtocolException if the id is out of range, the type is
+         *                           unknown or a step comes before any reset
+         */
+        private LunarEnvironment environment(int env, int type) throws ProtocolException {
+            if (env < 0 || env >= SessionProtocol.MAX_ENVS) {
+                throw new ProtocolException("Bad env " + env);
+            }
+            if (type != SessionProtocol.TYPE_RESET && type != SessionProtocol.TYPE_STEP) {
+                throw new ProtocolException("Bad request type " + type);
+            }
+            if (env >= mEnvs.length) {
+                int length = Math.min(SessionProtocol.MAX_ENVS, Math.max(env + 1, mEnvs.length * 2));
+                LunarEnvironment[] grown = new LunarEnvironment[length];
+                System.arraycopy(mEnvs, 0, grown, 0, mEnvs.length);
+                mEnvs = grown;
+            }
+            if (mEnvs[env] == null) {
+                if (type == SessionProtocol.TYPE_STEP) {
+                    throw new ProtocolException("Step before reset on env " + env);
+                }
+                mEnvs[env] = new LunarEnvironment(new Random(mSeeds.incrementAndGet()));
+            }
+            return mEnvs[env];
+        }
+    }
+
+    /**
+     * Serves on a port: {@code [port]}. Or runs a local load test with
+     * {@code bench [sessions] [steps per session]}: that many clients on
+     * their own (virtual when available) threads, each stepping a random
+     * policy over its own connection.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("bench")) {
+            int sessions = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+            int steps = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+            bench(sessions, steps);
+            return;
+        }
+        SessionServer server = new SessionServer(args.length > 0 ? Integer.parseInt(args[0]) : 7777);
+        server.start();
+        System.out.println(TAG + ": listening on " + server.getPort());
+        Thread.currentThread().join();
+    }
+
+    private static void bench(int sessions, final int steps) throws Exception {
+        final SessionServer server = new SessionServer(0);
+        server.start();
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+
+        final CountDownLatch connected = new CountDownLatch(sessions);
+        final CountDownLatch go = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(sessions);
+        ThreadFactory factory = sessionThreadFactory();
+        for (int i = 0; i < sessions; i++) {
+            final int seed = i;
+            factory.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        runClient(server.getPort(), seed, steps, connected, go);
+                    } catch (Exception e) {
+                        System.out.println(TAG + ": client failed: " + e);
+                        connected.countDown();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        connected.await();
+        System.gc();
+        long heapConnected = runtime.totalMemory() - runtime.freeMemory();
+
+        long start = System.nanoTime();
+        go.countDown();
+        done.await();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        server.close();
+
+        System.out.println(String.format(Locale.US,
+                "%s: %d sessions, %.0f steps/s, ~%d bytes heap per session (clients included)",
+                TAG, sessions, (double) sessions * steps / seconds,
+                (heapConnected - heapBefore) / sessions));
+    }
+
+    private static void runClient(int port, int seed, int steps, CountDownLatch connected,
+                                  CountDownLatch go) throws Exception {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        socket.setTcpNoDelay(true);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+        Random random = new Random(seed);
+        Transition t = new Transition();
+        int[] actions = {LunarSimulator.ACTION_NONE, LunarSimulator.ACTION_FIRE,
+                LunarSimulator.ACTION_LEFT, LunarSimulator.ACTION_RIGHT};
+
+        connected.countDown();
+        go.await();
+        t.mDone = true;
+        for (int i = 0; i < steps; i++) {
+            int type = t.mDone ? SessionProtocol.TYPE_RESET : SessionProtocol.TYPE_STEP;
+            SessionProtocol.writeRequest(out, i, 0, type, actions[random.nextInt(actions.length)]);
+            out.flush();
+            in.readLong();
+            in.readInt();
+            SessionProtocol.readResponseBody(in, t);
+        }
+        SessionProtocol.writeRequest(out, steps, 0, SessionProtocol.TYPE_CLOSE, 0);
+        out.flush();
+        socket.close();
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Serves a {@link LunarEnvironment} to a trainer on the same machine through
+ * a memory-mapped file instead of an MQTT broker.
+ * <p>
+ * The file holds two single-producer/single-consumer rings of fixed-size,
+ * little-endian records: actions written by the trainer (python/shm_client.py)
+ * and transitions written by us. Each ring has a head counter advanced by its
+ * producer and a tail counter advanced by its consumer, each on its own cache
+ * line. Both sides spin briefly when a ring is empty or full, then yield, then
+ * park for short intervals, so an active trainer pays a few microseconds per
+ * step and an idle one costs no CPU.
+ * <p>
+ * A record must be complete before the head that publishes it moves, and
+ * read before the tail that frees it moves; see {@link #fence} for how that
+ * order is kept.
+ * <p>
+ * Layout:
+ * <pre>
+ *   0  header: magic, version, capacity, observation size, record sizes, state
+ *  64  action ring head       (long, trainer)
+ * 128  action ring tail       (long, us)
+ * 192  transition ring head   (long, us)
+ * 256  transition ring tail   (long, trainer)
+ * 320  capacity action records:     int type, int action, long id
+ *  ..  capacity transition records: long id, int type, int done, double reward,
+ *                                   int landing, int steps, double[6] observation
+ * </pre>
+ */
+final class SharedMemoryTransport implements Closeable {
+    private static final String TAG = SharedMemoryTransport.class.getSimpleName();
+
+    static final int MAGIC = 0x4C554E52; // "LUNR"
+    static final int VERSION = 1;
+
+    /*
+     * Action record types
+     */
+    static final int TYPE_RESET = 1;
+    static final int TYPE_STEP = 2;
+    static final int TYPE_CLOSE = 3;
+
+    /*
+     * Header states
+     */
+    static final int STATE_INIT = 0;
+    static final int STATE_READY = 1;
+    static final int STATE_CLOSED = 2;
+
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_VERSION = 4;
+    private static final int OFFSET_CAPACITY = 8;
+    private static final int OFFSET_OBSERVATION_SIZE = 12;
+    private static final int OFFSET_ACTION_SIZE = 16;
+    private static final int OFFSET_TRANSITION_SIZE = 20;
+    private static final int OFFSET_STATE = 24;
+    private static final int OFFSET_ACTION_HEAD = 64;
+    private static final int OFFSET_ACTION_TAIL = 128;
+    private static final int OFFSET_TRANSITION_HEAD = 192;
+    private static final int OFFSET_TRANSITION_TAIL = 256;
+    private static final int OFFSET_RINGS = 320;
+
+    static final int ACTION_RECORD_SIZE = 16;
+    static final int TRANSITION_RECORD_SIZE = 32 + 8 * RewardShaper.OBSERVATION_SIZE;
+
+    /*
+     * Waiting strategy: busy spins, then yields, then parks of PARK_NANOS
+     */
+    private static final int SPIN_TRIES = 10000;
+    private static final int YIELD_TRIES = 100;
+    private static final long PARK_NANOS = 50000;
+
+    private final RandomAccessFile mFile;
+    private final MappedByteBuffer mBuffer;
+    private final int mCapacity;
+    private final int mActionsOffset;
+    private final int mTransitionsOffset;
+
+    /**
+     * Written then read by {@link #fence}; the value does not matter.
+     */
+    private volatile int mFence;
+
+    /**
+     * Creates (or truncates) the file and maps it.
+     *
+     * @param capacity records per ring, a power of two
+     */
+    SharedMemoryTransport(File file, int capacity) throws IOException {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        mCapacity = capacity;
+        mActionsOffset = OFFSET_RINGS;
+        mTransitionsOffset = mActionsOffset + capacity * ACTION_RECORD_SIZE;
+        int size = mTransitionsOffset + capacity * TRANSITION_RECORD_SIZE;
+
+        mFile = new RandomAccessFile(file, "rw");
+        mFile.setLength(0);
+        mFile.setLength(size);
+        mBuffer = mFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        mBuffer.putInt(OFFSET_MAGIC, MAGIC);
+        mBuffer.putInt(OFFSET_VERSION, VERSION);
+        mBuffer.putInt(OFFSET_CAPACITY, capacity);
+        mBuffer.putInt(OFFSET_OBSERVATION_SIZE, RewardShaper.OBSERVATION_SIZE);
+        mBuffer.putInt(OFFSET_ACTION_SIZE, ACTION_RECORD_SIZE);
+        mBuffer.putInt(OFFSET_TRANSITION_SIZE, TRANSITION_RECORD_SIZE);
+        fence();
+        mBuffer.putInt(OFFSET_STATE, STATE_READY);
+    }
+
+    /**
+     * Answers actions with transitions until the trainer sends TYPE_CLOSE.
+     */
+    void serve(LunarEnvironment env) throws InterruptedException {
+        long actionTail = 0;
+        long transitionHead = 0;
+        int mask = mCapacity - 1;
+
+        while (true) {
+            awaitAbove(OFFSET_ACTION_HEAD, actionTail);
+            fence();
+            int at = mActionsOffset + (int) (actionTail & mask) * ACTION_RECORD_SIZE;
+            int type = mBuffer.getInt(at);
+            int action = mBuffer.getInt(at + 4);
+            long id = mBuffer.getLong(at + 8);
+            fence();
+            mBuffer.putLong(OFFSET_ACTION_TAIL, ++actionTail);
+
+            if (type == TYPE_CLOSE) break;
+            if (type == TYPE_RESET) {
+                env.reset();
+            } else {
+                env.step(action);
+            }
+
+            // wait for room, i.e. for the trainer to have consumed old records
+            awaitAbove(OFFSET_TRANSITION_TAIL, transitionHead - mCapacity);
+            fence();
+            at = mTransitionsOffset + (int) (transitionHead & mask) * TRANSITION_RECORD_SIZE;
+            mBuffer.putLong(at, id);
+            mBuffer.putInt(at + 8, type);
+            mBuffer.putInt(at + 12, env.isDone() ? 1 : 0);
+            mBuffer.putDouble(at + 16, env.reward());
+            mBuffer.putInt(at + 24, env.landing());
+            mBuffer.putInt(at + 28, env.steps());
+            double[] obs = env.observation();
+            for (int i = 0; i < RewardShaper.OBSERVATION_SIZE; i++) {
+                mBuffer.putDouble(at + 32 + 8 * i, obs[i]);
+            }
+            fence();
+            mBuffer.putLong(OFFSET_TRANSITION_HEAD, ++transitionHead);
+        }
+        mBuffer.putInt(OFFSET_STATE, STATE_CLOSED);
+    }
+
+    /**
+     * Keeps every buffer access before the call ahead of every access after
+     * it, as seen by the trainer's process.
+     * <p>
+     * The buffer is read and written with plain accesses and Java 8, which
+     * Android is limited to here, has no fence for memory outside the heap
+     * (VarHandle's fences arrive with API 33). The Java memory model says
+     * nothing about what another process sees, so this relies on how HotSpot
+     * and ART compile a volatile store followed by a volatile load of the
+     * same field:
+     * <ul>
+     * <li>Neither compiler moves any memory access across either of them.</li>
+     * <li>x86: the store is followed by a locked instruction, a full fence.
+     * </li>
+     * <li>AArch64: the store is an stlr and the load an ldar. Earlier accesses
+     * complete before the stlr, the stlr before the ldar, and later accesses
+     * after the ldar, so together they order everything. Either one alone
+     * would not, which is why both are needed.</li>
+     * <li>ARMv7 and the interpreters: both come with a dmb ish.</li>
+     * </ul>
+     * The Python client has no fence at all: it relies on x86 keeping its
+     * stores in order and its loads in order and ahead of later stores,
+     * and refuses to run on any other architecture.
+     */
+    private void fence() {
+        mFence = 0;
+        if (mFence != 0) throw new AssertionError(); // a load the JIT may not drop
+    }
+
+    /**
+     * Waits, spinning then parking, until the counter at {@code offset}
+     * exceeds {@code value}.
+     */
+    private void awaitAbove(int offset, long value) throws InterruptedException {
+        int tries = 0;
+        while (mBuffer.getLong(offset) <= value) {
+            // keeps the JIT from hoisting the plain counter load out of the loop
+            fence();
+            tries++;
+            if (tries < SPIN_TRIES) continue;
+            if (Thread.interrupted()) throw new InterruptedException();
+            if (tries < SPIN_TRIES + YIELD_TRIES) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(PARK_NANOS);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mBuffer.putInt(OFFSET_STATE, STATE_CLOSED);
+        mBuffer.force();
+        mFile.close();
+    }
+
+    /**
+     * Serves one headless environment. Arguments: path [capacity].
+     */
+    public static void main(String[] args) throws Exception {
+        File file = new File(args.length > 0 ? args[0] : "/dev/shm/lunar_lander");
+        int capacity = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        SharedMemoryTransport transport = new SharedMemoryTransport(file, capacity);
+        System.out.println(TAG + ": serving on " + file);
+        try {
+            transport.serve(new LunarEnvironment(new Random()));
+        } finally {
+            transport.close();
+        }
+    }
+}
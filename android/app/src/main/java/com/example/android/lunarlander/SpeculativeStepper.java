@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.util.Locale;
+import java.util.Random;
+
+import static com.example.android.lunarlander.LunarView.LunarThread.STATE_RUNNING;
+
+/**
+ * Keeps the displayed game moving while the trainer's next action is in
+ * flight, the way rollback netcode hides network latency.
+ * <p>
+ * Two timelines are kept. The confirmed one advances only with the actions
+ * the trainer sends, one tick per action, exactly as in lockstep, and is
+ * what the trainer is shown. The displayed one runs up to a window of
+ * ticks ahead of it with predicted actions: the last action the trainer
+ * sent, or what a local fallback policy would do. Before every speculative
+ * tick a snapshot is kept. When the trainer's action for a tick arrives and
+ * matches the prediction, that tick is simply confirmed; when it differs,
+ * the display rolls back to the confirmed state and re-simulates the
+ * ticks it was ahead with fresh predictions.
+ * <p>
+ * A speculative tick that would end the game is never shown; the display
+ * holds until the trainer confirms the outcome. Not thread-safe; LunarThread
+ * only uses it with mSurfaceHolder held.
+ */
+final class SpeculativeStepper {
+
+    /**
+     * Most ticks the display may run ahead of the trainer.
+     */
+    private final int mWindow;
+
+    private final LunarSimulator mSimulator;
+
+    /**
+     * Predicts the trainer's actions, or null to repeat its last one.
+     */
+    private final LunarPolicy mFallback;
+    private final Random mRandom;
+
+    /**
+     * State after the last confirmed tick.
+     */
+    private final LunarState mConfirmed = new LunarState();
+
+    /*
+     * Ring of the speculative ticks: the state before each and the action
+     * it was played with, oldest at mHead
+     */
+    private final LunarState[] mBefore;
+    private final int[] mActions;
+    private int mHead;
+    private int mPending;
+
+    /**
+     * Set when the next speculative tick would end the game.
+     */
+    private boolean mBlocked;
+
+    /**
+     * The trainer's last action, the prediction without a fallback policy.
+     */
+    private int mLastAction = LunarSimulator.ACTION_NONE;
+
+    private long mSpeculated;
+    private long mConfirmations;
+    private long mRollbacks;
+    private long mResimulated;
+    private long mStalls;
+
+    /**
+     * @param window   most ticks the display may run ahead
+     * @param fallback predicts the trainer's actions, or null to repeat the
+     *                 last one
+     */
+    SpeculativeStepper(LunarSimulator simulator, int window, LunarPolicy fallback, Random random) {
+        mSimulator = simulator;
+        mWindow = window;
+        mFallback = fallback;
+        mRandom = random;
+        mBefore = new LunarState[window];
+        for (int i = 0; i < window; i++) mBefore[i] = new LunarState();
+        mActions = new int[window];
+    }
+
+    /**
+     * Starts over from {@code s}, which both timelines then share, such as
+     * after the game is (re)started.
+     */
+    void reset(LunarState s) {
+        mConfirmed.set(s);
+        mHead = 0;
+        mPending = 0;
+        mBlocked = false;
+        mLastAction = LunarSimulator.ACTION_NONE;
+    }
+
+    /**
+     * Drops the speculative ticks and puts the display back on the confirmed
+     * state, such as when the game resumes from a pause.
+     *
+     * @param displayed the displayed state
+     */
+    void rollback(LunarState displayed) {
+        if (mPending > 0) mRollbacks++;
+        displayed.set(mConfirmed);
+        mHead = 0;
+        mPending = 0;
+        mBlocked = false;
+    }
+
+    /**
+     * Advances the displayed state by one tick with the predicted action.
+     *
+     * @param s the displayed state
+     * @return false, leaving {@code s} alone, if the display is already the
+     * whole window ahead, the game is not running or the tick would end it
+     */
+    boolean speculate(LunarState s) {
+        if (mPending == mWindow || mBlocked || s.mMode != STATE_RUNNING) {
+            mStalls++;
+            return false;
+        }
+        int slot = (mHead + mPending) % mWindow;
+        int action = mFallback != null ? mFallback.act(s, mRandom) : mLastAction;
+        mBefore[slot].set(s);
+        if (mSimulator.step(s, action) != LunarSimulator.LANDING_NONE) {
+            s.set(mBefore[slot]);
+            mBlocked = true;
+            mStalls++;
+            return false;
+        }
+        mActions[slot] = action;
+        mPending++;
+        mSpeculated++;
+        return true;
+    }
+
+    /**
+     * Plays the trainer's action for the oldest unconfirmed tick on the
+     * confirmed timeline, correcting the display if it was predicted wrong.
+     * When the display was not ahead it simply catches up.
+     *
+     * @param action    the trainer's action
+     * @param displayed the displayed state, rolled back and re-simulated on
+     *                  a misprediction
+     * @return one of the LunarSimulator.LANDING_* constants for the
+     * confirmed tick
+     */
+    int confirm(int action, LunarState displayed) {
+        mLastAction = action;
+        mConfirmations++;
+        int landing = LunarSimulator.LANDING_NONE;
+        if (mConfirmed.mMode == STATE_RUNNING) landing = mSimulator.step(mConfirmed, action);
+
+        if (mPending > 0 && mActions[mHead] == action && landing == LunarSimulator.LANDING_NONE) {
+            mHead = (mHead + 1) % mWindow;
+            mPending--;
+            return landing;
+        }
+
+        int ahead = Math.max(0, mPending - 1);
+        rollback(displayed);
+        if (landing == LunarSimulator.LANDING_NONE) {
+            for (int i = 0; i < ahead && speculate(displayed); i++) mResimulated++;
+        }
+        return landing;
+    }
+
+    /**
+     * Copies the state after the last confirmed tick, the one to show the
+     * trainer.
+     */
+    void readConfirmed(LunarState out) {
+        out.set(mConfirmed);
+    }
+
+    /**
+     * @return ticks the display is ahead of the trainer
+     */
+    int getPending() {
+        return mPending;
+    }
+
+    long getRollbacks() {
+        return mRollbacks;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "%d speculative ticks, %d confirmed, %d rollbacks re-simulating %d ticks, %d stalls",
+                mSpeculated, mConfirmations, mRollbacks, mResimulated, mStalls);
+    }
+}
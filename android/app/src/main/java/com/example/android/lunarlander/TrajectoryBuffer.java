@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * A preallocated run of consecutive transitions from one episode, encoded
+ * for upload as one compressed message.
+ * <p>
+ * Observations are stored once each: row i is the observation action i was
+ * chosen from and row i + 1 the one it led to, so n transitions take n + 1
+ * rows. Only the last transition of a run can be terminal.
+ * <p>
+ * Encoded form, little-endian, then zlib-deflated: int magic "LTRJ", int
+ * actor id, int model version, long episode, int index of the first step in
+ * the episode, int count n, int observation size k, byte done, float32
+ * observations [n + 1][k], byte actions [n] (indices into
+ * LunarSimulator.ACTIONS), float32 rewards [n].
+ */
+final class TrajectoryBuffer {
+    static final int MAGIC = 0x4C54524A;
+    private static final int HEADER_SIZE = 33;
+
+    private final int mCapacity;
+    private final int mObservationSize;
+    private final float[] mObservations;
+    private final byte[] mActions;
+    private final float[] mRewards;
+    private final ByteBuffer mEncoded;
+    private byte[] mCompressed;
+
+    private int mCount;
+    private boolean mDone;
+    private int mActorId;
+    private int mModelVersion;
+    private long mEpisode;
+    private int mFirstStep;
+
+    /**
+     * @param capacity most transitions held before the run must be sent
+     */
+    TrajectoryBuffer(int capacity, int observationSize) {
+        mCapacity = capacity;
+        mObservationSize = observationSize;
+        mObservations = new float[(capacity + 1) * observationSize];
+        mActions = new byte[capacity];
+        mRewards = new float[capacity];
+        mEncoded = ByteBuffer.allocate(HEADER_SIZE + mObservations.length * 4 + capacity * 5)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        mCompressed = new byte[mEncoded.capacity() / 2];
+    }
+
+    /**
+     * Starts a new run from {@code observation}.
+     *
+     * @param firstStep index within the episode of the step about to be taken
+     */
+    void begin(int actorId, int modelVersion, long episode, int firstStep, double[] observation) {
+        mActorId = actorId;
+        mModelVersion = modelVersion;
+        mEpisode = episode;
+        mFirstStep = firstStep;
+        mCount = 0;
+        mDone = false;
+        store(0, observation);
+    }
+
+    /**
+     * Appends one transition.
+     *
+     * @param action index into LunarSimulator.ACTIONS
+     */
+    void add(int action, double reward, boolean done, double[] nextObservation) {
+        if (isFull() || mDone) throw new IllegalStateException("Run is complete");
+        mActions[mCount] = (byte) action;
+        mRewards[mCount] = (float) reward;
+        mCount++;
+        mDone = done;
+        store(mCount, nextObservation);
+    }
+
+    private void store(int row, double[] observation) {
+        int offset = row * mObservationSize;
+        for (int i = 0; i < mObservationSize; i++) mObservations[offset + i] = (float) observation[i];
+    }
+
+    int size() {
+        return mCount;
+    }
+
+    boolean isFull() {
+        return mCount == mCapacity;
+    }
+
+    boolean isDone() {
+        return mDone;
+    }
+
+    int getModelVersion() {
+        return mModelVersion;
+    }
+
+    /**
+     * @return the run encoded and compressed, in a new array of exactly the
+     * message size (MQTT keeps it until delivered)
+     */
+    byte[] encode(Deflater deflater) {
+        ByteBuffer out = mEncoded;
+        out.clear();
+        out.putInt(MAGIC).putInt(mActorId).putInt(mModelVersion).putLong(mEpisode)
+                .putInt(mFirstStep).putInt(mCount).putInt(mObservationSize)
+                .put((byte) (mDone ? 1 : 0));
+        out.asFloatBuffer().put(mObservations, 0, (mCount + 1) * mObservationSize);
+        out.position(out.position() + (mCount + 1) * mObservationSize * 4);
+        out.put(mActions, 0, mCount);
+        out.asFloatBuffer().put(mRewards, 0, mCount);
+        out.position(out.position() + mCount * 4);
+
+        deflater.reset();
+        deflater.setInput(out.array(), 0, out.position());
+        deflater.finish();
+        int total = 0;
+        while (!deflater.finished()) {
+            if (total == mCompressed.length) {
+                byte[] grown = new byte[mCompressed.length * 2];
+                System.arraycopy(mCompressed, 0, grown, 0, total);
+                mCompressed = grown;
+            }
+            total += deflater.deflate(mCompressed, total, mCompressed.length - total);
+        }
+        return Arrays.copyOf(mCompressed, total);
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+/**
+ * What one reset or step returned: the observation (laid out as the
+ * RewardShaper.OBS_* indices), the reward, whether the episode ended and how.
+ */
+final class Transition {
+    final double[] mObservation = new double[RewardShaper.OBSERVATION_SIZE];
+    double mReward;
+    boolean mDone;
+
+    /**
+     * One of the LunarSimulator.LANDING_* constants.
+     */
+    int mLanding;
+
+    /**
+     * Steps taken in the episode so far.
+     */
+    int mSteps;
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Reassembles policy weights pushed by the trainer in chunks.
+ * <p>
+ * The trainer splits a {@link PolicyNetwork} blob into chunks, each sent as
+ * one message: int magic "LWCH", int model version, int chunk index, int
+ * chunk count, int total blob length, int CRC32 of the whole blob, int
+ * offset of the chunk in the blob, then the chunk bytes, little-endian.
+ * Chunks are copied into a back buffer as they arrive, in any order; once
+ * all of them are in and the checksum matches, the blob is parsed into a
+ * new network. The active network is never
+ * touched here, so whoever uses it keeps going during the transfer and
+ * swaps at a moment of its choosing.
+ * <p>
+ * A chunk of a newer version abandons any transfer in progress; chunks of
+ * older or already installed versions are ignored.
+ */
+final class WeightAssembler {
+    static final int MAGIC = 0x4C574348;
+    static final int HEADER_SIZE = 28;
+
+    /**
+     * Largest blob accepted, well above the DQN's 800 KB.
+     */
+    private static final int MAX_LENGTH = 64 << 20;
+
+    private byte[] mBuffer = new byte[0];
+    private boolean[] mReceived = new boolean[0];
+    private int mVersion = -1;
+    private int mLatestVersion = -1;
+    private int mChunkCount;
+    private int mLength;
+    private int mCrc;
+    private int mMissing;
+
+    /**
+     * Takes one chunk message.
+     *
+     * @return the new network once its last chunk has arrived and checked
+     * out, else null
+     * @throws IOException if the chunk is malformed, or the completed blob
+     *                     fails its checksum or does not parse; the transfer
+     *                     is abandoned
+     */
+    PolicyNetwork add(byte[] message) throws IOException {
+        if (message.length < HEADER_SIZE) throw new IOException("Short weight chunk");
+        ByteBuffer in = ByteBuffer.wrap(message).order(ByteOrder.LITTLE_ENDIAN);
+        if (in.getInt() != MAGIC) throw new IOException("Not a weight chunk");
+        int version = in.getInt();
+        int index = in.getInt();
+        int count = in.getInt();
+        int length = in.getInt();
+        int crc = in.getInt();
+        int offset = in.getInt();
+
+        if (version <= mLatestVersion || version < mVersion) return null;
+        if (version > mVersion) {
+            if (length < 1 || length > MAX_LENGTH || count < 1 || count > length) {
+                throw new IOException("Bad weight transfer " + count + " chunks, " + length + " bytes");
+            }
+            start(version, count, length, crc);
+        } else if (count != mChunkCount || length != mLength || crc != mCrc) {
+            abandon();
+            throw new IOException("Inconsistent chunk for version " + version);
+        }
+        if (index < 0 || index >= count) throw new IOException("Bad chunk index " + index);
+        if (mReceived[index]) return null;
+
+        int size = message.length - HEADER_SIZE;
+        if (offset < 0 || size > length - offset) {
+            abandon();
+            throw new IOException("Chunk " + index + " does not fit the blob");
+        }
+        System.arraycopy(message, HEADER_SIZE, mBuffer, offset, size);
+        mReceived[index] = true;
+        if (--mMissing > 0) return null;
+
+        CRC32 check = new CRC32();
+        check.update(mBuffer, 0, mLength);
+        int expected = mCrc;
+        abandon();
+        if ((int) check.getValue() != expected) throw new IOException("Weight checksum mismatch");
+        PolicyNetwork network = PolicyNetwork.read(ByteBuffer.wrap(mBuffer, 0, length));
+        if (network.getVersion() != version) {
+            throw new IOException("Blob is version " + network.getVersion() + ", sent as " + version);
+        }
+        mLatestVersion = version;
+        return network;
+    }
+
+    /**
+     * @return the version of the last network completed, -1 if none
+     */
+    int getLatestVersion() {
+        return mLatestVersion;
+    }
+
+    private void start(int version, int count, int length, int crc) {
+        // the back buffer is kept between transfers; weights rarely change size
+        if (mBuffer.length < length) mBuffer = new byte[length];
+        if (mReceived.length < count) mReceived = new boolean[count];
+        Arrays.fill(mReceived, 0, count, false);
+        mVersion = version;
+        mChunkCount = count;
+        mLength = length;
+        mCrc = crc;
+        mMissing = count;
+    }
+
+    private void abandon() {
+        mVersion = -1;
+        mMissing = 0;
+    }
+
+    /**
+     * Splits a serialized network into chunk messages, as the trainer does.
+     */
+    static byte[][] split(byte[] blob, int version, int chunkSize) {
+        CRC32 crc = new CRC32();
+        crc.update(blob, 0, blob.length);
+        int count = (blob.length + chunkSize - 1) / chunkSize;
+        byte[][] chunks = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            int offset = i * chunkSize;
+            int size = Math.min(chunkSize, blob.length - offset);
+            ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + size).order(ByteOrder.LITTLE_ENDIAN);
+            out.putInt(MAGIC).putInt(version).putInt(i).putInt(count).putInt(blob.length)
+                    .putInt((int) crc.getValue()).putInt(offset);
+            out.put(blob, offset, size);
+            chunks[i] = out.array();
+        }
+        return chunks;
+    }
+}
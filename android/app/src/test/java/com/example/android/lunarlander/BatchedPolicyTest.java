@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks batched inference against the per-sample network, and the
+ * bfloat16 rounding the weights go through.
+ */
+public class BatchedPolicyTest {
+    /**
+     * Tiles of four rows and the rows left over.
+     */
+    private static final int BATCH = 11;
+
+    /*
+     * On outputs of about 0.2: float32 differs only in summation order and
+     * the tanh approximation; bf16 weights keep 8 significant bits, a
+     * relative error of up to 2^-9 on every product, which comes to about
+     * 1e-3 here
+     */
+    private static final double FLOAT32_TOLERANCE = 1e-4;
+    private static final double BF16_TOLERANCE = 4e-3;
+
+    private static void assertMatchesNetwork(int precision, double tolerance) {
+        Random random = new Random(1);
+        // wider than one panel both ways, and inputs that are not a multiple of 4
+        PolicyNetwork network = PolicyNetwork.random(PolicyNetwork.DQN_SIZES,
+                PolicyNetwork.DQN_ACTIVATIONS, 0.1, random);
+        int inputs = network.getInputSize();
+        int outputs = network.getOutputSize();
+        BatchedPolicy policy = new BatchedPolicy(network, BATCH, precision);
+
+        float[] input = new float[BATCH * inputs];
+        for (int i = 0; i < input.length; i++) input[i] = (float) random.nextGaussian();
+        float[] output = new float[BATCH * outputs];
+        policy.forward(input, BATCH, output);
+
+        float[][] scratch = network.newScratch();
+        for (int b = 0; b < BATCH; b++) {
+            System.arraycopy(input, b * inputs, scratch[0], 0, inputs);
+            float[] expected = network.forward(scratch);
+            for (int a = 0; a < outputs; a++) {
+                assertEquals("Row " + b + " output " + a, expected[a], output[b * outputs + a],
+                        tolerance);
+            }
+        }
+    }
+
+    @Test
+    public void float32MatchesTheNetwork() {
+        assertMatchesNetwork(BatchedPolicy.PRECISION_FLOAT32, FLOAT32_TOLERANCE);
+    }
+
+    @Test
+    public void bf16MatchesTheNetwork() {
+        assertMatchesNetwork(BatchedPolicy.PRECISION_BF16, BF16_TOLERANCE);
+    }
+
+    private static void assertBf16(int expected, int floatBits) {
+        assertEquals(String.format("bf16 of 0x%08x", floatBits), expected,
+                BatchedPolicy.toBf16(Float.intBitsToFloat(floatBits)) & 0xffff);
+    }
+
+    @Test
+    public void bf16RoundsToNearestEven() {
+        assertBf16(0x3f80, 0x3f800000);
+        assertBf16(0x3f80, 0x3f807fff);
+        assertBf16(0x3f81, 0x3f808001);
+        // ties go to the even neighbour, down or up
+        assertBf16(0x3f80, 0x3f808000);
+        assertBf16(0x3f82, 0x3f818000);
+        assertBf16(0xbfc0, 0xbfc08000);
+        assertBf16(0xbfc2, 0xbfc18000);
+        // a carry into the exponent, and past the largest finite value
+        assertBf16(0x4000, 0x3fffc000);
+        assertBf16(0x7f80, 0x7f7fffff);
+        assertBf16(0x7f80, 0x7f800000);
+        assertBf16(0x0000, 0x00000001);
+    }
+
+    @Test
+    public void bf16KeepsNaNsAndExactValues() {
+        for (int nan : new int[]{0x7fc00000, 0x7f800001, 0xff800001}) {
+            short b = BatchedPolicy.toBf16(Float.intBitsToFloat(nan));
+            assertTrue(Float.isNaN(Float.intBitsToFloat(b << 16)));
+        }
+        for (int h = 0; h < 0x10000; h++) {
+            float f = Float.intBitsToFloat(h << 16);
+            if (!Float.isNaN(f)) assertBf16(h, h << 16);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Records episodes at chosen times and checks the per-second buckets are
+ * recycled once the window moves past them.
+ */
+public class EpisodeAnalyticsTest {
+    private static final long SECOND = 1000000000L;
+
+    private final LunarState mState = new LunarEnvironment(new Random(1)).state();
+
+    private void record(EpisodeAnalytics analytics, int landing, int times, long nanos) {
+        for (int i = 0; i < times; i++) {
+            analytics.record(mState, landing, EpisodeLimits.TRUNCATE_NONE, 10, nanos);
+        }
+    }
+
+    @Test
+    public void timeWindowDropsRecycledBuckets() {
+        EpisodeAnalytics analytics = new EpisodeAnalytics();
+        // no earlier than the start, so nothing falls before second 0
+        long base = System.nanoTime();
+        record(analytics, LunarSimulator.LANDING_WIN, 3, base);
+        record(analytics, LunarSimulator.LANDING_WIN, 2, base + 5 * SECOND);
+
+        long[] window = analytics.timeWindow(base + 10 * SECOND);
+        assertEquals(5, window[LunarSimulator.LANDING_WIN]);
+        assertEquals(50, window[EpisodeAnalytics.OUTCOMES]);
+
+        // lands in the bucket second 0 used
+        long late = base + EpisodeAnalytics.BUCKETS * SECOND;
+        record(analytics, LunarSimulator.LANDING_OFF_PAD, 1, late);
+        window = analytics.timeWindow(late + SECOND);
+        assertEquals(2, window[LunarSimulator.LANDING_WIN]);
+        assertEquals(1, window[LunarSimulator.LANDING_OFF_PAD]);
+        assertEquals(30, window[EpisodeAnalytics.OUTCOMES]);
+
+        // the totals keep everything
+        assertEquals(5, analytics.total(LunarSimulator.LANDING_WIN));
+        assertEquals(1, analytics.total(LunarSimulator.LANDING_OFF_PAD));
+    }
+
+    @Test
+    public void currentSecondIsNotCounted() {
+        EpisodeAnalytics analytics = new EpisodeAnalytics();
+        long base = System.nanoTime() + 2 * SECOND;
+        record(analytics, LunarSimulator.LANDING_WIN, 1, base);
+        assertEquals(0, analytics.timeWindow(base)[LunarSimulator.LANDING_WIN]);
+        assertEquals(1, analytics.timeWindow(base + SECOND)[LunarSimulator.LANDING_WIN]);
+        long after = base + (EpisodeAnalytics.TIME_WINDOW_SECONDS + 2) * SECOND;
+        assertEquals(0, analytics.timeWindow(after)[LunarSimulator.LANDING_WIN]);
+    }
+
+    @Test
+    public void truncationsAreTheirOwnOutcomes() {
+        EpisodeAnalytics analytics = new EpisodeAnalytics();
+        analytics.record(mState, LunarSimulator.LANDING_NONE, EpisodeLimits.TRUNCATE_TIME_LIMIT, 500);
+        analytics.record(mState, LunarWorld.LANDING_COLLISION, EpisodeLimits.TRUNCATE_NONE, 20);
+        assertEquals(1, analytics.total(EpisodeAnalytics.OUTCOME_TIME_LIMIT));
+        assertEquals(1, analytics.total(EpisodeAnalytics.OUTCOME_COLLISION));
+        assertEquals(0, analytics.total(LunarSimulator.LANDING_NONE));
+        long[] recent = analytics.episodeWindow();
+        assertEquals(1, recent[EpisodeAnalytics.OUTCOME_TIME_LIMIT]);
+        assertEquals(1, recent[EpisodeAnalytics.OUTCOME_COLLISION]);
+    }
+
+    @Test
+    public void onlyTouchdownsAreTouchdowns() {
+        assertTrue(EpisodeAnalytics.isTouchdown(LunarSimulator.LANDING_WIN));
+        assertTrue(EpisodeAnalytics.isTouchdown(LunarSimulator.LANDING_TOO_FAST));
+        assertFalse(EpisodeAnalytics.isTouchdown(LunarSimulator.LANDING_HYPERSPACE));
+        assertFalse(EpisodeAnalytics.isTouchdown(EpisodeAnalytics.OUTCOME_COLLISION));
+        assertFalse(EpisodeAnalytics.isTouchdown(EpisodeAnalytics.OUTCOME_OUT_OF_BOUNDS));
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static com.example.android.lunarlander.LunarView.LunarThread.PHYS_DOWN_ACCEL_SEC;
+import static com.example.android.lunarlander.LunarView.LunarThread.STATE_RUNNING;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+/**
+ * Drops a lander through the ground within one tick of the exact
+ * integrator and checks where and when it is stopped.
+ */
+public class LunarSimulatorTest {
+    private static final double EPSILON = 1e-9;
+
+    /*
+     * Coasting from this height and speed, the lander touches down 0.064 s
+     * into a 0.1 s tick
+     */
+    private static final double HEIGHT = 2;
+    private static final double SPEED_DOWN = 30;
+    private static final double SPEED_ACROSS = 12;
+
+    /**
+     * @return when a fall of HEIGHT at SPEED_DOWN under gravity reaches the
+     * ground
+     */
+    private static double expectedContactTime() {
+        double a = PHYS_DOWN_ACCEL_SEC;
+        return (-SPEED_DOWN + Math.sqrt(SPEED_DOWN * SPEED_DOWN + 2 * a * HEIGHT)) / a;
+    }
+
+    @Test
+    public void contactTimeSolvesTheFall() {
+        double t = LunarSimulator.contactTime(HEIGHT, -SPEED_DOWN, -PHYS_DOWN_ACCEL_SEC,
+                LunarSimulator.TICK_SECONDS);
+        assertEquals(expectedContactTime(), t, EPSILON);
+        // not reached within the tick, and already on the ground
+        assertEquals(-1, LunarSimulator.contactTime(HEIGHT, -SPEED_DOWN, -PHYS_DOWN_ACCEL_SEC, t / 2), 0);
+        assertEquals(0, LunarSimulator.contactTime(0, -SPEED_DOWN, -PHYS_DOWN_ACCEL_SEC,
+                LunarSimulator.TICK_SECONDS), 0);
+    }
+
+    @Test
+    public void landerStopsAtTheMomentOfContact() {
+        LunarSimulator simulator = new LunarSimulator(new Random(1))
+                .setIntegrator(LunarSimulator.INTEGRATOR_EXACT, LunarSimulator.TICK_SECONDS);
+        LunarState s = new LunarEnvironment(new Random(1)).state();
+        simulator.start(s);
+        double ground = LunarSimulator.groundY(s);
+        double x = s.mX;
+        double fuel = s.mFuel;
+        s.mY = ground + HEIGHT;
+        s.mDX = SPEED_ACROSS;
+        s.mDY = -SPEED_DOWN;
+        s.mHeading = 0;
+
+        int landing = simulator.step(s, LunarSimulator.ACTION_NONE);
+
+        double t = expectedContactTime();
+        assertNotEquals(LunarSimulator.LANDING_NONE, landing);
+        assertNotEquals(STATE_RUNNING, s.mMode);
+        assertEquals(ground, s.mY, 0);
+        assertEquals(x + SPEED_ACROSS * t, s.mX, EPSILON);
+        assertEquals(SPEED_ACROSS, s.mDX, EPSILON);
+        // the speed at touchdown, not at the end of the tick
+        assertEquals(-SPEED_DOWN - PHYS_DOWN_ACCEL_SEC * t, s.mDY, EPSILON);
+        assertEquals(fuel, s.mFuel, 0);
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+import static com.example.android.lunarlander.LunarView.LunarThread.STATE_LOSE;
+import static com.example.android.lunarlander.LunarView.LunarThread.STATE_RUNNING;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the grid's collisions and neighbour observations against a
+ * brute-force pass over every pair of landers, tick by tick.
+ */
+public class LunarWorldTest {
+    private static final int LANDERS = 120;
+    private static final double EPSILON = 1e-9;
+
+    /**
+     * Grid cells are as large as the lander's larger side.
+     */
+    private static final double RANGE = 2 * Math.max(LunarSimulator.DEFAULT_LANDER_WIDTH,
+            LunarSimulator.DEFAULT_LANDER_HEIGHT);
+
+    @Test
+    public void gridAgreesWithBruteForce() {
+        Random random = new Random(7);
+        // as narrow as spawning allows, so landers meet
+        LunarWorld world = new LunarWorld(LANDERS, 3,
+                (int) Math.ceil(LANDERS / 2 * 1.5 * LunarSimulator.DEFAULT_LANDER_WIDTH), random);
+        int[] actions = new int[LANDERS];
+        int ticks = 0;
+        for (int episode = 0; episode < 3; episode++) {
+            world.reset();
+            checkNeighbours(world);
+            while (world.running() > 0) {
+                for (int i = 0; i < LANDERS; i++) {
+                    double u = random.nextDouble();
+                    actions[i] = u < 0.6 ? LunarSimulator.ACTION_FIRE : u < 0.75 ? LunarSimulator.ACTION_LEFT
+                            : u < 0.9 ? LunarSimulator.ACTION_RIGHT : LunarSimulator.ACTION_NONE;
+                }
+                world.step(actions);
+                checkCollisions(world);
+                checkNeighbours(world);
+                ticks++;
+            }
+        }
+        assertTrue("Too few ticks to mean anything: " + ticks, ticks > 100);
+        assertTrue("No collisions to check", world.collisions() > 0);
+    }
+
+    private static double distanceSquared(LunarState a, LunarState b) {
+        double dx = a.mX - b.mX;
+        double dy = a.mY - b.mY;
+        return dx * dx + dy * dy;
+    }
+
+    private static double reach(LunarState a, LunarState b) {
+        return LunarWorld.RADIUS_FACTOR * (a.mLanderWidth + b.mLanderWidth);
+    }
+
+    /**
+     * No touching pair is left uncrashed, and every collision has someone
+     * it touched.
+     */
+    private static void checkCollisions(LunarWorld world) {
+        for (int i = 0; i < world.size(); i++) {
+            LunarState a = world.lander(i);
+            boolean touching = false;
+            for (int j = 0; j < world.size(); j++) {
+                if (j == i) continue;
+                LunarState b = world.lander(j);
+                double reach = reach(a, b);
+                if (distanceSquared(a, b) >= reach * reach) continue;
+                touching = true;
+                if (a.mMode != STATE_LOSE && b.mMode != STATE_LOSE) {
+                    assertFalse("Landers " + i + " and " + j + " touch and fly on",
+                            a.mMode == STATE_RUNNING || b.mMode == STATE_RUNNING);
+                }
+            }
+            if (world.landing(i) == LunarWorld.LANDING_COLLISION) {
+                assertTrue("Lander " + i + " collided with nothing", touching);
+            }
+        }
+    }
+
+    /**
+     * Every lander's neighbour features are those of the nearest landers
+     * in range, found by sorting all of them. Crashed landers see nothing.
+     */
+    private static void checkNeighbours(final LunarWorld world) {
+        double[] observations = world.observations();
+        Integer[] order = new Integer[world.size()];
+        for (int i = 0; i < world.size(); i++) {
+            final LunarState a = world.lander(i);
+            int o = i * LunarWorld.OBSERVATION_SIZE + RewardShaper.OBSERVATION_SIZE;
+            if (a.mMode == STATE_LOSE) {
+                for (int f = 0; f < LunarWorld.NEIGHBOURS * LunarWorld.NEIGHBOUR_FEATURES; f++) {
+                    assertEquals(0, observations[o + f], 0);
+                }
+                continue;
+            }
+
+            int candidates = 0;
+            for (int j = 0; j < world.size(); j++) {
+                LunarState b = world.lander(j);
+                if (j != i && b.mMode != STATE_LOSE && distanceSquared(a, b) <= RANGE * RANGE) {
+                    order[candidates++] = j;
+                }
+            }
+            Arrays.sort(order, 0, candidates, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer x, Integer y) {
+                    return Double.compare(distanceSquared(a, world.lander(x)),
+                            distanceSquared(a, world.lander(y)));
+                }
+            });
+
+            for (int n = 0; n < LunarWorld.NEIGHBOURS; n++, o += LunarWorld.NEIGHBOUR_FEATURES) {
+                if (n >= candidates) {
+                    assertEquals("Lander " + i + " sees a neighbour " + n + " out of range",
+                            0, observations[o], 0);
+                    continue;
+                }
+                LunarState b = world.lander(order[n]);
+                assertEquals(1, observations[o], 0);
+                assertEquals((b.mX - a.mX) / (LunarSimulator.DEFAULT_CANVAS_WIDTH / 2),
+                        observations[o + 1], EPSILON);
+                assertEquals((b.mY - a.mY) / LunarSimulator.DEFAULT_CANVAS_HEIGHT,
+                        observations[o + 2], EPSILON);
+            }
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the n-step returns against sums worked out by hand, at and around
+ * episode boundaries, and that a batch decodes to what was added.
+ */
+public class NStepReturnsTest {
+    private static final double GAMMA = 0.5;
+    private static final double EPSILON = 1e-6;
+
+    /**
+     * A decoded NStepBatch message.
+     */
+    private static final class Decoded {
+        int mSteps;
+        float mGamma;
+        int mCount;
+        int mEpisodes;
+        float[] mObservations;
+        byte[] mActions;
+        float[] mReturns;
+        float[] mNextObservations;
+        float[] mDiscounts;
+        long[] mEpisodeNumbers;
+        int[] mLengths;
+        float[] mEpisodeReturns;
+        float[] mDiscountedReturns;
+    }
+
+    private static Decoded decode(NStepBatch batch) throws DataFormatException {
+        byte[] compressed = batch.encode(new Deflater());
+        Inflater inflater = new Inflater();
+        inflater.setInput(compressed);
+        byte[] plain = new byte[1 << 16];
+        int length = inflater.inflate(plain);
+        assertTrue(inflater.finished());
+
+        ByteBuffer in = ByteBuffer.wrap(plain, 0, length).order(ByteOrder.LITTLE_ENDIAN);
+        Decoded d = new Decoded();
+        assertEquals(NStepBatch.MAGIC, in.getInt());
+        in.getInt();
+        in.getInt();
+        d.mSteps = in.getInt();
+        d.mGamma = in.getFloat();
+        d.mCount = in.getInt();
+        int k = in.getInt();
+        d.mEpisodes = in.getInt();
+        d.mObservations = new float[d.mCount * k];
+        for (int i = 0; i < d.mObservations.length; i++) d.mObservations[i] = in.getFloat();
+        d.mActions = new byte[d.mCount];
+        in.get(d.mActions);
+        d.mReturns = new float[d.mCount];
+        for (int i = 0; i < d.mCount; i++) d.mReturns[i] = in.getFloat();
+        d.mNextObservations = new float[d.mCount * k];
+        for (int i = 0; i < d.mNextObservations.length; i++) d.mNextObservations[i] = in.getFloat();
+        d.mDiscounts = new float[d.mCount];
+        for (int i = 0; i < d.mCount; i++) d.mDiscounts[i] = in.getFloat();
+        d.mEpisodeNumbers = new long[d.mEpisodes];
+        for (int i = 0; i < d.mEpisodes; i++) d.mEpisodeNumbers[i] = in.getLong();
+        d.mLengths = new int[d.mEpisodes];
+        for (int i = 0; i < d.mEpisodes; i++) d.mLengths[i] = in.getInt();
+        d.mEpisodeReturns = new float[d.mEpisodes];
+        for (int i = 0; i < d.mEpisodes; i++) d.mEpisodeReturns[i] = in.getFloat();
+        d.mDiscountedReturns = new float[d.mEpisodes];
+        for (int i = 0; i < d.mEpisodes; i++) d.mDiscountedReturns[i] = in.getFloat();
+        assertFalse("trailing bytes", in.hasRemaining());
+        return d;
+    }
+
+    private static NStepBatch newBatch(int steps) {
+        NStepBatch batch = new NStepBatch(16, 1);
+        batch.begin(7, 3, steps, GAMMA);
+        return batch;
+    }
+
+    /**
+     * Plays ticks whose observation is the tick number and whose reward is
+     * the tick number plus one, action the tick number modulo 4.
+     */
+    private static int play(NStepReturns returns, NStepBatch batch, int from, int ticks, boolean ends) {
+        int added = 0;
+        for (int t = from; t < from + ticks; t++) {
+            boolean done = ends && t == from + ticks - 1;
+            added += returns.add(t % 4, t + 1, done, new double[]{t + 1}, batch);
+        }
+        return added;
+    }
+
+    @Test
+    public void completesOneTransitionPerTickOnceFull() throws Exception {
+        NStepReturns returns = new NStepReturns(3, GAMMA, 1, false);
+        NStepBatch batch = newBatch(3);
+        returns.begin(0, new double[]{0});
+
+        assertEquals(0, play(returns, batch, 0, 2, false));
+        assertEquals(2, play(returns, batch, 2, 2, false));
+
+        Decoded d = decode(batch);
+        assertEquals(3, d.mSteps);
+        assertEquals(GAMMA, d.mGamma, EPSILON);
+        assertEquals(2, d.mCount);
+        // from observation 0: rewards 1, 2, 3, bootstrapping from observation 3
+        assertEquals(0, d.mObservations[0], EPSILON);
+        assertEquals(0, d.mActions[0]);
+        assertEquals(1 + GAMMA * 2 + GAMMA * GAMMA * 3, d.mReturns[0], EPSILON);
+        assertEquals(3, d.mNextObservations[0], EPSILON);
+        assertEquals(GAMMA * GAMMA * GAMMA, d.mDiscounts[0], EPSILON);
+        // from observation 1: rewards 2, 3, 4, bootstrapping from observation 4
+        assertEquals(1, d.mObservations[1], EPSILON);
+        assertEquals(1, d.mActions[1]);
+        assertEquals(2 + GAMMA * 3 + GAMMA * GAMMA * 4, d.mReturns[1], EPSILON);
+        assertEquals(4, d.mNextObservations[1], EPSILON);
+        assertEquals(0, d.mEpisodes);
+    }
+
+    @Test
+    public void episodeEndCompletesTheRestWithoutBootstrapping() throws Exception {
+        NStepReturns returns = new NStepReturns(3, GAMMA, 1, true);
+        NStepBatch batch = newBatch(3);
+        returns.begin(5, new double[]{0});
+
+        assertEquals(2, play(returns, batch, 0, 2, true));
+        assertFalse(returns.isStarted());
+
+        Decoded d = decode(batch);
+        assertEquals(2, d.mCount);
+        assertEquals(1 + GAMMA * 2, d.mReturns[0], EPSILON);
+        assertEquals(2, d.mReturns[1], EPSILON);
+        assertEquals(0, d.mDiscounts[0], EPSILON);
+        assertEquals(0, d.mDiscounts[1], EPSILON);
+        assertEquals(1, d.mEpisodes);
+        assertEquals(5, d.mEpisodeNumbers[0]);
+        assertEquals(2, d.mLengths[0]);
+        assertEquals(3, d.mEpisodeReturns[0], EPSILON);
+        assertEquals(1 + GAMMA * 2, d.mDiscountedReturns[0], EPSILON);
+    }
+
+    @Test
+    public void flushBootstrapsFromTheLastObservation() throws Exception {
+        NStepReturns returns = new NStepReturns(3, GAMMA, 1, true);
+        NStepBatch batch = newBatch(3);
+        returns.begin(0, new double[]{0});
+        play(returns, batch, 0, 2, false);
+
+        assertEquals(2, returns.flush(batch));
+        assertFalse(returns.isStarted());
+
+        Decoded d = decode(batch);
+        assertEquals(2, d.mCount);
+        assertEquals(1 + GAMMA * 2, d.mReturns[0], EPSILON);
+        assertEquals(GAMMA * GAMMA, d.mDiscounts[0], EPSILON);
+        assertEquals(2, d.mReturns[1], EPSILON);
+        assertEquals(GAMMA, d.mDiscounts[1], EPSILON);
+        assertEquals(2, d.mNextObservations[0], EPSILON);
+        assertEquals(2, d.mNextObservations[1], EPSILON);
+        // cut short, not ended: no summary
+        assertEquals(0, d.mEpisodes);
+    }
+
+    @Test
+    public void nextEpisodeStartsClean() throws Exception {
+        NStepReturns returns = new NStepReturns(2, GAMMA, 1, true);
+        NStepBatch batch = newBatch(2);
+        returns.begin(0, new double[]{0});
+        play(returns, batch, 0, 3, true);
+        returns.begin(1, new double[]{10});
+        play(returns, batch, 10, 2, false);
+
+        Decoded d = decode(batch);
+        // three from the first episode, one from the second
+        assertEquals(4, d.mCount);
+        assertEquals(10, d.mObservations[3], EPSILON);
+        assertEquals(11 + GAMMA * 12, d.mReturns[3], EPSILON);
+        assertEquals(GAMMA * GAMMA, d.mDiscounts[3], EPSILON);
+        assertEquals(1, d.mEpisodes);
+        assertEquals(3, d.mLengths[0]);
+    }
+
+    @Test
+    public void addWithoutEpisodeFails() {
+        NStepReturns returns = new NStepReturns(2, GAMMA, 1, false);
+        NStepBatch batch = newBatch(2);
+        returns.begin(0, new double[]{0});
+        play(returns, batch, 0, 1, true);
+        try {
+            returns.add(0, 1, false, new double[]{1}, batch);
+            fail("Stepped after the episode ended");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void batchReportsRoomAndRefusesOverflow() {
+        NStepBatch batch = new NStepBatch(2, 1);
+        batch.begin(0, 0, 1, GAMMA);
+        assertTrue(batch.hasRoom(2));
+        batch.add(new double[]{0}, 0, 0, new double[]{0}, 0);
+        assertFalse(batch.hasRoom(2));
+        batch.add(new double[]{0}, 0, 0, new double[]{0}, 0);
+        try {
+            batch.add(new double[]{0}, 0, 0, new double[]{0}, 0);
+            fail("Overfilled the batch");
+        } catch (IllegalStateException expected) {
+        }
+        batch.begin(0, 0, 1, GAMMA);
+        assertTrue(batch.isEmpty());
+    }
+}
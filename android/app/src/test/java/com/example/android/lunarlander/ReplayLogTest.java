@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Records a log of several episodes and checks that the footer's index and
+ * the one rebuilt by scanning agree, and that corrupt footers fall back to
+ * the scan.
+ */
+public class ReplayLogTest {
+    private static final int EPISODES = 12;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mFile;
+    private long mFrames;
+    private long mFooterBytes;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = mFolder.newFile("replay");
+        LunarEnvironment env = new LunarEnvironment(new Random(5));
+        Random random = new Random(6);
+        ReplayLog.Writer writer = new ReplayLog.Writer(mFile, env.state());
+        try {
+            for (int e = 0; e < EPISODES; e++) {
+                env.reset();
+                writer.append(env.state(), true);
+                while (!env.isDone()) {
+                    env.step(random.nextInt(3) == 0 ? LunarSimulator.ACTION_NONE : LunarSimulator.ACTION_FIRE);
+                    writer.append(env.state(), false);
+                }
+                // a tick drawn twice is recorded once
+                writer.replaceLast(env.state());
+            }
+            mFrames = writer.frameCount();
+        } finally {
+            writer.close();
+        }
+        mFooterBytes = 8 * EPISODES + 24;
+        assertEquals(ReplayLog.HEADER_BYTES + mFrames * ReplayLog.RECORD_BYTES + mFooterBytes, mFile.length());
+    }
+
+    private static void assertSameLog(ReplayLog expected, ReplayLog actual) throws IOException {
+        assertEquals(expected.frameCount(), actual.frameCount());
+        assertEquals(expected.episodeCount(), actual.episodeCount());
+        for (int e = 0; e < expected.episodeCount(); e++) {
+            assertEquals(expected.episodeStart(e), actual.episodeStart(e));
+            assertEquals(expected.episodeEnd(e), actual.episodeEnd(e));
+        }
+        LunarState a = new LunarState();
+        LunarState b = new LunarState();
+        for (long f = 0; f < expected.frameCount(); f++) {
+            assertEquals(expected.episodeOf(f), actual.episodeOf(f));
+            expected.read(f, a);
+            actual.read(f, b);
+            assertEquals(a.mX, b.mX, 0);
+            assertEquals(a.mY, b.mY, 0);
+            assertEquals(a.mMode, b.mMode);
+        }
+    }
+
+    /**
+     * @return a copy of the log cut to {@code length} bytes, with {@code
+     * tail} written over its end if not null
+     */
+    private File copy(long length, byte[] tail) throws IOException {
+        File copy = mFolder.newFile();
+        RandomAccessFile in = new RandomAccessFile(mFile, "r");
+        RandomAccessFile out = new RandomAccessFile(copy, "rw");
+        try {
+            byte[] bytes = new byte[(int) Math.min(length, in.length())];
+            in.readFully(bytes);
+            out.write(bytes);
+            out.setLength(length);
+            if (tail != null) {
+                out.seek(length - tail.length);
+                out.write(tail);
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+        return copy;
+    }
+
+    @Test
+    public void indexMatchesTheEpisodes() throws IOException {
+        ReplayLog log = ReplayLog.open(mFile);
+        try {
+            assertEquals(mFrames, log.frameCount());
+            assertEquals(EPISODES, log.episodeCount());
+            assertEquals(0, log.episodeStart(0));
+            LunarState s = new LunarState();
+            for (int e = 0; e < EPISODES; e++) {
+                // every episode runs to its end: the last frame is done
+                log.read(log.episodeEnd(e) - 1, s);
+                assertEquals(true, RewardShaper.isDone(s));
+            }
+        } finally {
+            log.close();
+        }
+    }
+
+    @Test
+    public void rescanAgreesWithTheIndex() throws IOException {
+        ReplayLog indexed = ReplayLog.open(mFile);
+        ReplayLog scanned = ReplayLog.open(copy(mFile.length() - mFooterBytes, null));
+        try {
+            assertSameLog(indexed, scanned);
+        } finally {
+            indexed.close();
+            scanned.close();
+        }
+    }
+
+    @Test
+    public void footerThatDoesNotAddUpIsRescanned() throws IOException {
+        ReplayLog indexed = ReplayLog.open(mFile);
+        // drop one record's worth of the body: the counts no longer fill the file
+        long length = mFile.length() - ReplayLog.RECORD_BYTES;
+        byte[] footer = new byte[(int) mFooterBytes];
+        RandomAccessFile in = new RandomAccessFile(mFile, "r");
+        try {
+            in.seek(mFile.length() - mFooterBytes);
+            in.readFully(footer);
+        } finally {
+            in.close();
+        }
+        ReplayLog scanned = ReplayLog.open(copy(length, footer));
+        try {
+            // the footer bytes now read as frames, the episodes are the same
+            assertEquals(indexed.episodeCount(), scanned.episodeCount());
+            for (int e = 0; e < indexed.episodeCount(); e++) {
+                assertEquals(indexed.episodeStart(e), scanned.episodeStart(e));
+            }
+        } finally {
+            indexed.close();
+            scanned.close();
+        }
+    }
+
+    @Test
+    public void playerGivesFramesTheRecordedGeometry() throws IOException {
+        LunarState recorded = new LunarEnvironment(new Random(5)).state();
+        ReplayPlayer player = new ReplayPlayer(ReplayLog.open(mFile));
+        try {
+            // a screen of another size
+            LunarState out = new LunarState();
+            out.mCanvasWidth = 2 * recorded.mCanvasWidth;
+            out.mCanvasHeight = 3 * recorded.mCanvasHeight;
+            out.mLanderWidth = 1;
+            out.mLanderHeight = 1;
+            player.frame(out);
+            assertEquals(recorded.mCanvasWidth, out.mCanvasWidth);
+            assertEquals(recorded.mCanvasHeight, out.mCanvasHeight);
+            assertEquals(recorded.mLanderWidth, out.mLanderWidth);
+            assertEquals(recorded.mLanderHeight, out.mLanderHeight);
+        } finally {
+            player.close();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Takes start states from generated and loaded pools, across a change of
+ * screen size.
+ */
+public class ResetPoolTest {
+    private static final int CAPACITY = 16;
+    private static final int WIDE = 20000;
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static LunarState geometry(int canvasWidth) {
+        LunarState s = new LunarState();
+        s.set(new LunarEnvironment(new Random(1)).state());
+        s.mCanvasWidth = canvasWidth;
+        s.mDifficulty = LunarView.LunarThread.DIFFICULTY_MEDIUM;
+        return s;
+    }
+
+    /**
+     * Takes into {@code s} once the filler has caught up with its geometry.
+     */
+    private static void takeWhenReady(ResetPool pool, LunarState s) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!pool.take(s)) {
+            if (System.currentTimeMillis() > deadline) fail("The pool never filled");
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void entriesForAnotherGeometryAreSkipped() throws InterruptedException {
+        ResetPool pool = new ResetPool(CAPACITY, new Random(2));
+        try {
+            LunarState wide = geometry(WIDE);
+            assertFalse(pool.take(wide));
+            takeWhenReady(pool, wide);
+            // let the ring fill back up with wide entries
+            Thread.sleep(50);
+
+            LunarState narrow = geometry(LunarSimulator.DEFAULT_CANVAS_WIDTH);
+            assertFalse(pool.take(narrow));
+            takeWhenReady(pool, narrow);
+            for (int i = 0; i < 4 * CAPACITY; i++) {
+                if (!pool.take(narrow)) {
+                    takeWhenReady(pool, narrow);
+                }
+                // pads are drawn between 0 and the width the pad leaves free,
+                // far wider on the wide screen
+                int free = narrow.mCanvasWidth - narrow.mGoalWidth;
+                assertTrue("Pad at " + narrow.mGoalX + " taken for another geometry",
+                        narrow.mGoalX >= Math.min(0, free) && narrow.mGoalX <= Math.max(0, free));
+            }
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void loadedPoolCyclesThroughItsEntries() throws IOException {
+        File file = mFolder.newFile("pool");
+        LunarState s = geometry(LunarSimulator.DEFAULT_CANVAS_WIDTH);
+        ResetPool.write(file, s, 3, new Random(3));
+        ResetPool pool = ResetPool.load(file);
+
+        int[] goals = new int[6];
+        for (int i = 0; i < goals.length; i++) {
+            assertTrue(pool.take(s));
+            goals[i] = s.mGoalX;
+        }
+        for (int i = 0; i < 3; i++) assertEquals(goals[i], goals[i + 3]);
+
+        // a pool for another screen size starts nothing
+        assertFalse(pool.take(geometry(WIDE)));
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedPoolFailsToLoad() throws IOException {
+        File file = mFolder.newFile("pool");
+        ResetPool.write(file, geometry(LunarSimulator.DEFAULT_CANVAS_WIDTH), 3, new Random(3));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - 1);
+        } finally {
+            raf.close();
+        }
+        ResetPool.load(file);
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks merged statistics against one sequential run over the same
+ * samples, and the histogram quantiles against the sorted samples.
+ */
+public class RunningStatsTest {
+    private static final double LOW = -4;
+    private static final double HIGH = 4;
+    private static final int BINS = 80;
+
+    private static RunningStats newStats() {
+        return new RunningStats(LOW, HIGH, BINS);
+    }
+
+    @Test
+    public void mergeMatchesOneSequentialRun() {
+        Random random = new Random(1);
+        RunningStats sequential = newStats();
+        // uneven parts, one of them empty, and samples outside the range
+        RunningStats[] parts = {newStats(), newStats(), newStats(), newStats()};
+        int[] sizes = {1, 700, 0, 2300};
+        for (int p = 0; p < parts.length; p++) {
+            for (int i = 0; i < sizes[p]; i++) {
+                double x = 2 * (p + 1) * random.nextGaussian();
+                sequential.add(x);
+                parts[p].add(x);
+            }
+        }
+        RunningStats merged = newStats();
+        for (RunningStats part : parts) merged.merge(part);
+
+        assertEquals(sequential.count(), merged.count());
+        assertEquals(sequential.mean(), merged.mean(), 1e-12);
+        assertEquals(sequential.variance(), merged.variance(), 1e-9 * sequential.variance());
+        assertEquals(sequential.min(), merged.min(), 0);
+        assertEquals(sequential.max(), merged.max(), 0);
+        assertArrayEquals(sequential.bins(), merged.bins());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mergeRejectsAnotherRange() {
+        newStats().merge(new RunningStats(LOW, 2 * HIGH, BINS));
+    }
+
+    @Test
+    public void quantilesAreWithinOneBin() {
+        Random random = new Random(2);
+        RunningStats stats = newStats();
+        double[] samples = new double[20000];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = random.nextGaussian();
+            stats.add(samples[i]);
+        }
+        Arrays.sort(samples);
+        double binWidth = (HIGH - LOW) / BINS;
+        for (double q : new double[]{0.05, 0.25, 0.5, 0.75, 0.95}) {
+            double exact = samples[(int) (q * samples.length)];
+            assertEquals("Quantile " + q, exact, stats.quantile(q), binWidth);
+        }
+    }
+
+    @Test
+    public void quantilesOutsideTheRangeClampToMinAndMax() {
+        RunningStats stats = newStats();
+        stats.add(-100);
+        for (int i = 0; i < 98; i++) stats.add(0.5);
+        stats.add(250);
+        assertEquals(-100, stats.quantile(0), 0);
+        assertEquals(250, stats.quantile(1), 0);
+        double median = stats.quantile(0.5);
+        assertTrue("Median " + median, median >= 0.5 - 0.1 && median <= 0.5 + 0.1);
+        assertTrue(Double.isNaN(newStats().quantile(0.5)));
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs a {@link SessionClient} against a real {@link SessionServer} on
+ * loopback.
+ */
+public class SessionClientTest {
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private SessionServer mServer;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new SessionServer(0);
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.close();
+    }
+
+    private SessionClient connect(int maxInFlight) throws Exception {
+        return new SessionClient(InetAddress.getLoopbackAddress(), mServer.getPort(), maxInFlight);
+    }
+
+    @Test
+    public void clientStepsSeveralEnvironments() throws Exception {
+        SessionClient client = connect(8);
+        try {
+            for (int env : new int[]{0, 5, SessionProtocol.MAX_ENVS - 1}) {
+                assertEquals(0, client.resetAsync(env).get(TIMEOUT_SECONDS, TimeUnit.SECONDS).mSteps);
+                Transition t = client.stepAsync(env, LunarSimulator.ACTION_NONE)
+                        .get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                assertEquals(1, t.mSteps);
+            }
+        } finally {
+            client.close();
+        }
+    }
+
+    /**
+     * A request the server refuses fails its future, and the client still
+     * closes cleanly.
+     */
+    @Test
+    public void refusedRequestFailsTheFuture() throws Exception {
+        SessionClient client = connect(8);
+        try {
+            client.stepAsync(2, LunarSimulator.ACTION_NONE).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            fail("Stepped an environment that was never reset");
+        } catch (ExecutionException expected) {
+        } finally {
+            client.close();
+        }
+    }
+
+    /**
+     * Requests issued from completion callbacks run on the client's reader
+     * thread and must not wait for in-flight room only that thread frees.
+     */
+    @Test
+    public void callbacksMayExceedTheInFlightLimit() throws Exception {
+        final SessionClient client = connect(2);
+        final int envs = 8;
+        final int stepsPerEnv = 5;
+        final AtomicInteger answered = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(envs * stepsPerEnv);
+        try {
+            client.setAutoFlush(false);
+            for (int e = 0; e < envs; e++) {
+                final int env = e;
+                client.resetAsync(env).thenAccept(new Consumer<Transition>() {
+                    @Override
+                    public void accept(Transition reset) {
+                        try {
+                            for (int i = 0; i < stepsPerEnv; i++) {
+                                client.stepAsync(env, LunarSimulator.ACTION_NONE).thenAccept(
+                                        new Consumer<Transition>() {
+                                            @Override
+                                            public void accept(Transition t) {
+                                                answered.incrementAndGet();
+                                                done.countDown();
+                                            }
+                                        });
+                            }
+                        } catch (Exception ex) {
+                            throw new RuntimeException(ex);
+                        }
+                    }
+                });
+            }
+            client.flush();
+            assertTrue("Stuck after " + answered + " steps", done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        } finally {
+            client.close();
+        }
+    }
+}
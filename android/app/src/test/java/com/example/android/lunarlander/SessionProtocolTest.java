@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Round-trips the session frames, then speaks them to a real
+ * {@link SessionServer} on loopback.
+ */
+public class SessionProtocolTest {
+    private static final int TIMEOUT_MILLIS = 10000;
+
+    private SessionServer mServer;
+    private Socket mSocket;
+    private DataOutputStream mOut;
+    private DataInputStream mIn;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new SessionServer(0);
+        mServer.start();
+        mSocket = new Socket(InetAddress.getLoopbackAddress(), mServer.getPort());
+        mSocket.setSoTimeout(TIMEOUT_MILLIS);
+        mOut = new DataOutputStream(new BufferedOutputStream(mSocket.getOutputStream()));
+        mIn = new DataInputStream(new BufferedInputStream(mSocket.getInputStream()));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mSocket.close();
+        mServer.close();
+    }
+
+    /**
+     * Sends one request and reads its response into {@code t}.
+     */
+    private void call(long id, int env, int type, int action, Transition t) throws IOException {
+        SessionProtocol.writeRequest(mOut, id, env, type, action);
+        mOut.flush();
+        assertEquals(id, mIn.readLong());
+        assertEquals(env, mIn.readInt());
+        SessionProtocol.readResponseBody(mIn, t);
+    }
+
+    /**
+     * Sends a request the server must refuse by closing the connection.
+     */
+    private void assertRefused(int env, int type) throws IOException {
+        SessionProtocol.writeRequest(mOut, 1, env, type, LunarSimulator.ACTION_NONE);
+        mOut.flush();
+        assertEquals(-1, mIn.read());
+    }
+
+    @Test
+    public void requestRoundTrips() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        SessionProtocol.writeRequest(new DataOutputStream(bytes), 1L << 40, 17,
+                SessionProtocol.TYPE_STEP, LunarSimulator.ACTION_FIRE);
+        assertEquals(SessionProtocol.REQUEST_SIZE, bytes.size());
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(1L << 40, in.readLong());
+        assertEquals(17, in.readInt());
+        assertEquals(SessionProtocol.TYPE_STEP, in.readInt());
+        assertEquals(LunarSimulator.ACTION_FIRE, in.readInt());
+    }
+
+    @Test
+    public void responseRoundTrips() throws IOException {
+        LunarEnvironment env = new LunarEnvironment(new Random(1));
+        env.reset();
+        for (int i = 0; i < 20; i++) env.step(LunarSimulator.ACTION_FIRE);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        SessionProtocol.writeResponse(new DataOutputStream(bytes), 42, 3, env);
+        assertEquals(SessionProtocol.RESPONSE_SIZE, bytes.size());
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(42, in.readLong());
+        assertEquals(3, in.readInt());
+        Transition t = new Transition();
+        SessionProtocol.readResponseBody(in, t);
+        assertEquals(env.isDone(), t.mDone);
+        assertEquals(env.reward(), t.mReward, 0);
+        assertEquals(env.landing(), t.mLanding);
+        assertEquals(20, t.mSteps);
+        assertArrayEquals(env.observation(), t.mObservation, 0);
+    }
+
+    @Test
+    public void serverStepsSeveralEnvironments() throws IOException {
+        Transition t = new Transition();
+        long id = 0;
+        for (int env : new int[]{0, 5, SessionProtocol.MAX_ENVS - 1}) {
+            call(id++, env, SessionProtocol.TYPE_RESET, 0, t);
+            assertEquals(0, t.mSteps);
+            call(id++, env, SessionProtocol.TYPE_STEP, LunarSimulator.ACTION_NONE, t);
+            assertEquals(1, t.mSteps);
+        }
+        // each environment counts its own steps
+        call(id, 0, SessionProtocol.TYPE_STEP, LunarSimulator.ACTION_NONE, t);
+        assertEquals(2, t.mSteps);
+    }
+
+    @Test
+    public void stepBeforeResetClosesTheConnection() throws IOException {
+        assertRefused(2, SessionProtocol.TYPE_STEP);
+    }
+
+    @Test
+    public void envOutOfRangeClosesTheConnection() throws IOException {
+        assertRefused(SessionProtocol.MAX_ENVS, SessionProtocol.TYPE_RESET);
+    }
+
+    @Test
+    public void unknownTypeClosesTheConnection() throws IOException {
+        assertRefused(0, 99);
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Drives the transport through its own mapping of the file, as the Python
+ * trainer does, for many times the ring capacity so both rings wrap and
+ * fill up.
+ */
+public class SharedMemoryTransportTest {
+    /*
+     * The layout in the SharedMemoryTransport class comment
+     */
+    private static final int OFFSET_CAPACITY = 8;
+    private static final int OFFSET_STATE = 24;
+    private static final int OFFSET_ACTION_HEAD = 64;
+    private static final int OFFSET_ACTION_TAIL = 128;
+    private static final int OFFSET_TRANSITION_HEAD = 192;
+    private static final int OFFSET_TRANSITION_TAIL = 256;
+    private static final int OFFSET_RINGS = 320;
+
+    private static final int CAPACITY = 4;
+    private static final int REQUESTS = 1000;
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * Read and written around every counter access, like the transport's
+     * fence.
+     */
+    private volatile int mFence;
+
+    /**
+     * Decides when to reset without waiting for the answers: the trainer's
+     * environment replayed ahead, up to request mShadowAt.
+     */
+    private final LunarEnvironment mShadow = new LunarEnvironment(new Random(3));
+    private long mShadowAt;
+
+    private void fence() {
+        mFence = 0;
+        if (mFence != 0) throw new AssertionError();
+    }
+
+    @Test
+    public void ringsWrapAround() throws Exception {
+        File file = mFolder.newFile("ring");
+        final SharedMemoryTransport transport = new SharedMemoryTransport(file, CAPACITY);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread server = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    transport.serve(new LunarEnvironment(new Random(3)));
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        });
+        server.start();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(SharedMemoryTransport.STATE_READY, buffer.getInt(OFFSET_STATE));
+        assertEquals(CAPACITY, buffer.getInt(OFFSET_CAPACITY));
+        int actions = OFFSET_RINGS;
+        int transitions = actions + CAPACITY * SharedMemoryTransport.ACTION_RECORD_SIZE;
+
+        // the same environment, stepped locally with the same actions
+        LunarEnvironment expected = new LunarEnvironment(new Random(3));
+        Random random = new Random(4);
+        int[] sent = new int[REQUESTS];
+        long actionHead = 0;
+        long transitionTail = 0;
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (transitionTail < REQUESTS) {
+            if (System.currentTimeMillis() > deadline) throw new AssertionError("Timed out");
+            fence();
+            // keep the action ring as full as it goes
+            if (actionHead < REQUESTS && actionHead - buffer.getLong(OFFSET_ACTION_TAIL) < CAPACITY) {
+                fence();
+                int at = actions + (int) (actionHead % CAPACITY) * SharedMemoryTransport.ACTION_RECORD_SIZE;
+                boolean reset = actionHead == 0 || expectedDoneBefore(sent, actionHead);
+                sent[(int) actionHead] = reset ? -1 : random.nextInt(4) == 0
+                        ? LunarSimulator.ACTION_FIRE : LunarSimulator.ACTION_NONE;
+                buffer.putInt(at, reset ? SharedMemoryTransport.TYPE_RESET : SharedMemoryTransport.TYPE_STEP);
+                buffer.putInt(at + 4, Math.max(0, sent[(int) actionHead]));
+                buffer.putLong(at + 8, 1000 + actionHead);
+                fence();
+                buffer.putLong(OFFSET_ACTION_HEAD, ++actionHead);
+                continue;
+            }
+            if (buffer.getLong(OFFSET_TRANSITION_HEAD) <= transitionTail) {
+                Thread.yield();
+                continue;
+            }
+            fence();
+            int at = transitions + (int) (transitionTail % CAPACITY) * SharedMemoryTransport.TRANSITION_RECORD_SIZE;
+            int action = sent[(int) transitionTail];
+            if (action < 0) {
+                expected.reset();
+            } else {
+                expected.step(action);
+            }
+            assertEquals(1000 + transitionTail, buffer.getLong(at));
+            assertEquals(action < 0 ? SharedMemoryTransport.TYPE_RESET : SharedMemoryTransport.TYPE_STEP,
+                    buffer.getInt(at + 8));
+            assertEquals(expected.isDone() ? 1 : 0, buffer.getInt(at + 12));
+            assertEquals(expected.reward(), buffer.getDouble(at + 16), 0);
+            assertEquals(expected.landing(), buffer.getInt(at + 24));
+            assertEquals(expected.steps(), buffer.getInt(at + 28));
+            for (int i = 0; i < RewardShaper.OBSERVATION_SIZE; i++) {
+                assertEquals(expected.observation()[i], buffer.getDouble(at + 32 + 8 * i), 0);
+            }
+            fence();
+            buffer.putLong(OFFSET_TRANSITION_TAIL, ++transitionTail);
+        }
+
+        fence();
+        int at = actions + (int) (actionHead % CAPACITY) * SharedMemoryTransport.ACTION_RECORD_SIZE;
+        buffer.putInt(at, SharedMemoryTransport.TYPE_CLOSE);
+        fence();
+        buffer.putLong(OFFSET_ACTION_HEAD, ++actionHead);
+        server.join(TIMEOUT_MILLIS);
+        assertNull(failure.get());
+        assertEquals(SharedMemoryTransport.STATE_CLOSED, buffer.getInt(OFFSET_STATE));
+        transport.close();
+        raf.close();
+    }
+
+    /**
+     * @return whether the requests before {@code request} end an episode,
+     * judged on the shadow copy
+     */
+    private boolean expectedDoneBefore(int[] sent, long request) {
+        for (; mShadowAt < request; mShadowAt++) {
+            int action = sent[(int) mShadowAt];
+            if (action < 0) {
+                mShadow.reset();
+            } else {
+                mShadow.step(action);
+            }
+        }
+        return mShadow.isDone();
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.lunarlander;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Feeds chunked weights to the assembler in and out of order, with
+ * duplicates, stale versions and corrupted blobs.
+ */
+public class WeightAssemblerTest {
+    private static final int[] SIZES = {RewardShaper.OBSERVATION_SIZE, 16, 4};
+    private static final int[] ACTIVATIONS = {PolicyNetwork.ACTIVATION_RELU, PolicyNetwork.ACTIVATION_LINEAR};
+    private static final int CHUNK_SIZE = 100;
+
+    /**
+     * @return a serialized random network of {@code version}
+     */
+    private static byte[] blob(int version, long seed) {
+        byte[] blob = PolicyNetwork.random(SIZES, ACTIVATIONS, 1, new Random(seed)).toBytes();
+        ByteBuffer.wrap(blob).order(ByteOrder.LITTLE_ENDIAN).putInt(4, version);
+        return blob;
+    }
+
+    @Test
+    public void assemblesChunksInAnyOrder() throws Exception {
+        byte[] blob = blob(3, 1);
+        byte[][] chunks = WeightAssembler.split(blob, 3, CHUNK_SIZE);
+        WeightAssembler assembler = new WeightAssembler();
+        for (int i = chunks.length - 1; i > 0; i--) assertNull(assembler.add(chunks[i]));
+        PolicyNetwork network = assembler.add(chunks[0]);
+        assertNotNull(network);
+        assertEquals(3, network.getVersion());
+        assertArrayEquals(blob, network.toBytes());
+        assertEquals(3, assembler.getLatestVersion());
+    }
+
+    @Test
+    public void duplicateChunksCountOnce() throws Exception {
+        byte[][] chunks = WeightAssembler.split(blob(1, 1), 1, CHUNK_SIZE);
+        WeightAssembler assembler = new WeightAssembler();
+        for (int i = 0; i < chunks.length - 1; i++) {
+            assertNull(assembler.add(chunks[i]));
+            assertNull(assembler.add(chunks[i]));
+        }
+        assertNotNull(assembler.add(chunks[chunks.length - 1]));
+    }
+
+    @Test
+    public void checksumMismatchAbandonsTheTransfer() throws Exception {
+        byte[] blob = blob(2, 1);
+        byte[][] chunks = WeightAssembler.split(blob, 2, CHUNK_SIZE);
+        // flip a weight byte in the last chunk, after the CRC was taken
+        byte[] last = chunks[chunks.length - 1];
+        last[last.length - 1] ^= 1;
+        WeightAssembler assembler = new WeightAssembler();
+        for (int i = 0; i < chunks.length - 1; i++) assembler.add(chunks[i]);
+        try {
+            assembler.add(last);
+            fail("Accepted a corrupted blob");
+        } catch (IOException expected) {
+        }
+        assertEquals(-1, assembler.getLatestVersion());
+
+        // the same version sent again intact goes through
+        for (byte[] chunk : WeightAssembler.split(blob, 2, CHUNK_SIZE)) {
+            PolicyNetwork network = assembler.add(chunk);
+            if (network != null) assertEquals(2, network.getVersion());
+        }
+        assertEquals(2, assembler.getLatestVersion());
+    }
+
+    @Test
+    public void staleVersionsAreIgnored() throws Exception {
+        WeightAssembler assembler = new WeightAssembler();
+        for (byte[] chunk : WeightAssembler.split(blob(5, 1), 5, CHUNK_SIZE)) assembler.add(chunk);
+        assertEquals(5, assembler.getLatestVersion());
+
+        for (int version : new int[]{4, 5}) {
+            for (byte[] chunk : WeightAssembler.split(blob(version, 2), version, CHUNK_SIZE)) {
+                assertNull(assembler.add(chunk));
+            }
+        }
+        assertEquals(5, assembler.getLatestVersion());
+    }
+
+    @Test
+    public void newerVersionAbandonsOneInProgress() throws Exception {
+        byte[][] older = WeightAssembler.split(blob(6, 1), 6, CHUNK_SIZE);
+        byte[][] newer = WeightAssembler.split(blob(7, 2), 7, CHUNK_SIZE);
+        WeightAssembler assembler = new WeightAssembler();
+        assertNull(assembler.add(older[0]));
+        for (int i = 0; i < newer.length - 1; i++) assertNull(assembler.add(newer[i]));
+        // the rest of the older transfer is now stale
+        for (int i = 1; i < older.length; i++) assertNull(assembler.add(older[i]));
+        PolicyNetwork network = assembler.add(newer[newer.length - 1]);
+        assertNotNull(network);
+        assertEquals(7, network.getVersion());
+    }
+
+    @Test
+    public void malformedChunksAreRejected() {
+        byte[][] chunks = WeightAssembler.split(blob(1, 1), 1, CHUNK_SIZE);
+        byte[] badMagic = Arrays.copyOf(chunks[0], chunks[0].length);
+        badMagic[0] ^= 1;
+        byte[] badIndex = Arrays.copyOf(chunks[0], chunks[0].length);
+        ByteBuffer.wrap(badIndex).order(ByteOrder.LITTLE_ENDIAN).putInt(8, chunks.length);
+        for (byte[] chunk : new byte[][]{new byte[4], badMagic, badIndex}) {
+            try {
+                new WeightAssembler().add(chunk);
+                fail("Accepted a malformed chunk");
+            } catch (IOException expected) {
+            }
+        }
+    }
+}
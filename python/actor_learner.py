@@ -0,0 +1,213 @@
+import queue
+import struct
+import sys
+import zlib
+
+import numpy as np
+import paho.mqtt.client as mqtt
+
+from dqn_lunar_lander import DQN, HOST, save_dir
+
+# learner side of the device's actor mode: the phone plays with a local copy
+# of the network and uploads its experience; this consumes it and now and
+# then pushes updated weights back
+
+TRAJECTORY_TOPIC = "TRAJECTORIES_FROM_ANDROID"
+WEIGHTS_TOPIC = "WEIGHTS_FROM_AI"
+
+# must match PolicyNetwork.java
+POLICY_MAGIC = 0x4C504F4C
+ACTIVATION_LINEAR = 0
+ACTIVATION_RELU = 1
+ACTIVATION_TANH = 2
+
+# must match TrajectoryBuffer.java
+TRAJECTORY_MAGIC = 0x4C54524A
+TRAJECTORY_HEADER = '<iiiqiiib'
+
+# must match NStepBatch.java
+N_STEP_MAGIC = 0x4C4E5354
+N_STEP_HEADER = '<iiiifiii'
+N_STEP_TOPIC = "N_STEP_FROM_ANDROID"
+
+# must match WeightAssembler.java
+WEIGHT_CHUNK_MAGIC = 0x4C574348
+WEIGHT_CHUNK_HEADER = '<iiiiiIi'
+WEIGHT_CHUNK_SIZE = 64 * 1024
+
+# episodes consumed between weight pushes
+PUSH_EVERY = 20
+# the same for actors sending n-step returns (--ei actor_n_step n), counted
+# in transitions since they need not send episode summaries
+PUSH_EVERY_STEPS = 5000
+
+
+def policy_bytes(dqn, version):
+    # the network in the device's PolicyNetwork format; the output layer's
+    # bias is not used by the model, so it is written as zeros
+    w1, b1, w2, b2, w3, b3, w4 = dqn.session.run(
+        [dqn.W1, dqn.b1, dqn.W1_h, dqn.b1_h, dqn.W2_h, dqn.b2_h, dqn.W2])
+    layers = [(w1, b1), (w2, b2), (w3, b3), (w4, np.zeros(w4.shape[1]))]
+    sizes = [w1.shape[0]] + [w.shape[1] for w, _ in layers]
+    activations = [ACTIVATION_RELU, ACTIVATION_RELU, ACTIVATION_TANH, ACTIVATION_LINEAR]
+
+    out = [struct.pack('<iii', POLICY_MAGIC, version, len(layers)),
+           struct.pack('<%di' % len(sizes), *sizes),
+           struct.pack('<%di' % len(activations), *activations)]
+    for w, b in layers:
+        out.append(np.asarray(w, '<f4').tobytes())
+        out.append(np.asarray(b, '<f4').tobytes())
+    return b''.join(out)
+
+
+def export_policy(dqn, path, version):
+    # write the weights for `adb push` and the actor_policy intent extra
+    with open(path, 'wb') as f:
+        f.write(policy_bytes(dqn, version))
+
+
+def weight_chunks(blob, version, chunk_size=WEIGHT_CHUNK_SIZE):
+    # split a policy blob into the messages the device reassembles
+    crc = zlib.crc32(blob) & 0xffffffff
+    count = (len(blob) + chunk_size - 1) // chunk_size
+    return [struct.pack(WEIGHT_CHUNK_HEADER, WEIGHT_CHUNK_MAGIC, version, i, count, len(blob), crc, offset)
+            + blob[offset:offset + chunk_size]
+            for i, offset in enumerate(range(0, len(blob), chunk_size))]
+
+
+def push_policy(client, dqn, version):
+    # the device keeps playing while the chunks arrive and swaps between ticks
+    for chunk in weight_chunks(policy_bytes(dqn, version), version):
+        client.publish(WEIGHTS_TOPIC, chunk, qos=1)
+
+
+def decode_trajectory(payload):
+    # one uploaded run -> (header dict, [(state, action, reward, next_state, done)])
+    data = zlib.decompress(payload)
+    magic, actor, version, episode, first_step, n, k, done = struct.unpack_from(TRAJECTORY_HEADER, data)
+    if magic != TRAJECTORY_MAGIC:
+        raise ValueError("not a trajectory message")
+    offset = struct.calcsize(TRAJECTORY_HEADER)
+    obs = struct.unpack_from('<%df' % ((n + 1) * k), data, offset)
+    offset += 4 * (n + 1) * k
+    actions = struct.unpack_from('<%db' % n, data, offset)
+    offset += n
+    rewards = struct.unpack_from('<%df' % n, data, offset)
+
+    rows = [np.array(obs[i * k:(i + 1) * k]) for i in range(n + 1)]
+    transitions = [(rows[i], actions[i], rewards[i], rows[i + 1], bool(done) and i == n - 1)
+                   for i in range(n)]
+    header = {'actor': actor, 'version': version, 'episode': episode,
+              'first_step': first_step, 'done': bool(done)}
+    return header, transitions
+
+
+def decode_n_step(payload):
+    # one batch of n-step transitions -> (header dict,
+    # [(state, action, n-step return, bootstrap state, discount)], [episode dict]);
+    # the target is return + discount * max Q(bootstrap state)
+    data = zlib.decompress(payload)
+    magic, actor, version, n, gamma, count, k, episodes = struct.unpack_from(N_STEP_HEADER, data)
+    if magic != N_STEP_MAGIC:
+        raise ValueError("not an n-step message")
+    offset = struct.calcsize(N_STEP_HEADER)
+
+    def take(fmt, size):
+        nonlocal offset
+        values = struct.unpack_from('<%d%s' % (size, fmt), data, offset)
+        offset += struct.calcsize('<%d%s' % (size, fmt))
+        return values
+
+    obs = np.array(take('f', count * k)).reshape(count, k)
+    actions = take('b', count)
+    returns = take('f', count)
+    next_obs = np.array(take('f', count * k)).reshape(count, k)
+    discounts = take('f', count)
+    numbers = take('q', episodes)
+    lengths = take('i', episodes)
+    totals = take('f', episodes)
+    discounted = take('f', episodes)
+
+    transitions = [(obs[i], actions[i], returns[i], next_obs[i], discounts[i]) for i in range(count)]
+    summaries = [{'episode': numbers[i], 'length': lengths[i], 'return': totals[i],
+                  'discounted_return': discounted[i]} for i in range(episodes)]
+    header = {'actor': actor, 'version': version, 'n': n, 'gamma': gamma}
+    return header, transitions, summaries
+
+
+def is_n_step(payload):
+    head = zlib.decompressobj().decompress(payload, 4)
+    return struct.unpack_from('<i', head)[0] == N_STEP_MAGIC
+
+
+class ActorExperience:
+    def __init__(self):
+        self.client = mqtt.Client("LunarLanderLearner")
+        self.client.on_connect = self.on_connect
+        self.client.on_message = self.on_message
+        self.messages = queue.Queue()
+
+    def connect(self):
+        self.client.connect(HOST, port=1883, keepalive=60)
+        self.client.loop_start()
+
+    def on_connect(self, client, userdata, flags, rc):
+        print("Connected with result code " + str(rc))
+        self.client.subscribe(TRAJECTORY_TOPIC, qos=1)
+
+    def on_message(self, client, userdata, msg):
+        self.messages.put(msg.payload)
+
+    def runs(self):
+        while True:
+            payload = self.messages.get()
+            if is_n_step(payload):
+                yield decode_n_step(payload)
+            else:
+                yield decode_trajectory(payload)
+
+
+def main():
+    experience = ActorExperience()
+    experience.connect()
+    agent = DQN()
+    if len(sys.argv) > 1:
+        export_policy(agent, sys.argv[1], 0)
+
+    episode_rewards = {}
+    episodes = 0
+    steps = 0
+    version = 0
+    for run in experience.runs():
+        if 'n' in run[0]:
+            # actors started with n-step returns send ready-made targets
+            header, transitions, summaries = run
+            for state, action, ret, next_state, discount in transitions:
+                agent.perceive(state, action, ret, next_state, discount == 0, discount)
+            for summary in summaries:
+                print("actor %d episode %d (model %d): %f" % (
+                    header['actor'], summary['episode'], header['version'], summary['return']))
+            steps += len(transitions)
+            if steps >= PUSH_EVERY_STEPS:
+                steps = 0
+                agent.save_network(save_dir)
+                version += 1
+                push_policy(experience.client, agent, version)
+            continue
+        header, transitions = run
+        key = (header['actor'], header['episode'])
+        for t in transitions:
+            agent.perceive(*t)
+            episode_rewards[key] = episode_rewards.get(key, 0.0) + t[2]
+        if header['done']:
+            print("actor %d episode %d (model %d): %f" % (
+                header['actor'], header['episode'], header['version'], episode_rewards.pop(key)))
+            episodes += 1
+            if episodes % PUSH_EVERY == 0:
+                agent.save_network(save_dir)
+                version += 1
+                push_policy(experience.client, agent, version)
+
+
+if __name__ == '__main__':
+    main()
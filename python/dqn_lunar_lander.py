@@ -13,6 +13,8 @@ import json
 import threading
 import math
 import pandas as pd
+import struct
+import zlib
 
 HOST = "192.168.1.2"
 
@@ -32,9 +34,49 @@ KEY_EVENT_MAPPING = {
 
 pub_topic = "DATA_FROM_AI"
 sub_topic = "DATA_FROM_ANDROID"
+analytics_topic = "ANALYTICS_FROM_ANDROID"
+
+# must match EpisodeAnalytics.java
+ANALYTICS_MAGIC = 0x4C414E41
+OUTCOME_NAMES = ["none", "win", "hyperspace", "off_pad", "bad_angle",
+                 "too_fast", "collision", "time_limit", "out_of_bounds"]
+
+
+def decode_analytics(payload):
+    # one snapshot -> dict of outcome counts (totals, last episodes, last
+    # seconds) and the touchdown histograms as (counts, x range, y range)
+    data = zlib.decompress(payload)
+    offset = 0
+
+    def take(fmt):
+        nonlocal offset
+        values = struct.unpack_from('<' + fmt, data, offset)
+        offset += struct.calcsize('<' + fmt)
+        return values
+
+    magic, millis, outcomes = take('iqi')
+    if magic != ANALYTICS_MAGIC:
+        raise ValueError("not an analytics snapshot")
+    names = OUTCOME_NAMES[:outcomes]
+    snapshot = {'millis': millis, 'totals': dict(zip(names, take('%dq' % outcomes)))}
+    snapshot['steps'], snapshot['best_streak'] = take('qq')
+    snapshot['episode_window'] = take('i')[0]
+    snapshot['recent'] = dict(zip(names, take('%dq' % outcomes)))
+    snapshot['time_window'] = take('i')[0]
+    snapshot['last_seconds'] = dict(zip(names, take('%dq' % outcomes)))
+    snapshot['last_seconds_steps'] = take('q')[0]
+    for name in ('offset_speed', 'heading_speed', 'fuel'):
+        x_bins, y_bins, x_low, x_high, y_low, y_high = take('iiffff')
+        counts = np.array(take('%dq' % (x_bins * y_bins))).reshape(x_bins, y_bins)
+        snapshot[name] = (counts, (x_low, x_high), (y_low, y_high))
+    return snapshot
+
 
 class LunarEnv:
-    def __init__(self):
+    # max_steps and bounds_margin have the device truncate episodes (see
+    # EpisodeLimits.java); with auto_reset the reply that ends an episode
+    # also carries the first state of the next, so reset() needs no round trip
+    def __init__(self, max_steps=0, bounds_margin=-1, auto_reset=False):
         self.client = mqtt.Client("LunarLanderAI")
         self.client.on_connect = self.on_connect
         self.client.on_message = self.on_message
@@ -42,6 +84,13 @@ class LunarEnv:
         self.msg_event = threading.Event()
         self.connect_event = threading.Event()
         self.msg = None
+        self.max_steps = max_steps
+        self.bounds_margin = bounds_margin
+        self.auto_reset = auto_reset
+        self.truncated = False
+        self.next_observation = None
+        self.analytics_event = threading.Event()
+        self.snapshot = None
 
     def connect(self):
         self.client.connect(HOST, port=1883, keepalive=60)
@@ -50,7 +99,16 @@ class LunarEnv:
         self.connect_event.wait()
 
     def reset(self):
-        self.client.publish(pub_topic, payload=str({'type': 'reset'}))
+        self.truncated = False
+        if self.next_observation is not None:
+            observation, self.next_observation = self.next_observation, None
+            return observation
+        self.client.publish(pub_topic, payload=json.dumps({
+            'type': 'reset',
+            'max_steps': self.max_steps,
+            'bounds_margin': self.bounds_margin,
+            'auto_reset': self.auto_reset
+        }))
         if DEBUG: print("Waiting for next message from Android...")
         self.msg_event.wait()
         
@@ -68,9 +126,23 @@ class LunarEnv:
 
         state = self.msg['state']
         observation = np.array([state['mX'], state['mY'], state['mDX'], state['mDY'], state['mHeading'], state['mOnGoal']])
+        # truncated episodes are over without being terminal: callers stop
+        # the episode but still bootstrap from the observation
+        self.truncated = self.msg.get('truncated', False)
+        if 'reset' in self.msg:
+            state = self.msg['reset']['state']
+            self.next_observation = np.array([state['mX'], state['mY'], state['mDX'], state['mDY'], state['mHeading'], state['mOnGoal']])
 
         return tuple([observation, self.msg['reward'], self.msg['done']])
 
+    def analytics(self, timeout=5):
+        # how the device's episodes have been ending, see decode_analytics
+        self.analytics_event.clear()
+        self.client.publish(pub_topic, payload=json.dumps({'type': 'analytics'}))
+        if not self.analytics_event.wait(timeout):
+            return None
+        return decode_analytics(self.snapshot)
+
     def on_connect(self, client, userdata, flags, rc):
         print("Connected with result code " + str(rc))
         self.connect_event.set()
@@ -79,9 +151,14 @@ class LunarEnv:
         # Subscribing in on_connect() means that if we lose the connection and
         # reconnect then subscriptions will be renewed.n
         self.client.subscribe(sub_topic)
+        self.client.subscribe(analytics_topic)
 
 
     def on_message(self, client, userdata, msg):
+        if msg.topic == analytics_topic:
+            self.snapshot = msg.payload
+            self.analytics_event.set()
+            return
         if DEBUG: print("Message received: " + str(msg.payload) + ", topic: " + msg.topic)
 
         m_decode=str(msg.payload.decode("utf-8","ignore"))
@@ -175,11 +252,13 @@ class DQN():
         self.optimizer=tf.train.AdamOptimizer(5e-5).minimize(self.loss)
                                
     
-    def perceive(self,state,action,reward,next_state,done):
+    def perceive(self,state,action,reward,next_state,done,discount=GAMMA):
+        # discount scales the bootstrap value: GAMMA for one-step transitions,
+        # GAMMA**n for the device's n-step ones
         one_hot_action=np.zeros(self.action_dim)
         one_hot_action[action]=1
         self.replay_buffer.append((state,one_hot_action,reward,
-                                   next_state,done))
+                                   next_state,done,discount))
         if len(self.replay_buffer)>REPLAY_SIZE:
             self.replay_buffer.popleft()
             
@@ -202,7 +281,8 @@ class DQN():
                 if done:
                     y_batch.append(reward_batch[i])
                 else:
-                    y_batch.append(reward_batch[i]+GAMMA*np.max(Q_value_batch[i]))
+                    discount=minibatch[i][5] if len(minibatch[i])>5 else GAMMA
+                    y_batch.append(reward_batch[i]+discount*np.max(Q_value_batch[i]))
             feed_dict={self.y_input:y_batch,
                    self.action_input:action_batch,
                    self.state_input:state_batch,
@@ -230,7 +310,7 @@ class DQN():
             state=env.reset()
             done = False
             total_reward = 0.0
-            while not done:
+            while not done and not env.truncated:
                 action = random.randint(0,self.action_dim-1)
                 one_hot_action=np.zeros(self.action_dim)
                 one_hot_action[action]=1    
@@ -248,7 +328,7 @@ STEP = 1000
 TEST = 100
 
 def main():
-    lunar_env = LunarEnv()
+    lunar_env = LunarEnv(max_steps=STEP, bounds_margin=0.5, auto_reset=True)
     lunar_env.connect()
     env = lunar_env
     agent=DQN()
@@ -265,7 +345,7 @@ def main():
             agent.epsilon-=(END_EPSILON-END_EPSILON2)/3000
         done = False
         total_per_reward = 0
-        while not done:
+        while not done and not env.truncated:
             action=agent.egreedy_action(state)
             next_state,reward,done = env.step(action)
             agent.perceive(state,action,reward,next_state,done)
@@ -276,12 +356,17 @@ def main():
         if episode%100==0:
             agent.save_network(save_dir)
             print('average reward of last 100 episode:',sum_of_reward/100)
+            snapshot = env.analytics()
+            if snapshot is not None:
+                recent = snapshot['recent']
+                print('last %d episodes:' % sum(recent.values()),
+                      {k: v for k, v in recent.items() if v}, 'best streak', snapshot['best_streak'])
             if sum_of_reward/100>200:
                 total_reward=0
                 for i in range(TEST):  
                     state=env.reset()
                     done = False
-                    while not done:
+                    while not done and not env.truncated:
                         action=agent.action(state)
                         state,reward,done=env.step(action)
                         total_reward+=reward
@@ -66,6 +66,12 @@ class LunarEnv:
 
         return tuple([observation, self.msg['reward'], self.msg['done']])
 
+    def stats(self, clear=False):
+        # running per-field statistics of everything published so far
+        self.client.publish(pub_topic, payload=str({'type': 'stats', 'clear': clear}))
+        self.msg_event.wait()
+        return self.msg['fields']
+
     def on_connect(self, client, userdata, flags, rc):
         print("Connected with result code " + str(rc))
         self.connect_event.set()
@@ -91,6 +97,49 @@ class LunarEnv:
         # return np.random.choice(len(KEY_EVENT_MAPPING), p=[0.3, 0.3, 0.1, 0.3])
 
 
+def stats_quantile(field, q):
+    # the same estimate as RunningStats.quantile, from a field's histogram
+    bins = field['bins']
+    width = (field['high'] - field['low']) / (len(bins) - 2)
+    rank = q * field['count']
+    seen = 0
+    for i, in_bin in enumerate(bins):
+        if in_bin > 0 and seen + in_bin >= rank:
+            if i == 0:
+                return field['min']
+            if i == len(bins) - 1:
+                return field['max']
+            estimate = field['low'] + (i - 1) * width + width * (rank - seen) / in_bin
+            return max(field['min'], min(field['max'], estimate))
+        seen += in_bin
+    return field['max']
+
+
+def merge_stats(a, b):
+    # combines two 'stats' replies (e.g. from two devices) field by field
+    merged = {}
+    for name in a:
+        x, y = a[name], b[name]
+        count = x['count'] + y['count']
+        if count == 0:
+            merged[name] = dict(x)
+            continue
+        delta = y['mean'] - x['mean']
+        field = dict(x)
+        field['count'] = count
+        field['mean'] = x['mean'] + delta * y['count'] / count
+        field['m2'] = x['m2'] + y['m2'] + delta * delta * x['count'] * y['count'] / count
+        field['std'] = math.sqrt(field['m2'] / (count - 1)) if count > 1 else 0.0
+        field['min'] = min(x.get('min', math.inf), y.get('min', math.inf))
+        field['max'] = max(x.get('max', -math.inf), y.get('max', -math.inf))
+        field['bins'] = [p + q for p, q in zip(x['bins'], y['bins'])]
+        field['p05'] = stats_quantile(field, 0.05)
+        field['p50'] = stats_quantile(field, 0.5)
+        field['p95'] = stats_quantile(field, 0.95)
+        merged[name] = field
+    return merged
+
+
 class QLearner:
     def __init__(self, environment, q_config):
         self.environment = environment
@@ -0,0 +1,116 @@
+import mmap
+import platform
+import struct
+import time
+
+import numpy as np
+
+PATH = "/dev/shm/lunar_lander"
+
+KEYEVENT_DPAD_LEFT = 21
+KEYEVENT_DPAD_RIGHT = 22
+KEYEVENT_SPACE = 62
+KEYEVENT_NONE = 0
+
+KEY_EVENT_MAPPING = {
+    0: KEYEVENT_NONE,
+    1: KEYEVENT_SPACE,
+    2: KEYEVENT_DPAD_LEFT,
+    3: KEYEVENT_DPAD_RIGHT
+}
+
+# must match SharedMemoryTransport.java
+MAGIC = 0x4C554E52
+TYPE_RESET = 1
+TYPE_STEP = 2
+TYPE_CLOSE = 3
+STATE_READY = 1
+
+OFFSET_ACTION_HEAD = 64
+OFFSET_ACTION_TAIL = 128
+OFFSET_TRANSITION_HEAD = 192
+OFFSET_TRANSITION_TAIL = 256
+OFFSET_RINGS = 320
+
+SPIN_TRIES = 2000
+SLEEP = 20e-6
+
+# Python has no memory barrier, so the rings below are only safe where the
+# hardware keeps stores in order, loads in order, and loads ahead of later
+# stores: a record is written before the head that publishes it, and read
+# before the tail that frees it
+ORDERED_MACHINES = ("x86_64", "amd64", "i386", "i686", "x86")
+
+
+class ShmLunarEnv:
+    # same reset/step interface as the MQTT LunarEnv, over a file mapped by
+    # SharedMemoryTransport running on the same machine
+    def __init__(self, path=PATH):
+        if platform.machine().lower() not in ORDERED_MACHINES:
+            raise RuntimeError("Shared memory transport needs x86, not " + platform.machine())
+        self.file = open(path, "r+b")
+        self.mm = mmap.mmap(self.file.fileno(), 0)
+        while struct.unpack_from("<i", self.mm, 24)[0] != STATE_READY:
+            time.sleep(0.01)
+        magic, version, self.capacity, self.obs_size, self.action_size, self.transition_size = \
+            struct.unpack_from("<6i", self.mm, 0)
+        if magic != MAGIC:
+            raise ValueError("Not a lunar lander transport: " + path)
+        self.actions_offset = OFFSET_RINGS
+        self.transitions_offset = OFFSET_RINGS + self.capacity * self.action_size
+        self.transition_format = "<qiidii%dd" % self.obs_size
+        self.action_head = struct.unpack_from("<q", self.mm, OFFSET_ACTION_HEAD)[0]
+        self.transition_tail = struct.unpack_from("<q", self.mm, OFFSET_TRANSITION_TAIL)[0]
+        self.next_id = 0
+
+    def _wait_above(self, offset, value):
+        tries = 0
+        while struct.unpack_from("<q", self.mm, offset)[0] <= value:
+            tries += 1
+            if tries > SPIN_TRIES:
+                time.sleep(SLEEP)
+
+    def _send(self, type, action=0):
+        self._wait_above(OFFSET_ACTION_TAIL, self.action_head - self.capacity)
+        at = self.actions_offset + (self.action_head % self.capacity) * self.action_size
+        struct.pack_into("<iiq", self.mm, at, type, action, self.next_id)
+        self.next_id += 1
+        self.action_head += 1
+        struct.pack_into("<q", self.mm, OFFSET_ACTION_HEAD, self.action_head)
+
+    def _receive(self):
+        self._wait_above(OFFSET_TRANSITION_HEAD, self.transition_tail)
+        at = self.transitions_offset + (self.transition_tail % self.capacity) * self.transition_size
+        record = struct.unpack_from(self.transition_format, self.mm, at)
+        self.transition_tail += 1
+        struct.pack_into("<q", self.mm, OFFSET_TRANSITION_TAIL, self.transition_tail)
+        _, _, done, reward, _, _ = record[:6]
+        return np.array(record[6:]), reward, bool(done)
+
+    def reset(self):
+        self._send(TYPE_RESET)
+        return self._receive()[0]
+
+    def step(self, action):
+        self._send(TYPE_STEP, KEY_EVENT_MAPPING[action])
+        return self._receive()
+
+    def close(self):
+        self._send(TYPE_CLOSE)
+        self.mm.close()
+        self.file.close()
+
+
+if __name__ == '__main__':
+    env = ShmLunarEnv()
+    steps = 0
+    start = time.time()
+    for _ in range(100):
+        env.reset()
+        done = False
+        while not done:
+            _, _, done = env.step(np.random.randint(len(KEY_EVENT_MAPPING)))
+            steps += 1
+    elapsed = time.time() - start
+    print("%d steps, %.1f us/step" % (steps, 1e6 * elapsed / steps))
+    env.close()